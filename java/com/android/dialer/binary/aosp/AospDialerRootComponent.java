@@ -21,6 +21,7 @@ import com.android.dialer.activecalls.ActiveCallsModule;
 import com.android.dialer.binary.basecomponent.BaseDialerRootComponent;
 import com.android.dialer.calllog.CallLogModule;
 import com.android.dialer.calllog.config.CallLogConfigModule;
+import com.android.dialer.calltrace.CallTracesModule;
 import com.android.dialer.commandline.CommandLineModule;
 import com.android.dialer.common.concurrent.DialerExecutorModule;
 import com.android.dialer.configprovider.SharedPrefConfigProviderModule;
@@ -57,6 +58,7 @@ import javax.inject.Singleton;
       ActiveCallsModule.class,
       CallLogModule.class,
       CallLogConfigModule.class,
+      CallTracesModule.class,
       CommandLineModule.class,
       ContactsModule.class,
       ContextModule.class,
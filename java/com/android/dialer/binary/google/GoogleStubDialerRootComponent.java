@@ -21,6 +21,7 @@ import com.android.dialer.activecalls.ActiveCallsModule;
 import com.android.dialer.binary.basecomponent.BaseDialerRootComponent;
 import com.android.dialer.calllog.CallLogModule;
 import com.android.dialer.calllog.config.CallLogConfigModule;
+import com.android.dialer.calltrace.CallTracesModule;
 import com.android.dialer.commandline.CommandLineModule;
 import com.android.dialer.common.concurrent.DialerExecutorModule;
 import com.android.dialer.configprovider.SharedPrefConfigProviderModule;
@@ -61,6 +62,7 @@ import javax.inject.Singleton;
       CallLocationModule.class,
       CallLogModule.class,
       CallLogConfigModule.class,
+      CallTracesModule.class,
       CommandLineModule.class,
       ContextModule.class,
       ContactsModule.class,
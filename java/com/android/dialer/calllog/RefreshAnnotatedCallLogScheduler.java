@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calllog;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import com.android.dialer.calllog.RefreshAnnotatedCallLogWorker.RefreshResult;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.Annotations.Ui;
+import com.android.dialer.common.concurrent.ThreadUtil;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.logging.DialerImpression;
+import com.android.dialer.logging.Logger;
+import com.android.dialer.metrics.FutureTimer;
+import com.android.dialer.metrics.Metrics;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Schedules refreshes of the annotated call log requested through {@link
+ * RefreshAnnotatedCallLogReceiver}.
+ *
+ * <p>Requests are merged while a refresh is pending, and also while one is running, so a burst of
+ * changes (for example, a visual voicemail sync updating many rows and the voicemail status)
+ * results in at most one refresh running and one more following it.
+ *
+ * <p>A refresh starts once no new request has arrived for a short wait. The wait grows while
+ * requests keep arriving faster than it and halves for every wait period without one, but a pending
+ * refresh is never delayed by more than {@link #MAX_DELAY_MILLIS} after its first request. Requests
+ * which check whether the annotated call log is dirty come from the call log UI being shown, so
+ * they always use the shortest wait.
+ */
+@Singleton
+public final class RefreshAnnotatedCallLogScheduler {
+
+  /**
+   * This is a reasonable time that it might take between related call log writes, that also
+   * shouldn't slow down single-writes too much. For example, when populating the database using the
+   * simulator, using this value results in ~6 refresh cycles (on a release build) to write 120 call
+   * log entries.
+   */
+  private static final long MIN_WAIT_MILLIS = 100L;
+
+  private static final long MAX_WAIT_MILLIS = 1600L;
+
+  private static final long MAX_DELAY_MILLIS = 3000L;
+
+  private final Context appContext;
+  private final RefreshAnnotatedCallLogWorker refreshAnnotatedCallLogWorker;
+  private final FutureTimer futureTimer;
+  private final ListeningExecutorService uiExecutor;
+  private final Runnable startPendingRefreshRunnable = this::startPendingRefresh;
+
+  @Nullable private PendingRefresh pendingRefresh;
+  private boolean isRefreshing;
+  private long waitMillis = MIN_WAIT_MILLIS;
+  private long lastRequestMillis;
+
+  @Inject
+  RefreshAnnotatedCallLogScheduler(
+      @ApplicationContext Context appContext,
+      RefreshAnnotatedCallLogWorker refreshAnnotatedCallLogWorker,
+      FutureTimer futureTimer,
+      @Ui ListeningExecutorService uiExecutor) {
+    this.appContext = appContext;
+    this.refreshAnnotatedCallLogWorker = refreshAnnotatedCallLogWorker;
+    this.futureTimer = futureTimer;
+    this.uiExecutor = uiExecutor;
+  }
+
+  /**
+   * Requests a refresh of the annotated call log.
+   *
+   * <p>Once the refresh begins, it can't be cancelled.
+   *
+   * @param checkDirty whether to check if the annotated call log is "dirty" before rebuilding it
+   * @param systemCallLogOnly whether the request is for a change to the system call log only
+   * @see #cancel()
+   */
+  @MainThread
+  public void requestRefresh(boolean checkDirty, boolean systemCallLogOnly) {
+    Assert.isMainThread();
+
+    long nowMillis = SystemClock.elapsedRealtime();
+    long elapsedMillis = nowMillis - lastRequestMillis;
+    if (elapsedMillis < waitMillis) {
+      waitMillis = Math.min(MAX_WAIT_MILLIS, waitMillis * 2);
+    } else {
+      // Halve the wait once for every wait period which passed without a request, so a quiet spell
+      // brings it back down even though no request arrived to shrink it step by step.
+      while (waitMillis > MIN_WAIT_MILLIS && elapsedMillis >= waitMillis) {
+        elapsedMillis -= waitMillis;
+        waitMillis = Math.max(MIN_WAIT_MILLIS, waitMillis / 2);
+      }
+    }
+    lastRequestMillis = nowMillis;
+
+    if (pendingRefresh == null) {
+      pendingRefresh = new PendingRefresh(checkDirty, systemCallLogOnly, nowMillis);
+    } else {
+      pendingRefresh.merge(checkDirty, systemCallLogOnly);
+      Logger.get(appContext)
+          .logImpression(DialerImpression.Type.ANNOTATED_CALL_LOG_REFRESH_REQUEST_MERGED);
+    }
+    LogUtil.i(
+        "RefreshAnnotatedCallLogScheduler.requestRefresh",
+        "pending: %s, isRefreshing: %b, waitMillis: %d",
+        pendingRefresh,
+        isRefreshing,
+        waitMillis);
+
+    // A running refresh schedules the pending one when it completes.
+    if (!isRefreshing) {
+      schedulePendingRefresh(nowMillis);
+    }
+  }
+
+  /** Cancels the pending refresh, if it hasn't started. */
+  @MainThread
+  public void cancel() {
+    Assert.isMainThread();
+    LogUtil.enterBlock("RefreshAnnotatedCallLogScheduler.cancel");
+
+    ThreadUtil.getUiThreadHandler().removeCallbacks(startPendingRefreshRunnable);
+    pendingRefresh = null;
+  }
+
+  @MainThread
+  private void schedulePendingRefresh(long nowMillis) {
+    long delayMillis = pendingRefresh.checkDirty ? MIN_WAIT_MILLIS : waitMillis;
+    long deadlineMillis = pendingRefresh.firstRequestMillis + MAX_DELAY_MILLIS;
+    delayMillis = Math.max(0, Math.min(delayMillis, deadlineMillis - nowMillis));
+
+    ThreadUtil.getUiThreadHandler().removeCallbacks(startPendingRefreshRunnable);
+    ThreadUtil.getUiThreadHandler().postDelayed(startPendingRefreshRunnable, delayMillis);
+  }
+
+  @MainThread
+  private void startPendingRefresh() {
+    PendingRefresh refresh = pendingRefresh;
+    if (refresh == null) {
+      return;
+    }
+    pendingRefresh = null;
+    isRefreshing = true;
+
+    boolean checkDirty = refresh.checkDirty;
+    ListenableFuture<RefreshResult> future =
+        checkDirty
+            ? refreshAnnotatedCallLogWorker.refreshWithDirtyCheck()
+            : refreshAnnotatedCallLogWorker.refreshWithoutDirtyCheck(refresh.systemCallLogOnly);
+    Futures.addCallback(
+        future,
+        new FutureCallback<RefreshResult>() {
+          @Override
+          public void onSuccess(RefreshResult refreshResult) {
+            Logger.get(appContext).logImpression(getImpressionType(checkDirty, refreshResult));
+            onRefreshFinished();
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            throw new RuntimeException(throwable);
+          }
+        },
+        uiExecutor);
+    futureTimer.applyTiming(future, new EventNameFromResultFunction(checkDirty));
+  }
+
+  @MainThread
+  private void onRefreshFinished() {
+    isRefreshing = false;
+    if (pendingRefresh != null) {
+      schedulePendingRefresh(SystemClock.elapsedRealtime());
+    }
+  }
+
+  /** Requests merged into a single refresh. */
+  private static final class PendingRefresh {
+    private boolean checkDirty;
+    private boolean systemCallLogOnly;
+    private final long firstRequestMillis;
+
+    PendingRefresh(boolean checkDirty, boolean systemCallLogOnly, long firstRequestMillis) {
+      this.checkDirty = checkDirty;
+      this.systemCallLogOnly = systemCallLogOnly;
+      this.firstRequestMillis = firstRequestMillis;
+    }
+
+    /**
+     * A refresh which skips the dirty check covers one which doesn't, and a refresh for any change
+     * covers one for system call log changes only.
+     */
+    void merge(boolean checkDirty, boolean systemCallLogOnly) {
+      if (this.checkDirty && checkDirty) {
+        return;
+      }
+      if (this.checkDirty) {
+        this.systemCallLogOnly = systemCallLogOnly;
+      } else if (!checkDirty) {
+        this.systemCallLogOnly &= systemCallLogOnly;
+      }
+      this.checkDirty = false;
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "{checkDirty: %b, systemCallLogOnly: %b}", checkDirty, systemCallLogOnly);
+    }
+  }
+
+  private static class EventNameFromResultFunction implements Function<RefreshResult, String> {
+
+    private final boolean checkDirty;
+
+    private EventNameFromResultFunction(boolean checkDirty) {
+      this.checkDirty = checkDirty;
+    }
+
+    @Override
+    public String apply(RefreshResult refreshResult) {
+      switch (refreshResult) {
+        case NOT_DIRTY:
+          return Metrics.ANNOTATED_CALL_LOG_NOT_DIRTY; // NOT_DIRTY implies forceRefresh is false
+        case REBUILT_BUT_NO_CHANGES_NEEDED:
+          return checkDirty
+              ? Metrics.ANNOTATED_LOG_NO_CHANGES_NEEDED
+              : Metrics.NEW_CALL_LOG_FORCE_REFRESH_NO_CHANGES_NEEDED;
+        case REBUILT_AND_CHANGES_NEEDED:
+          return checkDirty
+              ? Metrics.ANNOTATED_CALL_LOG_CHANGES_NEEDED
+              : Metrics.ANNOTATED_CALL_LOG_FORCE_REFRESH_CHANGES_NEEDED;
+        default:
+          throw new IllegalStateException("Unsupported result: " + refreshResult);
+      }
+    }
+  }
+
+  private static DialerImpression.Type getImpressionType(
+      boolean checkDirty, RefreshResult refreshResult) {
+    switch (refreshResult) {
+      case NOT_DIRTY:
+        return DialerImpression.Type.ANNOTATED_CALL_LOG_NOT_DIRTY;
+      case REBUILT_BUT_NO_CHANGES_NEEDED:
+        return checkDirty
+            ? DialerImpression.Type.ANNOTATED_CALL_LOG_NO_CHANGES_NEEDED
+            : DialerImpression.Type.ANNOTATED_CALL_LOG_FORCE_REFRESH_NO_CHANGES_NEEDED;
+      case REBUILT_AND_CHANGES_NEEDED:
+        return checkDirty
+            ? DialerImpression.Type.ANNOTATED_CALL_LOG_CHANGES_NEEDED
+            : DialerImpression.Type.ANNOTATED_CALL_LOG_FORCE_REFRESH_CHANGES_NEEDED;
+      default:
+        throw new IllegalStateException("Unsupported result: " + refreshResult);
+    }
+  }
+}
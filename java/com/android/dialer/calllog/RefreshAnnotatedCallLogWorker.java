@@ -19,6 +19,8 @@ package com.android.dialer.calllog;
 import android.content.Context;
 import android.content.SharedPreferences;
 import com.android.dialer.calllog.constants.SharedPrefKeys;
+import com.android.dialer.calllog.database.CoalescedAnnotatedCallLogUpdater;
+import com.android.dialer.calllog.database.CoalescedAnnotatedCallLogUpdater.DirtyRange;
 import com.android.dialer.calllog.database.MutationApplier;
 import com.android.dialer.calllog.datasources.CallLogDataSource;
 import com.android.dialer.calllog.datasources.CallLogMutations;
@@ -30,6 +32,8 @@ import com.android.dialer.common.concurrent.DefaultFutureCallback;
 import com.android.dialer.common.concurrent.DialerFutureSerializer;
 import com.android.dialer.common.concurrent.DialerFutures;
 import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.logging.DialerImpression;
+import com.android.dialer.logging.Logger;
 import com.android.dialer.metrics.FutureTimer;
 import com.android.dialer.metrics.FutureTimer.LogCatMode;
 import com.android.dialer.metrics.Metrics;
@@ -52,6 +56,7 @@ public class RefreshAnnotatedCallLogWorker {
   private final DataSources dataSources;
   private final SharedPreferences sharedPreferences;
   private final MutationApplier mutationApplier;
+  private final CoalescedAnnotatedCallLogUpdater coalescedAnnotatedCallLogUpdater;
   private final FutureTimer futureTimer;
   private final CallLogState callLogState;
   private final CallLogCacheUpdater callLogCacheUpdater;
@@ -67,6 +72,7 @@ public class RefreshAnnotatedCallLogWorker {
       DataSources dataSources,
       @Unencrypted SharedPreferences sharedPreferences,
       MutationApplier mutationApplier,
+      CoalescedAnnotatedCallLogUpdater coalescedAnnotatedCallLogUpdater,
       FutureTimer futureTimer,
       CallLogState callLogState,
       CallLogCacheUpdater callLogCacheUpdater,
@@ -76,6 +82,7 @@ public class RefreshAnnotatedCallLogWorker {
     this.dataSources = dataSources;
     this.sharedPreferences = sharedPreferences;
     this.mutationApplier = mutationApplier;
+    this.coalescedAnnotatedCallLogUpdater = coalescedAnnotatedCallLogUpdater;
     this.futureTimer = futureTimer;
     this.callLogState = callLogState;
     this.callLogCacheUpdater = callLogCacheUpdater;
@@ -92,21 +99,34 @@ public class RefreshAnnotatedCallLogWorker {
 
   /** Checks if the annotated call log is dirty and refreshes it if necessary. */
   ListenableFuture<RefreshResult> refreshWithDirtyCheck() {
-    return refresh(true);
+    return refresh(true, false);
   }
 
   /** Refreshes the annotated call log, bypassing dirty checks. */
   ListenableFuture<RefreshResult> refreshWithoutDirtyCheck() {
-    return refresh(false);
+    return refresh(false, false);
   }
 
-  private ListenableFuture<RefreshResult> refresh(boolean checkDirty) {
+  /**
+   * Refreshes the annotated call log, bypassing dirty checks.
+   *
+   * @param systemCallLogOnly whether only the system call log is known to have changed. If so and
+   *     the system call log data source produces no mutations, other data sources are only filled
+   *     if they are dirty.
+   */
+  ListenableFuture<RefreshResult> refreshWithoutDirtyCheck(boolean systemCallLogOnly) {
+    return refresh(false, systemCallLogOnly);
+  }
+
+  private ListenableFuture<RefreshResult> refresh(boolean checkDirty, boolean systemCallLogOnly) {
     LogUtil.i("RefreshAnnotatedCallLogWorker.refresh", "submitting serialized refresh request");
     return dialerFutureSerializer.submitAsync(
-        () -> checkDirtyAndRebuildIfNecessary(checkDirty), lightweightExecutorService);
+        () -> checkDirtyAndRebuildIfNecessary(checkDirty, systemCallLogOnly),
+        lightweightExecutorService);
   }
 
-  private ListenableFuture<RefreshResult> checkDirtyAndRebuildIfNecessary(boolean checkDirty) {
+  private ListenableFuture<RefreshResult> checkDirtyAndRebuildIfNecessary(
+      boolean checkDirty, boolean systemCallLogOnly) {
     ListenableFuture<Boolean> forceRebuildFuture =
         backgroundExecutorService.submit(
             () -> {
@@ -148,7 +168,9 @@ public class RefreshAnnotatedCallLogWorker {
               Preconditions.checkNotNull(isDirty));
           if (isDirty) {
             return Futures.transformAsync(
-                callLogState.isBuilt(), this::rebuild, MoreExecutors.directExecutor());
+                callLogState.isBuilt(),
+                isBuilt -> rebuild(isBuilt, !checkDirty && systemCallLogOnly),
+                MoreExecutors.directExecutor());
           }
           return Futures.immediateFuture(RefreshResult.NOT_DIRTY);
         },
@@ -170,38 +192,71 @@ public class RefreshAnnotatedCallLogWorker {
     return isDirtyFuture;
   }
 
-  private ListenableFuture<RefreshResult> rebuild(boolean isBuilt) {
+  private ListenableFuture<RefreshResult> rebuild(boolean isBuilt, boolean systemCallLogOnly) {
     CallLogMutations mutations = new CallLogMutations();
 
     // Start by filling the data sources--the system call log data source must go first!
     CallLogDataSource systemCallLogDataSource = dataSources.getSystemCallLogDataSource();
-    ListenableFuture<Void> fillFuture = systemCallLogDataSource.fill(mutations);
+    ListenableFuture<Void> systemFillFuture = systemCallLogDataSource.fill(mutations);
     String systemEventName = eventNameForFill(systemCallLogDataSource, isBuilt);
-    futureTimer.applyTiming(fillFuture, systemEventName);
-
-    // After the system call log data source is filled, call fill sequentially on each remaining
-    // data source. This must be done sequentially because mutations are not threadsafe and are
-    // passed from source to source.
-    for (CallLogDataSource dataSource : dataSources.getDataSourcesExcludingSystemCallLog()) {
-      fillFuture =
-          Futures.transformAsync(
-              fillFuture,
-              unused -> {
-                ListenableFuture<Void> dataSourceFuture = dataSource.fill(mutations);
-                String eventName = eventNameForFill(dataSource, isBuilt);
-                futureTimer.applyTiming(dataSourceFuture, eventName);
-                return dataSourceFuture;
-              },
-              lightweightExecutorService);
-    }
+    futureTimer.applyTiming(systemFillFuture, systemEventName);
+
+    // The remaining data sources only annotate the rows produced by the system call log data
+    // source, so after it is filled they are filled in parallel. Mutations are not threadsafe, so
+    // each data source fills its own copy, which is merged back once all of them are done. The
+    // buffer of a data source stays null if it wasn't filled.
+    List<CallLogDataSource> otherDataSources = dataSources.getDataSourcesExcludingSystemCallLog();
+    CallLogMutations[] buffers = new CallLogMutations[otherDataSources.size()];
+    ListenableFuture<List<Void>> otherFillsFuture =
+        Futures.transformAsync(
+            systemFillFuture,
+            unused -> {
+              // If only the system call log changed and it produced no mutations, there are no
+              // new rows for the other data sources to annotate, so they only need to be filled if
+              // they are dirty.
+              boolean fillOnlyDirty = systemCallLogOnly && mutations.isEmpty();
+              List<ListenableFuture<Void>> fillFutures = new ArrayList<>();
+              for (int i = 0; i < buffers.length; i++) {
+                fillFutures.add(
+                    fillIntoBuffer(
+                        otherDataSources.get(i), mutations, buffers, i, fillOnlyDirty, isBuilt));
+              }
+              return Futures.allAsList(fillFutures);
+            },
+            lightweightExecutorService);
+
+    // Merge the buffers in data source order, so that the result doesn't depend on which data
+    // source finished first.
+    List<CallLogDataSource> filledDataSources = new ArrayList<>();
+    filledDataSources.add(systemCallLogDataSource);
+    ListenableFuture<Void> fillFuture =
+        Futures.transform(
+            otherFillsFuture,
+            unused -> {
+              for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] != null) {
+                  mutations.merge(buffers[i]);
+                  filledDataSources.add(otherDataSources.get(i));
+                }
+              }
+              return null;
+            },
+            lightweightExecutorService);
 
     futureTimer.applyTiming(fillFuture, eventNameForOverallFill(isBuilt));
 
-    // After all data sources are filled, apply mutations (at this point "fillFuture" is the result
-    // of filling the last data source).
-    ListenableFuture<Void> applyMutationsFuture =
+    // After all data sources are filled, note which groups of the coalesced call log the mutations
+    // touch. This has to happen before they are applied, while deleted rows still exist.
+    ListenableFuture<DirtyRange> dirtyRangeFuture =
         Futures.transformAsync(
             fillFuture,
+            unused -> coalescedAnnotatedCallLogUpdater.getDirtyRange(mutations),
+            lightweightExecutorService);
+
+    // Then apply mutations.
+    ListenableFuture<Void> applyMutationsFuture =
+        Futures.transformAsync(
+            dirtyRangeFuture,
             unused -> {
               ListenableFuture<Void> mutationApplierFuture =
                   mutationApplier.applyToDatabase(mutations, appContext);
@@ -210,6 +265,15 @@ public class RefreshAnnotatedCallLogWorker {
             },
             lightweightExecutorService);
 
+    // After mutations are applied, re-coalesce the groups they touched.
+    ListenableFuture<Void> updateCoalescedFuture =
+        Futures.transformAsync(
+            applyMutationsFuture,
+            unused ->
+                coalescedAnnotatedCallLogUpdater.update(Futures.getDone(dirtyRangeFuture)),
+            lightweightExecutorService);
+    futureTimer.applyTiming(updateCoalescedFuture, eventNameForUpdateCoalesced(isBuilt));
+
     Futures.addCallback(
         Futures.transformAsync(
             applyMutationsFuture,
@@ -218,14 +282,14 @@ public class RefreshAnnotatedCallLogWorker {
         new DefaultFutureCallback<>(),
         MoreExecutors.directExecutor());
 
-    // After mutations applied, call onSuccessfulFill for each data source (in parallel).
+    // After the coalesced call log is updated, call onSuccessfulFill for each data source which was
+    // filled (in parallel).
     ListenableFuture<List<Void>> onSuccessfulFillFuture =
         Futures.transformAsync(
-            applyMutationsFuture,
+            updateCoalescedFuture,
             unused -> {
               List<ListenableFuture<Void>> onSuccessfulFillFutures = new ArrayList<>();
-              for (CallLogDataSource dataSource :
-                  dataSources.getDataSourcesIncludingSystemCallLog()) {
+              for (CallLogDataSource dataSource : filledDataSources) {
                 ListenableFuture<Void> dataSourceFuture = dataSource.onSuccessfulFill();
                 onSuccessfulFillFutures.add(dataSourceFuture);
                 String eventName = eventNameForOnSuccessfulFill(dataSource, isBuilt);
@@ -250,6 +314,40 @@ public class RefreshAnnotatedCallLogWorker {
         backgroundExecutorService);
   }
 
+  /**
+   * Fills {@code dataSource} into a copy of {@code mutations} stored at {@code buffers[index]},
+   * unless {@code fillOnlyDirty} is set and the data source isn't dirty.
+   */
+  private ListenableFuture<Void> fillIntoBuffer(
+      CallLogDataSource dataSource,
+      CallLogMutations mutations,
+      CallLogMutations[] buffers,
+      int index,
+      boolean fillOnlyDirty,
+      boolean isBuilt) {
+    ListenableFuture<Boolean> shouldFillFuture =
+        fillOnlyDirty ? dataSource.isDirty() : Futures.immediateFuture(true);
+    return Futures.transformAsync(
+        shouldFillFuture,
+        shouldFill -> {
+          if (!Preconditions.checkNotNull(shouldFill)) {
+            LogUtil.i(
+                "RefreshAnnotatedCallLogWorker.fillIntoBuffer",
+                "skipping fill for %s",
+                dataSource.getLoggingName());
+            Logger.get(appContext)
+                .logImpression(DialerImpression.Type.ANNOTATED_CALL_LOG_DATA_SOURCE_FILL_SKIPPED);
+            return Futures.immediateFuture(null);
+          }
+          CallLogMutations buffer = mutations.copy();
+          buffers[index] = buffer;
+          ListenableFuture<Void> dataSourceFuture = dataSource.fill(buffer);
+          futureTimer.applyTiming(dataSourceFuture, eventNameForFill(dataSource, isBuilt));
+          return dataSourceFuture;
+        },
+        lightweightExecutorService);
+  }
+
   private static String eventNameForFill(CallLogDataSource dataSource, boolean isBuilt) {
     return String.format(
         !isBuilt ? Metrics.INITIAL_FILL_TEMPLATE : Metrics.FILL_TEMPLATE,
@@ -275,6 +373,12 @@ public class RefreshAnnotatedCallLogWorker {
         : Metrics.ON_SUCCESSFUL_FILL_EVENT_NAME;
   }
 
+  private static String eventNameForUpdateCoalesced(boolean isBuilt) {
+    return !isBuilt
+        ? Metrics.INITIAL_UPDATE_COALESCED_EVENT_NAME
+        : Metrics.UPDATE_COALESCED_EVENT_NAME;
+  }
+
   private static String eventNameForApplyMutations(boolean isBuilt) {
     return !isBuilt
         ? Metrics.INITIAL_APPLY_MUTATIONS_EVENT_NAME
@@ -26,5 +26,7 @@ public final class IntentNames {
 
   public static final String EXTRA_CHECK_DIRTY = "check_dirty";
 
+  public static final String EXTRA_SYSTEM_CALL_LOG_ONLY = "system_call_log_only";
+
   private IntentNames() {}
 }
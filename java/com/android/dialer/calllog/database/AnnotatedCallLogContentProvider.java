@@ -32,6 +32,7 @@ import android.support.annotation.Nullable;
 import com.android.dialer.calllog.database.AnnotatedCallLogConstraints.Operation;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import java.util.ArrayList;
@@ -43,6 +44,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
   private static final int ANNOTATED_CALL_LOG_TABLE_CODE = 1;
   private static final int ANNOTATED_CALL_LOG_TABLE_ID_CODE = 2;
   private static final int ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE = 3;
+  private static final int COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE = 4;
 
   private static final UriMatcher uriMatcher = new UriMatcher(UriMatcher.NO_MATCH);
 
@@ -57,6 +59,10 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         AnnotatedCallLogContract.AUTHORITY,
         AnnotatedCallLog.DISTINCT_PHONE_NUMBERS,
         ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE);
+    uriMatcher.addURI(
+        AnnotatedCallLogContract.AUTHORITY,
+        CoalescedAnnotatedCallLog.TABLE,
+        COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE);
   }
 
   private AnnotatedCallLogDatabaseHelper databaseHelper;
@@ -129,6 +135,22 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
           LogUtil.w("AnnotatedCallLogContentProvider.query", "cursor was null");
         }
         return cursor;
+      case COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE:
+        queryBuilder.setTables(CoalescedAnnotatedCallLog.TABLE);
+        String limit = uri.getQueryParameter(CoalescedAnnotatedCallLog.LIMIT_PARAMETER);
+        if (limit != null) {
+          Assert.checkArgument(Integer.parseInt(limit) > 0, "invalid limit: %s", limit);
+        }
+        cursor =
+            queryBuilder.query(
+                db, projection, selection, selectionArgs, null, null, sortOrder, limit);
+        if (cursor != null) {
+          cursor.setNotificationUri(
+              getContext().getContentResolver(), CoalescedAnnotatedCallLog.CONTENT_URI);
+        } else {
+          LogUtil.w("AnnotatedCallLogContentProvider.query", "cursor was null");
+        }
+        return cursor;
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
     }
@@ -168,6 +190,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         }
         break;
       case ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE:
+      case COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE:
         throw new UnsupportedOperationException();
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
@@ -182,6 +205,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
     }
     Uri insertedUri = ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id);
     if (!isApplyingBatch()) {
+      databaseHelper.pruneOldRows(database);
       notifyChange(insertedUri);
     }
     return insertedUri;
@@ -204,6 +228,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         selection = getSelectionWithId(id);
         break;
       case ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE:
+      case COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE:
         throw new UnsupportedOperationException();
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
@@ -260,6 +285,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
         }
         return rows;
       case ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE:
+      case COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE:
         throw new UnsupportedOperationException();
       default:
         throw new IllegalArgumentException("Unknown uri: " + uri);
@@ -294,6 +320,7 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
             // These are allowed values, continue.
             break;
           case ANNOTATED_CALL_LOG_TABLE_DISTINCT_NUMBER_CODE:
+          case COALESCED_ANNOTATED_CALL_LOG_TABLE_CODE:
             throw new UnsupportedOperationException();
           default:
             throw new IllegalArgumentException("Unknown uri: " + operation.getUri());
@@ -304,24 +331,14 @@ public class AnnotatedCallLogContentProvider extends ContentProvider {
             throw new OperationApplicationException("error inserting row");
           }
         } else if (result.count == 0) {
-          /*
-           * The batches built by MutationApplier happen to contain operations in order of:
-           *
-           * 1. Inserts
-           * 2. Updates
-           * 3. Deletes
-           *
-           * Let's say the last row in the table is row Z, and MutationApplier wishes to update it,
-           * as well as insert row A. When row A gets inserted, row Z will be deleted via the
-           * trigger if the table is full. Then later, when we try to process the update for row Z,
-           * it won't exist.
-           */
           LogUtil.w(
               "AnnotatedCallLogContentProvider.applyBatch",
-              "update or delete failed, possibly because row got cleaned up");
+              "update or delete failed, row not found");
         }
         results[i] = result;
       }
+      // Prune once for the whole batch rather than after every insert.
+      databaseHelper.pruneOldRows(database);
       database.setTransactionSuccessful();
     } finally {
       applyingBatch.set(false);
@@ -17,17 +17,24 @@
 package com.android.dialer.calllog.database;
 
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.provider.CallLog.Calls;
 import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.calllog.constants.SharedPrefKeys;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.storage.StorageComponent;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
-import java.util.Locale;
+import java.util.Arrays;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -35,7 +42,7 @@ import javax.inject.Singleton;
 @Singleton
 public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
 
-  @VisibleForTesting static final int VERSION = 4;
+  @VisibleForTesting static final int VERSION = 7;
 
   private static final String FILENAME = "annotated_call_log.db";
 
@@ -95,62 +102,210 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
           + ");";
 
   /**
-   * Deletes all but the first maxRows rows (by timestamp, excluding voicemails) to keep the table a
-   * manageable size.
+   * Single row table holding the number of rows in {@link AnnotatedCallLog} that aren't
+   * voicemails, so that {@link #pruneOldRows(SQLiteDatabase)} doesn't need to count them.
    */
-  private static final String CREATE_TRIGGER_SQL =
-      "create trigger delete_old_rows after insert on "
-          + AnnotatedCallLog.TABLE
-          + " when (select count(*) from "
+  private static final String ROW_COUNT_TABLE = "AnnotatedCallLogRowCount";
+
+  private static final String NON_VOICEMAIL_ROWS = "non_voicemail_rows";
+
+  private static final String CREATE_ROW_COUNT_TABLE_SQL =
+      "create table if not exists "
+          + ROW_COUNT_TABLE
+          + " ("
+          + NON_VOICEMAIL_ROWS
+          + " integer not null);";
+
+  private static final String INITIALIZE_ROW_COUNT_SQL =
+      "insert into "
+          + ROW_COUNT_TABLE
+          + " select count(*) from "
           + AnnotatedCallLog.TABLE
           + " where "
           + AnnotatedCallLog.CALL_TYPE
           + " != "
           + Calls.VOICEMAIL_TYPE
-          + ") > %d"
-          + " begin delete from "
+          + ";";
+
+  private static final String CREATE_COUNT_INSERTED_ROWS_TRIGGER_SQL =
+      "create trigger if not exists count_inserted_rows after insert on "
           + AnnotatedCallLog.TABLE
-          + " where "
-          + AnnotatedCallLog._ID
-          + " in (select "
-          + AnnotatedCallLog._ID
-          + " from "
+          + " when new."
+          + AnnotatedCallLog.CALL_TYPE
+          + " != "
+          + Calls.VOICEMAIL_TYPE
+          + " begin update "
+          + ROW_COUNT_TABLE
+          + " set "
+          + NON_VOICEMAIL_ROWS
+          + " = "
+          + NON_VOICEMAIL_ROWS
+          + " + 1; end;";
+
+  private static final String CREATE_COUNT_DELETED_ROWS_TRIGGER_SQL =
+      "create trigger if not exists count_deleted_rows after delete on "
           + AnnotatedCallLog.TABLE
-          + " where "
+          + " when old."
           + AnnotatedCallLog.CALL_TYPE
           + " != "
           + Calls.VOICEMAIL_TYPE
-          + " order by timestamp limit (select count(*)-%d"
-          + " from "
+          + " begin update "
+          + ROW_COUNT_TABLE
+          + " set "
+          + NON_VOICEMAIL_ROWS
+          + " = "
+          + NON_VOICEMAIL_ROWS
+          + " - 1; end;";
+
+  private static final String CREATE_COUNT_UPDATED_ROWS_TRIGGER_SQL =
+      "create trigger if not exists count_updated_rows after update of "
+          + AnnotatedCallLog.CALL_TYPE
+          + " on "
           + AnnotatedCallLog.TABLE
-          + " where "
+          + " when (old."
+          + AnnotatedCallLog.CALL_TYPE
+          + " != "
+          + Calls.VOICEMAIL_TYPE
+          + ") != (new."
+          + AnnotatedCallLog.CALL_TYPE
+          + " != "
+          + Calls.VOICEMAIL_TYPE
+          + ") begin update "
+          + ROW_COUNT_TABLE
+          + " set "
+          + NON_VOICEMAIL_ROWS
+          + " = "
+          + NON_VOICEMAIL_ROWS
+          + " + (case when new."
           + AnnotatedCallLog.CALL_TYPE
           + " != "
           + Calls.VOICEMAIL_TYPE
-          + ")); end;";
+          + " then 1 else -1 end); end;";
+
+  /**
+   * Number of low bits of an {@link AnnotatedCallLog#_ID} that select its position within an ID
+   * range. See {@link #queryIdRanges()}.
+   */
+  public static final int ID_RANGE_SHIFT = 8;
+
+  /** Table holding the number and sum of the IDs in each ID range of {@link AnnotatedCallLog}. */
+  private static final String ID_RANGE_TABLE = "AnnotatedCallLogIdRanges";
+
+  public static final String ID_RANGE = "id_range";
+  public static final String ID_RANGE_ROW_COUNT = "row_count";
+  public static final String ID_RANGE_ID_SUM = "id_sum";
+
+  private static final String CREATE_ID_RANGE_TABLE_SQL =
+      "create table if not exists "
+          + ID_RANGE_TABLE
+          + " ("
+          + (ID_RANGE + " integer primary key, ")
+          + (ID_RANGE_ROW_COUNT + " integer not null, ")
+          + (ID_RANGE_ID_SUM + " integer not null")
+          + ");";
+
+  private static final String INITIALIZE_ID_RANGES_SQL =
+      "insert or replace into "
+          + ID_RANGE_TABLE
+          + " select "
+          + (AnnotatedCallLog._ID + " >> " + ID_RANGE_SHIFT)
+          + ", count(*), sum("
+          + AnnotatedCallLog._ID
+          + ") from "
+          + AnnotatedCallLog.TABLE
+          + " group by 1;";
+
+  private static final String CREATE_ADD_TO_ID_RANGE_TRIGGER_SQL =
+      "create trigger if not exists add_to_id_range after insert on "
+          + AnnotatedCallLog.TABLE
+          + " begin insert or ignore into "
+          + ID_RANGE_TABLE
+          + " values (new."
+          + AnnotatedCallLog._ID
+          + " >> "
+          + ID_RANGE_SHIFT
+          + ", 0, 0); update "
+          + ID_RANGE_TABLE
+          + " set "
+          + (ID_RANGE_ROW_COUNT + " = " + ID_RANGE_ROW_COUNT + " + 1, ")
+          + (ID_RANGE_ID_SUM + " = " + ID_RANGE_ID_SUM + " + new." + AnnotatedCallLog._ID)
+          + " where "
+          + (ID_RANGE + " = new." + AnnotatedCallLog._ID + " >> " + ID_RANGE_SHIFT)
+          + "; end;";
+
+  private static final String CREATE_REMOVE_FROM_ID_RANGE_TRIGGER_SQL =
+      "create trigger if not exists remove_from_id_range after delete on "
+          + AnnotatedCallLog.TABLE
+          + " begin update "
+          + ID_RANGE_TABLE
+          + " set "
+          + (ID_RANGE_ROW_COUNT + " = " + ID_RANGE_ROW_COUNT + " - 1, ")
+          + (ID_RANGE_ID_SUM + " = " + ID_RANGE_ID_SUM + " - old." + AnnotatedCallLog._ID)
+          + " where "
+          + (ID_RANGE + " = old." + AnnotatedCallLog._ID + " >> " + ID_RANGE_SHIFT)
+          + "; delete from "
+          + ID_RANGE_TABLE
+          + " where "
+          + (ID_RANGE + " = old." + AnnotatedCallLog._ID + " >> " + ID_RANGE_SHIFT)
+          + " and "
+          + ID_RANGE_ROW_COUNT
+          + " = 0; end;";
+
+  private static final String CREATE_INDEX_ON_TIMESTAMP_SQL =
+      "create index if not exists timestamp_index on "
+          + AnnotatedCallLog.TABLE
+          + " ("
+          + AnnotatedCallLog.TIMESTAMP
+          + ");";
 
   private static final String CREATE_INDEX_ON_CALL_TYPE_SQL =
-      "create index call_type_index on "
+      "create index if not exists call_type_index on "
           + AnnotatedCallLog.TABLE
           + " ("
           + AnnotatedCallLog.CALL_TYPE
           + ");";
 
   private static final String CREATE_INDEX_ON_NUMBER_SQL =
-      "create index number_index on "
+      "create index if not exists number_index on "
           + AnnotatedCallLog.TABLE
           + " ("
           + AnnotatedCallLog.NUMBER
           + ");";
 
+  private static final String CREATE_COALESCED_TABLE_SQL =
+      "create table if not exists "
+          + CoalescedAnnotatedCallLog.TABLE
+          + " ("
+          + (CoalescedAnnotatedCallLog._ID + " integer primary key, ")
+          + (CoalescedAnnotatedCallLog.TIMESTAMP + " integer, ")
+          + (CoalescedAnnotatedCallLog.OLDEST_TIMESTAMP + " integer, ")
+          + (CoalescedAnnotatedCallLog.COALESCED_ROW + " blob")
+          + ");";
+
+  private static final String CREATE_INDEX_ON_COALESCED_TIMESTAMP_SQL =
+      "create index if not exists coalesced_timestamp_index on "
+          + CoalescedAnnotatedCallLog.TABLE
+          + " ("
+          + CoalescedAnnotatedCallLog.TIMESTAMP
+          + ");";
+
+  private static final String CREATE_INDEX_ON_COALESCED_OLDEST_TIMESTAMP_SQL =
+      "create index if not exists coalesced_oldest_timestamp_index on "
+          + CoalescedAnnotatedCallLog.TABLE
+          + " ("
+          + CoalescedAnnotatedCallLog.OLDEST_TIMESTAMP
+          + ");";
+
   @Override
   public void onCreate(SQLiteDatabase db) {
     LogUtil.enterBlock("AnnotatedCallLogDatabaseHelper.onCreate");
     long startTime = System.currentTimeMillis();
     db.execSQL(CREATE_TABLE_SQL);
-    db.execSQL(String.format(Locale.US, CREATE_TRIGGER_SQL, maxRows, maxRows));
     db.execSQL(CREATE_INDEX_ON_CALL_TYPE_SQL);
     db.execSQL(CREATE_INDEX_ON_NUMBER_SQL);
+    createCoalescedTable(db);
+    createRowCount(db);
+    createIdRanges(db);
     // TODO(zachh): Consider logging impression.
     LogUtil.i(
         "AnnotatedCallLogDatabaseHelper.onCreate",
@@ -169,6 +324,24 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
     if (oldVersion < 4) {
       upgradeToV4(db);
     }
+
+    if (oldVersion < 5) {
+      upgradeToV5(db);
+    }
+
+    if (oldVersion < 6) {
+      upgradeToV6(db);
+    }
+
+    if (oldVersion < 7) {
+      createIdRanges(db);
+    }
+  }
+
+  private static void createCoalescedTable(SQLiteDatabase db) {
+    db.execSQL(CREATE_COALESCED_TABLE_SQL);
+    db.execSQL(CREATE_INDEX_ON_COALESCED_TIMESTAMP_SQL);
+    db.execSQL(CREATE_INDEX_ON_COALESCED_OLDEST_TIMESTAMP_SQL);
   }
 
   private static void upgradeToV2(SQLiteDatabase db) {
@@ -213,6 +386,157 @@ public class AnnotatedCallLogDatabaseHelper extends SQLiteOpenHelper {
             + " is null");
   }
 
+  private void upgradeToV5(SQLiteDatabase db) {
+    // The coalesced table starts out empty and is filled by the next refresh of the annotated call
+    // log, which must not be skipped by its dirty check.
+    createCoalescedTable(db);
+    StorageComponent.get(appContext)
+        .unencryptedSharedPrefs()
+        .edit()
+        .putBoolean(SharedPrefKeys.FORCE_REBUILD, true)
+        .apply();
+  }
+
+  private void upgradeToV6(SQLiteDatabase db) {
+    // The delete_old_rows trigger counted the table three times for every insert once it was full.
+    // Old rows are now pruned once per batch by pruneOldRows, using a maintained row count.
+    db.execSQL("drop trigger if exists delete_old_rows;");
+    createRowCount(db);
+    pruneOldRows(db);
+  }
+
+  /**
+   * Creates the row count table, its triggers and the timestamp index. Like every other upgrade
+   * step, this can run against a database where some of them already exist.
+   */
+  private static void createRowCount(SQLiteDatabase db) {
+    db.execSQL(CREATE_ROW_COUNT_TABLE_SQL);
+    db.execSQL("delete from " + ROW_COUNT_TABLE + ";");
+    db.execSQL(INITIALIZE_ROW_COUNT_SQL);
+    db.execSQL(CREATE_COUNT_INSERTED_ROWS_TRIGGER_SQL);
+    db.execSQL(CREATE_COUNT_DELETED_ROWS_TRIGGER_SQL);
+    db.execSQL(CREATE_COUNT_UPDATED_ROWS_TRIGGER_SQL);
+    db.execSQL(CREATE_INDEX_ON_TIMESTAMP_SQL);
+  }
+
+  private static void createIdRanges(SQLiteDatabase db) {
+    db.execSQL(CREATE_ID_RANGE_TABLE_SQL);
+    db.execSQL(INITIALIZE_ID_RANGES_SQL);
+    db.execSQL(CREATE_ADD_TO_ID_RANGE_TRIGGER_SQL);
+    db.execSQL(CREATE_REMOVE_FROM_ID_RANGE_TRIGGER_SQL);
+  }
+
+  /**
+   * Returns the ID ranges of {@link AnnotatedCallLog} that contain at least one row, with the
+   * number and the sum of the IDs in each, in ascending order of range.
+   *
+   * <p>The range of an ID is {@code id >> ID_RANGE_SHIFT}. The returned cursor has the columns
+   * {@link #ID_RANGE}, {@link #ID_RANGE_ROW_COUNT} and {@link #ID_RANGE_ID_SUM}.
+   */
+  @WorkerThread
+  public Cursor queryIdRanges() {
+    return getReadableDatabase()
+        .query(
+            ID_RANGE_TABLE,
+            new String[] {ID_RANGE, ID_RANGE_ROW_COUNT, ID_RANGE_ID_SUM},
+            null,
+            null,
+            null,
+            null,
+            ID_RANGE + " ASC");
+  }
+
+  /** Returns the IDs of the {@link AnnotatedCallLog} rows in {@code idRange}, in ID order. */
+  @WorkerThread
+  public long[] queryIdsInRange(long idRange) {
+    return queryIds(
+        AnnotatedCallLog._ID + " >= ? and " + AnnotatedCallLog._ID + " < ?",
+        new String[] {
+          String.valueOf(idRange << ID_RANGE_SHIFT), String.valueOf((idRange + 1) << ID_RANGE_SHIFT)
+        });
+  }
+
+  /**
+   * Returns which of {@code ids} belong to rows in {@link AnnotatedCallLog}, in ascending order.
+   */
+  @WorkerThread
+  public long[] queryExistingIds(long[] ids) {
+    long[] result = new long[0];
+    // Batch the select statements into chunks of 999, the maximum size for SQLite selection args.
+    for (int start = 0; start < ids.length; start += 999) {
+      int end = Math.min(ids.length, start + 999);
+      String[] questionMarks = new String[end - start];
+      Arrays.fill(questionMarks, "?");
+      String[] selectionArgs = new String[end - start];
+      for (int i = start; i < end; i++) {
+        selectionArgs[i - start] = String.valueOf(ids[i]);
+      }
+      long[] existing =
+          queryIds(
+              AnnotatedCallLog._ID + " in (" + TextUtils.join(",", questionMarks) + ")",
+              selectionArgs);
+      int oldLength = result.length;
+      result = Arrays.copyOf(result, oldLength + existing.length);
+      System.arraycopy(existing, 0, result, oldLength, existing.length);
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  private long[] queryIds(String selection, String[] selectionArgs) {
+    try (Cursor cursor =
+        getReadableDatabase()
+            .query(
+                AnnotatedCallLog.TABLE,
+                new String[] {AnnotatedCallLog._ID},
+                selection,
+                selectionArgs,
+                null,
+                null,
+                AnnotatedCallLog._ID + " ASC")) {
+      long[] ids = new long[cursor.getCount()];
+      for (int i = 0; cursor.moveToNext(); i++) {
+        ids[i] = cursor.getLong(0);
+      }
+      return ids;
+    }
+  }
+
+  /**
+   * Deletes all but the most recent maxRows rows (by timestamp, excluding voicemails) to keep the
+   * table a manageable size.
+   *
+   * <p>This is called once at the end of every batch of changes, in the batch's transaction.
+   *
+   * @return the number of rows deleted.
+   */
+  int pruneOldRows(SQLiteDatabase db) {
+    long rowCount =
+        DatabaseUtils.longForQuery(
+            db, "select " + NON_VOICEMAIL_ROWS + " from " + ROW_COUNT_TABLE, null);
+    if (rowCount <= maxRows) {
+      return 0;
+    }
+    int deletedRows =
+        db.delete(
+            AnnotatedCallLog.TABLE,
+            AnnotatedCallLog._ID
+                + " in (select "
+                + AnnotatedCallLog._ID
+                + " from "
+                + AnnotatedCallLog.TABLE
+                + " where "
+                + AnnotatedCallLog.CALL_TYPE
+                + " != "
+                + Calls.VOICEMAIL_TYPE
+                + " order by "
+                + AnnotatedCallLog.TIMESTAMP
+                + " limit ?)",
+            new String[] {String.valueOf(rowCount - maxRows)});
+    LogUtil.i("AnnotatedCallLogDatabaseHelper.pruneOldRows", "deleted %d rows", deletedRows);
+    return deletedRows;
+  }
+
   /** Closes the database and deletes it. */
   public ListenableFuture<Void> delete() {
     return backgroundExecutor.submit(
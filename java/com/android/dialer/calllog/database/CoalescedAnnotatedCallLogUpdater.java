@@ -0,0 +1,355 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calllog.database;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.provider.CallLog.Calls;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
+import com.android.dialer.calllog.datasources.CallLogMutations;
+import com.android.dialer.calllog.model.CoalescedRow;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.inject.Inject;
+
+/**
+ * Keeps {@link CoalescedAnnotatedCallLog} in sync with {@link AnnotatedCallLog}.
+ *
+ * <p>Groups are contiguous runs of rows sorted by timestamp, so a mutation can only change the
+ * groups around the rows it touches. Before mutations are applied, {@link #getDirtyRange} records
+ * the range of timestamps they touch. After they are applied, {@link #update} re-coalesces rows
+ * starting at the newest group that is entirely newer than that range, and stops at the first
+ * group boundary older than the range that matches a stored group, from which point on the stored
+ * groups are still valid.
+ */
+public class CoalescedAnnotatedCallLogUpdater {
+
+  /** The maximum number of SQLite selection args. */
+  private static final int MAX_SELECTION_ARGS = 999;
+
+  private static final String NON_VOICEMAIL_SELECTION =
+      AnnotatedCallLog.CALL_TYPE + " != " + Calls.VOICEMAIL_TYPE;
+
+  private final Context appContext;
+  private final AnnotatedCallLogDatabaseHelper databaseHelper;
+  private final Coalescer coalescer;
+  private final ListeningExecutorService backgroundExecutorService;
+
+  @Inject
+  CoalescedAnnotatedCallLogUpdater(
+      @ApplicationContext Context appContext,
+      AnnotatedCallLogDatabaseHelper databaseHelper,
+      Coalescer coalescer,
+      @BackgroundExecutor ListeningExecutorService backgroundExecutorService) {
+    this.appContext = appContext;
+    this.databaseHelper = databaseHelper;
+    this.coalescer = coalescer;
+    this.backgroundExecutorService = backgroundExecutorService;
+  }
+
+  /** Range of {@link AnnotatedCallLog#TIMESTAMP timestamps} touched by a set of mutations. */
+  public static final class DirtyRange {
+    private static final DirtyRange EMPTY = new DirtyRange(Long.MIN_VALUE, Long.MAX_VALUE);
+
+    private final long newestTimestamp;
+    private final long oldestTimestamp;
+
+    private DirtyRange(long newestTimestamp, long oldestTimestamp) {
+      this.newestTimestamp = newestTimestamp;
+      this.oldestTimestamp = oldestTimestamp;
+    }
+
+    boolean isEmpty() {
+      return newestTimestamp < oldestTimestamp;
+    }
+
+    DirtyRange include(long timestamp) {
+      return new DirtyRange(
+          Math.max(newestTimestamp, timestamp), Math.min(oldestTimestamp, timestamp));
+    }
+  }
+
+  /**
+   * Returns the range of timestamps touched by {@code mutations}. Must be called before the
+   * mutations are applied, as deleted rows can't be looked up afterwards.
+   */
+  public ListenableFuture<DirtyRange> getDirtyRange(CallLogMutations mutations) {
+    if (mutations.isEmpty()) {
+      return Futures.immediateFuture(DirtyRange.EMPTY);
+    }
+    return backgroundExecutorService.submit(() -> getDirtyRangeInternal(mutations));
+  }
+
+  @WorkerThread
+  private DirtyRange getDirtyRangeInternal(CallLogMutations mutations) {
+    Assert.isWorkerThread();
+
+    DirtyRange dirtyRange = DirtyRange.EMPTY;
+    for (ContentValues contentValues : mutations.getInserts().values()) {
+      Long timestamp = contentValues.getAsLong(AnnotatedCallLog.TIMESTAMP);
+      if (timestamp == null) {
+        // Can't tell where the row goes, so treat every group as dirty.
+        return new DirtyRange(Long.MAX_VALUE, Long.MIN_VALUE);
+      }
+      dirtyRange = dirtyRange.include(timestamp);
+    }
+
+    // An update may move a row; both its old position (read below) and its new one are dirty.
+    for (ContentValues contentValues : mutations.getUpdates().values()) {
+      Long timestamp = contentValues.getAsLong(AnnotatedCallLog.TIMESTAMP);
+      if (timestamp != null) {
+        dirtyRange = dirtyRange.include(timestamp);
+      }
+    }
+
+    List<Long> existingIds = new ArrayList<>(mutations.getUpdates().keySet());
+    existingIds.addAll(mutations.getDeletes());
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+    for (List<Long> idsInBatch : Iterables.partition(existingIds, MAX_SELECTION_ARGS)) {
+      String[] questionMarks = new String[idsInBatch.size()];
+      Arrays.fill(questionMarks, "?");
+      String[] selectionArgs = new String[idsInBatch.size()];
+      int i = 0;
+      for (long id : idsInBatch) {
+        selectionArgs[i++] = String.valueOf(id);
+      }
+      try (Cursor cursor =
+          database.rawQuery(
+              "select max("
+                  + AnnotatedCallLog.TIMESTAMP
+                  + "), min("
+                  + AnnotatedCallLog.TIMESTAMP
+                  + ") from "
+                  + AnnotatedCallLog.TABLE
+                  + " where "
+                  + AnnotatedCallLog._ID
+                  + " in ("
+                  + TextUtils.join(",", questionMarks)
+                  + ")",
+              selectionArgs)) {
+        if (cursor.moveToFirst() && !cursor.isNull(0)) {
+          dirtyRange = dirtyRange.include(cursor.getLong(0)).include(cursor.getLong(1));
+        }
+      }
+    }
+    return dirtyRange;
+  }
+
+  /**
+   * Brings {@link CoalescedAnnotatedCallLog} up to date after mutations covering {@code
+   * dirtyRange} have been applied to {@link AnnotatedCallLog}.
+   */
+  public ListenableFuture<Void> update(DirtyRange dirtyRange) {
+    return backgroundExecutorService.submit(
+        () -> {
+          updateInternal(dirtyRange);
+          return null;
+        });
+  }
+
+  @WorkerThread
+  private void updateInternal(DirtyRange dirtyRange) {
+    Assert.isWorkerThread();
+    long startTime = System.currentTimeMillis();
+
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    int changedGroups = 0;
+    try {
+      if (DatabaseUtils.queryNumEntries(database, CoalescedAnnotatedCallLog.TABLE) == 0) {
+        // Either the table is new or a previous update failed; coalesce everything.
+        changedGroups += recoalesce(database, Long.MAX_VALUE, Long.MIN_VALUE);
+      } else if (!dirtyRange.isEmpty()) {
+        changedGroups +=
+            recoalesce(database, dirtyRange.newestTimestamp, dirtyRange.oldestTimestamp);
+      }
+      changedGroups += recoalesceTrimmedGroups(database);
+    } catch (RuntimeException e) {
+      // Leave an empty table behind so that the next update starts from scratch.
+      database.delete(CoalescedAnnotatedCallLog.TABLE, null, null);
+      throw e;
+    }
+
+    LogUtil.i(
+        "CoalescedAnnotatedCallLogUpdater.updateInternal",
+        "rewrote %d groups, took %dms",
+        changedGroups,
+        System.currentTimeMillis() - startTime);
+    LogUtil.v(
+        "CoalescedAnnotatedCallLogUpdater.updateInternal",
+        "number cache: %s",
+        DialerPhoneNumberUtil.getCacheStats());
+    if (changedGroups > 0) {
+      appContext
+          .getContentResolver()
+          .notifyChange(CoalescedAnnotatedCallLog.CONTENT_URI, /* observer = */ null);
+    }
+  }
+
+  /**
+   * Re-coalesces the groups at the bottom of the log whose oldest rows were pruned by {@link
+   * AnnotatedCallLogDatabaseHelper#pruneOldRows} rather than removed by a mutation.
+   */
+  private int recoalesceTrimmedGroups(SQLiteDatabase database) {
+    long oldestRowTimestamp;
+    try (Cursor cursor =
+        database.rawQuery(
+            "select min("
+                + AnnotatedCallLog.TIMESTAMP
+                + ") from "
+                + AnnotatedCallLog.TABLE
+                + " where "
+                + NON_VOICEMAIL_SELECTION,
+            null)) {
+      oldestRowTimestamp =
+          cursor.moveToFirst() && !cursor.isNull(0) ? cursor.getLong(0) : Long.MAX_VALUE;
+    }
+
+    try (Cursor cursor =
+        database.rawQuery(
+            "select max("
+                + CoalescedAnnotatedCallLog.TIMESTAMP
+                + ") from "
+                + CoalescedAnnotatedCallLog.TABLE
+                + " where "
+                + CoalescedAnnotatedCallLog.OLDEST_TIMESTAMP
+                + " < ?",
+            new String[] {String.valueOf(oldestRowTimestamp)})) {
+      if (!cursor.moveToFirst() || cursor.isNull(0)) {
+        return 0;
+      }
+      return recoalesce(database, cursor.getLong(0), Long.MIN_VALUE);
+    }
+  }
+
+  /**
+   * Replaces the stored groups that may have been affected by changes to rows with timestamps
+   * between {@code oldestDirtyTimestamp} and {@code newestDirtyTimestamp}, and returns the number
+   * of groups written.
+   */
+  private int recoalesce(
+      SQLiteDatabase database, long newestDirtyTimestamp, long oldestDirtyTimestamp) {
+    // Groups entirely newer than the dirty range are unaffected, except that the oldest of them
+    // might now absorb rows from the range. Start at its most recent row.
+    long startTimestamp = Long.MAX_VALUE;
+    try (Cursor cursor =
+        database.query(
+            CoalescedAnnotatedCallLog.TABLE,
+            new String[] {CoalescedAnnotatedCallLog.TIMESTAMP},
+            CoalescedAnnotatedCallLog.OLDEST_TIMESTAMP + " > ?",
+            new String[] {String.valueOf(newestDirtyTimestamp)},
+            null,
+            null,
+            CoalescedAnnotatedCallLog.TIMESTAMP + " ASC",
+            "1")) {
+      if (cursor.moveToFirst()) {
+        startTimestamp = cursor.getLong(0);
+      }
+    }
+
+    List<ContentValues> newGroups = new ArrayList<>();
+    long[] stopTimestamp = {Long.MIN_VALUE};
+    SQLiteStatement isStoredGroup =
+        database.compileStatement(
+            "select count(*) from "
+                + CoalescedAnnotatedCallLog.TABLE
+                + " where "
+                + CoalescedAnnotatedCallLog._ID
+                + " = ?");
+    try (Cursor annotatedCallLogRows =
+        database.query(
+            AnnotatedCallLog.TABLE,
+            null,
+            NON_VOICEMAIL_SELECTION + " and " + AnnotatedCallLog.TIMESTAMP + " <= ?",
+            new String[] {String.valueOf(startTimestamp)},
+            null,
+            null,
+            AnnotatedCallLog.TIMESTAMP + " DESC")) {
+      int idColumn = annotatedCallLogRows.getColumnIndexOrThrow(AnnotatedCallLog._ID);
+      int timestampColumn = annotatedCallLogRows.getColumnIndexOrThrow(AnnotatedCallLog.TIMESTAMP);
+      coalescer.coalesceGroups(
+          annotatedCallLogRows,
+          (coalescedRow, oldestTimestamp, nextRow) -> {
+            newGroups.add(toContentValues(coalescedRow, oldestTimestamp));
+            if (nextRow.isAfterLast()) {
+              return true;
+            }
+            // Past the dirty range, rows are unchanged. Once a group starts where a stored group
+            // starts, all following groups are the same as the stored ones.
+            long nextTimestamp = nextRow.getLong(timestampColumn);
+            if (nextTimestamp < oldestDirtyTimestamp) {
+              isStoredGroup.bindLong(1, nextRow.getLong(idColumn));
+              if (isStoredGroup.simpleQueryForLong() > 0) {
+                stopTimestamp[0] = nextTimestamp;
+                return false;
+              }
+            }
+            return true;
+          });
+    } finally {
+      isStoredGroup.close();
+    }
+
+    database.beginTransaction();
+    try {
+      database.delete(
+          CoalescedAnnotatedCallLog.TABLE,
+          CoalescedAnnotatedCallLog.TIMESTAMP
+              + " <= ? and "
+              + CoalescedAnnotatedCallLog.TIMESTAMP
+              + " > ?",
+          new String[] {String.valueOf(startTimestamp), String.valueOf(stopTimestamp[0])});
+      for (ContentValues group : newGroups) {
+        database.insertWithOnConflict(
+            CoalescedAnnotatedCallLog.TABLE, null, group, SQLiteDatabase.CONFLICT_REPLACE);
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    return newGroups.size();
+  }
+
+  private static ContentValues toContentValues(CoalescedRow coalescedRow, long oldestTimestamp) {
+    // The most recent row of the group identifies it.
+    long id = coalescedRow.getCoalescedIds().getCoalescedId(0);
+    coalescedRow = coalescedRow.toBuilder().setId(id).build();
+
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(CoalescedAnnotatedCallLog._ID, id);
+    contentValues.put(CoalescedAnnotatedCallLog.TIMESTAMP, coalescedRow.getTimestamp());
+    contentValues.put(CoalescedAnnotatedCallLog.OLDEST_TIMESTAMP, oldestTimestamp);
+    contentValues.put(CoalescedAnnotatedCallLog.COALESCED_ROW, coalescedRow.toByteArray());
+    return contentValues;
+  }
+}
@@ -26,6 +26,7 @@ import com.android.dialer.CoalescedIds;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.NumberAttributes;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
 import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
@@ -35,13 +36,22 @@ import com.android.dialer.metrics.Metrics;
 import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
 import com.android.dialer.telecom.TelecomUtil;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.InvalidProtocolBufferException;
 import java.util.Objects;
 import javax.inject.Inject;
 
-/** Combines adjacent rows in {@link AnnotatedCallLog}. */
+/**
+ * Combines adjacent rows in {@link AnnotatedCallLog}.
+ *
+ * <p>Groups are built once, by {@link CoalescedAnnotatedCallLogUpdater} when the annotated call log
+ * is refreshed, and stored in {@link CoalescedAnnotatedCallLog}; the UI only reads them back.
+ */
 public class Coalescer {
 
   private final FutureTimer futureTimer;
@@ -56,101 +66,175 @@ public class Coalescer {
   }
 
   /**
-   * Given rows from {@link AnnotatedCallLog}, combine adjacent ones which should be collapsed for
-   * display purposes.
+   * Reads rows that have already been coalesced and stored in {@link CoalescedAnnotatedCallLog},
+   * publishing the first {@code firstPageSize} rows as soon as they are parsed.
    *
-   * @param allAnnotatedCallLogRowsSortedByTimestampDesc {@link AnnotatedCallLog} rows sorted in
+   * <p>The time to the first page is recorded as {@link Metrics#NEW_CALL_LOG_COALESCE_FIRST_PAGE}
+   * and the time to all rows as {@link Metrics#NEW_CALL_LOG_COALESCE}.
+   *
+   * @param coalescedRowsSortedByTimestampDesc {@link CoalescedAnnotatedCallLog} rows sorted in
    *     descending order of timestamp.
-   * @return a future of a list of {@link CoalescedRow coalesced rows}, which will be used to
-   *     display call log entries.
    */
-  public ListenableFuture<ImmutableList<CoalescedRow>> coalesce(
-      @NonNull Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) {
-    ListenableFuture<ImmutableList<CoalescedRow>> coalescingFuture =
+  public StreamingCoalescedRows readCoalescedStreaming(
+      @NonNull Cursor coalescedRowsSortedByTimestampDesc, int firstPageSize) {
+    Assert.checkArgument(firstPageSize > 0);
+    SettableFuture<ImmutableList<CoalescedRow>> firstPageFuture = SettableFuture.create();
+    ListenableFuture<ImmutableList<CoalescedRow>> allRowsFuture =
         backgroundExecutorService.submit(
-            () -> coalesceInternal(Assert.isNotNull(allAnnotatedCallLogRowsSortedByTimestampDesc)));
-    futureTimer.applyTiming(coalescingFuture, Metrics.NEW_CALL_LOG_COALESCE);
-    return coalescingFuture;
+            () ->
+                readCoalescedInternal(
+                    Assert.isNotNull(coalescedRowsSortedByTimestampDesc),
+                    firstPageSize,
+                    firstPageFuture));
+
+    // If the cursor has fewer rows than a page, or reading fails before the first page is
+    // published, the first page completes with the outcome of the whole pass.
+    Futures.addCallback(
+        allRowsFuture,
+        new FutureCallback<ImmutableList<CoalescedRow>>() {
+          @Override
+          public void onSuccess(ImmutableList<CoalescedRow> allRows) {
+            firstPageFuture.set(allRows);
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            firstPageFuture.setException(throwable);
+          }
+        },
+        MoreExecutors.directExecutor());
+
+    futureTimer.applyTiming(firstPageFuture, Metrics.NEW_CALL_LOG_COALESCE_FIRST_PAGE);
+    futureTimer.applyTiming(allRowsFuture, Metrics.NEW_CALL_LOG_COALESCE);
+    return new StreamingCoalescedRows(firstPageFuture, allRowsFuture);
   }
 
   /**
-   * Reads the entire {@link AnnotatedCallLog} into memory from the provided cursor and then builds
-   * and returns a list of {@link CoalescedRow coalesced rows}, which is the result of combining
-   * adjacent rows which should be collapsed for display purposes.
+   * Parses {@link CoalescedRow coalesced rows} stored in {@link CoalescedAnnotatedCallLog}.
    *
-   * @param allAnnotatedCallLogRowsSortedByTimestampDesc {@link AnnotatedCallLog} rows sorted in
+   * @param coalescedRowsSortedByTimestampDesc {@link CoalescedAnnotatedCallLog} rows sorted in
    *     descending order of timestamp.
-   * @return a list of {@link CoalescedRow coalesced rows}, which will be used to display call log
-   *     entries.
+   * @param firstPageSize number of rows after which {@code firstPageFuture} is set.
+   * @param firstPageFuture set to the first {@code firstPageSize} rows as soon as they are parsed.
    */
   @WorkerThread
   @NonNull
-  private ImmutableList<CoalescedRow> coalesceInternal(
-      Cursor allAnnotatedCallLogRowsSortedByTimestampDesc) throws ExpectedCoalescerException {
+  private ImmutableList<CoalescedRow> readCoalescedInternal(
+      Cursor coalescedRowsSortedByTimestampDesc,
+      int firstPageSize,
+      SettableFuture<ImmutableList<CoalescedRow>> firstPageFuture)
+      throws ExpectedCoalescerException {
     Assert.isWorkerThread();
 
     ImmutableList.Builder<CoalescedRow> coalescedRowListBuilder = new ImmutableList.Builder<>();
 
     try {
-      if (!allAnnotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
-        return ImmutableList.of();
+      int coalescedRowColumn =
+          coalescedRowsSortedByTimestampDesc.getColumnIndexOrThrow(
+              CoalescedAnnotatedCallLog.COALESCED_ROW);
+      int count = 0;
+      coalescedRowsSortedByTimestampDesc.moveToPosition(-1);
+      while (coalescedRowsSortedByTimestampDesc.moveToNext()) {
+        try {
+          coalescedRowListBuilder.add(
+              CoalescedRow.parseFrom(
+                  coalescedRowsSortedByTimestampDesc.getBlob(coalescedRowColumn)));
+        } catch (InvalidProtocolBufferException e) {
+          throw Assert.createAssertionFailException("Unable to parse CoalescedRow bytes", e);
+        }
+        if (++count == firstPageSize) {
+          firstPageFuture.set(coalescedRowListBuilder.build());
+        }
       }
+      return coalescedRowListBuilder.build();
 
-      RowCombiner rowCombiner = new RowCombiner(allAnnotatedCallLogRowsSortedByTimestampDesc);
-      rowCombiner.startNewGroup();
+    } catch (Exception exception) {
+      throwIfExpected(exception);
+      throw exception;
+    }
+  }
 
-      long coalescedRowId = 0;
-      do {
-        boolean isRowMerged = rowCombiner.mergeRow(allAnnotatedCallLogRowsSortedByTimestampDesc);
+  /**
+   * Combines adjacent {@link AnnotatedCallLog} rows starting at the first row of {@code
+   * annotatedCallLogRowsSortedByTimestampDesc}, passing each group to {@code consumer} until it
+   * returns false or the cursor is exhausted.
+   *
+   * <p>Coalesced rows passed to the consumer have no ID set.
+   */
+  @WorkerThread
+  void coalesceGroups(
+      Cursor annotatedCallLogRowsSortedByTimestampDesc, CoalescedRowConsumer consumer) {
+    if (!annotatedCallLogRowsSortedByTimestampDesc.moveToFirst()) {
+      return;
+    }
 
-        if (isRowMerged) {
-          allAnnotatedCallLogRowsSortedByTimestampDesc.moveToNext();
-        }
+    RowCombiner rowCombiner = new RowCombiner(annotatedCallLogRowsSortedByTimestampDesc);
+    rowCombiner.startNewGroup();
 
-        if (!isRowMerged || allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
-          coalescedRowListBuilder.add(
-              rowCombiner.combine().toBuilder().setId(coalescedRowId++).build());
-          rowCombiner.startNewGroup();
-        }
-      } while (!allAnnotatedCallLogRowsSortedByTimestampDesc.isAfterLast());
+    do {
+      boolean isRowMerged = rowCombiner.mergeRow(annotatedCallLogRowsSortedByTimestampDesc);
 
-      return coalescedRowListBuilder.build();
+      if (isRowMerged) {
+        annotatedCallLogRowsSortedByTimestampDesc.moveToNext();
+      }
 
-    } catch (Exception exception) {
-      // Coalescing can fail if cursor "allAnnotatedCallLogRowsSortedByTimestampDesc" is closed by
-      // its loader while the work is still in progress.
-      //
-      // This can happen when the loader restarts and finishes loading data before the coalescing
-      // work is completed.
-      //
-      // This kind of failure doesn't have to crash the app as coalescing will be restarted on the
-      // latest data obtained by the loader. Therefore, we inspect the exception here and throw an
-      // ExpectedCoalescerException if it is the case described above.
-      //
-      // The type of expected exception depends on whether AbstractWindowedCursor#checkPosition() is
-      // called when the cursor is closed.
-      //   (1) If it is called before the cursor is closed, we will get IllegalStateException thrown
-      //       by SQLiteClosable when it attempts to acquire a reference to the database.
-      //   (2) Otherwise, we will get StaleDataException thrown by AbstractWindowedCursor's
-      //       checkPosition() method.
-      //
-      // Note that it would be more accurate to inspect the stack trace to locate the origin of the
-      // exception. However, according to the documentation on Throwable#getStackTrace, "some
-      // virtual machines may, under some circumstances, omit one or more stack frames from the
-      // stack trace". "In the extreme case, a virtual machine that has no stack trace information
-      // concerning this throwable is permitted to return a zero-length array from this method."
-      // Therefore, the best we can do is to inspect the message in the exception.
-      // TODO(linyuh): try to avoid the expected failure.
-      String message = exception.getMessage();
-      if (message != null
-          && ((exception instanceof StaleDataException
-                  && message.startsWith("Attempting to access a closed CursorWindow"))
-              || (exception instanceof IllegalStateException
-                  && message.startsWith("attempt to re-open an already-closed object")))) {
-        throw new ExpectedCoalescerException(exception);
+      if (!isRowMerged || annotatedCallLogRowsSortedByTimestampDesc.isAfterLast()) {
+        CoalescedRow coalescedRow = rowCombiner.combine();
+        long oldestTimestamp = rowCombiner.getOldestTimestamp();
+        rowCombiner.startNewGroup();
+        if (!consumer.accept(
+            coalescedRow, oldestTimestamp, annotatedCallLogRowsSortedByTimestampDesc)) {
+          return;
+        }
       }
+    } while (!annotatedCallLogRowsSortedByTimestampDesc.isAfterLast());
+  }
 
-      throw exception;
+  /** Receives the groups built by {@link #coalesceGroups(Cursor, CoalescedRowConsumer)}. */
+  interface CoalescedRowConsumer {
+
+    /**
+     * @param coalescedRow the group that was just combined
+     * @param oldestTimestamp timestamp of the oldest row in the group
+     * @param nextRow cursor positioned at the first row of the next group, or after the last row
+     * @return false to stop coalescing
+     */
+    boolean accept(CoalescedRow coalescedRow, long oldestTimestamp, Cursor nextRow);
+  }
+
+  /**
+   * Reading can fail if the cursor is closed by its loader while the work is still in progress.
+   * Throws an {@link ExpectedCoalescerException} if {@code exception} was caused by that.
+   */
+  private static void throwIfExpected(Exception exception) throws ExpectedCoalescerException {
+    // This can happen when the loader restarts and finishes loading data before the coalescing
+    // work is completed.
+    //
+    // This kind of failure doesn't have to crash the app as coalescing will be restarted on the
+    // latest data obtained by the loader. Therefore, we inspect the exception here and throw an
+    // ExpectedCoalescerException if it is the case described above.
+    //
+    // The type of expected exception depends on whether AbstractWindowedCursor#checkPosition() is
+    // called when the cursor is closed.
+    //   (1) If it is called before the cursor is closed, we will get IllegalStateException thrown
+    //       by SQLiteClosable when it attempts to acquire a reference to the database.
+    //   (2) Otherwise, we will get StaleDataException thrown by AbstractWindowedCursor's
+    //       checkPosition() method.
+    //
+    // Note that it would be more accurate to inspect the stack trace to locate the origin of the
+    // exception. However, according to the documentation on Throwable#getStackTrace, "some
+    // virtual machines may, under some circumstances, omit one or more stack frames from the
+    // stack trace". "In the extreme case, a virtual machine that has no stack trace information
+    // concerning this throwable is permitted to return a zero-length array from this method."
+    // Therefore, the best we can do is to inspect the message in the exception.
+    // TODO(linyuh): try to avoid the expected failure.
+    String message = exception.getMessage();
+    if (message != null
+        && ((exception instanceof StaleDataException
+                && message.startsWith("Attempting to access a closed CursorWindow"))
+            || (exception instanceof IllegalStateException
+                && message.startsWith("attempt to re-open an already-closed object")))) {
+      throw new ExpectedCoalescerException(exception);
     }
   }
 
@@ -179,6 +263,8 @@ public class Coalescer {
     // DialerPhoneNumberUtil will be created lazily as its instantiation is expensive.
     private DialerPhoneNumberUtil dialerPhoneNumberUtil = null;
 
+    private long oldestTimestamp;
+
     RowCombiner(Cursor annotatedCallLogRow) {
       idColumn = annotatedCallLogRow.getColumnIndexOrThrow(AnnotatedCallLog._ID);
       timestampColumn = annotatedCallLogRow.getColumnIndexOrThrow(AnnotatedCallLog.TIMESTAMP);
@@ -234,6 +320,9 @@ public class Coalescer {
       coalescedRowBuilder.setFeatures(
           coalescedRowBuilder.getFeatures() | annotatedCallLogRow.getInt(featuresColumn));
 
+      // Rows are sorted in descending order of timestamp, so the last merged row is the oldest.
+      oldestTimestamp = annotatedCallLogRow.getLong(timestampColumn);
+
       // Set fields that use the most recent value.
       // Rows passed to Coalescer are already sorted in descending order of timestamp. If the
       // coalesced ID list is not empty, it means RowCombiner has merged the most recent row in a
@@ -298,6 +387,11 @@ public class Coalescer {
       return true;
     }
 
+    /** Returns the timestamp of the oldest row merged into the current group. */
+    long getOldestTimestamp() {
+      return oldestTimestamp;
+    }
+
     /** Builds a {@link CoalescedRow} based on all rows merged into the current group. */
     CoalescedRow combine() {
       return coalescedRowBuilder.setCoalescedIds(coalescedIdsBuilder.build()).build();
@@ -377,6 +471,31 @@ public class Coalescer {
     }
   }
 
+  /** Futures of the coalesced rows returned by {@link #readCoalescedStreaming(Cursor, int)}. */
+  public static final class StreamingCoalescedRows {
+    private final ListenableFuture<ImmutableList<CoalescedRow>> firstPage;
+    private final ListenableFuture<ImmutableList<CoalescedRow>> allRows;
+
+    StreamingCoalescedRows(
+        ListenableFuture<ImmutableList<CoalescedRow>> firstPage,
+        ListenableFuture<ImmutableList<CoalescedRow>> allRows) {
+      this.firstPage = firstPage;
+      this.allRows = allRows;
+    }
+
+    /**
+     * The most recent coalesced rows, available before {@link #allRows()}. Equal to {@link
+     * #allRows()} if there are no more rows than fit on the first page.
+     */
+    public ListenableFuture<ImmutableList<CoalescedRow>> firstPage() {
+      return firstPage;
+    }
+
+    public ListenableFuture<ImmutableList<CoalescedRow>> allRows() {
+      return allRows;
+    }
+  }
+
   /** A checked exception thrown when expected failure happens when coalescing is in progress. */
   public static final class ExpectedCoalescerException extends Exception {
     ExpectedCoalescerException(Throwable throwable) {
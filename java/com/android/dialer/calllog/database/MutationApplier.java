@@ -15,38 +15,47 @@
  */
 package com.android.dialer.calllog.database;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.OperationApplicationException;
-import android.os.RemoteException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.support.annotation.WorkerThread;
-import android.text.TextUtils;
-import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import com.android.dialer.calllog.database.AnnotatedCallLogConstraints.Operation;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
 import com.android.dialer.calllog.datasources.CallLogMutations;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
 import javax.inject.Inject;
 
-/** Applies {@link CallLogMutations} to the annotated call log. */
+/**
+ * Applies {@link CallLogMutations} to the annotated call log.
+ *
+ * <p>Mutations are written directly to the database in a single transaction, rather than as a
+ * batch of {@link android.content.ContentProviderOperation}s through {@link
+ * AnnotatedCallLogContentProvider}. Statements are compiled once per set of columns and reused, so
+ * neither SQL nor operation objects are built for each row.
+ */
 public class MutationApplier {
 
   private final ListeningExecutorService backgroundExecutorService;
+  private final AnnotatedCallLogDatabaseHelper annotatedCallLogDatabaseHelper;
 
   @Inject
-  public MutationApplier(@BackgroundExecutor ListeningExecutorService backgroundExecutorService) {
+  public MutationApplier(
+      @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
+      AnnotatedCallLogDatabaseHelper annotatedCallLogDatabaseHelper) {
     this.backgroundExecutorService = backgroundExecutorService;
+    this.annotatedCallLogDatabaseHelper = annotatedCallLogDatabaseHelper;
   }
 
   /** Applies the provided {@link CallLogMutations} to the annotated call log. */
@@ -63,65 +72,147 @@ public class MutationApplier {
 
   @WorkerThread
   private void applyToDatabaseInternal(CallLogMutations mutations, Context appContext)
-      throws RemoteException, OperationApplicationException {
+      throws OperationApplicationException {
     Assert.isWorkerThread();
 
-    ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-
-    if (!mutations.getInserts().isEmpty()) {
-      LogUtil.i(
-          "MutationApplier.applyToDatabase", "inserting %d rows", mutations.getInserts().size());
-      for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
-        long id = entry.getKey();
-        ContentValues contentValues = entry.getValue();
-        operations.add(
-            ContentProviderOperation.newInsert(
-                    ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id))
-                .withValues(contentValues)
-                .build());
+    SQLiteDatabase database = annotatedCallLogDatabaseHelper.getWritableDatabase();
+    // Rows usually share a few sets of columns, so statements are keyed by their columns.
+    Map<Set<String>, BoundStatement> insertStatements = new ArrayMap<>();
+    Map<Set<String>, BoundStatement> updateStatements = new ArrayMap<>();
+    SQLiteStatement deleteStatement = null;
+    database.beginTransaction();
+    try {
+      if (!mutations.getInserts().isEmpty()) {
+        LogUtil.i(
+            "MutationApplier.applyToDatabase", "inserting %d rows", mutations.getInserts().size());
+        for (Entry<Long, ContentValues> entry : mutations.getInserts().entrySet()) {
+          ContentValues contentValues = entry.getValue();
+          AnnotatedCallLogConstraints.check(contentValues, Operation.INSERT);
+          BoundStatement insert = insertStatements.get(contentValues.keySet());
+          if (insert == null) {
+            insert = BoundStatement.forInsert(database, contentValues);
+            insertStatements.put(new ArraySet<>(contentValues.keySet()), insert);
+          }
+          insert.statement.bindLong(1, entry.getKey());
+          insert.bindValues(2, contentValues);
+          if (insert.statement.executeInsert() < 0) {
+            throw new OperationApplicationException("error inserting row " + entry.getKey());
+          }
+        }
       }
-    }
 
-    if (!mutations.getUpdates().isEmpty()) {
-      LogUtil.i(
-          "MutationApplier.applyToDatabase", "updating %d rows", mutations.getUpdates().size());
-      for (Entry<Long, ContentValues> entry : mutations.getUpdates().entrySet()) {
-        long id = entry.getKey();
-        ContentValues contentValues = entry.getValue();
-        operations.add(
-            ContentProviderOperation.newUpdate(
-                    ContentUris.withAppendedId(AnnotatedCallLog.CONTENT_URI, id))
-                .withValues(contentValues)
-                .build());
+      if (!mutations.getUpdates().isEmpty()) {
+        LogUtil.i(
+            "MutationApplier.applyToDatabase", "updating %d rows", mutations.getUpdates().size());
+        for (Entry<Long, ContentValues> entry : mutations.getUpdates().entrySet()) {
+          ContentValues contentValues = entry.getValue();
+          AnnotatedCallLogConstraints.check(contentValues, Operation.UPDATE);
+          BoundStatement update = updateStatements.get(contentValues.keySet());
+          if (update == null) {
+            update = BoundStatement.forUpdate(database, contentValues);
+            updateStatements.put(new ArraySet<>(contentValues.keySet()), update);
+          }
+          update.bindValues(1, contentValues);
+          update.statement.bindLong(update.columns.length + 1, entry.getKey());
+          if (update.statement.executeUpdateDelete() == 0) {
+            LogUtil.w("MutationApplier.applyToDatabase", "update failed, row not found");
+          }
+        }
+      }
+
+      if (!mutations.getDeletes().isEmpty()) {
+        LogUtil.i(
+            "MutationApplier.applyToDatabase", "deleting %d rows", mutations.getDeletes().size());
+        deleteStatement =
+            database.compileStatement(
+                "delete from " + AnnotatedCallLog.TABLE + " where " + AnnotatedCallLog._ID + "=?");
+        for (long id : mutations.getDeletes()) {
+          deleteStatement.bindLong(1, id);
+          if (deleteStatement.executeUpdateDelete() == 0) {
+            LogUtil.w("MutationApplier.applyToDatabase", "delete failed, row not found");
+          }
+        }
+      }
+
+      annotatedCallLogDatabaseHelper.pruneOldRows(database);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+      for (BoundStatement insert : insertStatements.values()) {
+        insert.statement.close();
+      }
+      for (BoundStatement update : updateStatements.values()) {
+        update.statement.close();
+      }
+      if (deleteStatement != null) {
+        deleteStatement.close();
       }
     }
 
-    if (!mutations.getDeletes().isEmpty()) {
-      LogUtil.i(
-          "MutationApplier.applyToDatabase", "deleting %d rows", mutations.getDeletes().size());
+    appContext
+        .getContentResolver()
+        .notifyChange(AnnotatedCallLog.CONTENT_URI, /* observer = */ null);
+  }
 
-      // Batch the deletes into chunks of 999, the maximum size for SQLite selection args.
-      Iterable<List<Long>> batches = Iterables.partition(mutations.getDeletes(), 999);
-      for (List<Long> idsInBatch : batches) {
-        String[] questionMarks = new String[idsInBatch.size()];
-        Arrays.fill(questionMarks, "?");
+  /** A compiled statement with the columns of its parameters, in order. */
+  private static final class BoundStatement {
+    final SQLiteStatement statement;
+    final String[] columns;
 
-        String whereClause =
-            (AnnotatedCallLog._ID + " in (") + TextUtils.join(",", questionMarks) + ")";
+    private BoundStatement(SQLiteStatement statement, String[] columns) {
+      this.statement = statement;
+      this.columns = columns;
+    }
 
-        String[] whereArgs = new String[idsInBatch.size()];
-        int i = 0;
-        for (long id : idsInBatch) {
-          whereArgs[i++] = String.valueOf(id);
-        }
+    /** Returns a statement inserting a row with an ID followed by the columns of contentValues. */
+    static BoundStatement forInsert(SQLiteDatabase database, ContentValues contentValues) {
+      String[] columns = contentValues.keySet().toArray(new String[0]);
+      StringBuilder sql =
+          new StringBuilder("insert into ")
+              .append(AnnotatedCallLog.TABLE)
+              .append(" (")
+              .append(AnnotatedCallLog._ID);
+      for (String column : columns) {
+        sql.append(", ").append(column);
+      }
+      sql.append(") values (?");
+      for (int i = 0; i < columns.length; i++) {
+        sql.append(", ?");
+      }
+      sql.append(")");
+      return new BoundStatement(database.compileStatement(sql.toString()), columns);
+    }
 
-        operations.add(
-            ContentProviderOperation.newDelete(AnnotatedCallLog.CONTENT_URI)
-                .withSelection(whereClause, whereArgs)
-                .build());
+    /** Returns a statement updating the columns of contentValues, followed by the row's ID. */
+    static BoundStatement forUpdate(SQLiteDatabase database, ContentValues contentValues) {
+      String[] columns = contentValues.keySet().toArray(new String[0]);
+      StringBuilder sql = new StringBuilder("update ").append(AnnotatedCallLog.TABLE);
+      for (int i = 0; i < columns.length; i++) {
+        sql.append(i == 0 ? " set " : ", ").append(columns[i]).append("=?");
       }
+      sql.append(" where ").append(AnnotatedCallLog._ID).append("=?");
+      return new BoundStatement(database.compileStatement(sql.toString()), columns);
     }
 
-    appContext.getContentResolver().applyBatch(AnnotatedCallLogContract.AUTHORITY, operations);
+    /** Binds the values of {@link #columns}, starting at the (1-based) {@code firstIndex}. */
+    void bindValues(int firstIndex, ContentValues contentValues) {
+      for (int i = 0; i < columns.length; i++) {
+        int index = firstIndex + i;
+        Object value = contentValues.get(columns[i]);
+        if (value == null) {
+          statement.bindNull(index);
+        } else if (value instanceof byte[]) {
+          statement.bindBlob(index, (byte[]) value);
+        } else if (value instanceof Boolean) {
+          statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof Float || value instanceof Double) {
+          statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+          statement.bindLong(index, ((Number) value).longValue());
+        } else {
+          statement.bindString(index, value.toString());
+        }
+      }
+    }
   }
 }
@@ -201,4 +201,46 @@ public class AnnotatedCallLogContract {
      */
     public static final String CALL_MAPPING_ID = "call_mapping_id";
   }
+
+  /**
+   * Rows of {@link AnnotatedCallLog} (excluding voicemails) combined for display purposes by {@link
+   * com.android.dialer.calllog.database.Coalescer}.
+   *
+   * <p>The table is maintained by RefreshAnnotatedCallLogWorker after it applies mutations to
+   * {@link AnnotatedCallLog}, and is read-only through the content provider.
+   */
+  public static final class CoalescedAnnotatedCallLog implements BaseColumns {
+
+    public static final String TABLE = "CoalescedAnnotatedCallLog";
+
+    /** The content URI for this table. */
+    public static final Uri CONTENT_URI =
+        Uri.withAppendedPath(AnnotatedCallLogContract.CONTENT_URI, TABLE);
+
+    /** Query parameter limiting the number of rows returned, for reading the table in pages. */
+    public static final String LIMIT_PARAMETER = "limit";
+
+    // Note: _ID is the ID of the most recent AnnotatedCallLog row in the group.
+
+    /**
+     * Timestamp of the most recent {@link AnnotatedCallLog} row in the group, in milliseconds.
+     *
+     * <p>Type: INTEGER (long)
+     */
+    public static final String TIMESTAMP = "timestamp";
+
+    /**
+     * Timestamp of the oldest {@link AnnotatedCallLog} row in the group, in milliseconds.
+     *
+     * <p>Type: INTEGER (long)
+     */
+    public static final String OLDEST_TIMESTAMP = "oldest_timestamp";
+
+    /**
+     * The group encoded as a {@link com.android.dialer.calllog.model.CoalescedRow} proto.
+     *
+     * <p>Type: BLOB
+     */
+    public static final String COALESCED_ROW = "coalesced_row";
+  }
 }
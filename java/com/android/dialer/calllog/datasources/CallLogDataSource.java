@@ -28,9 +28,10 @@ import com.google.common.util.concurrent.ListenableFuture;
  *
  * <ol>
  *   <li>{@link #isDirty()}: Invoked only if the framework doesn't yet know if a rebuild is
- *       necessary.
+ *       necessary, or if only the system call log changed and it produced no mutations.
  *   <li>{@link #fill(CallLogMutations)}: Invoked only if the framework determined a rebuild is
- *       necessary.
+ *       necessary. It is skipped if only the system call log changed, it produced no mutations,
+ *       and this data source isn't dirty.
  *   <li>{@link #onSuccessfulFill()}: Invoked if and only if fill was previously called and the
  *       mutations provided by the previous fill operation succeeded in being applied.
  * </ol>
@@ -63,6 +64,9 @@ public interface CallLogDataSource {
    * Computes the set of mutations necessary to update the annotated call log with respect to this
    * data source.
    *
+   * <p>Data sources other than the system call log are filled in parallel, each with its own copy
+   * of the mutations produced by the system call log, so they can't see each other's changes.
+   *
    * @see CallLogDataSource class doc for complete lifecyle information
    * @param mutations the set of mutations which this method should contribute to. Note that it may
    *     contain inserts from the system call log, and these inserts should be modified by each data
@@ -75,6 +75,55 @@ public final class CallLogMutations {
     deletes.add(id);
   }
 
+  /**
+   * Returns a copy of these mutations, with copies of their content values, which a data source can
+   * fill independently of other data sources. The result can be added back with {@link
+   * #merge(CallLogMutations)}.
+   */
+  public CallLogMutations copy() {
+    CallLogMutations copy = new CallLogMutations();
+    copy.inserts.ensureCapacity(inserts.size());
+    for (int i = 0; i < inserts.size(); i++) {
+      copy.inserts.put(inserts.keyAt(i), new ContentValues(inserts.valueAt(i)));
+    }
+    copy.updates.ensureCapacity(updates.size());
+    for (int i = 0; i < updates.size(); i++) {
+      copy.updates.put(updates.keyAt(i), new ContentValues(updates.valueAt(i)));
+    }
+    copy.deletes.addAll(deletes);
+    return copy;
+  }
+
+  /**
+   * Adds the mutations in {@code other}, typically a {@link #copy()} which has since been filled by
+   * a data source, to these mutations. Content values of rows which are inserted or updated in both
+   * are merged, with the ones in {@code other} overwriting these for values with the same key.
+   *
+   * @throws IllegalStateException if {@code other} contains a mutation which conflicts with these,
+   *     as described in {@link #insert(long, ContentValues)}, {@link #update(long, ContentValues)}
+   *     and {@link #delete(long)}
+   */
+  public void merge(CallLogMutations other) {
+    for (int i = 0; i < other.inserts.size(); i++) {
+      long id = other.inserts.keyAt(i);
+      ContentValues existingContentValues = inserts.get(id);
+      if (existingContentValues != null) {
+        existingContentValues.putAll(other.inserts.valueAt(i));
+      } else {
+        insert(id, other.inserts.valueAt(i));
+      }
+    }
+    for (int i = 0; i < other.updates.size(); i++) {
+      update(other.updates.keyAt(i), other.updates.valueAt(i));
+    }
+    for (int i = 0; i < other.deletes.size(); i++) {
+      long id = other.deletes.valueAt(i);
+      if (!deletes.contains(id)) {
+        delete(id);
+      }
+    }
+  }
+
   public boolean isEmpty() {
     return inserts.isEmpty() && updates.isEmpty() && deletes.isEmpty();
   }
@@ -16,15 +16,11 @@
 
 package com.android.dialer.calllog.datasources.phonelookup;
 
-import android.content.ContentProviderOperation;
 import android.content.ContentValues;
 import android.content.Context;
-import android.content.OperationApplicationException;
 import android.database.Cursor;
-import android.os.RemoteException;
 import android.support.annotation.MainThread;
 import android.support.annotation.WorkerThread;
-import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import com.android.dialer.DialerPhoneNumber;
@@ -32,7 +28,6 @@ import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.Ann
 import com.android.dialer.calllog.datasources.CallLogDataSource;
 import com.android.dialer.calllog.datasources.CallLogMutations;
 import com.android.dialer.calllogutils.NumberAttributesBuilder;
-import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.common.concurrent.Annotations.LightweightExecutor;
@@ -40,9 +35,8 @@ import com.android.dialer.inject.ApplicationContext;
 import com.android.dialer.phonelookup.PhoneLookup;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.composite.CompositePhoneLookup;
+import com.android.dialer.phonelookup.database.PhoneLookupHistoryCache;
 import com.android.dialer.phonelookup.database.PhoneLookupHistoryDatabaseHelper;
-import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract;
-import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
@@ -51,8 +45,6 @@ import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
 import com.google.common.util.concurrent.MoreExecutors;
 import com.google.protobuf.InvalidProtocolBufferException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -88,6 +80,7 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
   private final Set<String> phoneLookupHistoryRowsToDelete = new ArraySet<>();
 
   private final PhoneLookupHistoryDatabaseHelper phoneLookupHistoryDatabaseHelper;
+  private final PhoneLookupHistoryCache phoneLookupHistoryCache;
 
   @Inject
   PhoneLookupDataSource(
@@ -95,12 +88,14 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
       CompositePhoneLookup compositePhoneLookup,
       @BackgroundExecutor ListeningExecutorService backgroundExecutorService,
       @LightweightExecutor ListeningExecutorService lightweightExecutorService,
-      PhoneLookupHistoryDatabaseHelper phoneLookupHistoryDatabaseHelper) {
+      PhoneLookupHistoryDatabaseHelper phoneLookupHistoryDatabaseHelper,
+      PhoneLookupHistoryCache phoneLookupHistoryCache) {
     this.appContext = appContext;
     this.compositePhoneLookup = compositePhoneLookup;
     this.backgroundExecutorService = backgroundExecutorService;
     this.lightweightExecutorService = lightweightExecutorService;
     this.phoneLookupHistoryDatabaseHelper = phoneLookupHistoryDatabaseHelper;
+    this.phoneLookupHistoryCache = phoneLookupHistoryCache;
   }
 
   @Override
@@ -164,7 +159,7 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
         Futures.transform(
             annotatedCallLogIdsByNumberFuture,
             annotatedCallLogIdsByNumber ->
-                queryPhoneLookupHistoryForNumbers(appContext, annotatedCallLogIdsByNumber.keySet()),
+                queryPhoneLookupHistoryForNumbers(annotatedCallLogIdsByNumber.keySet()),
             backgroundExecutorService);
 
     // Use the original info map to generate the updated info map by delegating to
@@ -248,7 +243,7 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
   public ListenableFuture<Void> onSuccessfulFill() {
     // First update and/or delete the appropriate rows in PhoneLookupHistory.
     ListenableFuture<Void> writePhoneLookupHistory =
-        backgroundExecutorService.submit(() -> writePhoneLookupHistory(appContext));
+        backgroundExecutorService.submit(this::writePhoneLookupHistory);
 
     // If that succeeds, delegate to the composite PhoneLookup to notify all PhoneLookups that both
     // the AnnotatedCallLog and PhoneLookupHistory have been successfully updated.
@@ -259,32 +254,8 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
   }
 
   @WorkerThread
-  private Void writePhoneLookupHistory(Context appContext)
-      throws RemoteException, OperationApplicationException {
-    ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-    long currentTimestamp = System.currentTimeMillis();
-    for (Entry<String, PhoneLookupInfo> entry : phoneLookupHistoryRowsToUpdate.entrySet()) {
-      String normalizedNumber = entry.getKey();
-      PhoneLookupInfo phoneLookupInfo = entry.getValue();
-      ContentValues contentValues = new ContentValues();
-      contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, phoneLookupInfo.toByteArray());
-      contentValues.put(PhoneLookupHistory.LAST_MODIFIED, currentTimestamp);
-      operations.add(
-          ContentProviderOperation.newUpdate(
-                  PhoneLookupHistory.contentUriForNumber(normalizedNumber))
-              .withValues(contentValues)
-              .build());
-    }
-    for (String normalizedNumber : phoneLookupHistoryRowsToDelete) {
-      operations.add(
-          ContentProviderOperation.newDelete(
-                  PhoneLookupHistory.contentUriForNumber(normalizedNumber))
-              .build());
-    }
-    Assert.isNotNull(
-        appContext
-            .getContentResolver()
-            .applyBatch(PhoneLookupHistoryContract.AUTHORITY, operations));
+  private Void writePhoneLookupHistory() {
+    phoneLookupHistoryCache.write(phoneLookupHistoryRowsToUpdate, phoneLookupHistoryRowsToDelete);
     return null;
   }
 
@@ -303,6 +274,7 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
   public ListenableFuture<Void> clearData() {
     ListenableFuture<Void> clearDataFuture = compositePhoneLookup.clearData();
     ListenableFuture<Void> deleteDatabaseFuture = phoneLookupHistoryDatabaseHelper.delete();
+    phoneLookupHistoryCache.clear();
 
     return Futures.transform(
         Futures.allAsList(clearDataFuture, deleteDatabaseFuture),
@@ -425,51 +397,16 @@ public final class PhoneLookupDataSource implements CallLogDataSource {
 
   /** Returned map must have same keys as {@code uniqueDialerPhoneNumbers} */
   private ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> queryPhoneLookupHistoryForNumbers(
-      Context appContext, Set<DialerPhoneNumber> uniqueDialerPhoneNumbers) {
+      Set<DialerPhoneNumber> uniqueDialerPhoneNumbers) {
     // Note: This loses country info when number is not valid.
     Map<DialerPhoneNumber, String> dialerPhoneNumberToNormalizedNumbers =
         Maps.asMap(uniqueDialerPhoneNumbers, DialerPhoneNumber::getNormalizedNumber);
 
     // Convert values to a set to remove any duplicates that are the result of two
     // DialerPhoneNumbers mapping to the same normalized number.
-    String[] normalizedNumbers =
-        dialerPhoneNumberToNormalizedNumbers.values().toArray(new String[] {});
-    String[] questionMarks = new String[normalizedNumbers.length];
-    Arrays.fill(questionMarks, "?");
-    String selection =
-        PhoneLookupHistory.NORMALIZED_NUMBER + " in (" + TextUtils.join(",", questionMarks) + ")";
-
-    Map<String, PhoneLookupInfo> normalizedNumberToInfoMap = new ArrayMap<>();
-    try (Cursor cursor =
-        appContext
-            .getContentResolver()
-            .query(
-                PhoneLookupHistory.CONTENT_URI,
-                new String[] {
-                  PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO,
-                },
-                selection,
-                normalizedNumbers,
-                null)) {
-      if (cursor == null) {
-        LogUtil.e("PhoneLookupDataSource.queryPhoneLookupHistoryForNumbers", "null cursor");
-      } else if (cursor.moveToFirst()) {
-        int normalizedNumberColumn =
-            cursor.getColumnIndexOrThrow(PhoneLookupHistory.NORMALIZED_NUMBER);
-        int phoneLookupInfoColumn =
-            cursor.getColumnIndexOrThrow(PhoneLookupHistory.PHONE_LOOKUP_INFO);
-        do {
-          String normalizedNumber = cursor.getString(normalizedNumberColumn);
-          PhoneLookupInfo phoneLookupInfo;
-          try {
-            phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(phoneLookupInfoColumn));
-          } catch (InvalidProtocolBufferException e) {
-            throw new IllegalStateException(e);
-          }
-          normalizedNumberToInfoMap.put(normalizedNumber, phoneLookupInfo);
-        } while (cursor.moveToNext());
-      }
-    }
+    Map<String, PhoneLookupInfo> normalizedNumberToInfoMap =
+        phoneLookupHistoryCache.getAll(
+            ImmutableSet.copyOf(dialerPhoneNumberToNormalizedNumbers.values()));
 
     // We have the required information in normalizedNumberToInfoMap but it's keyed by normalized
     // number instead of DialerPhoneNumber. Build and return a new map keyed by DialerPhoneNumber.
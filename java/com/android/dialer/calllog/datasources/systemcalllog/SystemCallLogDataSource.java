@@ -33,7 +33,6 @@ import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
-import android.util.ArraySet;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.calllog.database.AnnotatedCallLogDatabaseHelper;
 import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
@@ -49,7 +48,6 @@ import com.android.dialer.inject.ApplicationContext;
 import com.android.dialer.phonenumberproto.DialerPhoneNumberUtil;
 import com.android.dialer.storage.Unencrypted;
 import com.android.dialer.util.PermissionsUtil;
-import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -57,7 +55,6 @@ import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Set;
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
@@ -204,15 +201,8 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     // This data source should always run first so the mutations should always be empty.
     Assert.checkArgument(mutations.isEmpty());
 
-    Set<Long> annotatedCallLogIds = getAnnotatedCallLogIds(appContext);
-
-    LogUtil.i(
-        "SystemCallLogDataSource.fill",
-        "found %d existing annotated call log ids",
-        annotatedCallLogIds.size());
-
-    handleInsertsAndUpdates(appContext, mutations, annotatedCallLogIds);
-    handleDeletes(appContext, annotatedCallLogIds, mutations);
+    handleInsertsAndUpdates(appContext, mutations);
+    handleDeletes(appContext, annotatedCallLogDatabaseHelper, mutations);
     return null;
   }
 
@@ -228,8 +218,7 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     return null;
   }
 
-  private void handleInsertsAndUpdates(
-      Context appContext, CallLogMutations mutations, Set<Long> existingAnnotatedCallLogIds) {
+  private void handleInsertsAndUpdates(Context appContext, CallLogMutations mutations) {
     long previousTimestampProcessed = sharedPreferences.getLong(PREF_LAST_TIMESTAMP_PROCESSED, 0L);
 
     DialerPhoneNumberUtil dialerPhoneNumberUtil = new DialerPhoneNumberUtil();
@@ -261,6 +250,17 @@ public class SystemCallLogDataSource implements CallLogDataSource {
           cursor.getCount());
 
       int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
+
+      // Only look up the IDs which are about to be written, rather than reading every ID in the
+      // annotated call log.
+      long[] candidateIds = new long[cursor.getCount()];
+      for (int i = 0; i < candidateIds.length && cursor.moveToPosition(i); i++) {
+        candidateIds[i] = cursor.getLong(idColumn);
+      }
+      long[] existingAnnotatedCallLogIds =
+          annotatedCallLogDatabaseHelper.queryExistingIds(candidateIds);
+      cursor.moveToFirst();
+
       int dateColumn = cursor.getColumnIndexOrThrow(Calls.DATE);
       int lastModifiedColumn = cursor.getColumnIndexOrThrow(Calls.LAST_MODIFIED);
       int numberColumn = cursor.getColumnIndexOrThrow(Calls.NUMBER);
@@ -354,7 +354,7 @@ public class SystemCallLogDataSource implements CallLogDataSource {
 
         setTranscriptionState(cursor, contentValues);
 
-        if (existingAnnotatedCallLogIds.contains(id)) {
+        if (Arrays.binarySearch(existingAnnotatedCallLogIds, id) >= 0) {
           mutations.update(id, contentValues);
         } else {
           mutations.insert(id, contentValues);
@@ -428,96 +428,104 @@ public class SystemCallLogDataSource implements CallLogDataSource {
     return PROJECTION_PRE_O;
   }
 
+  /**
+   * Deletes the rows in the annotated call log which are no longer in the system call log.
+   *
+   * <p>The system call log doesn't record deletes, so its IDs are read in a single pass. Rather than
+   * also reading every ID in the annotated call log, the IDs of both logs are summarized per ID
+   * range (the number of IDs and their sum), and only the annotated call log IDs in ranges whose
+   * summaries differ are read and checked.
+   */
   private static void handleDeletes(
-      Context appContext, Set<Long> existingAnnotatedCallLogIds, CallLogMutations mutations) {
-    Set<Long> systemCallLogIds =
-        getIdsFromSystemCallLogThatMatch(appContext, existingAnnotatedCallLogIds);
+      Context appContext,
+      AnnotatedCallLogDatabaseHelper annotatedCallLogDatabaseHelper,
+      CallLogMutations mutations) {
+    long[] systemCallLogIds = getSystemCallLogIds(appContext);
+    if (systemCallLogIds == null) {
+      return;
+    }
     LogUtil.i(
         "SystemCallLogDataSource.handleDeletes",
-        "found %d matching entries in system call log",
-        systemCallLogIds.size());
-    Set<Long> idsInAnnotatedCallLogNoLongerInSystemCallLog = new ArraySet<>();
-    idsInAnnotatedCallLogNoLongerInSystemCallLog.addAll(existingAnnotatedCallLogIds);
-    idsInAnnotatedCallLogNoLongerInSystemCallLog.removeAll(systemCallLogIds);
+        "found %d entries in system call log",
+        systemCallLogIds.length);
+
+    int mismatchedRanges = 0;
+    int deletes = 0;
+    try (Cursor cursor = annotatedCallLogDatabaseHelper.queryIdRanges()) {
+      int rangeColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLogDatabaseHelper.ID_RANGE);
+      int rowCountColumn =
+          cursor.getColumnIndexOrThrow(AnnotatedCallLogDatabaseHelper.ID_RANGE_ROW_COUNT);
+      int idSumColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLogDatabaseHelper.ID_RANGE_ID_SUM);
+
+      // Both the system call log IDs and the ranges are in ascending order.
+      int systemIndex = 0;
+      while (cursor.moveToNext()) {
+        long range = cursor.getLong(rangeColumn);
+        while (systemIndex < systemCallLogIds.length
+            && idRange(systemCallLogIds[systemIndex]) < range) {
+          systemIndex++;
+        }
+        int rangeStart = systemIndex;
+        long systemIdSum = 0;
+        while (systemIndex < systemCallLogIds.length
+            && idRange(systemCallLogIds[systemIndex]) == range) {
+          systemIdSum += systemCallLogIds[systemIndex++];
+        }
+        if (systemIndex - rangeStart == cursor.getInt(rowCountColumn)
+            && systemIdSum == cursor.getLong(idSumColumn)) {
+          continue;
+        }
+
+        // The range can also differ because of system call log rows which are never copied (Duo
+        // audio calls) or not copied yet, so check each annotated call log ID.
+        mismatchedRanges++;
+        for (long id : annotatedCallLogDatabaseHelper.queryIdsInRange(range)) {
+          if (Arrays.binarySearch(systemCallLogIds, rangeStart, systemIndex, id) < 0) {
+            mutations.delete(id);
+            deletes++;
+          }
+        }
+      }
+    }
 
     LogUtil.i(
         "SystemCallLogDataSource.handleDeletes",
-        "found %d call log entries to remove",
-        idsInAnnotatedCallLogNoLongerInSystemCallLog.size());
-
-    for (long id : idsInAnnotatedCallLogNoLongerInSystemCallLog) {
-      mutations.delete(id);
-    }
+        "found %d call log entries to remove in %d ID ranges",
+        deletes,
+        mismatchedRanges);
   }
 
-  private static Set<Long> getAnnotatedCallLogIds(Context appContext) {
-    ArraySet<Long> ids = new ArraySet<>();
+  private static long idRange(long id) {
+    return id >> AnnotatedCallLogDatabaseHelper.ID_RANGE_SHIFT;
+  }
 
+  /** Returns all IDs in the system call log in ascending order, or null if they can't be read. */
+  @Nullable
+  private static long[] getSystemCallLogIds(Context appContext) {
     try (Cursor cursor =
         appContext
             .getContentResolver()
             .query(
-                AnnotatedCallLog.CONTENT_URI,
-                new String[] {AnnotatedCallLog._ID},
+                Calls.CONTENT_URI_WITH_VOICEMAIL,
+                new String[] {Calls._ID},
                 null,
                 null,
-                null)) {
+                Calls._ID + " ASC")) {
 
       if (cursor == null) {
-        LogUtil.e("SystemCallLogDataSource.getAnnotatedCallLogIds", "null cursor");
-        return ids;
+        LogUtil.e("SystemCallLogDataSource.getSystemCallLogIds", "null cursor");
+        return null;
       }
 
-      if (cursor.moveToFirst()) {
-        int idColumn = cursor.getColumnIndexOrThrow(AnnotatedCallLog._ID);
-        do {
-          ids.add(cursor.getLong(idColumn));
-        } while (cursor.moveToNext());
-      }
-    }
-    return ids;
-  }
-
-  private static Set<Long> getIdsFromSystemCallLogThatMatch(
-      Context appContext, Set<Long> matchingIds) {
-    ArraySet<Long> ids = new ArraySet<>();
-
-    // Batch the select statements into chunks of 999, the maximum size for SQLite selection args.
-    Iterable<List<Long>> batches = Iterables.partition(matchingIds, 999);
-    for (List<Long> idsInBatch : batches) {
-      String[] questionMarks = new String[idsInBatch.size()];
-      Arrays.fill(questionMarks, "?");
-
-      String whereClause = (Calls._ID + " in (") + TextUtils.join(",", questionMarks) + ")";
-      String[] whereArgs = new String[idsInBatch.size()];
-      int i = 0;
-      for (long id : idsInBatch) {
-        whereArgs[i++] = String.valueOf(id);
-      }
-
-      try (Cursor cursor =
-          appContext
-              .getContentResolver()
-              .query(
-                  Calls.CONTENT_URI_WITH_VOICEMAIL,
-                  new String[] {Calls._ID},
-                  whereClause,
-                  whereArgs,
-                  null)) {
-
-        if (cursor == null) {
-          LogUtil.e("SystemCallLogDataSource.getIdsFromSystemCallLog", "null cursor");
-          return ids;
-        }
-
-        if (cursor.moveToFirst()) {
-          int idColumn = cursor.getColumnIndexOrThrow(Calls._ID);
-          do {
-            ids.add(cursor.getLong(idColumn));
-          } while (cursor.moveToNext());
+      long[] ids = new long[cursor.getCount()];
+      int size = 0;
+      while (cursor.moveToNext()) {
+        if (size == ids.length) {
+          ids = Arrays.copyOf(ids, Math.max(16, size * 2));
         }
+        ids[size++] = cursor.getLong(0);
       }
+      return size == ids.length ? ids : Arrays.copyOf(ids, size);
     }
-    return ids;
   }
 }
@@ -19,6 +19,10 @@ package com.android.dialer.calllog.notifier;
 import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
+import android.net.Uri;
+import android.provider.CallLog;
+import android.provider.VoicemailContract;
+import android.support.annotation.Nullable;
 import android.support.v4.content.LocalBroadcastManager;
 import com.android.dialer.calllog.constants.IntentNames;
 import com.android.dialer.calllog.constants.SharedPrefKeys;
@@ -59,7 +63,29 @@ public class RefreshAnnotatedCallLogNotifier {
     LogUtil.enterBlock("RefreshAnnotatedCallLogNotifier.markDirtyAndNotify");
 
     sharedPreferences.edit().putBoolean(SharedPrefKeys.FORCE_REBUILD, true).apply();
-    notify(/* checkDirty = */ false);
+    notify(/* checkDirty = */ false, /* systemCallLogOnly = */ false);
+  }
+
+  /**
+   * Like {@link #markDirtyAndNotify()}, for a change to the content at {@code changedUri}.
+   *
+   * <p>If the change is to the system call log or to voicemail status, only the system call log
+   * is known to have changed, so data sources which don't need to annotate new rows are only
+   * refreshed if they report themselves dirty.
+   */
+  public void markDirtyAndNotify(@Nullable Uri changedUri) {
+    LogUtil.i("RefreshAnnotatedCallLogNotifier.markDirtyAndNotify", "changedUri = %s", changedUri);
+
+    sharedPreferences.edit().putBoolean(SharedPrefKeys.FORCE_REBUILD, true).apply();
+    notify(/* checkDirty = */ false, isSystemCallLogUri(changedUri));
+  }
+
+  private static boolean isSystemCallLogUri(@Nullable Uri uri) {
+    if (uri == null) {
+      return false;
+    }
+    String authority = uri.getAuthority();
+    return CallLog.AUTHORITY.equals(authority) || VoicemailContract.AUTHORITY.equals(authority);
   }
 
   /**
@@ -72,11 +98,20 @@ public class RefreshAnnotatedCallLogNotifier {
    *     rebuild it.
    */
   public void notify(boolean checkDirty) {
-    LogUtil.i("RefreshAnnotatedCallLogNotifier.notify", "checkDirty = %s", checkDirty);
+    notify(checkDirty, /* systemCallLogOnly = */ false);
+  }
+
+  private void notify(boolean checkDirty, boolean systemCallLogOnly) {
+    LogUtil.i(
+        "RefreshAnnotatedCallLogNotifier.notify",
+        "checkDirty = %s, systemCallLogOnly = %s",
+        checkDirty,
+        systemCallLogOnly);
 
     Intent intent = new Intent();
     intent.setAction(IntentNames.ACTION_REFRESH_ANNOTATED_CALL_LOG);
     intent.putExtra(IntentNames.EXTRA_CHECK_DIRTY, checkDirty);
+    intent.putExtra(IntentNames.EXTRA_SYSTEM_CALL_LOG_ONLY, systemCallLogOnly);
 
     LocalBroadcastManager.getInstance(appContext).sendBroadcast(intent);
   }
@@ -48,6 +48,6 @@ public final class MarkDirtyObserver extends ContentObserver {
     LogUtil.i(
         "MarkDirtyObserver.onChange", "Uri:%s, SelfChange:%b", String.valueOf(uri), selfChange);
 
-    refreshAnnotatedCallLogNotifier.markDirtyAndNotify();
+    refreshAnnotatedCallLogNotifier.markDirtyAndNotify(uri);
   }
 }
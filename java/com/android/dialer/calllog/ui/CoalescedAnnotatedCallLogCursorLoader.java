@@ -17,20 +17,23 @@
 package com.android.dialer.calllog.ui;
 
 import android.content.Context;
-import android.provider.CallLog.Calls;
 import android.support.v4.content.CursorLoader;
-import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.AnnotatedCallLog;
+import com.android.dialer.calllog.database.contract.AnnotatedCallLogContract.CoalescedAnnotatedCallLog;
 
-/** Cursor loader for {@link AnnotatedCallLog}. */
-final class AnnotatedCallLogCursorLoader extends CursorLoader {
+/** Cursor loader for the most recent rows of {@link CoalescedAnnotatedCallLog}. */
+final class CoalescedAnnotatedCallLogCursorLoader extends CursorLoader {
 
-  AnnotatedCallLogCursorLoader(Context context) {
+  /** @param limit the maximum number of rows to load */
+  CoalescedAnnotatedCallLogCursorLoader(Context context, int limit) {
     super(
         context,
-        AnnotatedCallLog.CONTENT_URI,
-        /* projection = */ null,
-        /* selection = */ AnnotatedCallLog.CALL_TYPE + " != ?",
-        /* selectionArgs = */ new String[] {Integer.toString(Calls.VOICEMAIL_TYPE)},
-        /* sortOrder = */ AnnotatedCallLog.TIMESTAMP + " DESC");
+        CoalescedAnnotatedCallLog.CONTENT_URI
+            .buildUpon()
+            .appendQueryParameter(CoalescedAnnotatedCallLog.LIMIT_PARAMETER, String.valueOf(limit))
+            .build(),
+        /* projection = */ new String[] {CoalescedAnnotatedCallLog.COALESCED_ROW},
+        /* selection = */ null,
+        /* selectionArgs = */ null,
+        /* sortOrder = */ CoalescedAnnotatedCallLog.TIMESTAMP + " DESC");
   }
 }
@@ -105,6 +105,10 @@ final class NewCallLogAdapter extends RecyclerView.Adapter<ViewHolder> {
     notifyDataSetChanged();
   }
 
+  ImmutableList<CoalescedRow> getRows() {
+    return coalescedRows;
+  }
+
   void clearCache() {
     this.realtimeRowProcessor.clearCache();
   }
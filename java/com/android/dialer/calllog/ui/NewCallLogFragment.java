@@ -68,7 +68,28 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
   private RecyclerView recyclerView;
   private EmptyContentView emptyContentView;
   private RefreshAnnotatedCallLogReceiver refreshAnnotatedCallLogReceiver;
+  /**
+   * Number of coalesced rows shown before the rest of the call log has been coalesced. Enough to
+   * fill the first screen.
+   */
+  private static final int FIRST_PAGE_SIZE = 30;
+
+  /** Number of coalesced rows loaded at a time; more are loaded as the user scrolls down. */
+  private static final int PAGE_SIZE = 300;
+
+  private int rowLimit = PAGE_SIZE;
+  private boolean mayHaveMoreRows = false;
+
   private SupportUiListener<ImmutableList<CoalescedRow>> coalesingAnnotatedCallLogListener;
+  private SupportUiListener<ImmutableList<CoalescedRow>> coalesingFirstPageListener;
+
+  /**
+   * Incremented for every cursor delivered by the loader, so that rows coalesced from an older
+   * cursor never replace rows from a newer one.
+   */
+  private int coalescingGeneration = 0;
+
+  private boolean allRowsShown = false;
 
   private boolean shouldMarkCallsRead = false;
   private final Runnable setShouldMarkCallsReadTrue = () -> shouldMarkCallsRead = true;
@@ -222,6 +243,13 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
     recyclerView.addOnScrollListener(
         new RecyclerViewJankLogger(
             MetricsComponent.get(getContext()).metrics(), Metrics.NEW_CALL_LOG_JANK_EVENT_NAME));
+    recyclerView.addOnScrollListener(
+        new RecyclerView.OnScrollListener() {
+          @Override
+          public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+            maybeLoadNextPage();
+          }
+        });
 
     emptyContentView = view.findViewById(R.id.new_call_log_empty_content_view);
     configureEmptyContentView();
@@ -231,6 +259,11 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
             .createUiListener(
                 getChildFragmentManager(),
                 /* taskId = */ "NewCallLogFragment.coalescingAnnotatedCallLog");
+    coalesingFirstPageListener =
+        DialerExecutorComponent.get(getContext())
+            .createUiListener(
+                getChildFragmentManager(),
+                /* taskId = */ "NewCallLogFragment.coalescingFirstPage");
 
     if (PermissionsUtil.hasCallLogReadPermissions(getContext())) {
       getLoaderManager().restartLoader(LOADER_ID, null, this);
@@ -290,7 +323,24 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
   @Override
   public Loader<Cursor> onCreateLoader(int id, Bundle args) {
     LogUtil.enterBlock("NewCallLogFragment.onCreateLoader");
-    return new AnnotatedCallLogCursorLoader(Assert.isNotNull(getContext()));
+    return new CoalescedAnnotatedCallLogCursorLoader(Assert.isNotNull(getContext()), rowLimit);
+  }
+
+  /** Raises the row limit and reloads once the user scrolls close to the last loaded row. */
+  private void maybeLoadNextPage() {
+    if (!mayHaveMoreRows || recyclerView.getAdapter() == null) {
+      return;
+    }
+    LinearLayoutManager layoutManager = (LinearLayoutManager) recyclerView.getLayoutManager();
+    if (layoutManager.findLastVisibleItemPosition()
+        < recyclerView.getAdapter().getItemCount() - FIRST_PAGE_SIZE) {
+      return;
+    }
+    // Cleared until the reload tells whether there are rows beyond the new limit.
+    mayHaveMoreRows = false;
+    rowLimit += PAGE_SIZE;
+    LogUtil.i("NewCallLogFragment.maybeLoadNextPage", "loading up to %d rows", rowLimit);
+    getLoaderManager().restartLoader(LOADER_ID, null, this);
   }
 
   @Override
@@ -304,48 +354,77 @@ public final class NewCallLogFragment extends Fragment implements LoaderCallback
       return;
     }
 
-    // Start combining adjacent rows which should be collapsed for display purposes.
-    // This is a time-consuming process so we will do it in the background.
-    ListenableFuture<ImmutableList<CoalescedRow>> coalescedRowsFuture =
-        CallLogDatabaseComponent.get(getContext()).coalescer().coalesce(newCursor);
+    // A full page means there may be older rows, which are loaded when the user scrolls to them.
+    mayHaveMoreRows = newCursor.getCount() >= rowLimit;
 
-    coalesingAnnotatedCallLogListener.listen(
-        getContext(),
-        coalescedRowsFuture,
-        coalescedRows -> {
-          LogUtil.i("NewCallLogFragment.onLoadFinished", "coalescing succeeded");
+    // Rows are coalesced when the annotated call log is refreshed; parse them in the background,
+    // showing the most recent rows as soon as they are ready.
+    int generation = ++coalescingGeneration;
+    allRowsShown = false;
+    Coalescer.StreamingCoalescedRows coalescedRows =
+        CallLogDatabaseComponent.get(getContext())
+            .coalescer()
+            .readCoalescedStreaming(newCursor, FIRST_PAGE_SIZE);
 
-          // TODO(zachh): Handle empty cursor by showing empty view.
-          if (recyclerView.getAdapter() == null) {
-            recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
-            // Note: It's not clear if this callback can be invoked when there's no associated
-            // activity, but if crashes are observed here it may be possible to use getContext()
-            // instead.
-            Activity activity = Assert.isNotNull(getActivity());
-            recyclerView.setAdapter(
-                new NewCallLogAdapter(
-                    activity,
-                    coalescedRows,
-                    System::currentTimeMillis,
-                    PromotionComponent.get(getContext())
-                        .promotionManager()
-                        .getHighestPriorityPromotion(PromotionType.CARD)
-                        .orElse(null)));
-          } else {
-            ((NewCallLogAdapter) recyclerView.getAdapter()).updateRows(coalescedRows);
+    coalesingFirstPageListener.listen(
+        getContext(),
+        coalescedRows.firstPage(),
+        firstPage -> {
+          if (generation != coalescingGeneration || allRowsShown) {
+            return;
           }
+          LogUtil.i(
+              "NewCallLogFragment.onLoadFinished", "showing first %d rows", firstPage.size());
+          showCoalescedRows(firstPage);
         },
-        throwable -> {
-          // Coalescing can fail if the cursor passed to Coalescer is closed by the loader while
-          // the work is still in progress.
-          // This can happen when the loader restarts and finishes loading data before the
-          // coalescing work is completed.
-          // This failure is identified by ExpectedCoalescerException and doesn't need to be
-          // thrown as coalescing will be restarted on the latest data obtained by the loader.
-          if (!(throwable instanceof Coalescer.ExpectedCoalescerException)) {
-            throw new AssertionError(throwable);
+        this::onCoalescingFailed);
+
+    coalesingAnnotatedCallLogListener.listen(
+        getContext(),
+        coalescedRows.allRows(),
+        allRows -> {
+          if (generation != coalescingGeneration) {
+            return;
           }
-        });
+          LogUtil.i("NewCallLogFragment.onLoadFinished", "coalescing succeeded");
+          allRowsShown = true;
+          showCoalescedRows(allRows);
+        },
+        this::onCoalescingFailed);
+  }
+
+  private void showCoalescedRows(ImmutableList<CoalescedRow> coalescedRows) {
+    // TODO(zachh): Handle empty cursor by showing empty view.
+    if (recyclerView.getAdapter() == null) {
+      recyclerView.setLayoutManager(new LinearLayoutManager(getContext()));
+      // Note: It's not clear if this callback can be invoked when there's no associated
+      // activity, but if crashes are observed here it may be possible to use getContext()
+      // instead.
+      Activity activity = Assert.isNotNull(getActivity());
+      recyclerView.setAdapter(
+          new NewCallLogAdapter(
+              activity,
+              coalescedRows,
+              System::currentTimeMillis,
+              PromotionComponent.get(getContext())
+                  .promotionManager()
+                  .getHighestPriorityPromotion(PromotionType.CARD)
+                  .orElse(null)));
+    } else if (((NewCallLogAdapter) recyclerView.getAdapter()).getRows() != coalescedRows) {
+      ((NewCallLogAdapter) recyclerView.getAdapter()).updateRows(coalescedRows);
+    }
+  }
+
+  private void onCoalescingFailed(Throwable throwable) {
+    // Coalescing can fail if the cursor passed to Coalescer is closed by the loader while
+    // the work is still in progress.
+    // This can happen when the loader restarts and finishes loading data before the
+    // coalescing work is completed.
+    // This failure is identified by ExpectedCoalescerException and doesn't need to be
+    // thrown as coalescing will be restarted on the latest data obtained by the loader.
+    if (!(throwable instanceof Coalescer.ExpectedCoalescerException)) {
+      throw new AssertionError(throwable);
+    }
   }
 
   @Override
@@ -16,35 +16,20 @@
 
 package com.android.dialer.calllog.ui;
 
-import android.content.ContentProviderOperation;
-import android.content.ContentValues;
-import android.content.Context;
 import android.support.annotation.MainThread;
-import android.support.annotation.VisibleForTesting;
-import android.util.ArrayMap;
-import com.android.dialer.DialerPhoneNumber;
+import android.util.ArraySet;
 import com.android.dialer.calllog.model.CoalescedRow;
 import com.android.dialer.calllogutils.NumberAttributesBuilder;
 import com.android.dialer.common.Assert;
-import com.android.dialer.common.LogUtil;
-import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
 import com.android.dialer.common.concurrent.Annotations.Ui;
-import com.android.dialer.common.concurrent.ThreadUtil;
-import com.android.dialer.inject.ApplicationContext;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.composite.CompositePhoneLookup;
-import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract;
+import com.android.dialer.phonelookup.database.PhoneLookupHistoryCache;
 import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
-import java.util.ArrayList;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.TimeUnit;
+import java.util.Set;
 import javax.inject.Inject;
 
 /**
@@ -58,36 +43,29 @@ import javax.inject.Inject;
  * the CP2 information for all of them at once, and so information for those rows must be retrieved
  * at display time.
  *
- * <p>This class also updates {@link PhoneLookupHistory} with the results that it fetches.
+ * <p>This class also updates {@link PhoneLookupHistory} with the results that it fetches, through
+ * the process-wide {@link PhoneLookupHistoryCache}.
  */
 public final class RealtimeRowProcessor {
 
-  /*
-   * The time to wait between writing batches of records to PhoneLookupHistory.
-   */
-  @VisibleForTesting static final long BATCH_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(3);
-
-  private final Context appContext;
   private final CompositePhoneLookup compositePhoneLookup;
   private final ListeningExecutorService uiExecutor;
-  private final ListeningExecutorService backgroundExecutor;
-
-  private final Map<DialerPhoneNumber, PhoneLookupInfo> cache = new ArrayMap<>();
+  private final PhoneLookupHistoryCache phoneLookupHistoryCache;
 
-  private final Map<DialerPhoneNumber, PhoneLookupInfo> queuedPhoneLookupHistoryWrites =
-      new LinkedHashMap<>(); // Keep the order so the most recent looked up value always wins
-  private final Runnable writePhoneLookupHistoryRunnable = this::writePhoneLookupHistory;
+  /**
+   * Normalized numbers which have been looked up since the cache was last cleared. Their results
+   * are held by {@link #phoneLookupHistoryCache}.
+   */
+  private final Set<String> lookedUpNumbers = new ArraySet<>();
 
   @Inject
   RealtimeRowProcessor(
-      @ApplicationContext Context appContext,
       @Ui ListeningExecutorService uiExecutor,
-      @BackgroundExecutor ListeningExecutorService backgroundExecutor,
-      CompositePhoneLookup compositePhoneLookup) {
-    this.appContext = appContext;
+      CompositePhoneLookup compositePhoneLookup,
+      PhoneLookupHistoryCache phoneLookupHistoryCache) {
     this.uiExecutor = uiExecutor;
-    this.backgroundExecutor = backgroundExecutor;
     this.compositePhoneLookup = compositePhoneLookup;
+    this.phoneLookupHistoryCache = phoneLookupHistoryCache;
   }
 
   /**
@@ -101,9 +79,15 @@ public final class RealtimeRowProcessor {
       return Futures.immediateFuture(row);
     }
 
-    PhoneLookupInfo cachedPhoneLookupInfo = cache.get(row.getNumber());
-    if (cachedPhoneLookupInfo != null) {
-      return Futures.immediateFuture(applyPhoneLookupInfoToRow(cachedPhoneLookupInfo, row));
+    // Note: Multiple DialerPhoneNumbers can map to the same normalized number but we just write
+    // them all and the value for the last one will arbitrarily win.
+    // Note: This loses country info when number is not valid.
+    String normalizedNumber = row.getNumber().getNormalizedNumber();
+    if (lookedUpNumbers.contains(normalizedNumber)) {
+      PhoneLookupInfo cachedPhoneLookupInfo = phoneLookupHistoryCache.getIfCached(normalizedNumber);
+      if (cachedPhoneLookupInfo != null) {
+        return Futures.immediateFuture(applyPhoneLookupInfoToRow(cachedPhoneLookupInfo, row));
+      }
     }
 
     ListenableFuture<PhoneLookupInfo> phoneLookupInfoFuture =
@@ -111,89 +95,18 @@ public final class RealtimeRowProcessor {
     return Futures.transform(
         phoneLookupInfoFuture,
         phoneLookupInfo -> {
-          queuePhoneLookupHistoryWrite(row.getNumber(), phoneLookupInfo);
-          cache.put(row.getNumber(), phoneLookupInfo);
+          phoneLookupHistoryCache.queueWrite(normalizedNumber, phoneLookupInfo);
+          lookedUpNumbers.add(normalizedNumber);
           return applyPhoneLookupInfoToRow(phoneLookupInfo, row);
         },
-        uiExecutor /* ensures the cache is updated on a single thread */);
+        uiExecutor /* ensures lookedUpNumbers is updated on a single thread */);
   }
 
-  /** Clears the internal cache. */
+  /** Clears the internal cache, so that numbers are looked up again. */
   @MainThread
   public void clearCache() {
     Assert.isMainThread();
-    cache.clear();
-  }
-
-  @MainThread
-  private void queuePhoneLookupHistoryWrite(
-      DialerPhoneNumber dialerPhoneNumber, PhoneLookupInfo phoneLookupInfo) {
-    Assert.isMainThread();
-    queuedPhoneLookupHistoryWrites.put(dialerPhoneNumber, phoneLookupInfo);
-    ThreadUtil.getUiThreadHandler().removeCallbacks(writePhoneLookupHistoryRunnable);
-    ThreadUtil.getUiThreadHandler().postDelayed(writePhoneLookupHistoryRunnable, BATCH_WAIT_MILLIS);
-  }
-
-  @MainThread
-  private void writePhoneLookupHistory() {
-    Assert.isMainThread();
-
-    // Copy the batch to a new collection that be safely processed on a background thread.
-    ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> currentBatch =
-        ImmutableMap.copyOf(queuedPhoneLookupHistoryWrites);
-
-    // Clear the queue, handing responsibility for its items to the background task.
-    queuedPhoneLookupHistoryWrites.clear();
-
-    // Returns the number of rows updated.
-    ListenableFuture<Integer> applyBatchFuture =
-        backgroundExecutor.submit(
-            () -> {
-              ArrayList<ContentProviderOperation> operations = new ArrayList<>();
-              long currentTimestamp = System.currentTimeMillis();
-              for (Entry<DialerPhoneNumber, PhoneLookupInfo> entry : currentBatch.entrySet()) {
-                DialerPhoneNumber dialerPhoneNumber = entry.getKey();
-                PhoneLookupInfo phoneLookupInfo = entry.getValue();
-
-                // Note: Multiple DialerPhoneNumbers can map to the same normalized number but we
-                // just write them all and the value for the last one will arbitrarily win.
-                // Note: This loses country info when number is not valid.
-                String normalizedNumber = dialerPhoneNumber.getNormalizedNumber();
-
-                ContentValues contentValues = new ContentValues();
-                contentValues.put(
-                    PhoneLookupHistory.PHONE_LOOKUP_INFO, phoneLookupInfo.toByteArray());
-                contentValues.put(PhoneLookupHistory.LAST_MODIFIED, currentTimestamp);
-                operations.add(
-                    ContentProviderOperation.newUpdate(
-                            PhoneLookupHistory.contentUriForNumber(normalizedNumber))
-                        .withValues(contentValues)
-                        .build());
-              }
-              return Assert.isNotNull(
-                      appContext
-                          .getContentResolver()
-                          .applyBatch(PhoneLookupHistoryContract.AUTHORITY, operations))
-                  .length;
-            });
-
-    Futures.addCallback(
-        applyBatchFuture,
-        new FutureCallback<Integer>() {
-          @Override
-          public void onSuccess(Integer rowsAffected) {
-            LogUtil.i(
-                "RealtimeRowProcessor.onSuccess",
-                "wrote %d rows to PhoneLookupHistory",
-                rowsAffected);
-          }
-
-          @Override
-          public void onFailure(Throwable throwable) {
-            throw new RuntimeException(throwable);
-          }
-        },
-        uiExecutor);
+    lookedUpNumbers.clear();
   }
 
   private CoalescedRow applyPhoneLookupInfoToRow(
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calltrace;
+
+import android.os.SystemClock;
+import android.support.annotation.AnyThread;
+import android.support.annotation.Nullable;
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Trace of the stages a call goes through while it is set up, as a tree of timed spans. Spans may
+ * be started and ended on any thread, and end after their parent does for stages that complete
+ * asynchronously.
+ */
+@AnyThread
+public final class CallTrace {
+
+  /** Receives the trace once it is finished. */
+  public interface Recorder {
+    void record(CallTrace trace);
+  }
+
+  private static final long NOT_ENDED = -1;
+
+  @Nullable private final Recorder recorder;
+  private final Span root;
+  private boolean isFinished;
+
+  private CallTrace(String name, @Nullable Recorder recorder) {
+    this.recorder = recorder;
+    this.root = new Span(name, SystemClock.elapsedRealtimeNanos());
+  }
+
+  /** Creates a trace which is passed to {@code recorder} when finished. */
+  public static CallTrace create(String name, Recorder recorder) {
+    return new CallTrace(name, recorder);
+  }
+
+  /** Creates a trace which isn't recorded anywhere. */
+  public static CallTrace createUnrecorded(String name) {
+    return new CallTrace(name, null);
+  }
+
+  public Span getRoot() {
+    return root;
+  }
+
+  public synchronized boolean isFinished() {
+    return isFinished;
+  }
+
+  /**
+   * Ends the root span and records the trace. Spans still running at this point are not ended and
+   * left out of aggregates. Does nothing if the trace is already finished or abandoned.
+   */
+  public void finish() {
+    synchronized (this) {
+      if (isFinished) {
+        return;
+      }
+      isFinished = true;
+      root.endInternal(SystemClock.elapsedRealtimeNanos());
+    }
+    if (recorder != null) {
+      recorder.record(this);
+    }
+  }
+
+  /**
+   * Renames the root span and finishes the trace, for setups which ended in a different UI than the
+   * one the trace was started for, so they are aggregated separately.
+   */
+  public void finishAs(String rootName) {
+    synchronized (this) {
+      if (isFinished) {
+        return;
+      }
+      root.name = rootName;
+    }
+    finish();
+  }
+
+  /** Finishes the trace without recording it, for calls which never get a UI. */
+  public synchronized void abandon() {
+    isFinished = true;
+  }
+
+  @Override
+  public synchronized String toString() {
+    StringBuilder builder = new StringBuilder();
+    root.appendTo(builder, root.startNanos, 0);
+    return builder.toString();
+  }
+
+  /** A timed stage of the call setup. */
+  public final class Span {
+    private String name;
+    private final long startNanos;
+    private long endNanos = NOT_ENDED;
+    private final List<Span> children = new ArrayList<>();
+
+    private Span(String name, long startNanos) {
+      this.name = name;
+      this.startNanos = startNanos;
+    }
+
+    public String getName() {
+      synchronized (CallTrace.this) {
+        return name;
+      }
+    }
+
+    public long getStartNanos() {
+      return startNanos;
+    }
+
+    /** Returns when the span ended, or -1 if it hasn't. */
+    public long getEndNanos() {
+      synchronized (CallTrace.this) {
+        return endNanos;
+      }
+    }
+
+    public ImmutableList<Span> getChildren() {
+      synchronized (CallTrace.this) {
+        return ImmutableList.copyOf(children);
+      }
+    }
+
+    /** Starts a stage nested in this one. */
+    public Span startChild(String name) {
+      return addChild(name, SystemClock.elapsedRealtimeNanos(), NOT_ENDED);
+    }
+
+    /**
+     * Adds a child which started together with this span and ends now, to record when a milestone
+     * was reached.
+     */
+    public Span markChild(String name) {
+      return addChild(name, startNanos, SystemClock.elapsedRealtimeNanos());
+    }
+
+    /** Adds a child for a stage timed elsewhere, with {@link SystemClock#elapsedRealtimeNanos}. */
+    public Span addChild(String name, long startNanos, long endNanos) {
+      Span child = new Span(name, startNanos);
+      synchronized (CallTrace.this) {
+        child.endNanos = endNanos;
+        children.add(child);
+      }
+      return child;
+    }
+
+    /** Ends the span, unless it already ended. */
+    public void end() {
+      synchronized (CallTrace.this) {
+        endInternal(SystemClock.elapsedRealtimeNanos());
+      }
+    }
+
+    private void endInternal(long nowNanos) {
+      if (endNanos == NOT_ENDED) {
+        endNanos = nowNanos;
+      }
+    }
+
+    private void appendTo(StringBuilder builder, long traceStartNanos, int depth) {
+      for (int i = 0; i < depth; i++) {
+        builder.append("  ");
+      }
+      builder.append(
+          String.format(
+              Locale.US,
+              "%s: +%.1f ms, %s\n",
+              name,
+              (startNanos - traceStartNanos) / 1e6,
+              endNanos == NOT_ENDED
+                  ? "not ended"
+                  : String.format(Locale.US, "%.1f ms", (endNanos - startNanos) / 1e6)));
+      for (Span child : children) {
+        child.appendTo(builder, traceStartNanos, depth + 1);
+      }
+    }
+  }
+}
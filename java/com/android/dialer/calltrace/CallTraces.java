@@ -0,0 +1,39 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calltrace;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/** Keeps the most recent call setup traces of the process, for latency analysis. */
+public interface CallTraces {
+
+  /** Starts a trace, which is kept once {@link CallTrace#finish()} is called. */
+  CallTrace startTrace(String name);
+
+  /** Returns the finished traces kept, oldest first. */
+  ImmutableList<CallTrace> getFinishedTraces();
+
+  /**
+   * Returns the latency of each span over the finished traces kept, by the names of the span and of
+   * its ancestors joined with "/".
+   */
+  ImmutableMap<String, SpanStats> getSpanStats();
+
+  /** Drops the finished traces kept. */
+  void clear();
+}
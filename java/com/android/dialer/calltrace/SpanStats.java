@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calltrace;
+
+import com.google.auto.value.AutoValue;
+
+/** Latency percentiles of a span over several traces. */
+@AutoValue
+public abstract class SpanStats {
+
+  /** Number of traces in which the span ended. */
+  public abstract int count();
+
+  public abstract long p50Nanos();
+
+  public abstract long p95Nanos();
+
+  public abstract long p99Nanos();
+
+  public static SpanStats create(int count, long p50Nanos, long p95Nanos, long p99Nanos) {
+    return new AutoValue_SpanStats(count, p50Nanos, p95Nanos, p99Nanos);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.calltrace.impl;
+
+import com.android.dialer.calltrace.CallTrace;
+import com.android.dialer.calltrace.CallTrace.Span;
+import com.android.dialer.calltrace.CallTraces;
+import com.android.dialer.calltrace.SpanStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import javax.inject.Inject;
+
+/** Implementation of {@link CallTraces} keeping the traces in a ring buffer. */
+public class CallTracesImpl implements CallTraces, CallTrace.Recorder {
+
+  /** Number of finished traces kept. */
+  private static final int CAPACITY = 64;
+
+  /** Guarded by {@code this}. */
+  private final ArrayDeque<CallTrace> finishedTraces = new ArrayDeque<>(CAPACITY);
+
+  @Inject
+  CallTracesImpl() {}
+
+  @Override
+  public CallTrace startTrace(String name) {
+    return CallTrace.create(name, this);
+  }
+
+  @Override
+  public synchronized void record(CallTrace trace) {
+    if (finishedTraces.size() == CAPACITY) {
+      finishedTraces.removeFirst();
+    }
+    finishedTraces.addLast(trace);
+  }
+
+  @Override
+  public synchronized ImmutableList<CallTrace> getFinishedTraces() {
+    return ImmutableList.copyOf(finishedTraces);
+  }
+
+  @Override
+  public ImmutableMap<String, SpanStats> getSpanStats() {
+    Map<String, List<Long>> durationsByPath = new TreeMap<>();
+    for (CallTrace trace : getFinishedTraces()) {
+      addDurations(trace.getRoot(), "", durationsByPath);
+    }
+    ImmutableMap.Builder<String, SpanStats> stats = ImmutableMap.builder();
+    for (Map.Entry<String, List<Long>> entry : durationsByPath.entrySet()) {
+      List<Long> durations = entry.getValue();
+      Collections.sort(durations);
+      stats.put(
+          entry.getKey(),
+          SpanStats.create(
+              durations.size(),
+              percentile(durations, 50),
+              percentile(durations, 95),
+              percentile(durations, 99)));
+    }
+    return stats.build();
+  }
+
+  @Override
+  public synchronized void clear() {
+    finishedTraces.clear();
+  }
+
+  private static void addDurations(
+      Span span, String parentPath, Map<String, List<Long>> durationsByPath) {
+    String path = parentPath.isEmpty() ? span.getName() : parentPath + "/" + span.getName();
+    long endNanos = span.getEndNanos();
+    if (endNanos >= 0) {
+      List<Long> durations = durationsByPath.get(path);
+      if (durations == null) {
+        durations = new ArrayList<>();
+        durationsByPath.put(path, durations);
+      }
+      durations.add(endNanos - span.getStartNanos());
+    }
+    for (Span child : span.getChildren()) {
+      addDurations(child, path, durationsByPath);
+    }
+  }
+
+  /** Returns the nearest-rank percentile of the sorted, non-empty {@code values}. */
+  private static long percentile(List<Long> values, int percentile) {
+    int rank = (int) Math.ceil(percentile / 100.0 * values.size());
+    return values.get(Math.max(rank, 1) - 1);
+  }
+}
@@ -19,6 +19,7 @@ package com.android.dialer.commandline;
 import com.android.dialer.commandline.impl.ActiveCallsCommand;
 import com.android.dialer.commandline.impl.BlockingCommand;
 import com.android.dialer.commandline.impl.CallCommand;
+import com.android.dialer.commandline.impl.CallTraceCommand;
 import com.android.dialer.commandline.impl.Echo;
 import com.android.dialer.commandline.impl.Help;
 import com.android.dialer.commandline.impl.Version;
@@ -50,6 +51,7 @@ public abstract class CommandLineModule {
     private final BlockingCommand blockingCommand;
     private final CallCommand callCommand;
     private final ActiveCallsCommand activeCallsCommand;
+    private final CallTraceCommand callTraceCommand;
 
     @Inject
     AospCommandInjector(
@@ -58,13 +60,15 @@ public abstract class CommandLineModule {
         Echo echo,
         BlockingCommand blockingCommand,
         CallCommand callCommand,
-        ActiveCallsCommand activeCallsCommand) {
+        ActiveCallsCommand activeCallsCommand,
+        CallTraceCommand callTraceCommand) {
       this.help = help;
       this.version = version;
       this.echo = echo;
       this.blockingCommand = blockingCommand;
       this.callCommand = callCommand;
       this.activeCallsCommand = activeCallsCommand;
+      this.callTraceCommand = callTraceCommand;
     }
 
     public CommandSupplier.Builder inject(CommandSupplier.Builder builder) {
@@ -74,6 +78,7 @@ public abstract class CommandLineModule {
       builder.addCommand("blocking", blockingCommand);
       builder.addCommand("call", callCommand);
       builder.addCommand("activecalls", activeCallsCommand);
+      builder.addCommand("calltrace", callTraceCommand);
       return builder;
     }
   }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.commandline.impl;
+
+import android.support.annotation.NonNull;
+import com.android.dialer.calltrace.CallTrace;
+import com.android.dialer.calltrace.CallTraces;
+import com.android.dialer.calltrace.SpanStats;
+import com.android.dialer.commandline.Arguments;
+import com.android.dialer.commandline.Command;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import java.util.Locale;
+import java.util.Map;
+import javax.inject.Inject;
+
+/** Dumps the call setup traces kept by {@link CallTraces}. */
+public class CallTraceCommand implements Command {
+
+  private static final int DEFAULT_RECENT_COUNT = 5;
+
+  private final CallTraces callTraces;
+
+  @Inject
+  CallTraceCommand(CallTraces callTraces) {
+    this.callTraces = callTraces;
+  }
+
+  @NonNull
+  @Override
+  public String getShortDescription() {
+    return "dump call setup latency traces";
+  }
+
+  @NonNull
+  @Override
+  public String getUsage() {
+    return "calltrace stats|recent [count]|clear\n\n"
+        + "stats: p50/p95/p99 latency of each call setup stage, in ms\n"
+        + "recent: the most recent traces, "
+        + DEFAULT_RECENT_COUNT
+        + " unless count is given";
+  }
+
+  @Override
+  public ListenableFuture<String> run(Arguments args) throws IllegalCommandLineArgumentException {
+    if (args.getPositionals().isEmpty()) {
+      return Futures.immediateFuture(getUsage());
+    }
+
+    String command = args.getPositionals().get(0);
+
+    switch (command) {
+      case "stats":
+        return Futures.immediateFuture(dumpStats());
+      case "recent":
+        return Futures.immediateFuture(dumpRecent(getCount(args)));
+      case "clear":
+        callTraces.clear();
+        return Futures.immediateFuture("cleared");
+      default:
+        throw new IllegalCommandLineArgumentException("unknown command " + command);
+    }
+  }
+
+  private String dumpStats() {
+    StringBuilder builder = new StringBuilder("span: count, p50, p95, p99\n");
+    for (Map.Entry<String, SpanStats> entry : callTraces.getSpanStats().entrySet()) {
+      SpanStats stats = entry.getValue();
+      builder.append(
+          String.format(
+              Locale.US,
+              "%s: %d, %.1f, %.1f, %.1f\n",
+              entry.getKey(),
+              stats.count(),
+              stats.p50Nanos() / 1e6,
+              stats.p95Nanos() / 1e6,
+              stats.p99Nanos() / 1e6));
+    }
+    return builder.toString();
+  }
+
+  private String dumpRecent(int count) {
+    ImmutableList<CallTrace> traces = callTraces.getFinishedTraces();
+    StringBuilder builder = new StringBuilder();
+    for (int i = Math.max(0, traces.size() - count); i < traces.size(); i++) {
+      builder.append(traces.get(i)).append('\n');
+    }
+    return builder.length() == 0 ? "no traces" : builder.toString();
+  }
+
+  private static int getCount(Arguments args) throws IllegalCommandLineArgumentException {
+    if (args.getPositionals().size() < 2) {
+      return DEFAULT_RECENT_COUNT;
+    }
+    try {
+      return Integer.parseInt(args.getPositionals().get(1));
+    } catch (NumberFormatException e) {
+      throw new IllegalCommandLineArgumentException("count must be a number");
+    }
+  }
+}
@@ -38,6 +38,7 @@ import android.os.Handler;
 import android.os.Handler.Callback;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.Process;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Contacts.Photo;
@@ -60,23 +61,35 @@ import com.android.dialer.util.UriUtils;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String LOADER_THREAD_NAME = "ContactPhotoLoader";
 
+  private static final String DECODER_THREAD_NAME = "ContactPhotoDecoder";
+
+  /** Number of threads which decode photos and load photos by URI. */
+  private static final int DECODER_THREAD_COUNT =
+      Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+  /** How long an idle decoder thread is kept alive. */
+  private static final long DECODER_KEEP_ALIVE_SECONDS = 5;
+
   private static final int FADE_TRANSITION_DURATION = 200;
 
   /**
@@ -89,6 +102,8 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
   private static final String[] EMPTY_STRING_ARRAY = new String[0];
 
+  private static final int URI_BUFFER_SIZE = 1024 * 16;
+
   private static final String[] COLUMNS = new String[] {Photo._ID, Photo.PHOTO};
 
   /**
@@ -96,32 +111,35 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
    * cache.
    */
   private static final BitmapHolder BITMAP_UNAVAILABLE;
-  /** Cache size for {@link #bitmapHolderCache} for devices with "large" RAM. */
+  /** Minimum cache size for {@link #bitmapHolderCache} for devices with "large" RAM. */
   private static final int HOLDER_CACHE_SIZE = 2000000;
-  /** Cache size for {@link #bitmapCache} for devices with "large" RAM. */
+  /** Minimum cache size for {@link #sizedBitmapCache} for devices with "large" RAM. */
   private static final int BITMAP_CACHE_SIZE = 36864 * 48; // 1728K
+  /** Fraction of the app's memory class used by {@link #bitmapHolderCache}, if larger. */
+  private static final int HOLDER_CACHE_MEMORY_CLASS_DIVISOR = 64;
+  /** Fraction of the app's memory class used by {@link #sizedBitmapCache}, if larger. */
+  private static final int BITMAP_CACHE_MEMORY_CLASS_DIVISOR = 48;
   /** Height/width of a thumbnail image */
   private static int thumbnailSize;
 
   static {
     BITMAP_UNAVAILABLE = new BitmapHolder(new byte[0], 0);
-    BITMAP_UNAVAILABLE.bitmapRef = new SoftReference<Bitmap>(null);
   }
 
   private final Context context;
   /**
    * An LRU cache for bitmap holders. The cache contains bytes for photos just as they come from the
-   * database. Each holder has a soft reference to the actual bitmap.
+   * database.
    */
   private final LruCache<Object, BitmapHolder> bitmapHolderCache;
   /** Cache size threshold at which bitmaps will not be preloaded. */
   private final int bitmapHolderCacheRedZoneBytes;
   /**
-   * Level 2 LRU cache for bitmaps. This is a smaller cache that holds the most recently used
-   * bitmaps to save time on decoding them from bytes (the bytes are stored in {@link
-   * #bitmapHolderCache}.
+   * Level 2 LRU cache for bitmaps, decoded at the size they are displayed at. This is a smaller
+   * cache that holds the most recently used bitmaps to save time on decoding them from bytes (the
+   * bytes are stored in {@link #bitmapHolderCache}.
    */
-  private final LruCache<Object, Bitmap> bitmapCache;
+  private final SizedBitmapCache sizedBitmapCache;
   /**
    * A map from ImageView to the corresponding photo ID or uri, encapsulated in a request. The
    * request may swapped out before the photo loading request is started.
@@ -130,6 +148,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       new ConcurrentHashMap<ImageView, Request>();
   /** Handler for messages sent to the UI thread. */
   private final Handler mainThreadHandler = new Handler(this);
+  /**
+   * Decodes photos and loads photos by URI, taking {@link DecodeTask DecodeTasks} from a shared
+   * priority queue. The {@link LoaderThread} only loads photo bytes from the database.
+   */
+  private final ThreadPoolExecutor decoderExecutor;
+  /** Keys of photos which are queued or being processed by {@link #decoderExecutor}. */
+  private final Set<Object> inFlightKeys =
+      Collections.newSetFromMap(new ConcurrentHashMap<Object, Boolean>());
+  /** Orders {@link DecodeTask DecodeTasks} of the same priority. */
+  private final AtomicLong decodeTaskSequence = new AtomicLong();
   /** For debug: How many times we had to reload cached photo for a stale entry */
   private final AtomicInteger staleCacheOverwrite = new AtomicInteger();
   /** For debug: How many times we had to reload cached photo for a fresh entry. Should be 0. */
@@ -153,23 +181,22 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
 
     final float cacheSizeAdjustment = (am.isLowRamDevice()) ? 0.5f : 1.0f;
 
-    final int bitmapCacheSize = (int) (cacheSizeAdjustment * BITMAP_CACHE_SIZE);
-    bitmapCache =
-        new LruCache<Object, Bitmap>(bitmapCacheSize) {
-          @Override
-          protected int sizeOf(Object key, Bitmap value) {
-            return value.getByteCount();
-          }
+    final int memoryClassBytes = am.getMemoryClass() * 1024 * 1024;
 
-          @Override
-          protected void entryRemoved(
-              boolean evicted, Object key, Bitmap oldValue, Bitmap newValue) {
-            if (DEBUG) {
-              dumpStats();
-            }
-          }
-        };
-    final int holderCacheSize = (int) (cacheSizeAdjustment * HOLDER_CACHE_SIZE);
+    thumbnailSize =
+        context.getResources().getDimensionPixelSize(R.dimen.contact_browser_list_item_photo_size);
+
+    final int bitmapCacheSize =
+        (int)
+            (cacheSizeAdjustment
+                * Math.max(
+                    BITMAP_CACHE_SIZE, memoryClassBytes / BITMAP_CACHE_MEMORY_CLASS_DIVISOR));
+    sizedBitmapCache = new SizedBitmapCache(bitmapCacheSize, thumbnailSize);
+    final int holderCacheSize =
+        (int)
+            (cacheSizeAdjustment
+                * Math.max(
+                    HOLDER_CACHE_SIZE, memoryClassBytes / HOLDER_CACHE_MEMORY_CLASS_DIVISOR));
     bitmapHolderCache =
         new LruCache<Object, BitmapHolder>(holderCacheSize) {
           @Override
@@ -191,11 +218,24 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (DEBUG) {
       LogUtil.d(
           "ContactPhotoManagerImpl.ContactPhotoManagerImpl",
-          "Cache size: " + btk(bitmapHolderCache.maxSize()) + " + " + btk(bitmapCache.maxSize()));
-    }
-
-    thumbnailSize =
-        context.getResources().getDimensionPixelSize(R.dimen.contact_browser_list_item_photo_size);
+          "Cache size: " + btk(bitmapHolderCache.maxSize()) + " + " + btk(bitmapCacheSize));
+    }
+
+    decoderExecutor =
+        new ThreadPoolExecutor(
+            DECODER_THREAD_COUNT,
+            DECODER_THREAD_COUNT,
+            DECODER_KEEP_ALIVE_SECONDS,
+            TimeUnit.SECONDS,
+            new PriorityBlockingQueue<Runnable>(),
+            runnable ->
+                new Thread(
+                    () -> {
+                      Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                      runnable.run();
+                    },
+                    DECODER_THREAD_NAME));
+    decoderExecutor.allowCoreThreadTimeOut(true);
 
     // Get a user agent string to use for URI photo requests.
     userAgent = Constants.get().getUserAgent(context);
@@ -221,31 +261,29 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   }
 
   /**
-   * If necessary, decodes bytes stored in the holder to Bitmap. As long as the bitmap is held
-   * either by {@link #bitmapCache} or by a soft reference in the holder, it will not be necessary
-   * to decode the bitmap.
+   * If necessary, decodes bytes stored in the holder to a Bitmap of the size bucket for {@code
+   * requestedExtent}. As long as the bitmap is held by {@link #sizedBitmapCache}, it will not be
+   * necessary to decode the bitmap.
+   *
+   * <p>Callers must synchronize on the holder, since decoder threads may inflate it concurrently.
    */
-  private static void inflateBitmap(BitmapHolder holder, int requestedExtent) {
-    final int sampleSize =
-        BitmapUtil.findOptimalSampleSize(holder.originalSmallerExtent, requestedExtent);
+  private void inflateBitmap(Object key, BitmapHolder holder, int requestedExtent) {
     byte[] bytes = holder.bytes;
     if (bytes == null || bytes.length == 0) {
       return;
     }
-
-    if (sampleSize == holder.decodedSampleSize) {
-      // Check the soft reference.  If will be retained if the bitmap is also
-      // in the LRU cache, so we don't need to check the LRU cache explicitly.
-      if (holder.bitmapRef != null) {
-        holder.bitmap = holder.bitmapRef.get();
-        if (holder.bitmap != null) {
-          return;
-        }
-      }
+    if (sizedBitmapCache.contains(key, requestedExtent)) {
+      return;
     }
+    final int sampleSize =
+        BitmapUtil.findOptimalSampleSize(
+            holder.originalSmallerExtent, sizedBitmapCache.getBucketExtent(requestedExtent));
 
     try {
-      Bitmap bitmap = BitmapUtil.decodeBitmapFromBytes(bytes, sampleSize);
+      Bitmap bitmap = sizedBitmapCache.decode(bytes, sampleSize);
+      if (bitmap == null) {
+        return;
+      }
 
       // TODO: As a temporary workaround while framework support is being added to
       // clip non-square bitmaps into a perfect circle, manually crop the bitmap into
@@ -259,7 +297,11 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       // sample size.
       if (height != width && Math.min(height, width) <= thumbnailSize * 2) {
         final int dimension = Math.min(height, width);
-        bitmap = ThumbnailUtils.extractThumbnail(bitmap, dimension, dimension);
+        final Bitmap decoded = bitmap;
+        bitmap = ThumbnailUtils.extractThumbnail(decoded, dimension, dimension);
+        if (bitmap != decoded) {
+          sizedBitmapCache.release(decoded);
+        }
       }
       // make bitmap mutable and draw size onto it
       if (DEBUG_SIZES) {
@@ -277,9 +319,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         canvas.drawText(bitmap.getWidth() + "/" + sampleSize, 0, 15, paint);
       }
 
-      holder.decodedSampleSize = sampleSize;
-      holder.bitmap = bitmap;
-      holder.bitmapRef = new SoftReference<Bitmap>(bitmap);
+      sizedBitmapCache.put(key, requestedExtent, bitmap);
       if (DEBUG) {
         LogUtil.d(
             "ContactPhotoManagerImpl.inflateBitmap",
@@ -305,35 +345,20 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     {
       int numHolders = 0;
       int rawBytes = 0;
-      int bitmapBytes = 0;
-      int numBitmaps = 0;
       for (BitmapHolder h : bitmapHolderCache.snapshot().values()) {
         numHolders++;
         if (h.bytes != null) {
           rawBytes += h.bytes.length;
         }
-        Bitmap b = h.bitmapRef != null ? h.bitmapRef.get() : null;
-        if (b != null) {
-          numBitmaps++;
-          bitmapBytes += b.getByteCount();
-        }
       }
       LogUtil.d(
           "ContactPhotoManagerImpl.dumpStats",
           "L1: "
               + btk(rawBytes)
-              + " + "
-              + btk(bitmapBytes)
-              + " = "
-              + btk(rawBytes + bitmapBytes)
               + ", "
               + numHolders
-              + " holders, "
-              + numBitmaps
-              + " bitmaps, avg: "
-              + btk(safeDiv(rawBytes, numHolders))
-              + ","
-              + btk(safeDiv(bitmapBytes, numBitmaps)));
+              + " holders, avg: "
+              + btk(safeDiv(rawBytes, numHolders)));
       LogUtil.d(
           "ContactPhotoManagerImpl.dumpStats",
           "L1 Stats: "
@@ -344,24 +369,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
               + staleCacheOverwrite.get());
     }
 
-    {
-      int numBitmaps = 0;
-      int bitmapBytes = 0;
-      for (Bitmap b : bitmapCache.snapshot().values()) {
-        numBitmaps++;
-        bitmapBytes += b.getByteCount();
-      }
-      LogUtil.d(
-          "ContactPhotoManagerImpl.dumpStats",
-          "L2: "
-              + btk(bitmapBytes)
-              + ", "
-              + numBitmaps
-              + " bitmaps"
-              + ", avg: "
-              + btk(safeDiv(bitmapBytes, numBitmaps)));
-      // We don't get from L2 cache, so L2 stats is meaningless.
-    }
+    LogUtil.d("ContactPhotoManagerImpl.dumpStats", "L2: " + sizedBitmapCache.getStats());
   }
 
   @Override
@@ -372,7 +380,14 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
       // Clear the caches.  Note all pending requests will be removed too.
       clear();
+    } else {
+      sizedBitmapCache.trimMemory(level);
     }
+    LogUtil.i(
+        "ContactPhotoManagerImpl.onTrimMemory",
+        "level: %d, bitmap cache: %s",
+        level,
+        sizedBitmapCache.getStats());
   }
 
   @Override
@@ -392,6 +407,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (photoId == 0) {
       // No photo is needed
       defaultProvider.applyDefaultImage(view, -1, darkTheme, defaultImageRequest);
+      sizedBitmapCache.onDisplayed(view, null);
       pendingRequests.remove(view);
     } else {
       if (DEBUG) {
@@ -414,11 +430,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     if (photoUri == null) {
       // No photo is needed
       defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme, defaultImageRequest);
+      sizedBitmapCache.onDisplayed(view, null);
       pendingRequests.remove(view);
       return;
     }
     if (isDrawableUri(photoUri)) {
       view.setImageURI(photoUri);
+      sizedBitmapCache.onDisplayed(view, null);
       pendingRequests.remove(view);
       return;
     }
@@ -453,6 +471,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     DefaultImageRequest request = getDefaultImageRequestFromUri(uri);
     request.isCircular = isCircular;
     defaultProvider.applyDefaultImage(view, requestedExtent, darkTheme, request);
+    sizedBitmapCache.onDisplayed(view, null);
   }
 
   private void loadPhotoByIdOrUri(ImageView view, Request request) {
@@ -471,6 +490,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   @Override
   public void removePhoto(ImageView view) {
     view.setImageDrawable(null);
+    sizedBitmapCache.onDisplayed(view, null);
     pendingRequests.remove(view);
   }
 
@@ -524,16 +544,19 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     BitmapHolder holder = bitmapHolderCache.get(request.getKey());
     if (holder == null) {
       // The bitmap has not been loaded ==> show default avatar
+      sizedBitmapCache.onDisplayed(view, null);
       request.applyDefaultImage(view, request.isCircular);
       return false;
     }
 
     if (holder.bytes == null) {
+      sizedBitmapCache.onDisplayed(view, null);
       request.applyDefaultImage(view, request.isCircular);
       return holder.fresh;
     }
 
-    Bitmap cachedBitmap = holder.bitmapRef == null ? null : holder.bitmapRef.get();
+    Bitmap cachedBitmap =
+        sizedBitmapCache.getForDisplay(view, request.getKey(), request.getRequestedExtent());
     if (cachedBitmap == null) {
       request.applyDefaultImage(view, request.isCircular);
       return false;
@@ -559,15 +582,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       view.setImageDrawable(getDrawableForBitmap(context.getResources(), cachedBitmap, request));
     }
 
-    // Put the bitmap in the LRU cache. But only do this for images that are small enough
-    // (we require that at least six of those can be cached at the same time)
-    if (cachedBitmap.getByteCount() < bitmapCache.maxSize() / 6) {
-      bitmapCache.put(request.getKey(), cachedBitmap);
-    }
-
-    // Soften the reference
-    holder.bitmap = null;
-
     return holder.fresh;
   }
 
@@ -591,8 +605,13 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       LogUtil.d("ContactPhotoManagerImpl.clear", "clear");
     }
     pendingRequests.clear();
+    List<Runnable> queuedTasks = new ArrayList<>();
+    decoderExecutor.getQueue().drainTo(queuedTasks);
+    for (Runnable task : queuedTasks) {
+      inFlightKeys.remove(((DecodeTask) task).key);
+    }
     bitmapHolderCache.evictAll();
-    bitmapCache.evictAll();
+    sizedBitmapCache.evictAll();
   }
 
   @Override
@@ -675,25 +694,18 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       }
     }
 
-    softenCache();
-
     if (!pendingRequests.isEmpty()) {
       requestLoading();
     }
   }
 
   /**
-   * Removes strong references to loaded bitmaps to allow them to be garbage collected if needed.
-   * Some of the bitmaps will still be retained by {@link #bitmapCache}.
+   * Stores the supplied bitmap in cache. Unless it is being preloaded, it is decoded right away if
+   * {@code decodeInline} is set, or on a decoder thread if a view still requests it otherwise.
    */
-  private void softenCache() {
-    for (BitmapHolder holder : bitmapHolderCache.snapshot().values()) {
-      holder.bitmap = null;
-    }
-  }
-
-  /** Stores the supplied bitmap in cache. */
-  private void cacheBitmap(Object key, byte[] bytes, boolean preloading, int requestedExtent) {
+  @WorkerThread
+  private void cacheBitmap(
+      Object key, byte[] bytes, boolean preloading, boolean decodeInline, int requestedExtent) {
     if (DEBUG) {
       BitmapHolder prev = bitmapHolderCache.get(key);
       if (prev != null && prev.bytes != null) {
@@ -713,10 +725,16 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     BitmapHolder holder =
         new BitmapHolder(bytes, bytes == null ? -1 : BitmapUtil.getSmallerExtentFromBytes(bytes));
 
-    // Unless this image is being preloaded, decode it right away while
-    // we are still on the background thread.
+    // Unless this image is being preloaded, decode it right away while we are still in the
+    // background.
     if (!preloading) {
-      inflateBitmap(holder, requestedExtent);
+      if (decodeInline) {
+        synchronized (holder) {
+          inflateBitmap(key, holder, requestedExtent);
+        }
+      } else {
+        decodeInBackground(key, holder, requestedExtent);
+      }
     }
 
     if (bytes != null) {
@@ -742,8 +760,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     photoIdsAsStrings.clear();
     uris.clear();
 
-    boolean jpegsDecoded = false;
-
     /*
      * Since the call is made from the loader thread, the map could be
      * changing during the iteration. That's not really a problem:
@@ -762,10 +778,9 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
       if (holder != null
           && holder.bytes != null
           && holder.fresh
-          && (holder.bitmapRef == null || holder.bitmapRef.get() == null)) {
+          && !sizedBitmapCache.contains(request.getKey(), request.getRequestedExtent())) {
         // This was previously loaded but we don't currently have the inflated Bitmap
-        inflateBitmap(holder, request.getRequestedExtent());
-        jpegsDecoded = true;
+        decodeInBackground(request.getKey(), holder, request.getRequestedExtent());
       } else {
         if (holder == null || !holder.fresh) {
           if (request.isUriRequest()) {
@@ -777,12 +792,92 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
         }
       }
     }
+  }
 
-    if (jpegsDecoded) {
+  /**
+   * Queues decoding of the bitmap in {@code holder} on a decoder thread, unless the photo is
+   * already queued. The decoding is skipped if no view requests the photo by the time it starts.
+   */
+  private void decodeInBackground(Object key, BitmapHolder holder, int requestedExtent) {
+    if (holder.bytes == null || holder.bytes.length == 0 || !inFlightKeys.add(key)) {
+      return;
+    }
+    decoderExecutor.execute(
+        new DecodeTask(
+            key,
+            DecodeTask.PRIORITY_DECODE,
+            decodeTaskSequence.incrementAndGet(),
+            () -> {
+              synchronized (holder) {
+                inflateBitmap(key, holder, requestedExtent);
+              }
+              notifyPhotosLoaded();
+            }));
+  }
+
+  /** Returns true if a view is still waiting for the photo with the given key. */
+  private boolean isRequested(Object key) {
+    for (Request request : pendingRequests.values()) {
+      if (request.getKey().equals(key)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /** Tells the UI thread that photos have been loaded, unless it has already been told. */
+  private void notifyPhotosLoaded() {
+    if (!mainThreadHandler.hasMessages(MESSAGE_PHOTOS_LOADED)) {
       mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
     }
   }
 
+  /**
+   * Work for {@link #decoderExecutor} on the photo with the given key. Tasks for photos no view is
+   * waiting for anymore, for example because the view was recycled, are dropped when they are
+   * taken from the queue.
+   *
+   * <p>Decoding photos which are already loaded takes priority over loading photos by URI, which
+   * may involve the network. Within a priority, the most recent request is served first, since
+   * when scrolling fast its view is the most likely to still be on screen.
+   */
+  private final class DecodeTask implements Runnable, Comparable<DecodeTask> {
+
+    static final int PRIORITY_DECODE = 0;
+    static final int PRIORITY_LOAD_URI = 1;
+
+    final Object key;
+    private final int priority;
+    private final long sequence;
+    private final Runnable work;
+
+    DecodeTask(Object key, int priority, long sequence, Runnable work) {
+      this.key = key;
+      this.priority = priority;
+      this.sequence = sequence;
+      this.work = work;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (isRequested(key)) {
+          work.run();
+        }
+      } finally {
+        inFlightKeys.remove(key);
+      }
+    }
+
+    @Override
+    public int compareTo(DecodeTask other) {
+      if (priority != other.priority) {
+        return priority < other.priority ? -1 : 1;
+      }
+      return Long.compare(other.sequence, sequence);
+    }
+  }
+
   /** Maintains the state of a particular photo. */
   private static class BitmapHolder {
 
@@ -790,9 +885,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     final int originalSmallerExtent;
 
     volatile boolean fresh;
-    Bitmap bitmap;
-    Reference<Bitmap> bitmapRef;
-    int decodedSampleSize;
 
     public BitmapHolder(byte[] bytes, int originalSmallerExtent) {
       this.bytes = bytes;
@@ -932,7 +1024,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
   /** The thread that performs loading of photos from the database. */
   private class LoaderThread extends HandlerThread implements Callback {
 
-    private static final int BUFFER_SIZE = 1024 * 16;
     private static final int MESSAGE_PRELOAD_PHOTOS = 0;
     private static final int MESSAGE_LOAD_PHOTOS = 1;
 
@@ -958,7 +1049,6 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     private final Set<Request> photoUris = new HashSet<>();
     private final List<Long> preloadPhotoIds = new ArrayList<>();
     private Handler loaderThreadHandler;
-    private byte[] buffer;
     private int preloadStatus = PRELOAD_STATUS_NOT_STARTED;
 
     public LoaderThread(ContentResolver resolver) {
@@ -1168,7 +1258,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           while (cursor.moveToNext()) {
             Long id = cursor.getLong(0);
             byte[] bytes = cursor.getBlob(1);
-            cacheBitmap(id, bytes, preloading, -1);
+            cacheBitmap(id, bytes, preloading, false /* decodeInline */, -1);
             photoIds.remove(id);
           }
         }
@@ -1187,10 +1277,15 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
                 resolver.query(
                     ContentUris.withAppendedId(Data.CONTENT_URI, id), COLUMNS, null, null, null);
             if (profileCursor != null && profileCursor.moveToFirst()) {
-              cacheBitmap(profileCursor.getLong(0), profileCursor.getBlob(1), preloading, -1);
+              cacheBitmap(
+                  profileCursor.getLong(0),
+                  profileCursor.getBlob(1),
+                  preloading,
+                  false /* decodeInline */,
+                  -1);
             } else {
               // Couldn't load a photo this way either.
-              cacheBitmap(id, null, preloading, -1);
+              cacheBitmap(id, null, preloading, false /* decodeInline */, -1);
             }
           } finally {
             if (profileCursor != null) {
@@ -1199,7 +1294,7 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
           }
         } else {
           // Not a profile photo and not found - mark the cache accordingly
-          cacheBitmap(id, null, preloading, -1);
+          cacheBitmap(id, null, preloading, false /* decodeInline */, -1);
         }
       }
 
@@ -1207,73 +1302,96 @@ class ContactPhotoManagerImpl extends ContactPhotoManager implements Callback {
     }
 
     /**
-     * Loads photos referenced with Uris. Those can be remote thumbnails (from directory searches),
-     * display photos etc
+     * Queues loading of photos referenced with Uris on the decoder threads, unless they are
+     * already queued.
      */
     @WorkerThread
     private void loadUriBasedPhotos() {
       for (Request uriRequest : photoUris) {
-        // Keep the original URI and use this to key into the cache.  Failure to do so will
-        // result in an image being continually reloaded into cache if the original URI
-        // has a contact type encodedFragment (eg nearby places business photo URLs).
-        Uri originalUri = uriRequest.getUri();
-
-        // Strip off the "contact type" we added to the URI to ensure it was identifiable as
-        // a business photo -- there is no need to pass this on to the server.
-        Uri uri = ContactPhotoManager.removeContactType(originalUri);
-
-        if (buffer == null) {
-          buffer = new byte[BUFFER_SIZE];
+        Object key = uriRequest.getKey();
+        if (!inFlightKeys.add(key)) {
+          continue;
         }
+        decoderExecutor.execute(
+            new DecodeTask(
+                key,
+                DecodeTask.PRIORITY_LOAD_URI,
+                decodeTaskSequence.incrementAndGet(),
+                () -> loadUriBasedPhoto(uriRequest)));
+      }
+    }
+  }
+
+  /**
+   * Loads a photo referenced with a Uri. Those can be remote thumbnails (from directory searches),
+   * display photos etc
+   */
+  @WorkerThread
+  private void loadUriBasedPhoto(Request uriRequest) {
+    // Keep the original URI and use this to key into the cache.  Failure to do so will
+    // result in an image being continually reloaded into cache if the original URI
+    // has a contact type encodedFragment (eg nearby places business photo URLs).
+    Uri originalUri = uriRequest.getUri();
+
+    // Strip off the "contact type" we added to the URI to ensure it was identifiable as
+    // a business photo -- there is no need to pass this on to the server.
+    Uri uri = ContactPhotoManager.removeContactType(originalUri);
+
+    byte[] buffer = new byte[URI_BUFFER_SIZE];
+    try {
+      if (DEBUG) {
+        LogUtil.d("ContactPhotoManagerImpl.loadUriBasedPhoto", "loading " + uri);
+      }
+      final String scheme = uri.getScheme();
+      InputStream is = null;
+      if (scheme.equals("http") || scheme.equals("https")) {
+        TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
         try {
-          if (DEBUG) {
-            LogUtil.d("ContactPhotoManagerImpl.loadUriBasedPhotos", "loading " + uri);
+          final HttpURLConnection connection =
+              (HttpURLConnection) new URL(uri.toString()).openConnection();
+
+          // Include the user agent if it is specified.
+          if (!TextUtils.isEmpty(userAgent)) {
+            connection.setRequestProperty("User-Agent", userAgent);
           }
-          final String scheme = uri.getScheme();
-          InputStream is = null;
-          if (scheme.equals("http") || scheme.equals("https")) {
-            TrafficStats.setThreadStatsTag(TrafficStatsTags.CONTACT_PHOTO_DOWNLOAD_TAG);
-            try {
-              final HttpURLConnection connection =
-                  (HttpURLConnection) new URL(uri.toString()).openConnection();
-
-              // Include the user agent if it is specified.
-              if (!TextUtils.isEmpty(userAgent)) {
-                connection.setRequestProperty("User-Agent", userAgent);
-              }
-              try {
-                is = connection.getInputStream();
-              } catch (IOException e) {
-                connection.disconnect();
-                is = null;
-              }
-            } finally {
-              TrafficStats.clearThreadStatsTag();
-            }
-          } else {
-            is = resolver.openInputStream(uri);
+          try {
+            is = connection.getInputStream();
+          } catch (IOException e) {
+            connection.disconnect();
+            is = null;
           }
-          if (is != null) {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            try {
-              int size;
-              while ((size = is.read(buffer)) != -1) {
-                baos.write(buffer, 0, size);
-              }
-            } finally {
-              is.close();
-            }
-            cacheBitmap(originalUri, baos.toByteArray(), false, uriRequest.getRequestedExtent());
-            mainThreadHandler.sendEmptyMessage(MESSAGE_PHOTOS_LOADED);
-          } else {
-            LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhotos", "cannot load photo " + uri);
-            cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+        } finally {
+          TrafficStats.clearThreadStatsTag();
+        }
+      } else {
+        is = context.getContentResolver().openInputStream(uri);
+      }
+      if (is != null) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try {
+          int size;
+          while ((size = is.read(buffer)) != -1) {
+            baos.write(buffer, 0, size);
           }
-        } catch (final Exception | OutOfMemoryError ex) {
-          LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhotos", "cannot load photo " + uri, ex);
-          cacheBitmap(originalUri, null, false, uriRequest.getRequestedExtent());
+        } finally {
+          is.close();
         }
+        cacheBitmap(
+            originalUri,
+            baos.toByteArray(),
+            false,
+            true /* decodeInline */,
+            uriRequest.getRequestedExtent());
+        notifyPhotosLoaded();
+      } else {
+        LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhoto", "cannot load photo " + uri);
+        cacheBitmap(
+            originalUri, null, false, true /* decodeInline */, uriRequest.getRequestedExtent());
       }
+    } catch (final Exception | OutOfMemoryError ex) {
+      LogUtil.v("ContactPhotoManagerImpl.loadUriBasedPhoto", "cannot load photo " + uri, ex);
+      cacheBitmap(
+          originalUri, null, false, true /* decodeInline */, uriRequest.getRequestedExtent());
     }
   }
 }
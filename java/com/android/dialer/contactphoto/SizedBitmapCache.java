@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.contactphoto;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.annotation.Nullable;
+import android.support.annotation.UiThread;
+import android.support.annotation.WorkerThread;
+import android.util.LruCache;
+import android.widget.ImageView;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of decoded contact photos, keyed by photo and by the size bucket they were decoded for, so
+ * a photo shown at different sizes is decoded straight to each of them.
+ *
+ * <p>Bitmaps evicted from the cache which no view displays are kept in a pool and decoded into
+ * again through {@link BitmapFactory.Options#inBitmap}. To know which bitmaps are displayed,
+ * callers must report every image they set on a view through {@link #getForDisplay} and {@link
+ * #onDisplayed}.
+ */
+final class SizedBitmapCache {
+
+  /** Fraction of the cache size which the pool may hold. */
+  private static final int POOL_SIZE_DIVISOR = 4;
+
+  private final int thumbnailSize;
+  private final LruCache<Key, Bitmap> cache;
+  private final int maxPoolBytes;
+
+  /** Bitmaps which may be decoded into. Guarded by {@code this}. */
+  private final List<Bitmap> pool = new ArrayList<>();
+
+  private int poolBytes;
+
+  /** The bitmap displayed by each view, or null. Guarded by {@code this}. */
+  private final Map<ImageView, Bitmap> displayedBitmaps = new WeakHashMap<>();
+
+  private final AtomicInteger hits = new AtomicInteger();
+  private final AtomicInteger misses = new AtomicInteger();
+  private final AtomicInteger poolHits = new AtomicInteger();
+  private final AtomicInteger poolMisses = new AtomicInteger();
+
+  SizedBitmapCache(int maxSizeBytes, int thumbnailSize) {
+    this.thumbnailSize = thumbnailSize;
+    this.maxPoolBytes = maxSizeBytes / POOL_SIZE_DIVISOR;
+    cache =
+        new LruCache<Key, Bitmap>(maxSizeBytes) {
+          @Override
+          protected int sizeOf(Key key, Bitmap value) {
+            return value.getByteCount();
+          }
+
+          @Override
+          protected void entryRemoved(
+              boolean evicted, Key key, Bitmap oldValue, @Nullable Bitmap newValue) {
+            if (oldValue != newValue) {
+              release(oldValue);
+            }
+          }
+        };
+  }
+
+  /**
+   * Returns the extent a photo requested at {@code requestedExtent} is decoded for. Requests
+   * without an extent are for thumbnails.
+   */
+  int getBucketExtent(int requestedExtent) {
+    if (requestedExtent < 1) {
+      return thumbnailSize;
+    }
+    int bucket = Integer.highestOneBit(requestedExtent);
+    if (bucket < requestedExtent) {
+      bucket <<= 1;
+    }
+    return Math.max(bucket, thumbnailSize);
+  }
+
+  boolean contains(Object photoKey, int requestedExtent) {
+    return cache.get(new Key(photoKey, getBucketExtent(requestedExtent))) != null;
+  }
+
+  /**
+   * Returns the cached bitmap for the photo at the requested size, and records it as displayed by
+   * {@code view}. Returns null, and records that {@code view} displays no bitmap, if it isn't
+   * cached.
+   */
+  @UiThread
+  @Nullable
+  synchronized Bitmap getForDisplay(ImageView view, Object photoKey, int requestedExtent) {
+    Bitmap bitmap = cache.get(new Key(photoKey, getBucketExtent(requestedExtent)));
+    (bitmap != null ? hits : misses).incrementAndGet();
+    onDisplayed(view, bitmap);
+    return bitmap;
+  }
+
+  /** Records that {@code view} now displays {@code bitmap}, or no cached bitmap if null. */
+  @UiThread
+  synchronized void onDisplayed(ImageView view, @Nullable Bitmap bitmap) {
+    if (bitmap == null) {
+      displayedBitmaps.remove(view);
+    } else {
+      displayedBitmaps.put(view, bitmap);
+    }
+  }
+
+  void put(Object photoKey, int requestedExtent, Bitmap bitmap) {
+    cache.put(new Key(photoKey, getBucketExtent(requestedExtent)), bitmap);
+  }
+
+  /**
+   * Decodes {@code bytes} with the given sample size, into a pooled bitmap if one is large enough.
+   */
+  @WorkerThread
+  @Nullable
+  Bitmap decode(byte[] bytes, int sampleSize) {
+    BitmapFactory.Options options = new BitmapFactory.Options();
+    options.inJustDecodeBounds = true;
+    BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+
+    options.inJustDecodeBounds = false;
+    options.inSampleSize = Math.max(sampleSize, 1);
+    options.inMutable = true;
+    int width = (options.outWidth + options.inSampleSize - 1) / options.inSampleSize;
+    int height = (options.outHeight + options.inSampleSize - 1) / options.inSampleSize;
+    options.inBitmap = takeFromPool(width * height * 4);
+    if (options.inBitmap == null) {
+      return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+    try {
+      return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    } catch (IllegalArgumentException e) {
+      // The pooled bitmap can't be decoded into, for example because of its config.
+      options.inBitmap = null;
+      return BitmapFactory.decodeByteArray(bytes, 0, bytes.length, options);
+    }
+  }
+
+  /** Offers a bitmap which is no longer cached to the pool, unless a view still displays it. */
+  synchronized void release(Bitmap bitmap) {
+    if (!bitmap.isMutable()
+        || bitmap.isRecycled()
+        || displayedBitmaps.containsValue(bitmap)
+        || pool.contains(bitmap)) {
+      return;
+    }
+    int size = bitmap.getAllocationByteCount();
+    if (size > maxPoolBytes) {
+      return;
+    }
+    while (poolBytes + size > maxPoolBytes) {
+      poolBytes -= pool.remove(0).getAllocationByteCount();
+    }
+    pool.add(bitmap);
+    poolBytes += size;
+  }
+
+  @Nullable
+  private synchronized Bitmap takeFromPool(int minByteCount) {
+    Bitmap best = null;
+    for (Bitmap bitmap : pool) {
+      int size = bitmap.getAllocationByteCount();
+      if (size >= minByteCount && (best == null || size < best.getAllocationByteCount())) {
+        best = bitmap;
+      }
+    }
+    if (best == null) {
+      poolMisses.incrementAndGet();
+      return null;
+    }
+    poolHits.incrementAndGet();
+    pool.remove(best);
+    poolBytes -= best.getAllocationByteCount();
+    return best;
+  }
+
+  /**
+   * Shrinks the cache according to {@code level}, one of the {@link ComponentCallbacks2}
+   * TRIM_MEMORY constants.
+   */
+  void trimMemory(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      cache.evictAll();
+    } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      cache.trimToSize(cache.maxSize() / 2);
+    } else if (level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      cache.trimToSize(cache.maxSize() * 3 / 4);
+    }
+    // The app is under some memory pressure at every level, so drop the pool too.
+    clearPool();
+  }
+
+  void evictAll() {
+    cache.evictAll();
+    clearPool();
+  }
+
+  private synchronized void clearPool() {
+    pool.clear();
+    poolBytes = 0;
+  }
+
+  /** Returns cache hit counts and memory used, for logging. */
+  synchronized String getStats() {
+    return String.format(
+        "hits: %d, misses: %d, bytes: %d/%d, entries: %d, pool hits: %d, pool misses: %d,"
+            + " pool bytes: %d/%d",
+        hits.get(),
+        misses.get(),
+        cache.size(),
+        cache.maxSize(),
+        cache.snapshot().size(),
+        poolHits.get(),
+        poolMisses.get(),
+        poolBytes,
+        maxPoolBytes);
+  }
+
+  /** A photo, and the extent of the bucket it was decoded for. */
+  private static final class Key {
+    private final Object photoKey;
+    private final int bucketExtent;
+
+    Key(Object photoKey, int bucketExtent) {
+      this.photoKey = photoKey;
+      this.bucketExtent = bucketExtent;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (this == obj) {
+        return true;
+      }
+      if (!(obj instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) obj;
+      return bucketExtent == that.bucketExtent && photoKey.equals(that.photoKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(photoKey, bucketExtent);
+    }
+  }
+}
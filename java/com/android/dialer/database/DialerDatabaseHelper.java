@@ -32,9 +32,11 @@ import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.provider.ContactsContract.Contacts;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.Directory;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
+import android.util.LongSparseArray;
 import com.android.contacts.common.util.StopWatch;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.DefaultFutureCallback;
@@ -46,10 +48,13 @@ import com.android.dialer.contacts.resources.R;
 import com.android.dialer.database.FilteredNumberContract.FilteredNumberColumns;
 import com.android.dialer.smartdial.util.SmartDialNameMatcher;
 import com.android.dialer.smartdial.util.SmartDialPrefix;
+import com.android.dialer.smartdial.util.SmartDialTrie;
 import com.android.dialer.util.PermissionsUtil;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Objects;
 import java.util.Set;
@@ -67,7 +72,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *   0-98   KitKat
    * </pre>
    */
-  public static final int DATABASE_VERSION = 10;
+  public static final int DATABASE_VERSION = 11;
 
   public static final String DATABASE_NAME = "dialer.db";
 
@@ -86,14 +91,34 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   private static final String DATABASE_VERSION_PROPERTY = "database_version";
   private static final int MAX_ENTRIES = 20;
 
+  /**
+   * How long an in-memory smart dial snapshot may be used. Ranks depend on the time since a number
+   * was last used, so an old snapshot is ignored in favor of the database until the next update.
+   */
+  private static final long SNAPSHOT_MAX_AGE_MILLIS = 24L * 60 * 60 * 1000;
+
+  /**
+   * Number of contacts handled per transaction while updating the smart dial database, so that
+   * the write lock is released regularly during a full rebuild.
+   */
+  private static final int UPDATE_BATCH_SIZE = 100;
+
   private final Context context;
   private final DialerFutureSerializer dialerFutureSerializer = new DialerFutureSerializer();
 
+  /** In-memory copy of the smart dial tables, rebuilt after every smart dial database update. */
+  @Nullable private volatile SmartDialSnapshot smartDialSnapshot;
+
+  /** Candidates of the last snapshot lookup, guarded by the lock of {@link #getLooseMatches}. */
+  @Nullable private SmartDialQueryState lastQueryState;
+
   private boolean isTestInstance = false;
 
   protected DialerDatabaseHelper(Context context, String databaseName, int dbVersion) {
     super(context, databaseName, null, dbVersion);
     this.context = Objects.requireNonNull(context, "Context must not be null");
+    // Lets smart dial queries read the last committed state while an update is being written.
+    setWriteAheadLoggingEnabled(true);
   }
 
   public void setIsTestInstance(boolean isTestInstance) {
@@ -111,6 +136,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   }
 
   private void setupTables(SQLiteDatabase db) {
+    smartDialSnapshot = null;
     dropTables(db);
     db.execSQL(
         "CREATE TABLE "
@@ -145,6 +171,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + SmartDialDbColumns.IS_PRIMARY
             + " INTEGER, "
             + SmartDialDbColumns.CARRIER_PRESENCE
+            + " INTEGER NOT NULL DEFAULT 0, "
+            + SmartDialDbColumns.RANK_SCORE
             + " INTEGER NOT NULL DEFAULT 0"
             + ");");
 
@@ -268,6 +296,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       oldVersion = 10;
     }
 
+    if (oldVersion < 11) {
+      upgradeToVersion11(db);
+      oldVersion = 11;
+    }
+
     if (oldVersion != DATABASE_VERSION) {
       throw new IllegalStateException(
           "error upgrading the database to version " + DATABASE_VERSION);
@@ -280,6 +313,23 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     db.execSQL("ALTER TABLE smartdial_table ADD carrier_presence INTEGER NOT NULL DEFAULT 0");
   }
 
+  /**
+   * Adds the materialized rank score and drops the old sort index, which could not be used for the
+   * time dependent sort order. The replacement index is created by the next smart dial update.
+   */
+  public void upgradeToVersion11(SQLiteDatabase db) {
+    db.execSQL("ALTER TABLE smartdial_table ADD rank_score INTEGER NOT NULL DEFAULT 0");
+    db.execSQL("DROP INDEX IF EXISTS smartdial_sort_index");
+    db.execSQL(
+        "UPDATE "
+            + Tables.SMARTDIAL_TABLE
+            + " SET "
+            + SmartDialDbColumns.RANK_SCORE
+            + " = "
+            + SmartDialSortingOrder.RANK_SCORE,
+        new Object[] {System.currentTimeMillis()});
+  }
+
   /** Stores a key-value pair in the {@link Tables#PROPERTIES} table. */
   public void setProperty(String key, String value) {
     setProperty(getWritableDatabase(), key, value);
@@ -371,18 +421,23 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * @param db Database to operate on.
    * @param lastUpdatedTimeMillis the last time at which an update to the smart dial database was
    *     run.
+   * @param changedContactIds collects the IDs of the deleted contacts.
+   * @return the number of smartdial rows removed.
    */
-  private void removeDeletedContacts(SQLiteDatabase db, String lastUpdatedTimeMillis) {
+  private int removeDeletedContacts(
+      SQLiteDatabase db, String lastUpdatedTimeMillis, Set<Long> changedContactIds) {
     Cursor deletedContactCursor = getDeletedContactCursor(lastUpdatedTimeMillis);
 
     if (deletedContactCursor == null) {
-      return;
+      return 0;
     }
 
+    int removedRows = 0;
+    int contactsInBatch = 0;
     db.beginTransaction();
     try {
       if (!deletedContactCursor.moveToFirst()) {
-        return;
+        return 0;
       }
 
       do {
@@ -394,13 +449,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
         }
 
         long deleteContactId = deletedContactCursor.getLong(DeleteContactQuery.DELETED_CONTACT_ID);
+        changedContactIds.add(deleteContactId);
 
         Selection smartDialSelection =
             Selection.column(SmartDialDbColumns.CONTACT_ID).is("=", deleteContactId);
-        db.delete(
-            Tables.SMARTDIAL_TABLE,
-            smartDialSelection.getSelection(),
-            smartDialSelection.getSelectionArgs());
+        removedRows +=
+            db.delete(
+                Tables.SMARTDIAL_TABLE,
+                smartDialSelection.getSelection(),
+                smartDialSelection.getSelectionArgs());
 
         Selection prefixSelection =
             Selection.column(PrefixColumns.CONTACT_ID).is("=", deleteContactId);
@@ -408,6 +465,11 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             Tables.PREFIX_TABLE,
             prefixSelection.getSelection(),
             prefixSelection.getSelectionArgs());
+
+        if (++contactsInBatch == UPDATE_BATCH_SIZE) {
+          commitBatch(db);
+          contactsInBatch = 0;
+        }
       } while (deletedContactCursor.moveToNext());
 
       db.setTransactionSuccessful();
@@ -415,6 +477,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       deletedContactCursor.close();
       db.endTransaction();
     }
+    return removedRows;
   }
 
   private Cursor getDeletedContactCursor(String lastUpdateMillis) {
@@ -435,8 +498,15 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    *
    * @param db Database pointer to the dialer database.
    * @param last_update_time Time stamp of last successful update of the dialer database.
+   * @param changedContactIds collects the IDs of the removed contacts.
+   * @return the number of smartdial rows removed.
    */
-  private void removePotentiallyCorruptedContacts(SQLiteDatabase db, String last_update_time) {
+  private int removePotentiallyCorruptedContacts(
+      SQLiteDatabase db, String last_update_time, Set<Long> changedContactIds) {
+    addContactIds(
+        db,
+        SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
+        changedContactIds);
     db.delete(
         Tables.PREFIX_TABLE,
         PrefixColumns.CONTACT_ID
@@ -451,43 +521,36 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + last_update_time
             + ")",
         null);
-    db.delete(
+    return db.delete(
         Tables.SMARTDIAL_TABLE,
         SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME + " > " + last_update_time,
         null);
   }
 
-  /**
-   * Removes rows in the smartdial database that matches updated contacts.
-   *
-   * @param db Database pointer to the smartdial database
-   * @param updatedContactCursor Cursor pointing to the list of recently updated contacts.
-   */
-  @VisibleForTesting
-  void removeUpdatedContacts(SQLiteDatabase db, Cursor updatedContactCursor) {
-    db.beginTransaction();
-    try {
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        if (updatedContactCursor.isNull(UpdatedContactQuery.UPDATED_CONTACT_ID)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.removeUpdatedContacts",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
-
-        final Long contactId = updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID);
-
-        db.delete(Tables.SMARTDIAL_TABLE, SmartDialDbColumns.CONTACT_ID + "=" + contactId, null);
-        db.delete(Tables.PREFIX_TABLE, PrefixColumns.CONTACT_ID + "=" + contactId, null);
+  /** Adds the contact IDs of the smartdial rows matching {@code selection} to the given set. */
+  private static void addContactIds(SQLiteDatabase db, String selection, Set<Long> contactIds) {
+    try (Cursor cursor =
+        db.rawQuery(
+            "SELECT DISTINCT "
+                + SmartDialDbColumns.CONTACT_ID
+                + " FROM "
+                + Tables.SMARTDIAL_TABLE
+                + " WHERE "
+                + selection,
+            null)) {
+      while (cursor.moveToNext()) {
+        contactIds.add(cursor.getLong(0));
       }
-
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
     }
   }
 
+  /** Commits the current transaction and starts a new one, giving readers and writers a turn. */
+  private static void commitBatch(SQLiteDatabase db) {
+    db.setTransactionSuccessful();
+    db.endTransaction();
+    db.beginTransaction();
+  }
+
   /**
    * Inserts updated contacts as rows to the smartdial table.
    *
@@ -498,6 +561,34 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @VisibleForTesting
   protected void insertUpdatedContactsAndNumberPrefix(
       SQLiteDatabase db, Cursor updatedContactCursor, Long currentMillis) {
+    applyContactUpdates(db, null, updatedContactCursor, currentMillis, new HashSet<>());
+  }
+
+  /**
+   * Replaces the smart dial rows and prefixes of every updated contact, one contact at a time and
+   * {@link #UPDATE_BATCH_SIZE} contacts per transaction. A contact's old rows are removed in the
+   * same transaction that inserts its new rows, so readers never see it half updated.
+   *
+   * <p>Both cursors must be sorted by contact ID so they can be merged. Contacts that only appear
+   * in {@code updatedContactCursor} have had all their phone numbers removed and are just deleted.
+   *
+   * @param db Database pointer to the smartdial database.
+   * @param updatedContactCursor Cursor over the IDs of contacts updated since the last update, or
+   *     null if the database is being rebuilt and there is nothing to remove.
+   * @param updatedPhoneCursor Cursor over the phone numbers of contacts updated since the last
+   *     update, see {@link PhoneQuery}.
+   * @param currentMillis Current time to be recorded in the smartdial table as update timestamp.
+   * @param changedContactIds collects the IDs of the updated contacts.
+   * @return the number of contacts that were updated.
+   */
+  private int applyContactUpdates(
+      SQLiteDatabase db,
+      @Nullable Cursor updatedContactCursor,
+      Cursor updatedPhoneCursor,
+      long currentMillis,
+      Set<Long> changedContactIds) {
+    int contactCount = 0;
+    int contactsInBatch = 0;
     db.beginTransaction();
     try {
       final String sqlInsert =
@@ -535,7 +626,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
               + " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
       final SQLiteStatement insert = db.compileStatement(sqlInsert);
 
-      final String numberSqlInsert =
+      final String prefixSqlInsert =
           "INSERT INTO "
               + Tables.PREFIX_TABLE
               + " ("
@@ -544,63 +635,82 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
               + PrefixColumns.PREFIX
               + ") "
               + " VALUES (?, ?)";
-      final SQLiteStatement numberInsert = db.compileStatement(numberSqlInsert);
-
-      updatedContactCursor.moveToPosition(-1);
-      while (updatedContactCursor.moveToNext()) {
-        insert.clearBindings();
-
-        if (updatedContactCursor.isNull(PhoneQuery.PHONE_ID)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.insertUpdatedContactsAndNumberPrefix",
-              "_id column null. Row was deleted during iteration, skipping");
-          continue;
+      final SQLiteStatement prefixInsert = db.compileStatement(prefixSqlInsert);
+
+      final SQLiteStatement smartDialDelete =
+          db.compileStatement(
+              "DELETE FROM "
+                  + Tables.SMARTDIAL_TABLE
+                  + " WHERE "
+                  + SmartDialDbColumns.CONTACT_ID
+                  + " = ?");
+      final SQLiteStatement prefixDelete =
+          db.compileStatement(
+              "DELETE FROM "
+                  + Tables.PREFIX_TABLE
+                  + " WHERE "
+                  + PrefixColumns.CONTACT_ID
+                  + " = ?");
+
+      if (updatedContactCursor != null) {
+        updatedContactCursor.moveToFirst();
+      }
+      updatedPhoneCursor.moveToFirst();
+      while (true) {
+        final long updatedContactId =
+            nextContactId(
+                updatedContactCursor,
+                UpdatedContactQuery.UPDATED_CONTACT_ID,
+                "DialerDatabaseHelper.applyContactUpdates");
+        final long updatedPhoneContactId =
+            nextContactId(
+                updatedPhoneCursor,
+                PhoneQuery.PHONE_CONTACT_ID,
+                "DialerDatabaseHelper.applyContactUpdates");
+        if (updatedContactId == Long.MAX_VALUE && updatedPhoneContactId == Long.MAX_VALUE) {
+          break;
         }
-
-        // Handle string columns which can possibly be null first. In the case of certain
-        // null columns (due to malformed rows possibly inserted by third-party apps
-        // or sync adapters), skip the phone number row.
-        final String number = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        if (TextUtils.isEmpty(number)) {
-          continue;
-        } else {
-          insert.bindString(2, number);
+        final long contactId = Math.min(updatedContactId, updatedPhoneContactId);
+        changedContactIds.add(contactId);
+
+        if (updatedContactCursor != null) {
+          smartDialDelete.bindLong(1, contactId);
+          smartDialDelete.executeUpdateDelete();
+          prefixDelete.bindLong(1, contactId);
+          prefixDelete.executeUpdateDelete();
+          while (!updatedContactCursor.isAfterLast()
+              && updatedContactCursor.getLong(UpdatedContactQuery.UPDATED_CONTACT_ID)
+                  == contactId) {
+            updatedContactCursor.moveToNext();
+          }
         }
 
-        final String lookupKey = updatedContactCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
-        if (TextUtils.isEmpty(lookupKey)) {
-          continue;
-        } else {
-          insert.bindString(4, lookupKey);
+        String insertedDisplayName = null;
+        while (!updatedPhoneCursor.isAfterLast()
+            && updatedPhoneCursor.getLong(PhoneQuery.PHONE_CONTACT_ID) == contactId) {
+          final String displayName =
+              insertPhoneRow(insert, prefixInsert, updatedPhoneCursor, currentMillis);
+          if (displayName != null) {
+            insertedDisplayName = displayName;
+          }
+          updatedPhoneCursor.moveToNext();
         }
 
-        final String displayName = updatedContactCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
-        if (displayName == null) {
-          insert.bindString(5, context.getResources().getString(R.string.missing_name));
-        } else {
-          insert.bindString(5, displayName);
+        /** Inserts prefixes of the name, once per contact that still has a phone number. */
+        if (insertedDisplayName != null) {
+          for (String namePrefix :
+              SmartDialPrefix.generateNamePrefixes(context, insertedDisplayName)) {
+            prefixInsert.bindLong(1, contactId);
+            prefixInsert.bindString(2, namePrefix);
+            prefixInsert.executeInsert();
+            prefixInsert.clearBindings();
+          }
         }
-        insert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_ID));
-        insert.bindLong(3, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-        insert.bindLong(6, updatedContactCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
-        insert.bindLong(7, updatedContactCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
-        insert.bindLong(8, updatedContactCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
-        insert.bindLong(9, updatedContactCursor.getInt(PhoneQuery.PHONE_STARRED));
-        insert.bindLong(10, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
-        insert.bindLong(11, updatedContactCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
-        insert.bindLong(12, updatedContactCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
-        insert.bindLong(13, updatedContactCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
-        insert.bindLong(14, currentMillis);
-        insert.executeInsert();
-        final String contactPhoneNumber = updatedContactCursor.getString(PhoneQuery.PHONE_NUMBER);
-        final ArrayList<String> numberPrefixes =
-            SmartDialPrefix.parseToNumberTokens(context, contactPhoneNumber);
-
-        for (String numberPrefix : numberPrefixes) {
-          numberInsert.bindLong(1, updatedContactCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
-          numberInsert.bindString(2, numberPrefix);
-          numberInsert.executeInsert();
-          numberInsert.clearBindings();
+
+        contactCount++;
+        if (++contactsInBatch == UPDATE_BATCH_SIZE) {
+          commitBatch(db);
+          contactsInBatch = 0;
         }
       }
 
@@ -608,56 +718,88 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     } finally {
       db.endTransaction();
     }
+    return contactCount;
   }
 
   /**
-   * Inserts prefixes of contact names to the prefix table.
-   *
-   * @param db Database pointer to the smartdial database.
-   * @param nameCursor Cursor pointing to the list of distinct updated contacts.
+   * Skips rows whose contact ID is null and returns the contact ID of the current row, or {@link
+   * Long#MAX_VALUE} if {@code cursor} is null or exhausted.
    */
-  @VisibleForTesting
-  void insertNamePrefixes(SQLiteDatabase db, Cursor nameCursor) {
-    final int columnIndexName = nameCursor.getColumnIndex(SmartDialDbColumns.DISPLAY_NAME_PRIMARY);
-    final int columnIndexContactId = nameCursor.getColumnIndex(SmartDialDbColumns.CONTACT_ID);
-
-    db.beginTransaction();
-    try {
-      final String sqlInsert =
-          "INSERT INTO "
-              + Tables.PREFIX_TABLE
-              + " ("
-              + PrefixColumns.CONTACT_ID
-              + ", "
-              + PrefixColumns.PREFIX
-              + ") "
-              + " VALUES (?, ?)";
-      final SQLiteStatement insert = db.compileStatement(sqlInsert);
+  private static long nextContactId(@Nullable Cursor cursor, int columnIndex, String tag) {
+    if (cursor == null) {
+      return Long.MAX_VALUE;
+    }
+    while (!cursor.isAfterLast() && cursor.isNull(columnIndex)) {
+      LogUtil.i(tag, "contact_id column null. Row was deleted during iteration, skipping");
+      cursor.moveToNext();
+    }
+    return cursor.isAfterLast() ? Long.MAX_VALUE : cursor.getLong(columnIndex);
+  }
 
-      while (nameCursor.moveToNext()) {
-        if (nameCursor.isNull(columnIndexContactId)) {
-          LogUtil.i(
-              "DialerDatabaseHelper.insertNamePrefixes",
-              "contact_id column null. Row was deleted during iteration, skipping");
-          continue;
-        }
+  /**
+   * Inserts the phone number at the current position of {@code updatedPhoneCursor} into the
+   * smartdial table, along with the prefixes of the number.
+   *
+   * @return the display name stored for the row, or null if the row was skipped.
+   */
+  @Nullable
+  private String insertPhoneRow(
+      SQLiteStatement insert,
+      SQLiteStatement prefixInsert,
+      Cursor updatedPhoneCursor,
+      long currentMillis) {
+    insert.clearBindings();
+
+    if (updatedPhoneCursor.isNull(PhoneQuery.PHONE_ID)) {
+      LogUtil.i(
+          "DialerDatabaseHelper.insertPhoneRow",
+          "_id column null. Row was deleted during iteration, skipping");
+      return null;
+    }
 
-        /** Computes a list of prefixes of a given contact name. */
-        final ArrayList<String> namePrefixes =
-            SmartDialPrefix.generateNamePrefixes(context, nameCursor.getString(columnIndexName));
+    // Handle string columns which can possibly be null first. In the case of certain
+    // null columns (due to malformed rows possibly inserted by third-party apps
+    // or sync adapters), skip the phone number row.
+    final String number = updatedPhoneCursor.getString(PhoneQuery.PHONE_NUMBER);
+    if (TextUtils.isEmpty(number)) {
+      return null;
+    } else {
+      insert.bindString(2, number);
+    }
 
-        for (String namePrefix : namePrefixes) {
-          insert.bindLong(1, nameCursor.getLong(columnIndexContactId));
-          insert.bindString(2, namePrefix);
-          insert.executeInsert();
-          insert.clearBindings();
-        }
-      }
+    final String lookupKey = updatedPhoneCursor.getString(PhoneQuery.PHONE_LOOKUP_KEY);
+    if (TextUtils.isEmpty(lookupKey)) {
+      return null;
+    } else {
+      insert.bindString(4, lookupKey);
+    }
 
-      db.setTransactionSuccessful();
-    } finally {
-      db.endTransaction();
+    String displayName = updatedPhoneCursor.getString(PhoneQuery.PHONE_DISPLAY_NAME);
+    if (displayName == null) {
+      displayName = context.getResources().getString(R.string.missing_name);
+    }
+    insert.bindString(5, displayName);
+    insert.bindLong(1, updatedPhoneCursor.getLong(PhoneQuery.PHONE_ID));
+    insert.bindLong(3, updatedPhoneCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+    insert.bindLong(6, updatedPhoneCursor.getLong(PhoneQuery.PHONE_PHOTO_ID));
+    insert.bindLong(7, updatedPhoneCursor.getLong(PhoneQuery.PHONE_LAST_TIME_USED));
+    insert.bindLong(8, updatedPhoneCursor.getInt(PhoneQuery.PHONE_TIMES_USED));
+    insert.bindLong(9, updatedPhoneCursor.getInt(PhoneQuery.PHONE_STARRED));
+    insert.bindLong(10, updatedPhoneCursor.getInt(PhoneQuery.PHONE_IS_SUPER_PRIMARY));
+    insert.bindLong(11, updatedPhoneCursor.getInt(PhoneQuery.PHONE_IN_VISIBLE_GROUP));
+    insert.bindLong(12, updatedPhoneCursor.getInt(PhoneQuery.PHONE_IS_PRIMARY));
+    insert.bindLong(13, updatedPhoneCursor.getInt(PhoneQuery.PHONE_CARRIER_PRESENCE));
+    insert.bindLong(14, currentMillis);
+    insert.executeInsert();
+
+    final ArrayList<String> numberPrefixes = SmartDialPrefix.parseToNumberTokens(context, number);
+    for (String numberPrefix : numberPrefixes) {
+      prefixInsert.bindLong(1, updatedPhoneCursor.getLong(PhoneQuery.PHONE_CONTACT_ID));
+      prefixInsert.bindString(2, numberPrefix);
+      prefixInsert.executeInsert();
+      prefixInsert.clearBindings();
     }
+    return displayName;
   }
 
   /**
@@ -666,6 +808,10 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
    * accordingly. It also queries the deleted contact database to remove newly deleted contacts
    * since last update.
    *
+   * <p>Changes are written in small transactions and the database uses write-ahead logging, so
+   * smart dial queries are not blocked while an update runs. The time spent in each phase is
+   * logged when the update completes.
+   *
    * @param forceUpdate If set to true, update the database by reloading all contacts.
    */
   @WorkerThread
@@ -675,7 +821,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     final SQLiteDatabase db = getWritableDatabase();
 
     LogUtil.v("DialerDatabaseHelper.updateSmartDialDatabase", "starting to update database");
-    final StopWatch stopWatch = DEBUG ? StopWatch.start("Updating databases") : null;
+    final StopWatch stopWatch = StopWatch.start("Updating databases");
 
     /** Gets the last update time on the database. */
     final SharedPreferences databaseLastUpdateSharedPref =
@@ -697,29 +843,26 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /** Sets the time after querying the database as the current update time. */
     final Long currentMillis = System.currentTimeMillis();
 
-    if (DEBUG) {
-      stopWatch.lap("Queried the Contacts database");
-    }
+    /** IDs of the contacts whose rows were removed, replaced or rescored by this update. */
+    final Set<Long> changedContactIds = new HashSet<>();
 
     /** Removes contacts that have been deleted. */
-    removeDeletedContacts(db, lastUpdateMillis);
-    removePotentiallyCorruptedContacts(db, lastUpdateMillis);
-
-    if (DEBUG) {
-      stopWatch.lap("Finished deleting deleted entries");
-    }
+    final int removedRowCount =
+        removeDeletedContacts(db, lastUpdateMillis, changedContactIds)
+            + removePotentiallyCorruptedContacts(db, lastUpdateMillis, changedContactIds);
+    stopWatch.lap("Removed " + removedRowCount + " rows");
 
     /**
      * If the database did not exist before, jump through deletion as there is nothing to delete.
+     *
+     * <p>Otherwise, rows of updated contacts are replaced. Note that this has to use a separate
+     * result set from updatePhoneCursor, since it is possible for a contact to be updated (e.g.
+     * phone number deleted), but have no results show up in updatedPhoneCursor (since all of its
+     * phone numbers have been deleted).
      */
+    Cursor updatedContactCursor = null;
     if (!lastUpdateMillis.equals("0")) {
-      /**
-       * Removes contacts that have been updated. Updated contact information will be inserted
-       * later. Note that this has to use a separate result set from updatePhoneCursor, since it is
-       * possible for a contact to be updated (e.g. phone number deleted), but have no results show
-       * up in updatedPhoneCursor (since all of its phone numbers have been deleted).
-       */
-      final Cursor updatedContactCursor =
+      updatedContactCursor =
           context
               .getContentResolver()
               .query(
@@ -727,21 +870,13 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                   UpdatedContactQuery.PROJECTION,
                   UpdatedContactQuery.SELECT_UPDATED_CLAUSE,
                   new String[] {lastUpdateMillis},
-                  null);
+                  UpdatedContactQuery.SORT_ORDER);
       if (updatedContactCursor == null) {
         LogUtil.e(
             "DialerDatabaseHelper.updateSmartDialDatabase",
             "smartDial query received null for cursor");
         return;
       }
-      try {
-        removeUpdatedContacts(db, updatedContactCursor);
-      } finally {
-        updatedContactCursor.close();
-      }
-      if (DEBUG) {
-        stopWatch.lap("Finished deleting entries belonging to updated contacts");
-      }
     }
 
     /**
@@ -756,57 +891,134 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 PhoneQuery.PROJECTION,
                 PhoneQuery.SELECTION,
                 new String[] {lastUpdateMillis},
-                null);
+                PhoneQuery.SORT_ORDER);
     if (updatedPhoneCursor == null) {
       LogUtil.e(
           "DialerDatabaseHelper.updateSmartDialDatabase",
           "smartDial query received null for cursor");
+      if (updatedContactCursor != null) {
+        updatedContactCursor.close();
+      }
       return;
     }
+    stopWatch.lap("Queried the Contacts database");
 
+    final int updatedContactCount;
     try {
-      /** Inserts recently updated phone numbers to the smartdial database. */
-      insertUpdatedContactsAndNumberPrefix(db, updatedPhoneCursor, currentMillis);
-      if (DEBUG) {
-        stopWatch.lap("Finished building the smart dial table");
-      }
+      /** Replaces the rows and prefixes of recently updated contacts in small transactions. */
+      updatedContactCount =
+          applyContactUpdates(
+              db, updatedContactCursor, updatedPhoneCursor, currentMillis, changedContactIds);
     } finally {
       updatedPhoneCursor.close();
+      if (updatedContactCursor != null) {
+        updatedContactCursor.close();
+      }
     }
+    stopWatch.lap("Updated " + updatedContactCount + " contacts");
 
     /**
-     * Gets a list of distinct contacts which have been updated, and adds the name prefixes of these
-     * contacts to the prefix table.
+     * Computes the rank score of new rows, and of old rows whose recency bucket has changed since
+     * the last update. Only rows last used around the bucket boundaries as of the last update and
+     * as of now can have changed buckets, so the other rows are not recomputed.
      */
-    final Cursor nameCursor =
-        db.rawQuery(
-            "SELECT DISTINCT "
-                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
-                + ", "
-                + SmartDialDbColumns.CONTACT_ID
-                + " FROM "
+    final String recencyBucketChanged =
+        getRecencyBucketChangedSelection(Long.parseLong(lastUpdateMillis), currentMillis);
+    addContactIds(db, recencyBucketChanged, changedContactIds);
+    final SQLiteStatement updateRankScores =
+        db.compileStatement(
+            "UPDATE "
                 + Tables.SMARTDIAL_TABLE
-                + " WHERE "
-                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                + " SET "
+                + SmartDialDbColumns.RANK_SCORE
                 + " = "
-                + currentMillis,
-            new String[] {});
-    if (nameCursor != null) {
-      try {
-        if (DEBUG) {
-          stopWatch.lap("Queried the smart dial table for contact names");
-        }
-
-        /** Inserts prefixes of names into the prefix table. */
-        insertNamePrefixes(db, nameCursor);
-        if (DEBUG) {
-          stopWatch.lap("Finished building the name prefix table");
-        }
-      } finally {
-        nameCursor.close();
-      }
+                + SmartDialSortingOrder.RANK_SCORE
+                + " WHERE ("
+                + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
+                + " = ?1 OR "
+                + recencyBucketChanged
+                + ") AND "
+                + SmartDialDbColumns.RANK_SCORE
+                + " != "
+                + SmartDialSortingOrder.RANK_SCORE);
+    updateRankScores.bindLong(1, currentMillis);
+    final int rescoredRowCount = updateRankScores.executeUpdateDelete();
+    stopWatch.lap("Rescored " + rescoredRowCount + " rows");
+
+    final boolean changed = removedRowCount + updatedContactCount + rescoredRowCount > 0;
+    final SmartDialSnapshot currentSnapshot = smartDialSnapshot;
+    if (changed || currentSnapshot == null) {
+      final boolean isLargeUpdate =
+          lastUpdateMillis.equals("0") || changedContactIds.size() >= UPDATE_BATCH_SIZE;
+      updateIndicesAndSnapshot(
+          db,
+          currentMillis,
+          isLargeUpdate || updatedContactCount >= UPDATE_BATCH_SIZE,
+          isLargeUpdate ? null : currentSnapshot,
+          changedContactIds,
+          stopWatch);
+    } else {
+      /** Nothing changed, so the ranks in the current snapshot are still correct. */
+      smartDialSnapshot = currentSnapshot.withCreatedMillis(currentMillis);
     }
+    stopWatch.stopAndLog("DialerDatabaseHelper.updateSmartDialDatabase", 0);
 
+    final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
+    editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
+    editor.apply();
+
+    LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
+
+    // Notify content observers that smart dial database has been updated.
+    Intent intent = new Intent(ACTION_SMART_DIAL_UPDATED);
+    intent.setPackage(context.getPackageName());
+    context.sendBroadcast(intent);
+  }
+
+  /**
+   * Returns a selection of the smartdial rows whose recency bucket in {@link
+   * SmartDialSortingOrder#SORT_BY_DATA_USAGE} differs between {@code lastUpdateMillis} and {@code
+   * currentMillis}: those whose last use is within the span between the two times, shifted back by
+   * the length of either bucket.
+   */
+  private static String getRecencyBucketChangedSelection(
+      long lastUpdateMillis, long currentMillis) {
+    final long fromMillis = Math.min(lastUpdateMillis, currentMillis);
+    final long toMillis = Math.max(lastUpdateMillis, currentMillis);
+    return "(("
+        + SmartDialDbColumns.LAST_TIME_USED
+        + " > "
+        + (fromMillis - SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS)
+        + " AND "
+        + SmartDialDbColumns.LAST_TIME_USED
+        + " <= "
+        + (toMillis - SmartDialSortingOrder.LAST_TIME_USED_CURRENT_MS)
+        + ") OR ("
+        + SmartDialDbColumns.LAST_TIME_USED
+        + " > "
+        + (fromMillis - SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS)
+        + " AND "
+        + SmartDialDbColumns.LAST_TIME_USED
+        + " <= "
+        + (toMillis - SmartDialSortingOrder.LAST_TIME_USED_RECENT_MS)
+        + "))";
+  }
+
+  /**
+   * Makes sure the smart dial indices exist, refreshes their statistics if {@code analyze} is set,
+   * and publishes a new in-memory snapshot. Readers keep using the previous snapshot until the new
+   * one is complete.
+   *
+   * @param previousSnapshot the snapshot to patch with the rows of {@code changedContactIds}, or
+   *     null to build the snapshot from the whole database.
+   */
+  private void updateIndicesAndSnapshot(
+      SQLiteDatabase db,
+      long currentMillis,
+      boolean analyze,
+      @Nullable SmartDialSnapshot previousSnapshot,
+      Set<Long> changedContactIds,
+      StopWatch stopWatch) {
     /** Creates index on contact_id for fast JOIN operation. */
     db.execSQL(
         "CREATE INDEX IF NOT EXISTS smartdial_contact_id_index ON "
@@ -821,27 +1033,22 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + " ("
             + SmartDialDbColumns.LAST_SMARTDIAL_UPDATE_TIME
             + ");");
-    /** Creates index on sorting fields for fast sort operation. */
+    /**
+     * Creates index matching {@link SmartDialSortingOrder#SORT_ORDER}, so that matches can be read
+     * in order without sorting.
+     */
     db.execSQL(
-        "CREATE INDEX IF NOT EXISTS smartdial_sort_index ON "
+        "CREATE INDEX IF NOT EXISTS smartdial_rank_index ON "
             + Tables.SMARTDIAL_TABLE
             + " ("
-            + SmartDialDbColumns.STARRED
-            + ", "
-            + SmartDialDbColumns.IS_SUPER_PRIMARY
-            + ", "
-            + SmartDialDbColumns.LAST_TIME_USED
-            + ", "
-            + SmartDialDbColumns.TIMES_USED
-            + ", "
-            + SmartDialDbColumns.IN_VISIBLE_GROUP
-            + ", "
+            + SmartDialDbColumns.RANK_SCORE
+            + " DESC, "
             + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
             + ", "
             + SmartDialDbColumns.CONTACT_ID
             + ", "
             + SmartDialDbColumns.IS_PRIMARY
-            + ");");
+            + " DESC);");
     /** Creates index on prefix for fast SELECT operation. */
     db.execSQL(
         "CREATE INDEX IF NOT EXISTS nameprefix_index ON "
@@ -857,31 +1064,32 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + PrefixColumns.CONTACT_ID
             + ");");
 
-    if (DEBUG) {
-      stopWatch.lap(TAG + "Finished recreating index");
-    }
+    stopWatch.lap("Created indices");
 
-    /** Updates the database index statistics. */
-    db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
-    db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
-    db.execSQL("ANALYZE smartdial_contact_id_index");
-    db.execSQL("ANALYZE smartdial_last_update_index");
-    db.execSQL("ANALYZE nameprefix_index");
-    db.execSQL("ANALYZE nameprefix_contact_id_index");
-    if (DEBUG) {
-      stopWatch.stopAndLog(TAG + "Finished updating index stats", 0);
+    /**
+     * Updates the database index statistics. Small delta updates barely change them, so this is
+     * skipped unless a large part of the table was rewritten.
+     */
+    if (analyze) {
+      db.execSQL("ANALYZE " + Tables.SMARTDIAL_TABLE);
+      db.execSQL("ANALYZE " + Tables.PREFIX_TABLE);
+      db.execSQL("ANALYZE smartdial_contact_id_index");
+      db.execSQL("ANALYZE smartdial_last_update_index");
+      db.execSQL("ANALYZE smartdial_rank_index");
+      db.execSQL("ANALYZE nameprefix_index");
+      db.execSQL("ANALYZE nameprefix_contact_id_index");
+      stopWatch.lap("Updated index stats");
     }
 
-    final SharedPreferences.Editor editor = databaseLastUpdateSharedPref.edit();
-    editor.putLong(LAST_UPDATED_MILLIS, currentMillis);
-    editor.apply();
-
-    LogUtil.i("DialerDatabaseHelper.updateSmartDialDatabase", "broadcasting smart dial update");
-
-    // Notify content observers that smart dial database has been updated.
-    Intent intent = new Intent(ACTION_SMART_DIAL_UPDATED);
-    intent.setPackage(context.getPackageName());
-    context.sendBroadcast(intent);
+    /** Rebuilds the in-memory trie so that lookups no longer need to touch the database. */
+    if (previousSnapshot == null) {
+      smartDialSnapshot = buildSmartDialSnapshot(db, currentMillis);
+      stopWatch.lap("Built smart dial snapshot");
+    } else {
+      smartDialSnapshot =
+          patchSmartDialSnapshot(db, previousSnapshot, changedContactIds, currentMillis);
+      stopWatch.lap("Patched smart dial snapshot with " + changedContactIds.size() + " contacts");
+    }
   }
 
   /**
@@ -894,6 +1102,13 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   @WorkerThread
   public synchronized ArrayList<ContactNumber> getLooseMatches(
       String query, SmartDialNameMatcher nameMatcher) {
+    final SmartDialSnapshot snapshot = smartDialSnapshot;
+    if (snapshot != null
+        && SmartDialTrie.isIndexable(query)
+        && System.currentTimeMillis() - snapshot.createdMillis < SNAPSHOT_MAX_AGE_MILLIS) {
+      return getLooseMatchesFromSnapshot(snapshot, query, nameMatcher);
+    }
+
     final SQLiteDatabase db = getReadableDatabase();
 
     /** Uses SQL query wildcard '%' to represent prefix matching. */
@@ -903,8 +1118,6 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
     final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix query") : null;
 
-    final String currentTimeStamp = Long.toString(System.currentTimeMillis());
-
     /** Queries the database to find contacts that have an index matching the query prefix. */
     final Cursor cursor =
         db.rawQuery(
@@ -940,7 +1153,7 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
                 + "')"
                 + " ORDER BY "
                 + SmartDialSortingOrder.SORT_ORDER,
-            new String[] {currentTimeStamp});
+            new String[] {});
     if (cursor == null) {
       return result;
     }
@@ -974,38 +1187,19 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
               "_id column null. Row was deleted during iteration, skipping");
           continue;
         }
-        final long dataID = cursor.getLong(columnDataId);
-        final String displayName = cursor.getString(columnDisplayNamePrimary);
-        final String phoneNumber = cursor.getString(columnNumber);
-        final long id = cursor.getLong(columnId);
-        final long photoId = cursor.getLong(columnPhotoId);
-        final String lookupKey = cursor.getString(columnLookupKey);
-        final int carrierPresence = cursor.getInt(columnCarrierPresence);
-
-        /**
-         * If a contact already exists and another phone number of the contact is being processed,
-         * skip the second instance.
-         */
-        final ContactMatch contactMatch = new ContactMatch(lookupKey, id);
-        if (duplicates.contains(contactMatch)) {
-          continue;
-        }
-
-        /**
-         * If the contact has either the name or number that matches the query, add to the result.
-         */
-        final boolean nameMatches = nameMatcher.matches(context, displayName);
-        final boolean numberMatches =
-            (nameMatcher.matchesNumber(context, phoneNumber, query) != null);
-        if (nameMatches || numberMatches) {
-          /** If a contact has not been added, add it to the result and the hash set. */
-          duplicates.add(contactMatch);
-          result.add(
-              new ContactNumber(
-                  id, dataID, displayName, phoneNumber, lookupKey, photoId, carrierPresence));
+        final ContactNumber contactNumber =
+            new ContactNumber(
+                cursor.getLong(columnId),
+                cursor.getLong(columnDataId),
+                cursor.getString(columnDisplayNamePrimary),
+                cursor.getString(columnNumber),
+                cursor.getString(columnLookupKey),
+                cursor.getLong(columnPhotoId),
+                cursor.getInt(columnCarrierPresence));
+        if (addIfMatches(contactNumber, query, nameMatcher, duplicates, result)) {
           counter++;
           if (DEBUG) {
-            stopWatch.lap("Added one result: Name: " + displayName);
+            stopWatch.lap("Added one result: Name: " + contactNumber.displayName);
           }
         }
       }
@@ -1019,6 +1213,321 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     return result;
   }
 
+  /**
+   * Same as the database path of {@link #getLooseMatches}, but walks the in-memory trie of {@code
+   * snapshot} instead. Candidates are visited in sort order, so the walk stops as soon as {@link
+   * #MAX_ENTRIES} contacts have been found.
+   *
+   * <p>If {@code query} extends the previous query, the candidates of the previous query are
+   * narrowed down first, since a contact matching "5647" also matches "564". The trie is only
+   * walked again if the previous lookup stopped early and more results are needed, and that walk
+   * skips every rank the previous lookup already looked at.
+   */
+  private ArrayList<ContactNumber> getLooseMatchesFromSnapshot(
+      SmartDialSnapshot snapshot, String query, SmartDialNameMatcher nameMatcher) {
+    final StopWatch stopWatch = DEBUG ? StopWatch.start(":Name Prefix trie lookup") : null;
+    final ArrayList<ContactNumber> result = new ArrayList<>();
+    final Set<ContactMatch> duplicates = new HashSet<>();
+    final SmartDialQueryState previous = lastQueryState;
+    final SmartDialQueryState state = new SmartDialQueryState(snapshot, query);
+
+    int resumeAfterRank = -1;
+    boolean done = false;
+    if (previous != null && previous.canBeRefinedBy(snapshot, query)) {
+      for (int i = 0; i < previous.candidateCount; i++) {
+        if (!offerRank(
+            snapshot, previous.candidates[i], query, nameMatcher, duplicates, result, state)) {
+          done = true;
+          break;
+        }
+      }
+      if (!done && previous.complete) {
+        state.complete = true;
+        done = true;
+      }
+      resumeAfterRank = previous.lastVisitedRank;
+      if (DEBUG) {
+        stopWatch.lap("Refined " + previous.candidateCount + " previous candidates");
+      }
+    }
+
+    if (!done) {
+      final int skipUpToRank = resumeAfterRank;
+      state.complete =
+          snapshot.trie.findMatches(
+              query,
+              snapshot.rows.length,
+              rank ->
+                  rank <= skipUpToRank
+                      || offerRank(snapshot, rank, query, nameMatcher, duplicates, result, state));
+    }
+
+    lastQueryState = state;
+    if (DEBUG) {
+      stopWatch.stopAndLog(TAG + "Finished trie lookup", 0);
+    }
+    return result;
+  }
+
+  /**
+   * Checks the row at {@code rank} against the query and records it in {@code state} as a
+   * candidate for the next, longer query unless it was rejected.
+   *
+   * @return false once {@link #MAX_ENTRIES} contacts have been found.
+   */
+  private boolean offerRank(
+      SmartDialSnapshot snapshot,
+      int rank,
+      String query,
+      SmartDialNameMatcher nameMatcher,
+      Set<ContactMatch> duplicates,
+      ArrayList<ContactNumber> result,
+      SmartDialQueryState state) {
+    final ContactNumber row = snapshot.rows[rank];
+    state.lastVisitedRank = rank;
+    if (duplicates.contains(new ContactMatch(row.lookupKey, row.id))
+        || addIfMatches(row, query, nameMatcher, duplicates, result)) {
+      // Rows skipped as duplicates were never checked, so they may still match a longer query.
+      state.addCandidate(rank);
+    }
+    return result.size() < MAX_ENTRIES;
+  }
+
+  /**
+   * Adds {@code contactNumber} to {@code result} if its name or number matches the query and no
+   * other number of the same contact has been added yet.
+   *
+   * @return true if the contact was added.
+   */
+  private boolean addIfMatches(
+      ContactNumber contactNumber,
+      String query,
+      SmartDialNameMatcher nameMatcher,
+      Set<ContactMatch> duplicates,
+      ArrayList<ContactNumber> result) {
+    /**
+     * If a contact already exists and another phone number of the contact is being processed, skip
+     * the second instance.
+     */
+    final ContactMatch contactMatch = new ContactMatch(contactNumber.lookupKey, contactNumber.id);
+    if (duplicates.contains(contactMatch)) {
+      return false;
+    }
+
+    /** If the contact has either the name or number that matches the query, add to the result. */
+    final boolean nameMatches = nameMatcher.matches(context, contactNumber.displayName);
+    final boolean numberMatches =
+        (nameMatcher.matchesNumber(context, contactNumber.phoneNumber, query) != null);
+    if (nameMatches || numberMatches) {
+      /** If a contact has not been added, add it to the result and the hash set. */
+      duplicates.add(contactMatch);
+      result.add(contactNumber);
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Reads the smart dial and prefix tables into a {@link SmartDialSnapshot}. Rows are ranked by
+   * {@link SmartDialSortingOrder#SORT_ORDER}, whose scores were computed as of {@code
+   * currentMillis}, and every prefix of a contact is indexed once for each of the contact's rows.
+   */
+  @Nullable
+  private SmartDialSnapshot buildSmartDialSnapshot(SQLiteDatabase db, long currentMillis) {
+    final ArrayList<RankedRow> rows = queryRankedRows(db, null);
+    final LongSparseArray<String[]> prefixesByContactId = new LongSparseArray<>();
+    if (rows == null || !queryPrefixes(db, null, prefixesByContactId)) {
+      return null;
+    }
+    return assembleSmartDialSnapshot(rows, prefixesByContactId, currentMillis);
+  }
+
+  /**
+   * Returns a copy of {@code previousSnapshot} in which the rows and prefixes of {@code
+   * changedContactIds} are replaced by their current ones in the database. The rows of every other
+   * contact keep their rank scores, since an update recomputes scores only for changed contacts.
+   */
+  @Nullable
+  private SmartDialSnapshot patchSmartDialSnapshot(
+      SQLiteDatabase db,
+      SmartDialSnapshot previousSnapshot,
+      Set<Long> changedContactIds,
+      long currentMillis) {
+    final ArrayList<String> contactIdArgs = new ArrayList<>(changedContactIds.size());
+    for (long contactId : changedContactIds) {
+      contactIdArgs.add(Long.toString(contactId));
+    }
+    final Selection smartDialSelection =
+        Selection.column(SmartDialDbColumns.CONTACT_ID).in(contactIdArgs);
+    final Selection prefixSelection = Selection.column(PrefixColumns.CONTACT_ID).in(contactIdArgs);
+
+    final ArrayList<RankedRow> rows = queryRankedRows(db, smartDialSelection);
+    final LongSparseArray<String[]> prefixesByContactId =
+        previousSnapshot.prefixesByContactId.clone();
+    for (long contactId : changedContactIds) {
+      prefixesByContactId.remove(contactId);
+    }
+    if (rows == null || !queryPrefixes(db, prefixSelection, prefixesByContactId)) {
+      return null;
+    }
+
+    for (int rank = 0; rank < previousSnapshot.rows.length; rank++) {
+      final ContactNumber row = previousSnapshot.rows[rank];
+      if (!changedContactIds.contains(row.id)) {
+        rows.add(
+            new RankedRow(
+                row, previousSnapshot.rankScores[rank], previousSnapshot.isPrimary[rank]));
+      }
+    }
+    // Both the changed rows and the kept rows are already sorted, so this only merges two runs.
+    Collections.sort(rows, RankedRow::compareBySortOrder);
+    return assembleSmartDialSnapshot(rows, prefixesByContactId, currentMillis);
+  }
+
+  /**
+   * Reads the smart dial rows matching {@code selection}, or all of them, in {@link
+   * SmartDialSortingOrder#SORT_ORDER}.
+   *
+   * @return the rows, or null if the query failed.
+   */
+  @Nullable
+  private static ArrayList<RankedRow> queryRankedRows(
+      SQLiteDatabase db, @Nullable Selection selection) {
+    final Cursor rowCursor =
+        db.rawQuery(
+            "SELECT "
+                + SmartDialDbColumns.DATA_ID
+                + ", "
+                + SmartDialDbColumns.DISPLAY_NAME_PRIMARY
+                + ", "
+                + SmartDialDbColumns.PHOTO_ID
+                + ", "
+                + SmartDialDbColumns.NUMBER
+                + ", "
+                + SmartDialDbColumns.CONTACT_ID
+                + ", "
+                + SmartDialDbColumns.LOOKUP_KEY
+                + ", "
+                + SmartDialDbColumns.CARRIER_PRESENCE
+                + ", "
+                + SmartDialDbColumns.RANK_SCORE
+                + ", "
+                + SmartDialDbColumns.IS_PRIMARY
+                + " FROM "
+                + Tables.SMARTDIAL_TABLE
+                + (selection == null ? "" : " WHERE " + selection.getSelection())
+                + " ORDER BY "
+                + SmartDialSortingOrder.SORT_ORDER,
+            selection == null ? new String[] {} : selection.getSelectionArgs());
+    if (rowCursor == null) {
+      return null;
+    }
+    final ArrayList<RankedRow> rows = new ArrayList<>();
+    try {
+      while (rowCursor.moveToNext()) {
+        if (rowCursor.isNull(0)) {
+          continue;
+        }
+        rows.add(
+            new RankedRow(
+                new ContactNumber(
+                    rowCursor.getLong(4),
+                    rowCursor.getLong(0),
+                    rowCursor.getString(1),
+                    rowCursor.getString(3),
+                    rowCursor.getString(5),
+                    rowCursor.getLong(2),
+                    rowCursor.getInt(6)),
+                rowCursor.getLong(7),
+                rowCursor.getInt(8)));
+      }
+    } finally {
+      rowCursor.close();
+    }
+    return rows;
+  }
+
+  /**
+   * Reads the prefixes matching {@code selection}, or all of them, into {@code
+   * prefixesByContactId}.
+   *
+   * @return false if the query failed.
+   */
+  private static boolean queryPrefixes(
+      SQLiteDatabase db,
+      @Nullable Selection selection,
+      LongSparseArray<String[]> prefixesByContactId) {
+    final Cursor prefixCursor =
+        db.rawQuery(
+            "SELECT "
+                + PrefixColumns.CONTACT_ID
+                + ", "
+                + PrefixColumns.PREFIX
+                + " FROM "
+                + Tables.PREFIX_TABLE
+                + (selection == null ? "" : " WHERE " + selection.getSelection())
+                + " ORDER BY "
+                + PrefixColumns.CONTACT_ID,
+            selection == null ? new String[] {} : selection.getSelectionArgs());
+    if (prefixCursor == null) {
+      return false;
+    }
+    try {
+      final ArrayList<String> prefixes = new ArrayList<>();
+      long contactId = 0;
+      while (prefixCursor.moveToNext()) {
+        if (!prefixes.isEmpty() && prefixCursor.getLong(0) != contactId) {
+          prefixesByContactId.put(contactId, prefixes.toArray(new String[prefixes.size()]));
+          prefixes.clear();
+        }
+        contactId = prefixCursor.getLong(0);
+        prefixes.add(prefixCursor.getString(1));
+      }
+      if (!prefixes.isEmpty()) {
+        prefixesByContactId.put(contactId, prefixes.toArray(new String[prefixes.size()]));
+      }
+    } finally {
+      prefixCursor.close();
+    }
+    return true;
+  }
+
+  /**
+   * Ranks {@code rows}, which must be in {@link SmartDialSortingOrder#SORT_ORDER}, and indexes the
+   * prefixes of their contacts.
+   */
+  private static SmartDialSnapshot assembleSmartDialSnapshot(
+      ArrayList<RankedRow> rows,
+      LongSparseArray<String[]> prefixesByContactId,
+      long currentMillis) {
+    final ContactNumber[] contactNumbers = new ContactNumber[rows.size()];
+    final long[] rankScores = new long[rows.size()];
+    final int[] isPrimary = new int[rows.size()];
+    final SmartDialTrie.Builder builder = new SmartDialTrie.Builder();
+    for (int rank = 0; rank < rows.size(); rank++) {
+      final RankedRow row = rows.get(rank);
+      contactNumbers[rank] = row.contactNumber;
+      rankScores[rank] = row.rankScore;
+      isPrimary[rank] = row.isPrimary;
+      final String[] prefixes = prefixesByContactId.get(row.contactNumber.id);
+      if (prefixes != null) {
+        for (String prefix : prefixes) {
+          builder.add(prefix, rank);
+        }
+      }
+    }
+
+    final SmartDialTrie trie = builder.build();
+    LogUtil.i(
+        "DialerDatabaseHelper.assembleSmartDialSnapshot",
+        "%d rows, %d trie nodes, %d postings",
+        contactNumbers.length,
+        trie.getNodeCount(),
+        trie.getPostingCount());
+    return new SmartDialSnapshot(
+        contactNumbers, rankScores, isPrimary, prefixesByContactId, trie, currentMillis);
+  }
+
   public interface Tables {
 
     /** Saves a list of numbers to be blocked. */
@@ -1050,6 +1559,8 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String IS_PRIMARY = "is_primary";
     String CARRIER_PRESENCE = "carrier_presence";
     String LAST_SMARTDIAL_UPDATE_TIME = "last_smartdial_update_time";
+    /** Materialized sort key, see {@link SmartDialSortingOrder#RANK_SCORE}. */
+    String RANK_SCORE = "rank_score";
   }
 
   public interface PrefixColumns extends BaseColumns {
@@ -1122,6 +1633,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     String SELECT_IGNORE_LOOKUP_KEY_TOO_LONG_CLAUSE = "length(" + Phone.LOOKUP_KEY + ") < 1000";
 
     String SELECTION = SELECT_UPDATED_CLAUSE + " AND " + SELECT_IGNORE_LOOKUP_KEY_TOO_LONG_CLAUSE;
+
+    /** Groups the numbers of each contact together, see {@link UpdatedContactQuery#SORT_ORDER}. */
+    String SORT_ORDER = Phone.CONTACT_ID + " ASC";
   }
 
   /**
@@ -1141,6 +1655,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
 
     String SELECT_UPDATED_CLAUSE =
         ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?";
+
+    /** Sorted by contact ID so that it can be merged with {@link PhoneQuery}. */
+    String SORT_ORDER = ContactsContract.Contacts._ID + " ASC";
   }
 
   /** Query options for querying the deleted contact database. */
@@ -1163,8 +1680,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
   }
 
   /**
-   * Gets the sorting order for the smartdial table. This computes a SQL "ORDER BY" argument by
-   * composing contact status and recent contact details together.
+   * Gets the sorting order for the smartdial table. Contact status and recent contact details are
+   * packed into {@link SmartDialDbColumns#RANK_SCORE} when the table is updated, so that the "ORDER
+   * BY" argument can be served by an index instead of being computed for every query.
    */
   private interface SmartDialSortingOrder {
 
@@ -1173,6 +1691,9 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
     /** Recent contacts - those contacted within the last 30 days (in milliseconds) */
     long LAST_TIME_USED_RECENT_MS = 30L * 24 * 60 * 60 * 1000;
 
+    /** Times used is capped so that it fits between the recency bucket and the visibility bit. */
+    long MAX_TIMES_USED = (1L << 21) - 1;
+
     /** Time since last contact. */
     String TIME_SINCE_LAST_USED_MS =
         "( ?1 - " + Tables.SMARTDIAL_TABLE + "." + SmartDialDbColumns.LAST_TIME_USED + ")";
@@ -1196,27 +1717,34 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
             + " ELSE 2 END)";
 
     /**
-     * This sort order is similar to that used by the ContactsProvider when returning a list of
-     * frequently called contacts.
+     * Packs starred, super primary, the data usage bucket, times used and visibility into one
+     * integer, most significant first, so that a higher score sorts the same way the
+     * ContactsProvider sorts frequently called contacts. The current time is bound to ?1.
      */
-    String SORT_ORDER =
-        Tables.SMARTDIAL_TABLE
-            + "."
+    String RANK_SCORE =
+        "(((CASE WHEN "
             + SmartDialDbColumns.STARRED
-            + " DESC, "
-            + Tables.SMARTDIAL_TABLE
-            + "."
+            + " != 0 THEN 1 ELSE 0 END) << 25)"
+            + " | ((CASE WHEN "
             + SmartDialDbColumns.IS_SUPER_PRIMARY
-            + " DESC, "
+            + " != 0 THEN 1 ELSE 0 END) << 24)"
+            + " | ((2 - "
             + SORT_BY_DATA_USAGE
-            + ", "
-            + Tables.SMARTDIAL_TABLE
-            + "."
+            + ") << 22)"
+            + " | (MIN(MAX(IFNULL("
             + SmartDialDbColumns.TIMES_USED
-            + " DESC, "
-            + Tables.SMARTDIAL_TABLE
-            + "."
+            + ", 0), 0), "
+            + MAX_TIMES_USED
+            + ") << 1)"
+            + " | (CASE WHEN "
             + SmartDialDbColumns.IN_VISIBLE_GROUP
+            + " != 0 THEN 1 ELSE 0 END))";
+
+    /** Sort order matching the smartdial_rank_index. */
+    String SORT_ORDER =
+        Tables.SMARTDIAL_TABLE
+            + "."
+            + SmartDialDbColumns.RANK_SCORE
             + " DESC, "
             + Tables.SMARTDIAL_TABLE
             + "."
@@ -1316,4 +1844,127 @@ public class DialerDatabaseHelper extends SQLiteOpenHelper {
       return false;
     }
   }
+
+  /** Immutable in-memory copy of the smart dial tables used to answer queries without SQLite. */
+  private static final class SmartDialSnapshot {
+
+    /** Smart dial rows, indexed by rank. */
+    private final ContactNumber[] rows;
+    /** The {@link SmartDialDbColumns#RANK_SCORE} of each row, indexed by rank. */
+    private final long[] rankScores;
+    /** The {@link SmartDialDbColumns#IS_PRIMARY} of each row, indexed by rank. */
+    private final int[] isPrimary;
+    /** The prefixes of every contact, kept so that the trie can be rebuilt without SQLite. */
+    private final LongSparseArray<String[]> prefixesByContactId;
+    /** Maps every prefix of a contact to the ranks of the contact's rows. */
+    private final SmartDialTrie trie;
+    /** The time used to compute the ranks. */
+    private final long createdMillis;
+
+    SmartDialSnapshot(
+        ContactNumber[] rows,
+        long[] rankScores,
+        int[] isPrimary,
+        LongSparseArray<String[]> prefixesByContactId,
+        SmartDialTrie trie,
+        long createdMillis) {
+      this.rows = rows;
+      this.rankScores = rankScores;
+      this.isPrimary = isPrimary;
+      this.prefixesByContactId = prefixesByContactId;
+      this.trie = trie;
+      this.createdMillis = createdMillis;
+    }
+
+    SmartDialSnapshot withCreatedMillis(long createdMillis) {
+      return new SmartDialSnapshot(
+          rows, rankScores, isPrimary, prefixesByContactId, trie, createdMillis);
+    }
+  }
+
+  /** A smart dial row along with the columns of {@link SmartDialSortingOrder#SORT_ORDER}. */
+  private static final class RankedRow {
+
+    private final ContactNumber contactNumber;
+    private final long rankScore;
+    private final int isPrimary;
+
+    RankedRow(ContactNumber contactNumber, long rankScore, int isPrimary) {
+      this.contactNumber = contactNumber;
+      this.rankScore = rankScore;
+      this.isPrimary = isPrimary;
+    }
+
+    /** Orders rows the way {@link SmartDialSortingOrder#SORT_ORDER} does. */
+    static int compareBySortOrder(RankedRow a, RankedRow b) {
+      int result = Long.compare(b.rankScore, a.rankScore);
+      if (result == 0) {
+        result = compareCodePoints(a.contactNumber.displayName, b.contactNumber.displayName);
+      }
+      if (result == 0) {
+        result = Long.compare(a.contactNumber.id, b.contactNumber.id);
+      }
+      if (result == 0) {
+        result = Integer.compare(b.isPrimary, a.isPrimary);
+      }
+      return result;
+    }
+
+    /** Compares like SQLite's BINARY collation, which orders UTF-8 bytes and thus code points. */
+    private static int compareCodePoints(String a, String b) {
+      int i = 0;
+      int j = 0;
+      while (i < a.length() && j < b.length()) {
+        final int codePointA = a.codePointAt(i);
+        final int codePointB = b.codePointAt(j);
+        if (codePointA != codePointB) {
+          return Integer.compare(codePointA, codePointB);
+        }
+        i += Character.charCount(codePointA);
+        j += Character.charCount(codePointB);
+      }
+      return Integer.compare(a.length() - i, b.length() - j);
+    }
+  }
+
+  /**
+   * Ranks that survived the last snapshot lookup. Every match of a longer query is either one of
+   * these candidates or has a rank higher than {@link #lastVisitedRank}.
+   */
+  private static final class SmartDialQueryState {
+
+    private final SmartDialSnapshot snapshot;
+    private final String query;
+
+    /** Ranks, in ascending order, that matched the query or were skipped as duplicates. */
+    private int[] candidates = new int[MAX_ENTRIES];
+
+    private int candidateCount = 0;
+    private int lastVisitedRank = -1;
+    /** Whether every rank matching the query was visited. */
+    private boolean complete = false;
+
+    SmartDialQueryState(SmartDialSnapshot snapshot, String query) {
+      this.snapshot = snapshot;
+      this.query = query;
+    }
+
+    void addCandidate(int rank) {
+      if (candidateCount == candidates.length) {
+        candidates = Arrays.copyOf(candidates, candidateCount * 2);
+      }
+      candidates[candidateCount++] = rank;
+    }
+
+    /**
+     * Returns true if {@code newQuery} extends this query against the same snapshot. An empty
+     * query never qualifies since whether it matches anything depends on the name matcher.
+     */
+    boolean canBeRefinedBy(SmartDialSnapshot snapshot, String newQuery) {
+      return this.snapshot == snapshot
+          && !query.isEmpty()
+          && newQuery.length() > query.length()
+          && newQuery.startsWith(query);
+    }
+  }
 }
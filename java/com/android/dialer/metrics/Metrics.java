@@ -38,6 +38,7 @@ public interface Metrics {
 
   // Events related to refreshing the annotated call log.
   String NEW_CALL_LOG_COALESCE = "NewCallLog.Coalesce";
+  String NEW_CALL_LOG_COALESCE_FIRST_PAGE = "NewCallLog.Coalesce.FirstPage";
   String ANNOTATED_CALL_LOG_NOT_DIRTY = "RefreshAnnotatedCallLogReceiver.NotDirty";
   String ANNOTATED_CALL_LOG_CHANGES_NEEDED = "RefreshAnnotatedCallLogReceiver.ChangesNeeded";
   String ANNOTATED_LOG_NO_CHANGES_NEEDED = "RefreshAnnotatedCallLogReceiver.NoChangesNeeded";
@@ -49,11 +50,13 @@ public interface Metrics {
   String INITIAL_FILL_EVENT_NAME = "RefreshAnnotatedCallLog.Initial.Fill";
   String INITIAL_ON_SUCCESSFUL_FILL_EVENT_NAME = "RefreshAnnotatedCallLog.Initial.OnSuccessfulFill";
   String INITIAL_APPLY_MUTATIONS_EVENT_NAME = "RefreshAnnotatedCallLog.Initial.ApplyMutations";
+  String INITIAL_UPDATE_COALESCED_EVENT_NAME = "RefreshAnnotatedCallLog.Initial.UpdateCoalesced";
 
   String IS_DIRTY_EVENT_NAME = "RefreshAnnotatedCallLog.IsDirty";
   String FILL_EVENT_NAME = "RefreshAnnotatedCallLog.Fill";
   String ON_SUCCESSFUL_FILL_EVENT_NAME = "RefreshAnnotatedCallLog.OnSuccessfulFill";
   String APPLY_MUTATIONS_EVENT_NAME = "RefreshAnnotatedCallLog.ApplyMutations";
+  String UPDATE_COALESCED_EVENT_NAME = "RefreshAnnotatedCallLog.UpdateCoalesced";
 
   // These templates are prefixed with a CallLogDataSource or PhoneLookup simple class name.
   String INITIAL_FILL_TEMPLATE = "%s.Initial.Fill";
@@ -18,25 +18,35 @@ package com.android.dialer.phonelookup.composite;
 
 import android.content.Context;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.VisibleForTesting;
+import android.support.v4.util.ArrayMap;
+import android.support.v4.util.ArraySet;
 import android.telecom.Call;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.calllog.CallLogState;
+import com.android.dialer.calllog.notifier.RefreshAnnotatedCallLogNotifier;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.Annotations.LightweightExecutor;
+import com.android.dialer.common.concurrent.Annotations.NonUiSerial;
 import com.android.dialer.common.concurrent.DialerFutures;
+import com.android.dialer.configprovider.ConfigProvider;
 import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.logging.DialerImpression;
+import com.android.dialer.logging.Logger;
 import com.android.dialer.metrics.FutureTimer;
 import com.android.dialer.metrics.FutureTimer.LogCatMode;
 import com.android.dialer.metrics.Metrics;
 import com.android.dialer.phonelookup.PhoneLookup;
 import com.android.dialer.phonelookup.PhoneLookupInfo;
 import com.android.dialer.phonelookup.PhoneLookupInfo.Builder;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -44,21 +54,77 @@ import com.google.common.util.concurrent.MoreExecutors;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.annotation.concurrent.GuardedBy;
 import javax.inject.Inject;
+import javax.inject.Singleton;
 
 /**
  * {@link PhoneLookup} which delegates to a configured set of {@link PhoneLookup PhoneLookups},
  * iterating, prioritizing, and coalescing data as necessary.
  *
+ * <p>Each sub-lookup can be given a deadline, so that a single slow sub-lookup doesn't hold back
+ * the whole {@link PhoneLookupInfo}. Sub-lookups which miss their deadline keep running, and their
+ * results are delivered later: through a {@link PendingLookupsListener} for lookups of a single
+ * number, and through another refresh of the annotated call log for {@link
+ * #getMostRecentInfo(ImmutableMap)}.
+ *
  * <p>TODO(zachh): Consider renaming and moving this file since it does not implement PhoneLookup.
  */
+@Singleton
 public final class CompositePhoneLookup {
 
+  /** Config flag for the deadline (in ms) of each sub-lookup when looking up a single number. */
+  @VisibleForTesting
+  static final String LOOKUP_TIMEOUT_MILLIS = "composite_phone_lookup_timeout_millis";
+
+  /** Config flag for the deadline (in ms) of each sub-lookup when getting the most recent info. */
+  @VisibleForTesting
+  static final String GET_MOST_RECENT_INFO_TIMEOUT_MILLIS =
+      "composite_phone_lookup_get_most_recent_info_timeout_millis";
+
+  private static final long DEFAULT_LOOKUP_TIMEOUT_MILLIS = 1000L;
+  private static final long DEFAULT_GET_MOST_RECENT_INFO_TIMEOUT_MILLIS = 10_000L;
+
+  /** Receives the {@link PhoneLookupInfo} again once late sub-lookups finish. */
+  public interface PendingLookupsListener {
+
+    /**
+     * Called on a background thread with the info returned earlier, updated with the sub-messages
+     * of the sub-lookups which missed their deadline. Not called if all sub-lookups finished in
+     * time.
+     */
+    void onPendingLookupsFinished(PhoneLookupInfo phoneLookupInfo);
+  }
+
   private final Context appContext;
   private final ImmutableList<PhoneLookup> phoneLookups;
   private final FutureTimer futureTimer;
   private final CallLogState callLogState;
+  private final ConfigProvider configProvider;
+  private final RefreshAnnotatedCallLogNotifier refreshAnnotatedCallLogNotifier;
   private final ListeningExecutorService lightweightExecutorService;
+  private final ScheduledExecutorService scheduledExecutorService;
+
+  /**
+   * Calls to {@link PhoneLookup#getMostRecentInfo} which missed their deadline, by sub-lookup. An
+   * entry is kept until the next call to {@link #getMostRecentInfo(ImmutableMap)} after it
+   * finishes.
+   */
+  @GuardedBy("this")
+  private final Map<PhoneLookup<?>, PendingBulkLookup<?>> pendingBulkLookups = new ArrayMap<>();
+
+  /**
+   * Sub-lookups whose info wasn't updated by the last call to {@link
+   * #getMostRecentInfo(ImmutableMap)}, so {@link #onSuccessfulBulkUpdate()} must skip them.
+   */
+  @GuardedBy("this")
+  private final Set<PhoneLookup<?>> notUpdatedBulkLookups = new ArraySet<>();
 
   @VisibleForTesting
   @Inject
@@ -67,12 +133,18 @@ public final class CompositePhoneLookup {
       ImmutableList<PhoneLookup> phoneLookups,
       FutureTimer futureTimer,
       CallLogState callLogState,
-      @LightweightExecutor ListeningExecutorService lightweightExecutorService) {
+      ConfigProvider configProvider,
+      RefreshAnnotatedCallLogNotifier refreshAnnotatedCallLogNotifier,
+      @LightweightExecutor ListeningExecutorService lightweightExecutorService,
+      @NonUiSerial ScheduledExecutorService scheduledExecutorService) {
     this.appContext = appContext;
     this.phoneLookups = phoneLookups;
     this.futureTimer = futureTimer;
     this.callLogState = callLogState;
+    this.configProvider = configProvider;
+    this.refreshAnnotatedCallLogNotifier = refreshAnnotatedCallLogNotifier;
     this.lightweightExecutorService = lightweightExecutorService;
+    this.scheduledExecutorService = scheduledExecutorService;
   }
 
   /**
@@ -83,8 +155,16 @@ public final class CompositePhoneLookup {
    * the dependent lookups does not complete, the returned future will also not complete.
    */
   public ListenableFuture<PhoneLookupInfo> lookup(Call call) {
-    // TODO(zachh): Add short-circuiting logic so that this call is not blocked on low-priority
-    // lookups finishing when a higher-priority one has already finished.
+    return lookup(call, null);
+  }
+
+  /**
+   * Like {@link #lookup(Call)}, but if {@code pendingLookupsListener} is provided, the returned
+   * future completes once each dependent lookup has either finished or missed its deadline. The
+   * info of those which missed it is then delivered to the listener.
+   */
+  public ListenableFuture<PhoneLookupInfo> lookup(
+      Call call, @Nullable PendingLookupsListener pendingLookupsListener) {
     List<ListenableFuture<?>> futures = new ArrayList<>();
     for (PhoneLookup<?> phoneLookup : phoneLookups) {
       ListenableFuture<?> lookupFuture = phoneLookup.lookup(appContext, call);
@@ -93,7 +173,8 @@ public final class CompositePhoneLookup {
       futureTimer.applyTiming(lookupFuture, eventName);
       futures.add(lookupFuture);
     }
-    ListenableFuture<PhoneLookupInfo> combinedFuture = combineSubMessageFutures(futures);
+    ListenableFuture<PhoneLookupInfo> combinedFuture =
+        combineSubMessageFutures(futures, pendingLookupsListener);
     String eventName = String.format(Metrics.LOOKUP_FOR_CALL_TEMPLATE, getLoggingName());
     futureTimer.applyTiming(combinedFuture, eventName);
     return combinedFuture;
@@ -107,8 +188,17 @@ public final class CompositePhoneLookup {
    * the dependent lookups does not complete, the returned future will also not complete.
    */
   public ListenableFuture<PhoneLookupInfo> lookup(DialerPhoneNumber dialerPhoneNumber) {
-    // TODO(zachh): Add short-circuiting logic so that this call is not blocked on low-priority
-    // lookups finishing when a higher-priority one has already finished.
+    return lookup(dialerPhoneNumber, null);
+  }
+
+  /**
+   * Like {@link #lookup(DialerPhoneNumber)}, but if {@code pendingLookupsListener} is provided, the
+   * returned future completes once each dependent lookup has either finished or missed its
+   * deadline. The info of those which missed it is then delivered to the listener.
+   */
+  public ListenableFuture<PhoneLookupInfo> lookup(
+      DialerPhoneNumber dialerPhoneNumber,
+      @Nullable PendingLookupsListener pendingLookupsListener) {
     List<ListenableFuture<?>> futures = new ArrayList<>();
     for (PhoneLookup<?> phoneLookup : phoneLookups) {
       ListenableFuture<?> lookupFuture = phoneLookup.lookup(dialerPhoneNumber);
@@ -117,30 +207,160 @@ public final class CompositePhoneLookup {
       futureTimer.applyTiming(lookupFuture, eventName);
       futures.add(lookupFuture);
     }
-    ListenableFuture<PhoneLookupInfo> combinedFuture = combineSubMessageFutures(futures);
+    ListenableFuture<PhoneLookupInfo> combinedFuture =
+        combineSubMessageFutures(futures, pendingLookupsListener);
     String eventName = String.format(Metrics.LOOKUP_FOR_NUMBER_TEMPLATE, getLoggingName());
     futureTimer.applyTiming(combinedFuture, eventName);
     return combinedFuture;
   }
 
-  /** Combines a list of sub-message futures into a future for {@link PhoneLookupInfo}. */
+  /**
+   * Combines a list of sub-message futures into a future for {@link PhoneLookupInfo}.
+   *
+   * <p>Without a {@code pendingLookupsListener}, waits for all sub-messages. Otherwise sub-messages
+   * which miss their deadline are left unset and delivered to the listener when they arrive.
+   */
   @SuppressWarnings({"unchecked", "rawtype"})
   private ListenableFuture<PhoneLookupInfo> combineSubMessageFutures(
-      List<ListenableFuture<?>> subMessageFutures) {
+      List<ListenableFuture<?>> subMessageFutures,
+      @Nullable PendingLookupsListener pendingLookupsListener) {
+    if (pendingLookupsListener == null) {
+      return Futures.transform(
+          Futures.allAsList(subMessageFutures),
+          subMessages -> {
+            Preconditions.checkNotNull(subMessages);
+            Builder mergedInfo = PhoneLookupInfo.newBuilder();
+            for (int i = 0; i < subMessages.size(); i++) {
+              PhoneLookup phoneLookup = phoneLookups.get(i);
+              phoneLookup.setSubMessage(mergedInfo, subMessages.get(i));
+            }
+            return mergedInfo.build();
+          },
+          lightweightExecutorService);
+    }
+
+    long timeoutMillis =
+        configProvider.getLong(LOOKUP_TIMEOUT_MILLIS, DEFAULT_LOOKUP_TIMEOUT_MILLIS);
+    List<ListenableFuture<Optional<Object>>> onTimeFutures = new ArrayList<>();
+    for (int i = 0; i < subMessageFutures.size(); i++) {
+      onTimeFutures.add(
+          withDeadline(
+              (ListenableFuture<Object>) subMessageFutures.get(i),
+              timeoutMillis,
+              phoneLookups.get(i)));
+    }
     return Futures.transform(
-        Futures.allAsList(subMessageFutures),
-        subMessages -> {
-          Preconditions.checkNotNull(subMessages);
+        Futures.allAsList(onTimeFutures),
+        onTimeSubMessages -> {
+          Preconditions.checkNotNull(onTimeSubMessages);
           Builder mergedInfo = PhoneLookupInfo.newBuilder();
-          for (int i = 0; i < subMessages.size(); i++) {
-            PhoneLookup phoneLookup = phoneLookups.get(i);
-            phoneLookup.setSubMessage(mergedInfo, subMessages.get(i));
+          List<Integer> pendingIndices = new ArrayList<>();
+          for (int i = 0; i < onTimeSubMessages.size(); i++) {
+            Optional<Object> subMessage = onTimeSubMessages.get(i);
+            if (subMessage.isPresent()) {
+              phoneLookups.get(i).setSubMessage(mergedInfo, subMessage.get());
+            } else {
+              pendingIndices.add(i);
+            }
+          }
+          PhoneLookupInfo partialInfo = mergedInfo.build();
+          if (!pendingIndices.isEmpty()) {
+            deliverPendingSubMessages(
+                partialInfo, subMessageFutures, pendingIndices, pendingLookupsListener);
           }
-          return mergedInfo.build();
+          return partialInfo;
         },
         lightweightExecutorService);
   }
 
+  /**
+   * Waits for the sub-messages at {@code pendingIndices}, merges those which succeed into {@code
+   * partialInfo} and delivers the result to {@code pendingLookupsListener}.
+   */
+  @SuppressWarnings({"unchecked", "rawtype"})
+  private void deliverPendingSubMessages(
+      PhoneLookupInfo partialInfo,
+      List<ListenableFuture<?>> subMessageFutures,
+      List<Integer> pendingIndices,
+      PendingLookupsListener pendingLookupsListener) {
+    List<ListenableFuture<?>> pendingFutures = new ArrayList<>();
+    for (int i : pendingIndices) {
+      pendingFutures.add(subMessageFutures.get(i));
+    }
+    Futures.whenAllComplete(pendingFutures)
+        .call(
+            () -> {
+              Builder updatedInfo = partialInfo.toBuilder();
+              for (int i : pendingIndices) {
+                PhoneLookup phoneLookup = phoneLookups.get(i);
+                try {
+                  phoneLookup.setSubMessage(
+                      updatedInfo, Futures.getDone(subMessageFutures.get(i)));
+                } catch (ExecutionException e) {
+                  LogUtil.e(
+                      "CompositePhoneLookup.deliverPendingSubMessages",
+                      "pending lookup failed: " + phoneLookup.getLoggingName(),
+                      e);
+                }
+              }
+              pendingLookupsListener.onPendingLookupsFinished(updatedInfo.build());
+              return null;
+            },
+            lightweightExecutorService);
+  }
+
+  /**
+   * Returns a future for the result of {@code future} if it finishes within {@code timeoutMillis},
+   * or {@link Optional#absent()} otherwise. {@code future} is not cancelled when the deadline is
+   * missed.
+   */
+  private <T> ListenableFuture<Optional<T>> withDeadline(
+      ListenableFuture<T> future, long timeoutMillis, PhoneLookup<?> phoneLookup) {
+    ListenableFuture<Optional<T>> optionalFuture =
+        Futures.transform(future, Optional::of, MoreExecutors.directExecutor());
+
+    // Do not pass Long.MAX_VALUE to Futures.withTimeout as it will cause the internal
+    // ScheduledExecutorService for timing to keep waiting even after "future" is done.
+    if (timeoutMillis == Long.MAX_VALUE) {
+      return optionalFuture;
+    }
+    return Futures.catchingAsync(
+        Futures.withTimeout(
+            Futures.nonCancellationPropagating(optionalFuture),
+            Math.max(timeoutMillis, 1L),
+            TimeUnit.MILLISECONDS,
+            scheduledExecutorService),
+        TimeoutException.class,
+        e -> {
+          if (isFailedWith(optionalFuture, e)) {
+            // The sub-lookup itself failed with a timeout; that's not a missed deadline.
+            return Futures.immediateFailedFuture(e);
+          }
+          LogUtil.w(
+              "CompositePhoneLookup.withDeadline",
+              "%s missed its deadline of %d ms",
+              phoneLookup.getLoggingName(),
+              timeoutMillis);
+          Logger.get(appContext)
+              .logImpression(DialerImpression.Type.PHONE_LOOKUP_DEADLINE_EXCEEDED);
+          return Futures.immediateFuture(Optional.absent());
+        },
+        lightweightExecutorService);
+  }
+
+  /** Returns true if {@code future} is done and failed with exactly {@code throwable}. */
+  private static boolean isFailedWith(Future<?> future, Throwable throwable) {
+    if (!future.isDone() || future.isCancelled()) {
+      return false;
+    }
+    try {
+      Futures.getDone(future);
+      return false;
+    } catch (ExecutionException e) {
+      return e.getCause() == throwable;
+    }
+  }
+
   /**
    * Delegates to sub-lookups' {@link PhoneLookup#isDirty(ImmutableSet)} completing when the first
    * sub-lookup which returns true completes.
@@ -165,8 +385,11 @@ public final class CompositePhoneLookup {
   /**
    * Delegates to a set of dependent lookups and combines results.
    *
-   * <p>Note: If any of the dependent lookups fails, the returned future will also fail. If any of
-   * the dependent lookups does not complete, the returned future will also not complete.
+   * <p>Note: If any of the dependent lookups fails, the returned future will also fail.
+   *
+   * <p>A dependent lookup which misses its deadline keeps its existing info and is skipped by the
+   * following {@link #onSuccessfulBulkUpdate()}. Once it finishes, another refresh of the annotated
+   * call log is requested, which applies its result.
    */
   @SuppressWarnings("unchecked")
   public ListenableFuture<ImmutableMap<DialerPhoneNumber, PhoneLookupInfo>> getMostRecentInfo(
@@ -175,6 +398,9 @@ public final class CompositePhoneLookup {
         callLogState.isBuilt(),
         isBuilt -> {
           Preconditions.checkNotNull(isBuilt);
+          synchronized (this) {
+            notUpdatedBulkLookups.clear();
+          }
           List<ListenableFuture<ImmutableMap<DialerPhoneNumber, ?>>> futures = new ArrayList<>();
           for (PhoneLookup phoneLookup : phoneLookups) {
             futures.add(buildSubmapAndGetMostRecentInfo(existingInfoMap, phoneLookup, isBuilt));
@@ -211,20 +437,84 @@ public final class CompositePhoneLookup {
         MoreExecutors.directExecutor());
   }
 
+  @SuppressWarnings("unchecked")
   private <T> ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> buildSubmapAndGetMostRecentInfo(
       ImmutableMap<DialerPhoneNumber, PhoneLookupInfo> existingInfoMap,
       PhoneLookup<T> phoneLookup,
       boolean isBuilt) {
-    Map<DialerPhoneNumber, T> submap =
-        Maps.transformEntries(
-            existingInfoMap,
-            (dialerPhoneNumber, phoneLookupInfo) ->
-                phoneLookup.getSubMessage(existingInfoMap.get(dialerPhoneNumber)));
+    ImmutableMap<DialerPhoneNumber, T> submap =
+        ImmutableMap.copyOf(
+            Maps.transformEntries(
+                existingInfoMap,
+                (dialerPhoneNumber, phoneLookupInfo) ->
+                    phoneLookup.getSubMessage(existingInfoMap.get(dialerPhoneNumber))));
+
+    synchronized (this) {
+      PendingBulkLookup<T> pendingBulkLookup =
+          (PendingBulkLookup<T>) pendingBulkLookups.get(phoneLookup);
+      if (pendingBulkLookup != null) {
+        if (!pendingBulkLookup.future.isDone()) {
+          // Don't call the sub-lookup again while its previous call is still running.
+          notUpdatedBulkLookups.add(phoneLookup);
+          return Futures.immediateFuture(submap);
+        }
+        pendingBulkLookups.remove(phoneLookup);
+        Optional<ImmutableMap<DialerPhoneNumber, T>> lateInfo = pendingBulkLookup.getResult(submap);
+        if (lateInfo.isPresent()) {
+          LogUtil.i(
+              "CompositePhoneLookup.buildSubmapAndGetMostRecentInfo",
+              "applying late result of %s",
+              phoneLookup.getLoggingName());
+          return Futures.immediateFuture(lateInfo.get());
+        }
+      }
+    }
+
     ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> mostRecentInfoFuture =
-        phoneLookup.getMostRecentInfo(ImmutableMap.copyOf(submap));
+        phoneLookup.getMostRecentInfo(submap);
     String eventName = getMostRecentInfoEventName(phoneLookup.getLoggingName(), isBuilt);
     futureTimer.applyTiming(mostRecentInfoFuture, eventName);
-    return mostRecentInfoFuture;
+
+    long timeoutMillis =
+        configProvider.getLong(
+            GET_MOST_RECENT_INFO_TIMEOUT_MILLIS, DEFAULT_GET_MOST_RECENT_INFO_TIMEOUT_MILLIS);
+    return Futures.transform(
+        withDeadline(mostRecentInfoFuture, timeoutMillis, phoneLookup),
+        mostRecentInfo -> {
+          if (mostRecentInfo.isPresent()) {
+            return mostRecentInfo.get();
+          }
+          onBulkLookupMissedDeadline(phoneLookup, submap, mostRecentInfoFuture);
+          return submap;
+        },
+        lightweightExecutorService);
+  }
+
+  private <T> void onBulkLookupMissedDeadline(
+      PhoneLookup<T> phoneLookup,
+      ImmutableMap<DialerPhoneNumber, T> submap,
+      ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> mostRecentInfoFuture) {
+    synchronized (this) {
+      pendingBulkLookups.put(phoneLookup, new PendingBulkLookup<>(submap, mostRecentInfoFuture));
+      notUpdatedBulkLookups.add(phoneLookup);
+    }
+    Futures.addCallback(
+        mostRecentInfoFuture,
+        new FutureCallback<ImmutableMap<DialerPhoneNumber, T>>() {
+          @Override
+          public void onSuccess(ImmutableMap<DialerPhoneNumber, T> unused) {
+            refreshAnnotatedCallLogNotifier.notify(/* checkDirty = */ false);
+          }
+
+          @Override
+          public void onFailure(Throwable throwable) {
+            LogUtil.e(
+                "CompositePhoneLookup.onBulkLookupMissedDeadline",
+                "late lookup failed: " + phoneLookup.getLoggingName(),
+                throwable);
+          }
+        },
+        lightweightExecutorService);
   }
 
   /** Delegates to sub-lookups' {@link PhoneLookup#onSuccessfulBulkUpdate()}. */
@@ -233,8 +523,20 @@ public final class CompositePhoneLookup {
         callLogState.isBuilt(),
         isBuilt -> {
           Preconditions.checkNotNull(isBuilt);
+          Set<PhoneLookup<?>> notUpdated;
+          synchronized (this) {
+            notUpdated = new ArraySet<>(notUpdatedBulkLookups);
+          }
           List<ListenableFuture<Void>> futures = new ArrayList<>();
           for (PhoneLookup<?> phoneLookup : phoneLookups) {
+            if (notUpdated.contains(phoneLookup)) {
+              // Its info wasn't updated, so it must keep considering the same changes as new.
+              LogUtil.i(
+                  "CompositePhoneLookup.onSuccessfulBulkUpdate",
+                  "skipping %s, which missed its deadline",
+                  phoneLookup.getLoggingName());
+              continue;
+            }
             ListenableFuture<Void> phoneLookupFuture = phoneLookup.onSuccessfulBulkUpdate();
             futures.add(phoneLookupFuture);
             String eventName =
@@ -269,6 +571,10 @@ public final class CompositePhoneLookup {
 
   /** Delegates to sub-lookups' {@link PhoneLookup#clearData()}. */
   public ListenableFuture<Void> clearData() {
+    synchronized (this) {
+      pendingBulkLookups.clear();
+      notUpdatedBulkLookups.clear();
+    }
     List<ListenableFuture<Void>> futures = new ArrayList<>();
     for (PhoneLookup<?> phoneLookup : phoneLookups) {
       ListenableFuture<Void> phoneLookupFuture = phoneLookup.clearData();
@@ -297,4 +603,33 @@ public final class CompositePhoneLookup {
   private String getLoggingName() {
     return "CompositePhoneLookup";
   }
+
+  /** A call to {@link PhoneLookup#getMostRecentInfo} which missed its deadline. */
+  private static final class PendingBulkLookup<T> {
+    private final ImmutableMap<DialerPhoneNumber, T> existingInfoMap;
+    private final ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> future;
+
+    PendingBulkLookup(
+        ImmutableMap<DialerPhoneNumber, T> existingInfoMap,
+        ListenableFuture<ImmutableMap<DialerPhoneNumber, T>> future) {
+      this.existingInfoMap = existingInfoMap;
+      this.future = future;
+    }
+
+    /**
+     * Returns the result of the finished call if it was made with the same {@code existingInfoMap}
+     * and succeeded.
+     */
+    Optional<ImmutableMap<DialerPhoneNumber, T>> getResult(
+        ImmutableMap<DialerPhoneNumber, T> existingInfoMap) {
+      if (!this.existingInfoMap.equals(existingInfoMap)) {
+        return Optional.absent();
+      }
+      try {
+        return Optional.of(Futures.getDone(future));
+      } catch (ExecutionException e) {
+        return Optional.absent();
+      }
+    }
+  }
 }
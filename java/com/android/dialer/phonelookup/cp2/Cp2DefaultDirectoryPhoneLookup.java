@@ -28,6 +28,7 @@ import android.provider.ContactsContract.Directory;
 import android.support.annotation.Nullable;
 import android.support.v4.util.ArrayMap;
 import android.support.v4.util.ArraySet;
+import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.common.Assert;
@@ -48,7 +49,6 @@ import com.android.dialer.util.PermissionsUtil;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.ListeningExecutorService;
@@ -69,6 +69,9 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
   private static final String PREF_LAST_TIMESTAMP_PROCESSED =
       "cp2DefaultDirectoryPhoneLookupLastTimestampProcessed";
 
+  /** Number of trailing digits used by ContactsProvider2 to find candidates for loose matching. */
+  private static final int MIN_MATCH = 7;
+
   private final Context appContext;
   private final SharedPreferences sharedPreferences;
   private final ListeningExecutorService backgroundExecutorService;
@@ -158,10 +161,10 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
 
     PartitionedNumbers partitionedNumbers = new PartitionedNumbers(phoneNumbers);
     if (partitionedNumbers.invalidNumbers().size() > getMaxSupportedInvalidNumbers()) {
-      // If there are N invalid numbers, we can't determine determine dirtiness without running N
-      // queries; since running this many queries is not feasible for the (lightweight) isDirty
-      // check, simply return true. The expectation is that this should rarely be the case as the
-      // vast majority of numbers in call logs should be valid.
+      // Invalid numbers are matched by a scan of the whole PHONE table, or by one PHONE_LOOKUP
+      // query each; neither is feasible for the (lightweight) isDirty check, so simply return true
+      // and leave the scan to getMostRecentInfo. The expectation is that this should rarely be the
+      // case as the vast majority of numbers in call logs should be valid.
       LogUtil.v(
           "Cp2DefaultDirectoryPhoneLookup.isDirty",
           "returning true because too many invalid numbers (%d)",
@@ -252,7 +255,7 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         queryPhoneTableForContactIdsBasedOnE164(partitionedNumbers.validE164Numbers()));
 
     // Then run a separate query for each invalid number. Separate queries are done to accomplish
-    // loose matching which couldn't be accomplished with a batch query.
+    // loose matching without scanning the whole PHONE table, which isDirty can't afford.
     Assert.checkState(
         partitionedNumbers.invalidNumbers().size() <= getMaxSupportedInvalidNumbers());
     for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
@@ -479,16 +482,7 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
           return Futures.transformAsync(
               deletedPhoneNumbersFuture,
               deletedPhoneNumbers -> {
-
-                // If there are too many invalid numbers, just defer the work to render time.
-                ArraySet<DialerPhoneNumber> unprocessableNumbers =
-                    findUnprocessableNumbers(existingInfoMap);
-                Map<DialerPhoneNumber, Cp2Info> existingInfoMapToProcess = existingInfoMap;
-                if (!unprocessableNumbers.isEmpty()) {
-                  existingInfoMapToProcess =
-                      Maps.filterKeys(
-                          existingInfoMap, number -> !unprocessableNumbers.contains(number));
-                }
+                logInvalidNumberCount(existingInfoMap);
 
                 // For each DialerPhoneNumber that was associated with a contact or added to a
                 // contact, build a map of those DialerPhoneNumbers to a set Cp2ContactInfos, where
@@ -496,7 +490,7 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
                 ListenableFuture<Map<DialerPhoneNumber, Set<Cp2ContactInfo>>>
                     updatedContactsFuture =
                         buildMapForUpdatedOrAddedContacts(
-                            existingInfoMapToProcess, lastModified, deletedPhoneNumbers);
+                            existingInfoMap, lastModified, deletedPhoneNumbers);
 
                 return Futures.transform(
                     updatedContactsFuture,
@@ -523,19 +517,6 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
                           // information.
                         } else if (deletedPhoneNumbers.contains(dialerPhoneNumber)) {
                           infoBuilder.clear();
-                        } else if (unprocessableNumbers.contains(dialerPhoneNumber)) {
-                          // Don't ever set the "incomplete" bit for numbers which are empty; this
-                          // causes unnecessary render time work because there will never be contact
-                          // information for an empty number. It is also required to pass the
-                          // assertion check in the new voicemail fragment, which verifies that no
-                          // voicemails rows are considered "incomplete" (the voicemail fragment
-                          // does not have the ability to fetch information at render time).
-                          if (!dialerPhoneNumber.getNormalizedNumber().isEmpty()) {
-                            // Don't clear the existing info when the number is unprocessable. It's
-                            // likely that the existing info is up-to-date so keep it in place so
-                            // that the UI doesn't pop when the query is completed at display time.
-                            infoBuilder.setIsIncomplete(true);
-                          }
                         }
 
                         // If the DialerPhoneNumber didn't change, add the unchanged existing info.
@@ -550,20 +531,9 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         lightweightExecutorService);
   }
 
-  private ArraySet<DialerPhoneNumber> findUnprocessableNumbers(
-      ImmutableMap<DialerPhoneNumber, Cp2Info> existingInfoMap) {
-    ArraySet<DialerPhoneNumber> unprocessableNumbers = new ArraySet<>();
+  private void logInvalidNumberCount(ImmutableMap<DialerPhoneNumber, Cp2Info> existingInfoMap) {
     PartitionedNumbers partitionedNumbers = new PartitionedNumbers(existingInfoMap.keySet());
-
-    int invalidNumberCount = partitionedNumbers.invalidNumbers().size();
-    Logger.get(appContext).logAnnotatedCallLogMetrics(invalidNumberCount);
-
-    if (invalidNumberCount > getMaxSupportedInvalidNumbers()) {
-      for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-        unprocessableNumbers.addAll(partitionedNumbers.dialerPhoneNumbersForInvalid(invalidNumber));
-      }
-    }
-    return unprocessableNumbers;
+    Logger.get(appContext).logAnnotatedCallLogMetrics(partitionedNumbers.invalidNumbers().size());
   }
 
   @Override
@@ -592,8 +562,10 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
             DialerPhoneNumber dialerPhoneNumber = entry.getKey();
             Cp2Info existingInfo = entry.getValue();
 
-            // If the number was deleted, we need to check if it was added to a new contact.
-            if (deletedPhoneNumbers.contains(dialerPhoneNumber)) {
+            // If the number was deleted, we need to check if it was added to a new contact. Numbers
+            // left incomplete by earlier versions, which deferred invalid numbers to render time
+            // when there were too many of them, are looked up again as well.
+            if (deletedPhoneNumbers.contains(dialerPhoneNumber) || existingInfo.getIsIncomplete()) {
               updatedNumbers.add(dialerPhoneNumber);
               continue;
             }
@@ -699,8 +671,8 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
           }
 
           // Divide the numbers into those that are valid and those that are not. Issue a single
-          // batch query for the valid numbers against the PHONE table, and in parallel issue
-          // individual queries against PHONE_LOOKUP for each invalid number.
+          // batch query for the valid numbers against the PHONE table, and in parallel make a
+          // single pass over the PHONE table which loosely matches all of the invalid numbers.
           // TODO(zachh): These queries are inefficient without a lastModified column to filter on.
           PartitionedNumbers partitionedNumbers =
               new PartitionedNumbers(ImmutableSet.copyOf(updatedNumbers));
@@ -708,19 +680,14 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
           ListenableFuture<Map<String, Set<Cp2ContactInfo>>> validNumbersFuture =
               batchQueryForValidNumbers(partitionedNumbers.validE164Numbers());
 
-          List<ListenableFuture<Set<Cp2ContactInfo>>> invalidNumbersFuturesList = new ArrayList<>();
-          for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-            invalidNumbersFuturesList.add(individualQueryForInvalidNumber(invalidNumber));
-          }
-
-          ListenableFuture<List<Set<Cp2ContactInfo>>> invalidNumbersFuture =
-              Futures.allAsList(invalidNumbersFuturesList);
+          ListenableFuture<Map<String, Set<Cp2ContactInfo>>> invalidNumbersFuture =
+              batchQueryForInvalidNumbers(partitionedNumbers.invalidNumbers());
 
           Callable<Map<DialerPhoneNumber, Set<Cp2ContactInfo>>> computeMap =
               () -> {
                 // These get() calls are safe because we are using whenAllSucceed below.
                 Map<String, Set<Cp2ContactInfo>> validNumbersResult = validNumbersFuture.get();
-                List<Set<Cp2ContactInfo>> invalidNumbersResult = invalidNumbersFuture.get();
+                Map<String, Set<Cp2ContactInfo>> invalidNumbersResult = invalidNumbersFuture.get();
 
                 Map<DialerPhoneNumber, Set<Cp2ContactInfo>> map = new ArrayMap<>();
 
@@ -741,9 +708,9 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
                 }
 
                 // Next update the map with the invalid results.
-                int i = 0;
-                for (String invalidNumber : partitionedNumbers.invalidNumbers()) {
-                  Set<Cp2ContactInfo> cp2Infos = invalidNumbersResult.get(i++);
+                for (Entry<String, Set<Cp2ContactInfo>> entry : invalidNumbersResult.entrySet()) {
+                  String invalidNumber = entry.getKey();
+                  Set<Cp2ContactInfo> cp2Infos = entry.getValue();
                   Set<DialerPhoneNumber> dialerPhoneNumbers =
                       partitionedNumbers.dialerPhoneNumbersForInvalid(invalidNumber);
 
@@ -804,31 +771,96 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
         });
   }
 
-  private ListenableFuture<Set<Cp2ContactInfo>> individualQueryForInvalidNumber(
-      String invalidNumber) {
+  /**
+   * Loosely matches {@code invalidNumbers} against the NUMBER column of the PHONE table, the way
+   * PHONE_LOOKUP would match each of them individually.
+   *
+   * <p>The invalid numbers are indexed by their last {@link #MIN_MATCH} digits, so the whole table
+   * is scanned once and {@link PhoneNumberUtils#compare(String, String)} is only run against rows
+   * sharing that suffix.
+   *
+   * @return map from each invalid number which matched any row to the contacts it matched
+   */
+  private ListenableFuture<Map<String, Set<Cp2ContactInfo>>> batchQueryForInvalidNumbers(
+      Set<String> invalidNumbers) {
     return backgroundExecutorService.submit(
         () -> {
-          Set<Cp2ContactInfo> cp2ContactInfos = new ArraySet<>();
-          if (invalidNumber.isEmpty()) {
-            return cp2ContactInfos;
+          Map<String, Set<Cp2ContactInfo>> cp2ContactInfosByNumber = new ArrayMap<>();
+          Map<String, List<String>> invalidNumbersByMinMatch = new ArrayMap<>();
+          for (String invalidNumber : invalidNumbers) {
+            String minMatch = getMinMatch(invalidNumber);
+            if (minMatch.isEmpty()) {
+              continue;
+            }
+            List<String> numbers = invalidNumbersByMinMatch.get(minMatch);
+            if (numbers == null) {
+              numbers = new ArrayList<>();
+              invalidNumbersByMinMatch.put(minMatch, numbers);
+            }
+            numbers.add(invalidNumber);
           }
+          if (invalidNumbersByMinMatch.isEmpty()) {
+            return cp2ContactInfosByNumber;
+          }
+
           try (Cursor cursor =
-              queryPhoneLookup(Cp2Projections.getProjectionForPhoneLookupTable(), invalidNumber)) {
+              appContext
+                  .getContentResolver()
+                  .query(
+                      Phone.CONTENT_URI,
+                      Cp2Projections.getProjectionForPhoneTable(),
+                      Phone.NUMBER + " IS NOT NULL",
+                      null,
+                      null)) {
             if (cursor == null) {
               LogUtil.w(
-                  "Cp2DefaultDirectoryPhoneLookup.individualQueryForInvalidNumber", "null cursor");
-            } else {
-              while (cursor.moveToNext()) {
-                cp2ContactInfos.add(
-                    Cp2Projections.buildCp2ContactInfoFromCursor(
-                        appContext, cursor, Directory.DEFAULT));
+                  "Cp2DefaultDirectoryPhoneLookup.batchQueryForInvalidNumbers", "null cursor");
+              return cp2ContactInfosByNumber;
+            }
+            while (cursor.moveToNext()) {
+              String rowNumber = Cp2Projections.getNumberFromCursor(cursor);
+              List<String> candidates = invalidNumbersByMinMatch.get(getMinMatch(rowNumber));
+              if (candidates == null) {
+                continue;
+              }
+              Cp2ContactInfo cp2ContactInfo = null;
+              for (String invalidNumber : candidates) {
+                if (!PhoneNumberUtils.compare(invalidNumber, rowNumber)) {
+                  continue;
+                }
+                if (cp2ContactInfo == null) {
+                  cp2ContactInfo =
+                      Cp2Projections.buildCp2ContactInfoFromCursor(
+                          appContext, cursor, Directory.DEFAULT);
+                }
+                Set<Cp2ContactInfo> cp2ContactInfos = cp2ContactInfosByNumber.get(invalidNumber);
+                if (cp2ContactInfos == null) {
+                  cp2ContactInfos = new ArraySet<>();
+                  cp2ContactInfosByNumber.put(invalidNumber, cp2ContactInfos);
+                }
+                cp2ContactInfos.add(cp2ContactInfo);
               }
             }
           }
-          return cp2ContactInfos;
+          return cp2ContactInfosByNumber;
         });
   }
 
+  /**
+   * Returns the last {@link #MIN_MATCH} dialable digits of {@code number}, or all of them if there
+   * are fewer.
+   */
+  private static String getMinMatch(@Nullable String number) {
+    if (TextUtils.isEmpty(number)) {
+      return "";
+    }
+    String digits = PhoneNumberUtils.normalizeNumber(number);
+    if (digits.startsWith("+")) {
+      digits = digits.substring(1);
+    }
+    return digits.length() > MIN_MATCH ? digits.substring(digits.length() - MIN_MATCH) : digits;
+  }
+
   /**
    * Adds the {@code cp2ContactInfo} to the entries for all specified {@code dialerPhoneNumbers} in
    * the {@code map}.
@@ -966,9 +998,9 @@ public final class Cp2DefaultDirectoryPhoneLookup implements PhoneLookup<Cp2Info
   }
 
   /**
-   * We cannot efficiently process invalid numbers because batch queries cannot be constructed which
-   * accomplish the necessary loose matching. We'll attempt to process a limited number of them, but
-   * if there are too many we fall back to querying CP2 at render time.
+   * isDirty can't afford the scan of the whole PHONE table which loosely matches invalid numbers in
+   * getMostRecentInfo, so it queries PHONE_LOOKUP for each of them instead. That is only done for a
+   * limited number of them; if there are too many, isDirty returns true.
    */
   private long getMaxSupportedInvalidNumbers() {
     return configProvider.getLong("cp2_phone_lookup_max_invalid_numbers", 5);
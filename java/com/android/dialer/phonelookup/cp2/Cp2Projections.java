@@ -43,7 +43,8 @@ final class Cp2Projections {
         Phone.NORMALIZED_NUMBER, // 6
         Phone.CONTACT_ID, // 7
         Phone.LOOKUP_KEY, // 8
-        Phone.CARRIER_PRESENCE
+        Phone.CARRIER_PRESENCE, // 9
+        Phone.NUMBER // 10
       };
 
   // Projection for performing lookups using the PHONE_LOOKUP table
@@ -72,6 +73,9 @@ final class Cp2Projections {
   private static final int CP2_INFO_CONTACT_ID_INDEX = 7;
   private static final int CP2_INFO_LOOKUP_KEY_INDEX = 8;
 
+  // Only PHONE_PROJECTION contains the raw number.
+  private static final int PHONE_NUMBER_INDEX = 10;
+
   private Cp2Projections() {}
 
   static String[] getProjectionForPhoneTable() {
@@ -143,4 +147,12 @@ final class Cp2Projections {
   static String getNormalizedNumberFromCursor(Cursor cursor) {
     return cursor.getString(CP2_INFO_NORMALIZED_NUMBER_INDEX);
   }
+
+  /**
+   * Returns the raw number in the current row of {@code cursor}, of which the projection is {@link
+   * #PHONE_PROJECTION}.
+   */
+  static String getNumberFromCursor(Cursor cursor) {
+    return cursor.getString(PHONE_NUMBER_INDEX);
+  }
 }
@@ -26,6 +26,8 @@ public abstract class PhoneLookupDatabaseComponent {
 
   public abstract PhoneLookupHistoryDatabaseHelper phoneLookupHistoryDatabaseHelper();
 
+  public abstract PhoneLookupHistoryCache phoneLookupHistoryCache();
+
   public static PhoneLookupDatabaseComponent get(Context context) {
     return ((PhoneLookupDatabaseComponent.HasComponent)
             ((HasRootComponent) context.getApplicationContext()).component())
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.phonelookup.database;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.support.annotation.Nullable;
+import android.support.annotation.VisibleForTesting;
+import android.support.annotation.WorkerThread;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.LruCache;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.Annotations.BackgroundExecutor;
+import com.android.dialer.common.concurrent.DefaultFutureCallback;
+import com.android.dialer.common.concurrent.ThreadUtil;
+import com.android.dialer.inject.ApplicationContext;
+import com.android.dialer.phonelookup.PhoneLookupInfo;
+import com.android.dialer.phonelookup.database.contract.PhoneLookupHistoryContract.PhoneLookupHistory;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.InvalidProtocolBufferException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.GuardedBy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * A process-wide, size-bounded cache of the parsed {@link PhoneLookupInfo}s in {@link
+ * PhoneLookupHistory}, keyed by normalized number.
+ *
+ * <p>Numbers are read from the database and parsed at most once until they are evicted, including
+ * numbers which aren't in {@link PhoneLookupHistory}. Writes queued with {@link #queueWrite(String,
+ * PhoneLookupInfo)} are visible to reads immediately and written to the database in batches.
+ *
+ * <p>Writes made through {@link PhoneLookupHistoryContentProvider} instead of this class invalidate
+ * the affected numbers.
+ */
+@Singleton
+public final class PhoneLookupHistoryCache {
+
+  /** The time to wait between writing batches of queued writes to PhoneLookupHistory. */
+  @VisibleForTesting static final long BATCH_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(3);
+
+  private static final int MAX_SIZE = 2048;
+
+  private final Context appContext;
+  private final PhoneLookupHistoryDatabaseHelper databaseHelper;
+  private final ListeningExecutorService backgroundExecutor;
+  private final Runnable writeQueuedRunnable = this::writeQueued;
+
+  /** Absent values are numbers which aren't in PhoneLookupHistory. */
+  @GuardedBy("this")
+  private final LruCache<String, Optional<PhoneLookupInfo>> cache = new LruCache<>(MAX_SIZE);
+
+  @GuardedBy("this")
+  private final Map<String, PhoneLookupInfo> queuedWrites =
+      new LinkedHashMap<>(); // Keep the order so the most recent looked up value always wins
+
+  /** Incremented whenever cached values are invalidated, to detect queries which raced with it. */
+  @GuardedBy("this")
+  private int invalidationCount;
+
+  @Inject
+  PhoneLookupHistoryCache(
+      @ApplicationContext Context appContext,
+      PhoneLookupHistoryDatabaseHelper databaseHelper,
+      @BackgroundExecutor ListeningExecutorService backgroundExecutor) {
+    this.appContext = appContext;
+    this.databaseHelper = databaseHelper;
+    this.backgroundExecutor = backgroundExecutor;
+  }
+
+  /**
+   * Returns the {@link PhoneLookupInfo} for {@code normalizedNumber} if it is in memory, without
+   * reading the database.
+   */
+  @Nullable
+  public synchronized PhoneLookupInfo getIfCached(String normalizedNumber) {
+    PhoneLookupInfo queued = queuedWrites.get(normalizedNumber);
+    if (queued != null) {
+      return queued;
+    }
+    Optional<PhoneLookupInfo> cached = cache.get(normalizedNumber);
+    return cached == null ? null : cached.orNull();
+  }
+
+  /**
+   * Returns the {@link PhoneLookupInfo}s for {@code normalizedNumbers}, reading the ones which
+   * aren't in memory from the database. Numbers which aren't in PhoneLookupHistory are not included
+   * in the result.
+   */
+  @WorkerThread
+  public ImmutableMap<String, PhoneLookupInfo> getAll(Set<String> normalizedNumbers) {
+    Assert.isWorkerThread();
+
+    Map<String, PhoneLookupInfo> result = new ArrayMap<>();
+    List<String> missingNumbers = new ArrayList<>();
+    int invalidationCountBeforeQuery;
+    synchronized (this) {
+      invalidationCountBeforeQuery = invalidationCount;
+      for (String normalizedNumber : normalizedNumbers) {
+        PhoneLookupInfo queued = queuedWrites.get(normalizedNumber);
+        Optional<PhoneLookupInfo> cached =
+            queued != null ? Optional.of(queued) : cache.get(normalizedNumber);
+        if (cached == null) {
+          missingNumbers.add(normalizedNumber);
+        } else if (cached.isPresent()) {
+          result.put(normalizedNumber, cached.get());
+        }
+      }
+    }
+    if (missingNumbers.isEmpty()) {
+      return ImmutableMap.copyOf(result);
+    }
+
+    Map<String, PhoneLookupInfo> queried = query(missingNumbers);
+    synchronized (this) {
+      for (String normalizedNumber : missingNumbers) {
+        PhoneLookupInfo phoneLookupInfo = queried.get(normalizedNumber);
+        if (phoneLookupInfo != null) {
+          result.put(normalizedNumber, phoneLookupInfo);
+        }
+        // Don't cache values which may have been changed by a write while they were queried.
+        if (invalidationCount == invalidationCountBeforeQuery
+            && !queuedWrites.containsKey(normalizedNumber)
+            && cache.get(normalizedNumber) == null) {
+          cache.put(normalizedNumber, Optional.fromNullable(phoneLookupInfo));
+        }
+      }
+    }
+    LogUtil.v(
+        "PhoneLookupHistoryCache.getAll",
+        "%d numbers, %d read from database",
+        normalizedNumbers.size(),
+        missingNumbers.size());
+    return ImmutableMap.copyOf(result);
+  }
+
+  /**
+   * Caches {@code phoneLookupInfo} for {@code normalizedNumber} and writes it to PhoneLookupHistory
+   * along with other writes queued within {@link #BATCH_WAIT_MILLIS}.
+   */
+  public void queueWrite(String normalizedNumber, PhoneLookupInfo phoneLookupInfo) {
+    synchronized (this) {
+      queuedWrites.remove(normalizedNumber);
+      queuedWrites.put(normalizedNumber, phoneLookupInfo);
+      cache.put(normalizedNumber, Optional.of(phoneLookupInfo));
+    }
+    ThreadUtil.getUiThreadHandler().removeCallbacks(writeQueuedRunnable);
+    ThreadUtil.getUiThreadHandler().postDelayed(writeQueuedRunnable, BATCH_WAIT_MILLIS);
+  }
+
+  /**
+   * Writes {@code updates} to PhoneLookupHistory and deletes {@code deletes} from it, in a single
+   * transaction, and updates the cache accordingly.
+   */
+  @WorkerThread
+  public void write(Map<String, PhoneLookupInfo> updates, Set<String> deletes) {
+    Assert.isWorkerThread();
+    if (updates.isEmpty() && deletes.isEmpty()) {
+      return;
+    }
+
+    synchronized (this) {
+      // Drop older queued values first, so that a batch written later can't overwrite these.
+      for (String normalizedNumber : updates.keySet()) {
+        queuedWrites.remove(normalizedNumber);
+      }
+      for (String normalizedNumber : deletes) {
+        queuedWrites.remove(normalizedNumber);
+      }
+    }
+    writeToDatabase(updates, deletes);
+    synchronized (this) {
+      for (Entry<String, PhoneLookupInfo> entry : updates.entrySet()) {
+        cache.put(entry.getKey(), Optional.of(entry.getValue()));
+      }
+      for (String normalizedNumber : deletes) {
+        cache.put(normalizedNumber, Optional.absent());
+      }
+    }
+  }
+
+  /** Drops all cached and queued values, for example when PhoneLookupHistory is deleted. */
+  public synchronized void clear() {
+    invalidationCount++;
+    cache.evictAll();
+    queuedWrites.clear();
+  }
+
+  /**
+   * Drops the cached and queued values for {@code normalizedNumber}, which was changed in the
+   * database. A queued value is older than the change and must not overwrite it.
+   */
+  synchronized void invalidate(String normalizedNumber) {
+    invalidationCount++;
+    cache.remove(normalizedNumber);
+    queuedWrites.remove(normalizedNumber);
+  }
+
+  /** Drops all cached and queued values, after arbitrary rows were changed in the database. */
+  synchronized void invalidateAll() {
+    invalidationCount++;
+    cache.evictAll();
+    queuedWrites.clear();
+  }
+
+  private void writeQueued() {
+    // Copy the batch to a new collection that be safely processed on a background thread. Queued
+    // values stay readable from the cache.
+    ImmutableMap<String, PhoneLookupInfo> currentBatch;
+    synchronized (this) {
+      currentBatch = ImmutableMap.copyOf(queuedWrites);
+      queuedWrites.clear();
+    }
+    if (currentBatch.isEmpty()) {
+      return;
+    }
+
+    Futures.addCallback(
+        backgroundExecutor.submit(
+            () -> {
+              writeToDatabase(currentBatch, ImmutableSet.of());
+              LogUtil.i(
+                  "PhoneLookupHistoryCache.writeQueued",
+                  "wrote %d rows to PhoneLookupHistory",
+                  currentBatch.size());
+              return null;
+            }),
+        new DefaultFutureCallback<>(),
+        MoreExecutors.directExecutor());
+  }
+
+  @WorkerThread
+  private void writeToDatabase(Map<String, PhoneLookupInfo> updates, Set<String> deletes) {
+    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    long currentTimestamp = System.currentTimeMillis();
+    database.beginTransaction();
+    try (SQLiteStatement replace =
+            database.compileStatement(
+                "insert or replace into "
+                    + PhoneLookupHistory.TABLE
+                    + " ("
+                    + PhoneLookupHistory.NORMALIZED_NUMBER
+                    + ", "
+                    + PhoneLookupHistory.PHONE_LOOKUP_INFO
+                    + ", "
+                    + PhoneLookupHistory.LAST_MODIFIED
+                    + ") values (?, ?, ?)");
+        SQLiteStatement delete =
+            database.compileStatement(
+                "delete from "
+                    + PhoneLookupHistory.TABLE
+                    + " where "
+                    + PhoneLookupHistory.NORMALIZED_NUMBER
+                    + " = ?")) {
+      for (Entry<String, PhoneLookupInfo> entry : updates.entrySet()) {
+        // Note: This loses country info when number is not valid.
+        replace.bindString(1, entry.getKey());
+        replace.bindBlob(2, entry.getValue().toByteArray());
+        replace.bindLong(3, currentTimestamp);
+        replace.executeInsert();
+      }
+      for (String normalizedNumber : deletes) {
+        delete.bindString(1, normalizedNumber);
+        delete.executeUpdateDelete();
+      }
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+    appContext.getContentResolver().notifyChange(PhoneLookupHistory.CONTENT_URI, null);
+  }
+
+  @WorkerThread
+  private Map<String, PhoneLookupInfo> query(List<String> normalizedNumbers) {
+    Map<String, PhoneLookupInfo> normalizedNumberToInfoMap = new ArrayMap<>();
+    SQLiteDatabase database = databaseHelper.getReadableDatabase();
+
+    // Batch the select statements into chunks of 999, the maximum size for SQLite selection args.
+    for (List<String> numbersInBatch : Iterables.partition(normalizedNumbers, 999)) {
+      String[] questionMarks = new String[numbersInBatch.size()];
+      Arrays.fill(questionMarks, "?");
+      String selection =
+          PhoneLookupHistory.NORMALIZED_NUMBER
+              + " in ("
+              + TextUtils.join(",", questionMarks)
+              + ")";
+      try (Cursor cursor =
+          database.query(
+              PhoneLookupHistory.TABLE,
+              new String[] {
+                PhoneLookupHistory.NORMALIZED_NUMBER, PhoneLookupHistory.PHONE_LOOKUP_INFO
+              },
+              selection,
+              numbersInBatch.toArray(new String[0]),
+              null,
+              null,
+              null)) {
+        while (cursor.moveToNext()) {
+          PhoneLookupInfo phoneLookupInfo;
+          try {
+            phoneLookupInfo = PhoneLookupInfo.parseFrom(cursor.getBlob(1));
+          } catch (InvalidProtocolBufferException e) {
+            throw new IllegalStateException(e);
+          }
+          normalizedNumberToInfoMap.put(cursor.getString(0), phoneLookupInfo);
+        }
+      }
+    }
+    return normalizedNumberToInfoMap;
+  }
+}
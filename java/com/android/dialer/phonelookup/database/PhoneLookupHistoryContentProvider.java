@@ -71,6 +71,7 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
   }
 
   private PhoneLookupHistoryDatabaseHelper databaseHelper;
+  private PhoneLookupHistoryCache phoneLookupHistoryCache;
 
   private final ThreadLocal<Boolean> applyingBatch = new ThreadLocal<>();
 
@@ -83,6 +84,8 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
   public boolean onCreate() {
     databaseHelper =
         PhoneLookupDatabaseComponent.get(getContext()).phoneLookupHistoryDatabaseHelper();
+    phoneLookupHistoryCache =
+        PhoneLookupDatabaseComponent.get(getContext()).phoneLookupHistoryCache();
     return true;
   }
 
@@ -168,6 +171,7 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
           LogUtil.sanitizePhoneNumber(values.getAsString(PhoneLookupHistory.NORMALIZED_NUMBER)));
       return null;
     }
+    phoneLookupHistoryCache.invalidate(values.getAsString(PhoneLookupHistory.NORMALIZED_NUMBER));
     Uri insertedUri =
         PhoneLookupHistory.contentUriForNumber(
             values.getAsString(PhoneLookupHistory.NORMALIZED_NUMBER));
@@ -203,6 +207,11 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
       LogUtil.w("PhoneLookupHistoryContentProvider.delete", "no rows deleted");
       return rows;
     }
+    if (uriType == UriType.PHONE_LOOKUP_HISTORY_TABLE_ID_CODE) {
+      phoneLookupHistoryCache.invalidate(selectionArgs[0]);
+    } else {
+      phoneLookupHistoryCache.invalidateAll();
+    }
     if (!isApplyingBatch()) {
       notifyChange(uri);
     }
@@ -236,6 +245,7 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
           LogUtil.w("PhoneLookupHistoryContentProvider.update", "no rows updated");
           return rows;
         }
+        phoneLookupHistoryCache.invalidateAll();
         if (!isApplyingBatch()) {
           notifyChange(uri);
         }
@@ -253,6 +263,7 @@ public class PhoneLookupHistoryContentProvider extends ContentProvider {
         values.put(PhoneLookupHistory.NORMALIZED_NUMBER, normalizedNumber);
         long result = database.replace(PhoneLookupHistory.TABLE, null, values);
         Assert.checkArgument(result != -1, "replacing PhoneLookupHistory row failed");
+        phoneLookupHistoryCache.invalidate(normalizedNumber);
         if (!isApplyingBatch()) {
           notifyChange(uri);
         }
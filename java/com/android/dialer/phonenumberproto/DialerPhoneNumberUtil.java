@@ -19,11 +19,14 @@ package com.android.dialer.phonenumberproto;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
+import android.support.v4.util.Pair;
 import android.telephony.PhoneNumberUtils;
 import android.text.TextUtils;
+import android.util.LruCache;
 import com.android.dialer.DialerPhoneNumber;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
+import com.google.common.base.Optional;
 import com.google.i18n.phonenumbers.NumberParseException;
 import com.google.i18n.phonenumbers.PhoneNumberUtil;
 import com.google.i18n.phonenumbers.PhoneNumberUtil.MatchType;
@@ -36,8 +39,27 @@ import com.google.i18n.phonenumbers.ShortNumberInfo;
  * lite proto instead of the {@link com.google.i18n.phonenumbers.Phonenumber.PhoneNumber} POJO.
  *
  * <p>All methods should be called on a worker thread.
+ *
+ * <p>Parse results are memoized process-wide by raw number and region, since the same numbers are
+ * parsed repeatedly by the call log and phone lookups. Instances are therefore cheap to create and
+ * share their results.
  */
 public class DialerPhoneNumberUtil {
+
+  private static final int MAX_CACHED_NUMBERS = 2048;
+
+  /** Results of {@link #parse(String, String)}, keyed by raw number and default region. */
+  private static final LruCache<Pair<String, String>, DialerPhoneNumber> parsedNumbers =
+      new LruCache<>(MAX_CACHED_NUMBERS);
+
+  /**
+   * libphonenumber parse results used by {@link #isMatch(DialerPhoneNumber, DialerPhoneNumber)},
+   * keyed by normalized number and country. The cached {@link PhoneNumber PhoneNumbers} are shared
+   * and must not be modified.
+   */
+  private static final LruCache<Pair<String, String>, Optional<PhoneNumber>> libPhoneNumbers =
+      new LruCache<>(MAX_CACHED_NUMBERS);
+
   private final PhoneNumberUtil phoneNumberUtil;
   private final ShortNumberInfo shortNumberInfo;
 
@@ -57,6 +79,21 @@ public class DialerPhoneNumberUtil {
   public DialerPhoneNumber parse(@Nullable String numberToParse, @Nullable String defaultRegion) {
     Assert.isWorkerThread();
 
+    // Nothing is parsed for a null number, so there is no need to cache it.
+    if (numberToParse == null) {
+      return parseInternal(null, defaultRegion);
+    }
+    Pair<String, String> key = Pair.create(numberToParse, defaultRegion);
+    DialerPhoneNumber dialerPhoneNumber = parsedNumbers.get(key);
+    if (dialerPhoneNumber == null) {
+      dialerPhoneNumber = parseInternal(numberToParse, defaultRegion);
+      parsedNumbers.put(key, dialerPhoneNumber);
+    }
+    return dialerPhoneNumber;
+  }
+
+  private DialerPhoneNumber parseInternal(
+      @Nullable String numberToParse, @Nullable String defaultRegion) {
     DialerPhoneNumber.Builder dialerPhoneNumber = DialerPhoneNumber.newBuilder();
 
     if (defaultRegion != null) {
@@ -136,22 +173,12 @@ public class DialerPhoneNumberUtil {
       return false;
     }
 
-    PhoneNumber phoneNumber1 = null;
-    try {
-      phoneNumber1 =
-          phoneNumberUtil.parse(firstNumberIn.getNormalizedNumber(), firstNumberIn.getCountryIso());
-    } catch (NumberParseException e) {
-      // fall through
-    }
-
-    PhoneNumber phoneNumber2 = null;
-    try {
-      phoneNumber2 =
-          phoneNumberUtil.parse(
-              secondNumberIn.getNormalizedNumber(), secondNumberIn.getCountryIso());
-    } catch (NumberParseException e) {
-      // fall through
-    }
+    PhoneNumber phoneNumber1 =
+        parseToLibPhoneNumber(firstNumberIn.getNormalizedNumber(), firstNumberIn.getCountryIso())
+            .orNull();
+    PhoneNumber phoneNumber2 =
+        parseToLibPhoneNumber(secondNumberIn.getNormalizedNumber(), secondNumberIn.getCountryIso())
+            .orNull();
 
     // If either number is a service number or either number can't be parsed by libphonenumber, just
     // fallback to basic textual matching.
@@ -178,6 +205,32 @@ public class DialerPhoneNumberUtil {
         && firstNumberIn.getPostDialPortion().equals(secondNumberIn.getPostDialPortion());
   }
 
+  /**
+   * Returns the memoized result of {@link PhoneNumberUtil#parse(CharSequence, String)}, or {@link
+   * Optional#absent()} if the number can't be parsed.
+   */
+  private Optional<PhoneNumber> parseToLibPhoneNumber(String number, String region) {
+    Pair<String, String> key = Pair.create(number, region);
+    Optional<PhoneNumber> phoneNumber = libPhoneNumbers.get(key);
+    if (phoneNumber == null) {
+      try {
+        phoneNumber = Optional.of(phoneNumberUtil.parse(number, region));
+      } catch (NumberParseException e) {
+        phoneNumber = Optional.absent();
+      }
+      libPhoneNumbers.put(key, phoneNumber);
+    }
+    return phoneNumber;
+  }
+
+  /**
+   * Returns the hit and miss counts of the memoized parse results, for example {@code
+   * "parse: LruCache[maxSize=2048,hits=90,misses=10,hitRate=90%], ..."}.
+   */
+  public static String getCacheStats() {
+    return "parse: " + parsedNumbers + ", match: " + libPhoneNumbers;
+  }
+
   private boolean isServiceNumber(@NonNull String rawNumber) {
     return rawNumber.contains("#") || rawNumber.startsWith("*");
   }
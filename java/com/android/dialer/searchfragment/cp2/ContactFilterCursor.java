@@ -30,7 +30,6 @@ import android.provider.ContactsContract.CommonDataKinds.Organization;
 import android.provider.ContactsContract.CommonDataKinds.Phone;
 import android.support.annotation.IntDef;
 import android.support.annotation.Nullable;
-import android.support.v4.util.ArraySet;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import com.android.dialer.searchfragment.common.Projections;
@@ -38,11 +37,12 @@ import com.android.dialer.searchfragment.common.QueryFilteringUtil;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
-import java.util.Set;
 
 /**
  * Wrapper for a cursor containing all on device contacts.
@@ -53,9 +53,13 @@ import java.util.Set;
 final class ContactFilterCursor implements Cursor {
 
   private final Cursor cursor;
-  // List of cursor ids that are valid for displaying after filtering.
-  private final List<Integer> queryFilteredPositions = new ArrayList<>();
-  private final ContactTernarySearchTree contactTree;
+  // Cursor ids that are valid for displaying after filtering.
+  private final BitSet queryFilteredPositions = new BitSet();
+  // The first resolvedCount set bits of queryFilteredPositions, resolved as rows are requested.
+  private int[] resolvedPositions = new int[0];
+  private int resolvedCount = 0;
+  private int matchCount = 0;
+  private final ContactSearchIndex.View contactIndex;
 
   private int currentPosition = 0;
 
@@ -81,7 +85,7 @@ final class ContactFilterCursor implements Cursor {
    */
   ContactFilterCursor(Cursor cursor, @Nullable String query, Context context) {
     this.cursor = createCursor(cursor);
-    contactTree = buildContactSearchTree(context, this.cursor);
+    contactIndex = ContactSearchIndex.get(context).update(context, this.cursor);
     filter(query, context);
   }
 
@@ -235,69 +239,6 @@ final class ContactFilterCursor implements Cursor {
     return contactIdContacts;
   }
 
-  /**
-   * Returns a ternary search trie based on the contact at the cursor's current position with the
-   * following terms inserted:
-   *
-   * <ul>
-   *   <li>Contact's whole display name, company name and nickname.
-   *   <li>The T9 representations of those values
-   *   <li>The T9 initials of those values
-   *   <li>All possible substrings a contact's phone number
-   * </ul>
-   */
-  private static ContactTernarySearchTree buildContactSearchTree(Context context, Cursor cursor) {
-    ContactTernarySearchTree tree = new ContactTernarySearchTree();
-    cursor.moveToPosition(-1);
-    while (cursor.moveToNext()) {
-      int position = cursor.getPosition();
-      Set<String> queryMatches = new ArraySet<>();
-      addMatches(context, queryMatches, cursor.getString(Projections.DISPLAY_NAME));
-      addMatches(context, queryMatches, cursor.getString(Projections.COMPANY_NAME));
-      addMatches(context, queryMatches, cursor.getString(Projections.NICKNAME));
-      for (String query : queryMatches) {
-        tree.put(query, position);
-      }
-      String number = QueryFilteringUtil.digitsOnly(cursor.getString(Projections.PHONE_NUMBER));
-      Set<String> numberSubstrings = new ArraySet<>();
-      numberSubstrings.add(number);
-      for (int start = 0; start < number.length(); start++) {
-        numberSubstrings.add(number.substring(start, number.length()));
-      }
-      for (String substring : numberSubstrings) {
-        tree.put(substring, position);
-      }
-    }
-    return tree;
-  }
-
-  /**
-   * Returns a set containing:
-   *
-   * <ul>
-   *   <li>The white space divided parts of phrase
-   *   <li>The T9 representation of the white space divided parts of phrase
-   *   <li>The T9 representation of the initials (i.e. first character of each part) of phrase
-   * </ul>
-   */
-  private static void addMatches(Context context, Set<String> existingMatches, String phrase) {
-    if (TextUtils.isEmpty(phrase)) {
-      return;
-    }
-    String initials = "";
-    phrase = phrase.toLowerCase(Locale.getDefault());
-    existingMatches.add(phrase);
-    for (String name : phrase.split("\\s")) {
-      if (TextUtils.isEmpty(name)) {
-        continue;
-      }
-      existingMatches.add(name);
-      existingMatches.add(QueryFilteringUtil.getT9Representation(name, context));
-      initials += name.charAt(0);
-    }
-    existingMatches.add(QueryFilteringUtil.getT9Representation(initials, context));
-  }
-
   /**
    * Filters out contacts that do not match the query.
    *
@@ -324,13 +265,12 @@ final class ContactFilterCursor implements Cursor {
     }
     queryFilteredPositions.clear();
     if (TextUtils.isEmpty(query)) {
-      for (int i = 0; i < cursor.getCount(); i++) {
-        queryFilteredPositions.add(i);
-      }
+      queryFilteredPositions.set(0, cursor.getCount());
     } else {
-      queryFilteredPositions.addAll(contactTree.get(query.toLowerCase(Locale.getDefault())));
+      contactIndex.find(query.toLowerCase(Locale.getDefault()), queryFilteredPositions);
     }
-    Collections.sort(queryFilteredPositions);
+    matchCount = queryFilteredPositions.cardinality();
+    resolvedCount = 0;
     currentPosition = 0;
     cursor.moveToFirst();
   }
@@ -338,8 +278,26 @@ final class ContactFilterCursor implements Cursor {
   @Override
   public boolean moveToPosition(int position) {
     currentPosition = position;
-    return currentPosition < getCount()
-        && cursor.moveToPosition(queryFilteredPositions.get(currentPosition));
+    return currentPosition >= 0
+        && currentPosition < getCount()
+        && cursor.moveToPosition(resolvePosition(currentPosition));
+  }
+
+  /**
+   * Returns the position in {@link #cursor} of the {@code index}th match. Matches are resolved in
+   * cursor order and only as far as rows are actually requested, so a short query that matches
+   * most contacts costs no more than the rows that get bound.
+   */
+  private int resolvePosition(int index) {
+    if (index >= resolvedPositions.length) {
+      resolvedPositions =
+          Arrays.copyOf(resolvedPositions, Math.min(matchCount, Math.max(32, index * 2)));
+    }
+    while (resolvedCount <= index) {
+      int from = resolvedCount == 0 ? 0 : resolvedPositions[resolvedCount - 1] + 1;
+      resolvedPositions[resolvedCount++] = queryFilteredPositions.nextSetBit(from);
+    }
+    return resolvedPositions[index];
   }
 
   @Override
@@ -350,7 +308,7 @@ final class ContactFilterCursor implements Cursor {
 
   @Override
   public int getCount() {
-    return queryFilteredPositions.size();
+    return matchCount;
   }
 
   @Override
@@ -0,0 +1,436 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.dialer.searchfragment.cp2;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.SystemClock;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.util.ArraySet;
+import android.text.TextUtils;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.searchfragment.common.Projections;
+import com.android.dialer.searchfragment.common.QueryFilteringUtil;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Process wide {@link ContactTernarySearchTree} of on device contacts that is persisted to app
+ * storage and updated incrementally.
+ *
+ * <p>Values in the tree are entry IDs rather than cursor positions. Every entry is keyed by the
+ * contact ID and a hash of the fields its search terms are built from, so an entry stays valid for
+ * as long as the contact's name, company, nickname and number are unchanged. When a cursor is
+ * delivered, only rows without a matching entry have their terms generated; entries of changed or
+ * deleted rows are left behind as dead entries until there are enough of them to warrant a full
+ * rebuild.
+ *
+ * <p>The index is written to {@link #FILE_NAME} in a compact binary format after every change, and
+ * read back in a single read the first time it is used in a new process. Saving serializes the
+ * index to memory while holding its lock and writes the file after releasing it, so lookups never
+ * wait for storage.
+ */
+final class ContactSearchIndex {
+
+  private static final String FILE_NAME = "contact_search_index.bin";
+  private static final int MAGIC = 0x43534958; // "CSIX"
+  private static final int FORMAT_VERSION = 1;
+
+  /** Rebuild once dead entries outnumber live ones and there are at least this many of them. */
+  private static final int MIN_DEAD_ENTRIES_FOR_REBUILD = 256;
+
+  private static ContactSearchIndex instance;
+
+  private final File file;
+
+  /** Locale the T9 representations in {@link #tree} were generated for. */
+  private String locale;
+
+  private ContactTernarySearchTree tree = new ContactTernarySearchTree();
+  private long[] entryKeys = new long[0];
+  private int entryCount = 0;
+
+  /** Bumped on every change so that a pending save can tell whether it is still needed. */
+  private int generation = 0;
+
+  /** Held while writing {@link #file}, which is done without holding the index's own lock. */
+  private final Object fileLock = new Object();
+
+  /** The generation last written to {@link #file}, guarded by {@link #fileLock}. */
+  private int savedGeneration = 0;
+
+  private ContactSearchIndex(File file) {
+    this.file = file;
+  }
+
+  static synchronized ContactSearchIndex get(Context context) {
+    if (instance == null) {
+      instance = new ContactSearchIndex(new File(context.getFilesDir(), FILE_NAME));
+      instance.load(Locale.getDefault().toString());
+    }
+    return instance;
+  }
+
+  /**
+   * Brings the index up to date with {@code cursor} and returns a {@link View} that maps the
+   * index's entries to positions in {@code cursor}.
+   */
+  @WorkerThread
+  synchronized View update(Context context, Cursor cursor) {
+    long startMillis = SystemClock.elapsedRealtime();
+    String currentLocale = Locale.getDefault().toString();
+    if (!currentLocale.equals(locale)) {
+      clear(currentLocale);
+    }
+
+    // Entries of the current index sorted by key, to look rows up without boxing.
+    long[] sortedKeys = Arrays.copyOf(entryKeys, entryCount);
+    Arrays.sort(sortedKeys);
+    int[] entryBySortedKey = sortEntriesByKey(sortedKeys);
+
+    int[] positionByEntry = new int[entryCount + cursor.getCount()];
+    Arrays.fill(positionByEntry, -1);
+    int liveEntries = 0;
+    int addedEntries = 0;
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      long key = getEntryKey(cursor);
+      int entry = findUnusedEntry(sortedKeys, entryBySortedKey, positionByEntry, key);
+      if (entry == -1) {
+        entry = addEntry(key);
+        addTerms(context, tree, cursor, entry);
+        addedEntries++;
+      }
+      positionByEntry[entry] = cursor.getPosition();
+      liveEntries++;
+    }
+
+    int deadEntries = entryCount - liveEntries;
+    if (deadEntries >= MIN_DEAD_ENTRIES_FOR_REBUILD && deadEntries > liveEntries) {
+      rebuild(context, cursor);
+      positionByEntry = new int[entryCount];
+      for (int entry = 0; entry < entryCount; entry++) {
+        positionByEntry[entry] = entry;
+      }
+      addedEntries = entryCount;
+    }
+
+    if (addedEntries > 0) {
+      tree.pack();
+      generation++;
+      scheduleSave(context);
+    }
+    LogUtil.i(
+        "ContactSearchIndex.update",
+        "%d rows, %d new entries, %d entries total, took %dms",
+        cursor.getCount(),
+        addedEntries,
+        entryCount,
+        SystemClock.elapsedRealtime() - startMillis);
+    return new View(this, tree, Arrays.copyOf(positionByEntry, entryCount));
+  }
+
+  /** Replaces the index with one built from {@code cursor}, where entry N is row N. */
+  private void rebuild(Context context, Cursor cursor) {
+    clear(locale);
+    cursor.moveToPosition(-1);
+    while (cursor.moveToNext()) {
+      addTerms(context, tree, cursor, addEntry(getEntryKey(cursor)));
+    }
+  }
+
+  private void clear(String newLocale) {
+    locale = newLocale;
+    tree = new ContactTernarySearchTree();
+    entryKeys = new long[0];
+    entryCount = 0;
+  }
+
+  private int addEntry(long key) {
+    if (entryCount == entryKeys.length) {
+      entryKeys = Arrays.copyOf(entryKeys, Math.max(16, entryCount * 2));
+    }
+    entryKeys[entryCount] = key;
+    return entryCount++;
+  }
+
+  /**
+   * Returns an entry with {@code key} that no row of the cursor has claimed yet, or -1 if there is
+   * none. Rows which are identical apart from their data ID, such as the same number in two raw
+   * contacts of one contact, share a key and each claim one of its entries.
+   */
+  private static int findUnusedEntry(
+      long[] sortedKeys, int[] entryBySortedKey, int[] positionByEntry, long key) {
+    int index = Arrays.binarySearch(sortedKeys, key);
+    if (index < 0) {
+      return -1;
+    }
+    // Walk back to the first equal key, then forward to the first entry not yet claimed.
+    while (index > 0 && sortedKeys[index - 1] == key) {
+      index--;
+    }
+    for (; index < sortedKeys.length && sortedKeys[index] == key; index++) {
+      int entry = entryBySortedKey[index];
+      if (positionByEntry[entry] == -1) {
+        return entry;
+      }
+    }
+    return -1;
+  }
+
+  /** Returns, for each key in {@code sortedKeys}, the entry it belongs to. */
+  private int[] sortEntriesByKey(long[] sortedKeys) {
+    int[] result = new int[sortedKeys.length];
+    boolean[] used = new boolean[entryCount];
+    for (int entry = 0; entry < entryCount; entry++) {
+      int index = Arrays.binarySearch(sortedKeys, entryKeys[entry]);
+      // Walk back to the first equal key, then forward to the first one not yet assigned.
+      while (index > 0 && sortedKeys[index - 1] == entryKeys[entry]) {
+        index--;
+      }
+      while (used[index]) {
+        index++;
+      }
+      used[index] = true;
+      result[index] = entry;
+    }
+    return result;
+  }
+
+  /**
+   * Returns the key of the row at the cursor's current position: the contact ID in the upper half
+   * and a hash of every column that search terms are built from in the lower half.
+   */
+  private static long getEntryKey(Cursor cursor) {
+    int hash =
+        Objects.hash(
+            cursor.getString(Projections.DISPLAY_NAME),
+            cursor.getString(Projections.COMPANY_NAME),
+            cursor.getString(Projections.NICKNAME),
+            cursor.getString(Projections.PHONE_NUMBER));
+    return ((long) cursor.getInt(Projections.CONTACT_ID) << 32) | (hash & 0xffffffffL);
+  }
+
+  /**
+   * Adds the search terms of the contact at the cursor's current position to {@code tree}:
+   *
+   * <ul>
+   *   <li>Contact's whole display name, company name and nickname.
+   *   <li>The T9 representations of those values
+   *   <li>The T9 initials of those values
+   *   <li>All possible substrings a contact's phone number
+   * </ul>
+   */
+  private static void addTerms(
+      Context context, ContactTernarySearchTree tree, Cursor cursor, int value) {
+    Set<String> queryMatches = new ArraySet<>();
+    addMatches(context, queryMatches, cursor.getString(Projections.DISPLAY_NAME));
+    addMatches(context, queryMatches, cursor.getString(Projections.COMPANY_NAME));
+    addMatches(context, queryMatches, cursor.getString(Projections.NICKNAME));
+    for (String query : queryMatches) {
+      tree.put(query, value);
+    }
+    String number = QueryFilteringUtil.digitsOnly(cursor.getString(Projections.PHONE_NUMBER));
+    Set<String> numberSubstrings = new ArraySet<>();
+    numberSubstrings.add(number);
+    for (int start = 0; start < number.length(); start++) {
+      numberSubstrings.add(number.substring(start, number.length()));
+    }
+    for (String substring : numberSubstrings) {
+      tree.put(substring, value);
+    }
+  }
+
+  /**
+   * Returns a set containing:
+   *
+   * <ul>
+   *   <li>The white space divided parts of phrase
+   *   <li>The T9 representation of the white space divided parts of phrase
+   *   <li>The T9 representation of the initials (i.e. first character of each part) of phrase
+   * </ul>
+   */
+  private static void addMatches(Context context, Set<String> existingMatches, String phrase) {
+    if (TextUtils.isEmpty(phrase)) {
+      return;
+    }
+    String initials = "";
+    phrase = phrase.toLowerCase(Locale.getDefault());
+    existingMatches.add(phrase);
+    for (String name : phrase.split("\\s")) {
+      if (TextUtils.isEmpty(name)) {
+        continue;
+      }
+      existingMatches.add(name);
+      existingMatches.add(QueryFilteringUtil.getT9Representation(name, context));
+      initials += name.charAt(0);
+    }
+    existingMatches.add(QueryFilteringUtil.getT9Representation(initials, context));
+  }
+
+  private void scheduleSave(Context context) {
+    DialerExecutorComponent.get(context).backgroundExecutor().execute(this::save);
+  }
+
+  /**
+   * Writes the index to a temporary file and renames it over {@link #file}, so that a crash never
+   * leaves a partially written index behind.
+   */
+  private void save() {
+    synchronized (fileLock) {
+      int snapshotGeneration;
+      byte[] snapshot;
+      synchronized (this) {
+        if (savedGeneration == generation) {
+          return;
+        }
+        snapshotGeneration = generation;
+        snapshot = serialize();
+      }
+
+      File tempFile = new File(file.getPath() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(tempFile)) {
+        out.write(snapshot);
+      } catch (IOException e) {
+        LogUtil.e("ContactSearchIndex.save", "failed to write index", e);
+        tempFile.delete();
+        return;
+      }
+      if (!tempFile.renameTo(file)) {
+        LogUtil.e("ContactSearchIndex.save", "failed to rename index");
+        tempFile.delete();
+        return;
+      }
+      savedGeneration = snapshotGeneration;
+    }
+  }
+
+  /** Returns the index in the format read by {@link #load}. */
+  private byte[] serialize() {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(MAGIC);
+      out.writeInt(FORMAT_VERSION);
+      out.writeUTF(locale);
+      out.writeInt(entryCount);
+      for (int entry = 0; entry < entryCount; entry++) {
+        out.writeLong(entryKeys[entry]);
+      }
+      tree.writeTo(out);
+    } catch (IOException e) {
+      // ByteArrayOutputStream never throws.
+      throw new AssertionError(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  /** Reads the index from {@link #file}, falling back to an empty index if it can't be used. */
+  private void load(String currentLocale) {
+    clear(currentLocale);
+    if (!file.exists()) {
+      return;
+    }
+    long startMillis = SystemClock.elapsedRealtime();
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      // The tree is copied into arrays anyway, so read the file into the heap in one go rather
+      // than mapping it and copying from the mapping.
+      byte[] bytes = new byte[(int) randomAccessFile.length()];
+      randomAccessFile.readFully(bytes);
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      if (buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+        LogUtil.i("ContactSearchIndex.load", "unknown format, ignoring index");
+        return;
+      }
+      String fileLocale = readUtf(buffer);
+      if (!currentLocale.equals(fileLocale)) {
+        LogUtil.i("ContactSearchIndex.load", "locale changed, ignoring index");
+        return;
+      }
+      int count = buffer.getInt();
+      long[] keys = new long[count];
+      buffer.asLongBuffer().get(keys);
+      buffer.position(buffer.position() + count * Long.BYTES);
+      ContactTernarySearchTree loadedTree = ContactTernarySearchTree.readFrom(buffer);
+
+      tree = loadedTree;
+      entryKeys = keys;
+      entryCount = count;
+      LogUtil.i(
+          "ContactSearchIndex.load",
+          "loaded %d entries in %dms",
+          count,
+          SystemClock.elapsedRealtime() - startMillis);
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LogUtil.e("ContactSearchIndex.load", "failed to read index", e);
+      clear(currentLocale);
+    }
+  }
+
+  /** Reads a string written by {@link DataOutputStream#writeUTF}. */
+  private static String readUtf(ByteBuffer buffer) throws IOException {
+    int length = buffer.getShort() & 0xffff;
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  /** The index as seen by one cursor. */
+  static final class View {
+
+    private final ContactSearchIndex index;
+    private final ContactTernarySearchTree tree;
+    /** Position in the cursor of each entry, or -1 for entries that aren't in the cursor. */
+    private final int[] positionByEntry;
+
+    private View(ContactSearchIndex index, ContactTernarySearchTree tree, int[] positionByEntry) {
+      this.index = index;
+      this.tree = tree;
+      this.positionByEntry = positionByEntry;
+    }
+
+    /**
+     * Sets the bit of every cursor position whose contact matches {@code query} in {@code
+     * positions}. Bits are set in no particular order; reading them back yields cursor order
+     * without sorting.
+     */
+    void find(@Nullable String query, BitSet positions) {
+      int[] entries;
+      synchronized (index) {
+        entries = tree.getValues(query);
+      }
+      for (int entry : entries) {
+        // Entries added after this view was created are never in its cursor.
+        if (entry < positionByEntry.length && positionByEntry[entry] != -1) {
+          positions.set(positionByEntry[entry]);
+        }
+      }
+    }
+  }
+}
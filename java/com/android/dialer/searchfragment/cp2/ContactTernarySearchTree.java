@@ -18,80 +18,337 @@ package com.android.dialer.searchfragment.cp2;
 
 import android.support.v4.util.ArraySet;
 import android.text.TextUtils;
+import com.android.dialer.common.Assert;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Set;
 
-/** Ternary Search Tree for searching a list of contacts. */
+/**
+ * Ternary Search Tree for searching a list of contacts.
+ *
+ * <p>Nodes are stored in parallel primitive arrays rather than as objects, and the values of all
+ * nodes live in one shared pool of sorted int ranges. Values added by {@link #put} are buffered
+ * until {@link #pack} merges them into the pool, which builders call once after their last put so
+ * that reading the tree never modifies it. A node whose values are identical to those of its middle
+ * parent, which is common along the tail of a phone number, shares the parent's range instead of
+ * storing a copy.
+ */
 public class ContactTernarySearchTree {
 
-  private Node root;
+  /** Index used for a missing node. Real nodes start at 1. */
+  private static final int NO_NODE = 0;
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  private static final int LEFT = 0;
+  private static final int MID = 1;
+  private static final int RIGHT = 2;
+
+  private int nodeCount = 1;
+  private char[] keys = new char[INITIAL_CAPACITY];
+  private int[] left = new int[INITIAL_CAPACITY];
+  private int[] mid = new int[INITIAL_CAPACITY];
+  private int[] right = new int[INITIAL_CAPACITY];
+
+  /** Start of each node's values in {@link #pool}. */
+  private int[] valueStart = new int[INITIAL_CAPACITY];
+  /** Number of values of each node in {@link #pool}. */
+  private int[] valueCount = new int[INITIAL_CAPACITY];
+  /** Sorted, duplicate free value ranges, possibly shared between nodes. */
+  private int[] pool = new int[0];
+
+  /** (node, value) pairs added since the pool was last packed. */
+  private int[] pendingNodes = new int[INITIAL_CAPACITY];
+
+  private int[] pendingValues = new int[INITIAL_CAPACITY];
+  private int pendingCount = 0;
 
   /**
-   * Add {@code value} to all middle and end {@link Node#values} that correspond to {@code key}.
+   * Add {@code value} to all middle and end nodes that correspond to {@code key}.
    *
    * <p>For example, if {@code key} were "FOO", {@code value} would be added to nodes "F", "O" and
-   * "O". But if the traversal required visiting {@link Node#left} or {@link Node#right}, {@code
-   * value} wouldn't be added to those nodes.
+   * "O". But if the traversal required visiting the left or right child of a node, {@code value}
+   * wouldn't be added to those nodes.
    */
   public void put(String key, int value) {
     if (TextUtils.isEmpty(key)) {
       return;
     }
-    root = put(root, key, value, 0);
+    int node = 1;
+    if (nodeCount == 1) {
+      newNode(key.charAt(0));
+    }
+    int position = 0;
+    while (true) {
+      char c = key.charAt(position);
+      if (c < keys[node]) {
+        node = getOrCreateChild(LEFT, node, c);
+      } else if (c > keys[node]) {
+        node = getOrCreateChild(RIGHT, node, c);
+      } else {
+        addPending(node, value);
+        if (++position == key.length()) {
+          return;
+        }
+        node = getOrCreateChild(MID, node, key.charAt(position));
+      }
+    }
+  }
+
+  private int getOrCreateChild(int link, int node, char c) {
+    int[] links = link == LEFT ? left : link == MID ? mid : right;
+    if (links[node] != NO_NODE) {
+      return links[node];
+    }
+    int child = newNode(c);
+    // newNode may have grown the arrays, so look the link array up again.
+    links = link == LEFT ? left : link == MID ? mid : right;
+    links[node] = child;
+    return child;
   }
 
-  private Node put(Node node, String key, int value, int position) {
-    char c = key.charAt(position);
-    if (node == null) {
-      node = new Node();
-      node.key = c;
+  private int newNode(char c) {
+    if (nodeCount == keys.length) {
+      int capacity = nodeCount * 2;
+      keys = Arrays.copyOf(keys, capacity);
+      left = Arrays.copyOf(left, capacity);
+      mid = Arrays.copyOf(mid, capacity);
+      right = Arrays.copyOf(right, capacity);
+      valueStart = Arrays.copyOf(valueStart, capacity);
+      valueCount = Arrays.copyOf(valueCount, capacity);
     }
-    if (c < node.key) {
-      node.left = put(node.left, key, value, position);
-    } else if (c > node.key) {
-      node.right = put(node.right, key, value, position);
-    } else if (position < key.length() - 1) {
-      node.values.add(value);
-      node.mid = put(node.mid, key, value, position + 1);
-    } else {
-      node.values.add(value);
+    keys[nodeCount] = c;
+    return nodeCount++;
+  }
+
+  private void addPending(int node, int value) {
+    if (pendingCount == pendingNodes.length) {
+      pendingNodes = Arrays.copyOf(pendingNodes, pendingCount * 2);
+      pendingValues = Arrays.copyOf(pendingValues, pendingCount * 2);
     }
-    return node;
+    pendingNodes[pendingCount] = node;
+    pendingValues[pendingCount] = value;
+    pendingCount++;
   }
 
   /** Returns true if {@code key} is contained in the trie. */
   public boolean contains(String key) {
-    return !get(key).isEmpty();
+    int node = getNode(key);
+    if (node == NO_NODE) {
+      return false;
+    }
+    return valueCount[node] > 0;
   }
 
   /** Return value stored at Node (in this case, a set of integers). */
   public Set<Integer> get(String key) {
-    Node x = get(root, key, 0);
-    return x == null ? new ArraySet<>() : x.values;
+    int[] values = getValues(key);
+    Set<Integer> result = new ArraySet<>(values.length);
+    for (int value : values) {
+      result.add(value);
+    }
+    return result;
+  }
+
+  /** Same as {@link #get}, but returns the values as a sorted array without boxing them. */
+  public int[] getValues(String key) {
+    int node = getNode(key);
+    if (node == NO_NODE) {
+      return new int[0];
+    }
+    return Arrays.copyOfRange(pool, valueStart[node], valueStart[node] + valueCount[node]);
+  }
+
+  /** Returns the number of nodes in the tree. */
+  public int getNodeCount() {
+    return nodeCount - 1;
+  }
+
+  /** Returns the number of ints used to store the values of all nodes. */
+  public int getPoolSize() {
+    return pool.length;
   }
 
-  private Node get(Node node, String key, int position) {
-    if (node == null) {
-      return null;
+  /** Writes the packed tree to {@code out} in the format read by {@link #readFrom}. */
+  void writeTo(DataOutputStream out) throws IOException {
+    Assert.checkState(pendingCount == 0, "tree must be packed before it is written");
+    out.writeInt(nodeCount);
+    out.writeInt(pool.length);
+    for (int node = 0; node < nodeCount; node++) {
+      out.writeChar(keys[node]);
     }
-    char c = key.charAt(position);
-    if (c < node.key) {
-      return get(node.left, key, position);
-    } else if (c > node.key) {
-      return get(node.right, key, position);
-    } else if (position < key.length() - 1) {
-      return get(node.mid, key, position + 1);
-    } else {
-      return node;
+    writeInts(out, left, nodeCount);
+    writeInts(out, mid, nodeCount);
+    writeInts(out, right, nodeCount);
+    writeInts(out, valueStart, nodeCount);
+    writeInts(out, valueCount, nodeCount);
+    writeInts(out, pool, pool.length);
+  }
+
+  private static void writeInts(DataOutputStream out, int[] values, int length)
+      throws IOException {
+    for (int i = 0; i < length; i++) {
+      out.writeInt(values[i]);
     }
   }
 
-  /** Node in ternary search trie. Children are denoted as left, middle and right nodes. */
-  private static class Node {
-    private char key;
-    private final Set<Integer> values = new ArraySet<>();
+  /**
+   * Reads a tree written by {@link #writeTo}, starting at the buffer's current position.
+   *
+   * @throws IllegalArgumentException if the buffer doesn't hold a valid tree.
+   */
+  static ContactTernarySearchTree readFrom(ByteBuffer buffer) {
+    int nodeCount = buffer.getInt();
+    int poolSize = buffer.getInt();
+    if (nodeCount < 1 || poolSize < 0) {
+      throw new IllegalArgumentException("invalid tree size");
+    }
+    ContactTernarySearchTree tree = new ContactTernarySearchTree();
+    int capacity = Math.max(INITIAL_CAPACITY, nodeCount);
+    tree.nodeCount = nodeCount;
+    tree.keys = new char[capacity];
+    buffer.asCharBuffer().get(tree.keys, 0, nodeCount);
+    buffer.position(buffer.position() + nodeCount * Character.BYTES);
+    tree.left = readInts(buffer, nodeCount, capacity);
+    tree.mid = readInts(buffer, nodeCount, capacity);
+    tree.right = readInts(buffer, nodeCount, capacity);
+    tree.valueStart = readInts(buffer, nodeCount, capacity);
+    tree.valueCount = readInts(buffer, nodeCount, capacity);
+    tree.pool = readInts(buffer, poolSize, poolSize);
 
-    private Node left;
-    private Node mid;
-    private Node right;
+    for (int node = 0; node < nodeCount; node++) {
+      if (!isValidLink(tree.left[node], nodeCount)
+          || !isValidLink(tree.mid[node], nodeCount)
+          || !isValidLink(tree.right[node], nodeCount)
+          || tree.valueStart[node] < 0
+          || tree.valueCount[node] < 0
+          || tree.valueStart[node] + tree.valueCount[node] > poolSize) {
+        throw new IllegalArgumentException("invalid node " + node);
+      }
+    }
+    return tree;
+  }
+
+  private static boolean isValidLink(int link, int nodeCount) {
+    return link >= 0 && link < nodeCount;
+  }
+
+  private static int[] readInts(ByteBuffer buffer, int length, int capacity) {
+    int[] values = new int[capacity];
+    buffer.asIntBuffer().get(values, 0, length);
+    buffer.position(buffer.position() + length * Integer.BYTES);
+    return values;
+  }
+
+  private int getNode(String key) {
+    if (TextUtils.isEmpty(key) || nodeCount == 1) {
+      return NO_NODE;
+    }
+    int node = 1;
+    int position = 0;
+    while (node != NO_NODE) {
+      char c = key.charAt(position);
+      if (c < keys[node]) {
+        node = left[node];
+      } else if (c > keys[node]) {
+        node = right[node];
+      } else if (position < key.length() - 1) {
+        node = mid[node];
+        position++;
+      } else {
+        return node;
+      }
+    }
+    return NO_NODE;
+  }
+
+  /**
+   * Merges the values added by {@link #put} since the last call into the tree. Reads only see
+   * values that were packed.
+   */
+  public void pack() {
+    if (pendingCount == 0) {
+      return;
+    }
+
+    // Count the values of every node, old and pending, then bucket them by node.
+    int[] counts = new int[nodeCount];
+    for (int node = 1; node < nodeCount; node++) {
+      counts[node] = valueCount[node];
+    }
+    for (int i = 0; i < pendingCount; i++) {
+      counts[pendingNodes[i]]++;
+    }
+    int[] starts = new int[nodeCount];
+    int total = 0;
+    for (int node = 1; node < nodeCount; node++) {
+      starts[node] = total;
+      total += counts[node];
+    }
+    int[] buckets = new int[total];
+    int[] fill = Arrays.copyOf(starts, nodeCount);
+    for (int node = 1; node < nodeCount; node++) {
+      System.arraycopy(pool, valueStart[node], buckets, fill[node], valueCount[node]);
+      fill[node] += valueCount[node];
+    }
+    for (int i = 0; i < pendingCount; i++) {
+      buckets[fill[pendingNodes[i]]++] = pendingValues[i];
+    }
+    pendingCount = 0;
+
+    // Each node's middle parent has a smaller index, so it is always packed first.
+    int[] midParent = new int[nodeCount];
+    for (int node = 1; node < nodeCount; node++) {
+      if (mid[node] != NO_NODE) {
+        midParent[mid[node]] = node;
+      }
+    }
+
+    int[] newPool = new int[total];
+    int poolSize = 0;
+    for (int node = 1; node < nodeCount; node++) {
+      int start = starts[node];
+      int end = start + counts[node];
+      Arrays.sort(buckets, start, end);
+      int count = removeDuplicates(buckets, start, end);
+
+      int parent = midParent[node];
+      if (parent != NO_NODE
+          && valueCount[parent] == count
+          && rangeEquals(newPool, valueStart[parent], buckets, start, count)) {
+        valueStart[node] = valueStart[parent];
+      } else {
+        System.arraycopy(buckets, start, newPool, poolSize, count);
+        valueStart[node] = poolSize;
+        poolSize += count;
+      }
+      valueCount[node] = count;
+    }
+    pool = Arrays.copyOf(newPool, poolSize);
+  }
+
+  /** Removes duplicates from the sorted range and returns its new length. */
+  private static int removeDuplicates(int[] values, int start, int end) {
+    if (start == end) {
+      return 0;
+    }
+    int last = start;
+    for (int i = start + 1; i < end; i++) {
+      if (values[i] != values[last]) {
+        values[++last] = values[i];
+      }
+    }
+    return last - start + 1;
+  }
+
+  private static boolean rangeEquals(int[] a, int aStart, int[] b, int bStart, int length) {
+    for (int i = 0; i < length; i++) {
+      if (a[aStart + i] != b[bStart + i]) {
+        return false;
+      }
+    }
+    return true;
   }
 }
@@ -0,0 +1,329 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dialer.smartdial.util;
+
+import java.util.Arrays;
+
+/**
+ * An immutable trie keyed by dialpad digits, used to find smart dial candidates without querying
+ * SQLite.
+ *
+ * <p>Every key is one of the prefix strings produced by {@link
+ * SmartDialPrefix#generateNamePrefixes} or {@link SmartDialPrefix#parseToNumberTokens}, and every
+ * value is a rank. Lower ranks are better. A lookup returns the ranks of all keys that start with
+ * the query, in ascending order, so callers can stop as soon as they have enough results.
+ *
+ * <p>The trie is stored in primitive arrays: each node has ten child slots, the ranks of keys
+ * ending at a node live in one shared sorted pool, and each node records the lowest rank found in
+ * its subtree so lookups can visit subtrees best first. The trie itself never changes, but lookups
+ * share scratch space and are therefore serialized.
+ */
+public final class SmartDialTrie {
+
+  private static final int RADIX = 10;
+  private static final int NO_NODE = 0;
+  private static final long POSTING_FLAG = 1L << 31;
+
+  /** {@code children[node * RADIX + digit]} is the child node, or {@link #NO_NODE}. */
+  private final int[] children;
+  /** Lowest rank stored in the subtree rooted at each node. */
+  private final int[] subtreeMinRank;
+  /** Start offset of each node's ranks in {@link #postings}. */
+  private final int[] postingStart;
+  /** Number of ranks that end at each node. */
+  private final int[] postingCount;
+  /** Ranks of all keys, grouped by the node where the key ends and sorted within each group. */
+  private final int[] postings;
+
+  /**
+   * Scratch space for {@link #findMatches}, reused across lookups: a rank was visited by the
+   * current lookup if its entry equals {@link #lookupStamp}, so it never needs to be cleared.
+   */
+  private int[] visitedStamps = new int[0];
+
+  private int lookupStamp = 0;
+
+  private SmartDialTrie(
+      int[] children,
+      int[] subtreeMinRank,
+      int[] postingStart,
+      int[] postingCount,
+      int[] postings) {
+    this.children = children;
+    this.subtreeMinRank = subtreeMinRank;
+    this.postingStart = postingStart;
+    this.postingCount = postingCount;
+    this.postings = postings;
+  }
+
+  /** Returns the number of nodes in the trie, including the root. */
+  public int getNodeCount() {
+    return subtreeMinRank.length;
+  }
+
+  /** Returns the number of (key, rank) pairs stored in the trie. */
+  public int getPostingCount() {
+    return postings.length;
+  }
+
+  /** Returns true if every character of {@code key} is a digit the trie can index. */
+  public static boolean isIndexable(String key) {
+    for (int i = 0; i < key.length(); i++) {
+      char c = key.charAt(i);
+      if (c < '0' || c > '9') {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Visits the distinct ranks of all keys that start with {@code query}, lowest rank first, until
+   * {@code visitor} returns false.
+   *
+   * <p>{@code maxRank} must be greater than every rank stored in the trie. It is used to drop
+   * ranks that were already visited through another key.
+   *
+   * @return true if every matching rank was visited, false if {@code visitor} stopped the lookup.
+   */
+  public synchronized boolean findMatches(String query, int maxRank, RankVisitor visitor) {
+    if (!isIndexable(query)) {
+      return true;
+    }
+    int node = 0;
+    for (int i = 0; i < query.length(); i++) {
+      node = children[node * RADIX + (query.charAt(i) - '0')];
+      if (node == NO_NODE) {
+        return true;
+      }
+    }
+
+    int stamp = nextLookupStamp(maxRank);
+    LongHeap heap = new LongHeap();
+    heap.push(subtreeEntry(node));
+    while (!heap.isEmpty()) {
+      long entry = heap.pop();
+      int index = (int) (entry & (POSTING_FLAG - 1));
+      if ((entry & POSTING_FLAG) == 0) {
+        // Expand a subtree: its own ranks and its children become candidates.
+        if (postingCount[index] > 0) {
+          heap.push(postingEntry(postingStart[index]));
+        }
+        for (int digit = 0; digit < RADIX; digit++) {
+          int child = children[index * RADIX + digit];
+          if (child != NO_NODE) {
+            heap.push(subtreeEntry(child));
+          }
+        }
+        continue;
+      }
+
+      int rank = postings[index];
+      if (visitedStamps[rank] != stamp) {
+        visitedStamps[rank] = stamp;
+        if (!visitor.visit(rank)) {
+          return false;
+        }
+      }
+      int next = index + 1;
+      if (next < getGroupEnd(index)) {
+        heap.push(postingEntry(next));
+      }
+    }
+    return true;
+  }
+
+  /** Makes room for {@code maxRank} ranks and returns a stamp that no rank is marked with yet. */
+  private int nextLookupStamp(int maxRank) {
+    if (visitedStamps.length < maxRank) {
+      visitedStamps = new int[maxRank];
+      lookupStamp = 0;
+    }
+    if (lookupStamp == Integer.MAX_VALUE) {
+      Arrays.fill(visitedStamps, 0);
+      lookupStamp = 0;
+    }
+    return ++lookupStamp;
+  }
+
+  private long subtreeEntry(int node) {
+    return ((long) subtreeMinRank[node] << 32) | node;
+  }
+
+  private long postingEntry(int index) {
+    return ((long) postings[index] << 32) | POSTING_FLAG | index;
+  }
+
+  /**
+   * Returns the exclusive end offset of the node group that the posting at {@code index} belongs
+   * to. Groups are laid out in node order, so this is the first group start after {@code index}.
+   */
+  private int getGroupEnd(int index) {
+    int low = 0;
+    int high = postingStart.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (postingStart[mid] <= index) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low < postingStart.length ? postingStart[low] : postings.length;
+  }
+
+  /** Receives ranks found by {@link #findMatches}. */
+  public interface RankVisitor {
+
+    /** Returns false to stop the lookup. */
+    boolean visit(int rank);
+  }
+
+  /** Accumulates (key, rank) pairs and builds a {@link SmartDialTrie}. */
+  public static final class Builder {
+
+    private int[] children = new int[RADIX * 256];
+    private int nodeCount = 1;
+
+    private int[] pairNodes = new int[1024];
+    private int[] pairRanks = new int[1024];
+    private int pairCount = 0;
+
+    /**
+     * Adds {@code key} with the given {@code rank}. Keys containing anything other than the digits
+     * 0-9 are ignored.
+     */
+    public Builder add(String key, int rank) {
+      if (key == null || key.isEmpty() || !isIndexable(key) || rank < 0) {
+        return this;
+      }
+      int node = 0;
+      for (int i = 0; i < key.length(); i++) {
+        int slot = node * RADIX + (key.charAt(i) - '0');
+        int child = children[slot];
+        if (child == NO_NODE) {
+          child = newNode();
+          children[slot] = child;
+        }
+        node = child;
+      }
+      if (pairCount == pairNodes.length) {
+        pairNodes = Arrays.copyOf(pairNodes, pairCount * 2);
+        pairRanks = Arrays.copyOf(pairRanks, pairCount * 2);
+      }
+      pairNodes[pairCount] = node;
+      pairRanks[pairCount] = rank;
+      pairCount++;
+      return this;
+    }
+
+    private int newNode() {
+      if ((nodeCount + 1) * RADIX > children.length) {
+        children = Arrays.copyOf(children, children.length * 2);
+      }
+      return nodeCount++;
+    }
+
+    public SmartDialTrie build() {
+      // Counting sort of the (node, rank) pairs by node, then sort each node's ranks.
+      int[] postingCount = new int[nodeCount];
+      for (int i = 0; i < pairCount; i++) {
+        postingCount[pairNodes[i]]++;
+      }
+      int[] postingStart = new int[nodeCount];
+      for (int node = 1; node < nodeCount; node++) {
+        postingStart[node] = postingStart[node - 1] + postingCount[node - 1];
+      }
+      int[] cursor = Arrays.copyOf(postingStart, nodeCount);
+      int[] postings = new int[pairCount];
+      for (int i = 0; i < pairCount; i++) {
+        postings[cursor[pairNodes[i]]++] = pairRanks[i];
+      }
+      for (int node = 0; node < nodeCount; node++) {
+        Arrays.sort(postings, postingStart[node], postingStart[node] + postingCount[node]);
+      }
+
+      // Children always have higher ids than their parents, so a reverse sweep visits every
+      // subtree before its root.
+      int[] subtreeMinRank = new int[nodeCount];
+      for (int node = nodeCount - 1; node >= 0; node--) {
+        int min = postingCount[node] > 0 ? postings[postingStart[node]] : Integer.MAX_VALUE;
+        for (int digit = 0; digit < RADIX; digit++) {
+          int child = children[node * RADIX + digit];
+          if (child != NO_NODE) {
+            min = Math.min(min, subtreeMinRank[child]);
+          }
+        }
+        subtreeMinRank[node] = min;
+      }
+
+      return new SmartDialTrie(
+          Arrays.copyOf(children, nodeCount * RADIX),
+          subtreeMinRank,
+          postingStart,
+          postingCount,
+          postings);
+    }
+  }
+
+  /** Minimal binary min-heap of primitive longs. */
+  private static final class LongHeap {
+
+    private long[] values = new long[64];
+    private int size = 0;
+
+    boolean isEmpty() {
+      return size == 0;
+    }
+
+    void push(long value) {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, size * 2);
+      }
+      int i = size++;
+      while (i > 0) {
+        int parent = (i - 1) >>> 1;
+        if (values[parent] <= value) {
+          break;
+        }
+        values[i] = values[parent];
+        i = parent;
+      }
+      values[i] = value;
+    }
+
+    long pop() {
+      long result = values[0];
+      long last = values[--size];
+      int i = 0;
+      int half = size >>> 1;
+      while (i < half) {
+        int child = 2 * i + 1;
+        if (child + 1 < size && values[child + 1] < values[child]) {
+          child++;
+        }
+        if (last <= values[child]) {
+          break;
+        }
+        values[i] = values[child];
+        i = child;
+      }
+      values[i] = last;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,521 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.incallui;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.drawable.BitmapDrawable;
+import android.media.RingtoneManager;
+import android.media.ThumbnailUtils;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
+import android.provider.ContactsContract;
+import android.provider.ContactsContract.Directory;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.support.v4.os.UserManagerCompat;
+import android.telephony.PhoneNumberUtils;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import com.android.contacts.common.ContactsUtils;
+import com.android.dialer.common.LogUtil;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.logging.ContactLookupResult;
+import com.android.dialer.strictmode.StrictModeUtils;
+import com.android.incallui.ContactInfoCache.ContactCacheEntry;
+import com.android.incallui.incall.protocol.ContactPhotoType;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * On-disk snapshot of the identities of the callers seen most often, with small avatars, so the
+ * first call after the process starts can show a name and photo before the contact lookup is done.
+ *
+ * <p>The file starts with an index of the numbers it contains, followed by one record per number.
+ * It is memory-mapped by {@link #load()} and only the index is read then; a record is read when
+ * its number calls. Changes are written to a new file in the background, which then replaces the
+ * old one.
+ */
+final class CallerIdentitySnapshot {
+
+  private static final String FILE_NAME = "caller_identity_snapshot";
+  private static final int MAGIC = 0x43495331; // "CIS1"
+  private static final int VERSION = 1;
+
+  /** Maximum number of callers kept in the snapshot. */
+  private static final int MAX_IDENTITIES = 50;
+
+  /** Width and height of the avatars, in pixels. */
+  private static final int AVATAR_SIZE = 96;
+
+  private static final int AVATAR_QUALITY = 90;
+  private static final long WRITE_DELAY_MILLIS = 2000;
+
+  private static CallerIdentitySnapshot instance;
+
+  private final Context context;
+  private final File file;
+  private final Executor backgroundExecutor;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  /** The mapped file, or null if not loaded. Guarded by {@code this}. */
+  @Nullable private ByteBuffer mappedFile;
+
+  /** Offsets of the unread records in {@link #mappedFile}, by key. Guarded by {@code this}. */
+  private final Map<String, Integer> mappedOffsets = new ArrayMap<>();
+
+  /** Identities read from the file or recorded since, by key. Guarded by {@code this}. */
+  private final Map<String, Identity> identities = new ArrayMap<>();
+
+  private boolean isLoaded;
+  private boolean isWriteScheduled;
+
+  private CallerIdentitySnapshot(Context context) {
+    this.context = context;
+    this.file = new File(context.getFilesDir(), FILE_NAME);
+    this.backgroundExecutor = DialerExecutorComponent.get(context).backgroundExecutor();
+  }
+
+  static synchronized CallerIdentitySnapshot get(Context context) {
+    if (instance == null) {
+      instance = new CallerIdentitySnapshot(context.getApplicationContext());
+    }
+    return instance;
+  }
+
+  /**
+   * Maps the snapshot file and reads its index, if not done yet. The file lives in credential
+   * encrypted storage, so the snapshot stays empty until the user unlocks.
+   */
+  @MainThread
+  void load() {
+    synchronized (this) {
+      if (isLoaded || !UserManagerCompat.isUserUnlocked(context)) {
+        return;
+      }
+      isLoaded = true;
+    }
+    StrictModeUtils.bypass(this::mapFile);
+  }
+
+  private synchronized void mapFile() {
+    if (!file.exists()) {
+      return;
+    }
+    try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+      MappedByteBuffer buffer =
+          randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+      if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+        LogUtil.i("CallerIdentitySnapshot.mapFile", "unknown format, ignoring snapshot");
+        return;
+      }
+      int count = buffer.getInt();
+      for (int i = 0; i < count; i++) {
+        String key = readString(buffer);
+        mappedOffsets.put(key, buffer.getInt());
+      }
+      mappedFile = buffer;
+      LogUtil.i("CallerIdentitySnapshot.mapFile", "mapped %d identities", count);
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LogUtil.e("CallerIdentitySnapshot.mapFile", "failed to map snapshot", e);
+      mappedOffsets.clear();
+    }
+  }
+
+  /**
+   * Returns a cache entry for {@code number} from the snapshot, or null if it has none. The entry
+   * is only meant to be shown until the contact lookup for the number completes.
+   */
+  @MainThread
+  @Nullable
+  ContactCacheEntry getCacheEntry(@Nullable String number) {
+    Identity identity;
+    synchronized (this) {
+      identity = getIdentity(toKey(number));
+    }
+    if (identity == null) {
+      return null;
+    }
+    ContactCacheEntry entry = new ContactCacheEntry();
+    entry.namePrimary = identity.namePrimary;
+    entry.nameAlternative = identity.nameAlternative;
+    entry.number = identity.number;
+    entry.label = identity.label;
+    entry.location = identity.location;
+    entry.shouldShowLocation = identity.shouldShowLocation;
+    entry.lookupKey = identity.lookupKey;
+    entry.lookupUri = identity.lookupUri == null ? null : Uri.parse(identity.lookupUri);
+    entry.contactRingtoneUri =
+        identity.contactRingtoneUri == null
+            ? RingtoneManager.getDefaultUri(RingtoneManager.TYPE_RINGTONE)
+            : Uri.parse(identity.contactRingtoneUri);
+    entry.userType = identity.userType;
+    entry.isBusiness = identity.isBusiness;
+    ContactLookupResult.Type lookupResult =
+        ContactLookupResult.Type.forNumber(identity.contactLookupResult);
+    if (lookupResult != null) {
+      entry.contactLookupResult = lookupResult;
+    }
+
+    byte[] avatarBytes = identity.avatar;
+    Bitmap avatar =
+        avatarBytes == null
+            ? null
+            : BitmapFactory.decodeByteArray(avatarBytes, 0, avatarBytes.length);
+    if (avatar != null) {
+      entry.photo = new BitmapDrawable(context.getResources(), avatar);
+      entry.photoType = ContactPhotoType.CONTACT;
+      entry.isPhotoFromSnapshot = true;
+    } else {
+      entry.photoType =
+          identity.isBusiness ? ContactPhotoType.BUSINESS : ContactPhotoType.DEFAULT_PLACEHOLDER;
+    }
+    entry.isFromSnapshot = true;
+    return entry;
+  }
+
+  /**
+   * Returns whether the contact found by a lookup may be recorded. Only contacts of the current
+   * user from the default directory are, so that work and remote directory contacts aren't kept
+   * beyond what their directory's policy allows.
+   */
+  static boolean canRecord(CallerInfo callerInfo) {
+    if (callerInfo.userType != ContactsUtils.USER_TYPE_CURRENT) {
+      return false;
+    }
+    String directory =
+        callerInfo.contactRefUri == null
+            ? null
+            : callerInfo.contactRefUri.getQueryParameter(ContactsContract.DIRECTORY_PARAM_KEY);
+    return directory == null || directory.equals(String.valueOf(Directory.DEFAULT));
+  }
+
+  /** Records that the contact in {@code entry} called, and keeps its identity up to date. */
+  @MainThread
+  void record(ContactCacheEntry entry) {
+    update(entry, true);
+  }
+
+  /** Updates the identity of the contact in {@code entry} if it is in the snapshot. */
+  @MainThread
+  void updateIfPresent(ContactCacheEntry entry) {
+    update(entry, false);
+  }
+
+  /** Removes {@code number}, once it is known not to belong to a contact. */
+  @MainThread
+  synchronized void remove(@Nullable String number) {
+    String key = toKey(number);
+    if (!isLoaded || key == null) {
+      return;
+    }
+    boolean isRemoved = mappedOffsets.remove(key) != null;
+    isRemoved |= identities.remove(key) != null;
+    if (isRemoved) {
+      scheduleWrite();
+    }
+  }
+
+  private synchronized void update(ContactCacheEntry entry, boolean isCall) {
+    String key = toKey(entry.originalPhoneNumber);
+    if (!isLoaded || key == null || entry.isEmergencyNumber || entry.isVoicemailNumber) {
+      return;
+    }
+    Identity previous = getIdentity(key);
+    if (previous == null && !isCall) {
+      return;
+    }
+    identities.put(
+        key,
+        new Identity(
+            entry,
+            previous == null ? 1 : previous.hitCount + (isCall ? 1 : 0),
+            System.currentTimeMillis(),
+            previous == null ? null : previous.avatar));
+    scheduleWrite();
+  }
+
+  @Nullable
+  private Identity getIdentity(@Nullable String key) {
+    if (key == null) {
+      return null;
+    }
+    Identity identity = identities.get(key);
+    if (identity != null) {
+      return identity;
+    }
+    Integer offset = mappedOffsets.remove(key);
+    if (offset == null || mappedFile == null) {
+      return null;
+    }
+    try {
+      ByteBuffer buffer = mappedFile.duplicate();
+      buffer.position(offset);
+      identity = Identity.read(buffer);
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      LogUtil.e("CallerIdentitySnapshot.getIdentity", "corrupt record", e);
+      return null;
+    }
+    identities.put(key, identity);
+    return identity;
+  }
+
+  private void scheduleWrite() {
+    if (!isWriteScheduled) {
+      isWriteScheduled = true;
+      mainHandler.postDelayed(() -> backgroundExecutor.execute(this::write), WRITE_DELAY_MILLIS);
+    }
+  }
+
+  @WorkerThread
+  private void write() {
+    List<Identity> toWrite;
+    synchronized (this) {
+      isWriteScheduled = false;
+      for (String key : new ArrayList<>(mappedOffsets.keySet())) {
+        getIdentity(key);
+      }
+      toWrite = new ArrayList<>(identities.values());
+    }
+    // Keep the callers seen most often, and the most recent of those seen as often.
+    Collections.sort(
+        toWrite,
+        (a, b) ->
+            a.hitCount != b.hitCount
+                ? Integer.compare(b.hitCount, a.hitCount)
+                : Long.compare(b.lastSeenMillis, a.lastSeenMillis));
+    if (toWrite.size() > MAX_IDENTITIES) {
+      List<Identity> dropped = toWrite.subList(MAX_IDENTITIES, toWrite.size());
+      synchronized (this) {
+        // Also forget them in memory, unless they were updated in the meantime.
+        for (Identity identity : dropped) {
+          if (identities.get(identity.key) == identity) {
+            identities.remove(identity.key);
+          }
+        }
+      }
+      toWrite = toWrite.subList(0, MAX_IDENTITIES);
+    }
+
+    File tempFile = new File(file.getPath() + ".tmp");
+    try {
+      List<byte[]> records = new ArrayList<>(toWrite.size());
+      ByteArrayOutputStream index = new ByteArrayOutputStream();
+      DataOutputStream indexOut = new DataOutputStream(index);
+      int headerSize = 3 * Integer.BYTES;
+      for (Identity identity : toWrite) {
+        headerSize += stringSize(identity.key) + Integer.BYTES;
+      }
+      int offset = headerSize;
+      for (Identity identity : toWrite) {
+        byte[] record = identity.toByteArray();
+        records.add(record);
+        writeString(indexOut, identity.key);
+        indexOut.writeInt(offset);
+        offset += record.length;
+      }
+
+      try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tempFile))) {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(toWrite.size());
+        index.writeTo(out);
+        for (byte[] record : records) {
+          out.write(record);
+        }
+      }
+      if (!tempFile.renameTo(file)) {
+        throw new IOException("failed to replace snapshot");
+      }
+      LogUtil.i("CallerIdentitySnapshot.write", "wrote %d identities", toWrite.size());
+    } catch (IOException e) {
+      LogUtil.e("CallerIdentitySnapshot.write", "failed to write snapshot", e);
+      tempFile.delete();
+    }
+  }
+
+  @Nullable
+  private static String toKey(@Nullable String number) {
+    return TextUtils.isEmpty(number) ? null : PhoneNumberUtils.stripSeparators(number);
+  }
+
+  @Nullable
+  private static String readString(ByteBuffer buffer) {
+    int length = buffer.getInt();
+    if (length < 0) {
+      return null;
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeString(DataOutputStream out, @Nullable String string)
+      throws IOException {
+    if (string == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static int stringSize(@Nullable String string) {
+    return Integer.BYTES + (string == null ? 0 : string.getBytes(StandardCharsets.UTF_8).length);
+  }
+
+  /** What the snapshot knows about a caller. */
+  private static final class Identity {
+    final String key;
+    @Nullable final String namePrimary;
+    @Nullable final String nameAlternative;
+    @Nullable final String number;
+    @Nullable final String label;
+    @Nullable final String location;
+    @Nullable final String lookupKey;
+    @Nullable final String lookupUri;
+    @Nullable final String contactRingtoneUri;
+    final boolean shouldShowLocation;
+    final boolean isBusiness;
+    final int contactLookupResult;
+    final long userType;
+    final int hitCount;
+    final long lastSeenMillis;
+
+    /** The encoded avatar, or null if it must be encoded from {@link #photo} before writing. */
+    @Nullable volatile byte[] avatar;
+
+    /** The photo to encode the avatar from, released once {@link #avatar} is encoded. */
+    @Nullable private volatile Bitmap photo;
+
+    Identity(ContactCacheEntry entry, int hitCount, long lastSeenMillis, @Nullable byte[] avatar) {
+      this.key = toKey(entry.originalPhoneNumber);
+      this.namePrimary = entry.namePrimary;
+      this.nameAlternative = entry.nameAlternative;
+      this.number = entry.number;
+      this.label = entry.label;
+      this.location = entry.location;
+      this.lookupKey = entry.lookupKey;
+      this.lookupUri = entry.lookupUri == null ? null : entry.lookupUri.toString();
+      this.contactRingtoneUri =
+          entry.contactRingtoneUri == null ? null : entry.contactRingtoneUri.toString();
+      this.shouldShowLocation = entry.shouldShowLocation;
+      this.isBusiness = entry.isBusiness;
+      this.contactLookupResult = entry.contactLookupResult.getNumber();
+      this.userType = entry.userType;
+      this.hitCount = hitCount;
+      this.lastSeenMillis = lastSeenMillis;
+
+      if (entry.photo instanceof BitmapDrawable
+          && entry.photoType == ContactPhotoType.CONTACT
+          && !entry.isPhotoFromSnapshot) {
+        // Encoded in the background before writing, replacing the previous avatar.
+        this.photo = ((BitmapDrawable) entry.photo).getBitmap();
+        this.avatar = null;
+      } else {
+        this.photo = null;
+        // Keep the previous avatar while the contact's photo is still loading, rather than encoding
+        // the avatar shown in the meantime again.
+        this.avatar =
+            entry.photoType == ContactPhotoType.CONTACT || entry.hasPendingQuery ? avatar : null;
+      }
+    }
+
+    private Identity(ByteBuffer buffer) {
+      key = readString(buffer);
+      namePrimary = readString(buffer);
+      nameAlternative = readString(buffer);
+      number = readString(buffer);
+      label = readString(buffer);
+      location = readString(buffer);
+      lookupKey = readString(buffer);
+      lookupUri = readString(buffer);
+      contactRingtoneUri = readString(buffer);
+      byte flags = buffer.get();
+      shouldShowLocation = (flags & 1) != 0;
+      isBusiness = (flags & 2) != 0;
+      contactLookupResult = buffer.getInt();
+      userType = buffer.getLong();
+      hitCount = buffer.getInt();
+      lastSeenMillis = buffer.getLong();
+      int avatarLength = buffer.getInt();
+      if (avatarLength > 0) {
+        avatar = new byte[avatarLength];
+        buffer.get(avatar);
+      }
+      photo = null;
+    }
+
+    static Identity read(ByteBuffer buffer) {
+      return new Identity(buffer);
+    }
+
+    @WorkerThread
+    byte[] toByteArray() throws IOException {
+      Bitmap photo = this.photo;
+      if (avatar == null && photo != null && !photo.isRecycled()) {
+        Bitmap thumbnail = ThumbnailUtils.extractThumbnail(photo, AVATAR_SIZE, AVATAR_SIZE);
+        ByteArrayOutputStream avatarBytes = new ByteArrayOutputStream();
+        thumbnail.compress(Bitmap.CompressFormat.WEBP, AVATAR_QUALITY, avatarBytes);
+        avatar = avatarBytes.toByteArray();
+      }
+      this.photo = null;
+
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      writeString(out, key);
+      writeString(out, namePrimary);
+      writeString(out, nameAlternative);
+      writeString(out, number);
+      writeString(out, label);
+      writeString(out, location);
+      writeString(out, lookupKey);
+      writeString(out, lookupUri);
+      writeString(out, contactRingtoneUri);
+      out.writeByte((shouldShowLocation ? 1 : 0) | (isBusiness ? 2 : 0));
+      out.writeInt(contactLookupResult);
+      out.writeLong(userType);
+      out.writeInt(hitCount);
+      out.writeLong(lastSeenMillis);
+      if (avatar == null) {
+        out.writeInt(0);
+      } else {
+        out.writeInt(avatar.length);
+        out.write(avatar);
+      }
+      return bytes.toByteArray();
+    }
+  }
+}
@@ -23,26 +23,37 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.SQLException;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.os.Trace;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.provider.ContactsContract;
 import android.provider.ContactsContract.Directory;
 import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
 import android.support.annotation.RequiresPermission;
 import android.support.annotation.WorkerThread;
 import android.text.TextUtils;
+import android.util.ArrayMap;
+import com.android.dialer.calltrace.CallTrace.Span;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.concurrent.DialerExecutorComponent;
+import com.android.dialer.configprovider.ConfigProviderComponent;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService;
 import com.android.dialer.phonenumbercache.CachedNumberLookupService.CachedContactInfo;
 import com.android.dialer.phonenumbercache.ContactInfoHelper;
 import com.android.dialer.phonenumbercache.PhoneNumberCache;
 import com.android.dialer.phonenumberutil.PhoneNumberHelper;
-import com.android.dialer.strictmode.StrictModeUtils;
+import com.android.incallui.latencyreport.LatencyReport;
+import com.google.common.util.concurrent.ListeningExecutorService;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Helper class to make it easier to run asynchronous caller-id lookup queries.
@@ -78,6 +89,12 @@ public class CallerInfoAsyncQuery {
   /* Directory lookup related code - START */
   private static final String[] DIRECTORY_PROJECTION = new String[] {Directory._ID};
 
+  /** How long to wait for each remote directory to answer a lookup. */
+  private static final String CONFIG_DIRECTORY_QUERY_TIMEOUT_MILLIS =
+      "caller_info_directory_query_timeout_millis";
+
+  private static final long DEFAULT_DIRECTORY_QUERY_TIMEOUT_MILLIS = 3000;
+
   /** Private constructor for factory methods. */
   private CallerInfoAsyncQuery() {}
 
@@ -87,23 +104,26 @@ public class CallerInfoAsyncQuery {
       final Context context,
       final CallerInfo info,
       final OnQueryCompleteListener listener,
-      final Object cookie) {
+      final Object cookie,
+      @Nullable final LatencyReport latencyReport) {
     Log.d(LOG_TAG, "##### CallerInfoAsyncQuery startContactProviderQuery()... #####");
     Log.d(LOG_TAG, "- number: " + info.phoneNumber);
     Log.d(LOG_TAG, "- cookie: " + cookie);
+    if (latencyReport != null) {
+      latencyReport.onCallerInfoQueryStarted();
+    }
 
     OnQueryCompleteListener contactsProviderQueryCompleteListener =
         new OnQueryCompleteListener() {
           @Override
           public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
             Log.d(LOG_TAG, "contactsProviderQueryCompleteListener onQueryComplete");
-            // If there are no other directory queries, make sure that the listener is
-            // notified of this result.  see a bug
+            // If the other directories are queried, they notify the listener of either their
+            // match or this result.
             if ((ci != null && ci.contactExists)
-                || !startOtherDirectoriesQuery(token, context, info, listener, cookie)) {
-              if (listener != null && ci != null) {
-                listener.onQueryComplete(token, cookie, ci);
-              }
+                || !startOtherDirectoriesQuery(
+                    token, context, info, ci, listener, cookie, latencyReport)) {
+              notifyQueryComplete(token, cookie, ci, listener, latencyReport);
             }
           }
 
@@ -116,6 +136,21 @@ public class CallerInfoAsyncQuery {
     startDefaultDirectoryQuery(token, context, info, contactsProviderQueryCompleteListener, cookie);
   }
 
+  @MainThread
+  private static void notifyQueryComplete(
+      int token,
+      Object cookie,
+      @Nullable CallerInfo ci,
+      @Nullable OnQueryCompleteListener listener,
+      @Nullable LatencyReport latencyReport) {
+    if (latencyReport != null) {
+      latencyReport.onCallerInfoQueryComplete();
+    }
+    if (listener != null && ci != null) {
+      listener.onQueryComplete(token, cookie, ci);
+    }
+  }
+
   // Private methods
   private static void startDefaultDirectoryQuery(
       int token,
@@ -180,41 +215,30 @@ public class CallerInfoAsyncQuery {
         null); // orderBy
   }
 
-  // Return value indicates if listener was notified.
+  /**
+   * Looks the number up in the remote directories, unless {@code defaultDirectoryInfo} is already
+   * final. Returns true if the listener will be notified by the directory lookup.
+   */
   private static boolean startOtherDirectoriesQuery(
       int token,
       Context context,
       CallerInfo info,
+      @Nullable CallerInfo defaultDirectoryInfo,
       OnQueryCompleteListener listener,
-      Object cookie) {
-    Trace.beginSection("CallerInfoAsyncQuery.startOtherDirectoriesQuery");
-    long[] directoryIds = StrictModeUtils.bypass(() -> getDirectoryIds(context));
-    int size = directoryIds.length;
-    if (size == 0) {
-      Trace.endSection();
+      Object cookie,
+      @Nullable LatencyReport latencyReport) {
+    if (defaultDirectoryInfo != null
+        && (defaultDirectoryInfo.isEmergencyNumber() || defaultDirectoryInfo.isVoiceMailNumber())) {
+      // Remote directories don't know these numbers any better.
       return false;
     }
-
-    DirectoryQueryCompleteListenerFactory listenerFactory =
-        new DirectoryQueryCompleteListenerFactory(context, size, listener);
-
-    // The current implementation of multiple async query runs in single handler thread
-    // in AsyncQueryHandler.
-    // intermediateListener.onQueryComplete is also called from the same caller thread.
-    // TODO(a bug): use thread pool instead of single thread.
-    for (int i = 0; i < size; i++) {
-      long directoryId = directoryIds[i];
-      Uri uri = ContactInfoHelper.getContactInfoLookupUri(info.phoneNumber, directoryId);
-      if (DBG) {
-        Log.d(LOG_TAG, "directoryId: " + directoryId + " uri: " + uri);
-      }
-      OnQueryCompleteListener intermediateListener = listenerFactory.newListener(directoryId);
-      startQueryInternal(token, context, info, intermediateListener, cookie, uri);
-    }
-    Trace.endSection();
+    new ParallelDirectoryQuery(
+            token, context, info, defaultDirectoryInfo, listener, cookie, latencyReport)
+        .start();
     return true;
   }
 
+  @WorkerThread
   private static long[] getDirectoryIds(Context context) {
     ArrayList<Long> results = new ArrayList<>();
 
@@ -244,6 +268,52 @@ public class CallerInfoAsyncQuery {
     }
   }
 
+  /**
+   * Builds the CallerInfo for a contact lookup of {@code number} from its cursor, completed with
+   * the data the lookup itself doesn't provide.
+   */
+  @WorkerThread
+  private static CallerInfo buildCallerInfo(
+      Context context, Uri uri, @Nullable Cursor cursor, String number, String countryIso) {
+    CallerInfo callerInfo = CallerInfo.getCallerInfo(context, uri, cursor);
+    Log.d(LOG_TAG, "==> Got mCallerInfo: " + callerInfo);
+
+    CallerInfo newCallerInfo = CallerInfo.doSecondaryLookupIfNecessary(context, number, callerInfo);
+    if (newCallerInfo != callerInfo) {
+      callerInfo = newCallerInfo;
+      Log.d(LOG_TAG, "#####async contact look up with numeric username" + callerInfo);
+    }
+    callerInfo.countryIso = countryIso;
+
+    // Final step: look up the geocoded description.
+    if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
+      // Note we do this only if we *don't* have a valid name (i.e. if
+      // no contacts matched the phone number of the incoming call),
+      // since that's the only case where the incoming-call UI cares
+      // about this field.
+      //
+      // (TODO: But if we ever want the UI to show the geoDescription
+      // even when we *do* match a contact, we'll need to either call
+      // updateGeoDescription() unconditionally here, or possibly add a
+      // new parameter to CallerInfoAsyncQuery.startQuery() to force
+      // the geoDescription field to be populated.)
+
+      if (TextUtils.isEmpty(callerInfo.name)) {
+        // Actually when no contacts match the incoming phone number,
+        // the CallerInfo object is totally blank here (i.e. no name
+        // *or* phoneNumber).  So we need to pass in number as
+        // a fallback number.
+        callerInfo.updateGeoDescription(context, number);
+      }
+    }
+
+    // Use the number entered by the user for display.
+    if (!TextUtils.isEmpty(number)) {
+      callerInfo.phoneNumber = number;
+    }
+    return callerInfo;
+  }
+
   private static String sanitizeUriToString(Uri uri) {
     if (uri != null) {
       String uriString = uri.toString();
@@ -277,41 +347,194 @@ public class CallerInfoAsyncQuery {
     }
   }
 
-  private static final class DirectoryQueryCompleteListenerFactory {
+  /**
+   * Looks a number up in all remote directories in parallel. The first directory with a match wins,
+   * and the queries still running in the other directories are cancelled. A directory which doesn't
+   * answer within {@link #CONFIG_DIRECTORY_QUERY_TIMEOUT_MILLIS} is given up on. If no directory
+   * has a match, the listener is notified of the default directory's result instead.
+   */
+  private static final class ParallelDirectoryQuery {
 
-    private final OnQueryCompleteListener listener;
+    private final int token;
     private final Context context;
-    // Make sure listener to be called once and only once
-    private int count;
-    private boolean isListenerCalled;
-
-    DirectoryQueryCompleteListenerFactory(
-        Context context, int size, OnQueryCompleteListener listener) {
-      count = size;
-      this.listener = listener;
-      isListenerCalled = false;
+    private final CallerInfo info;
+    @Nullable private final CallerInfo defaultDirectoryInfo;
+    private final OnQueryCompleteListener listener;
+    private final Object cookie;
+    @Nullable private final LatencyReport latencyReport;
+    private final ListeningExecutorService backgroundExecutor;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final long timeoutMillis;
+    private final long startTimeMillis = SystemClock.elapsedRealtime();
+    @Nullable private final Span span;
+
+    /** Cancellation signals of the directory queries which haven't finished, by directory ID. */
+    private final Map<Long, CancellationSignal> pendingQueries = new ArrayMap<>();
+
+    ParallelDirectoryQuery(
+        int token,
+        Context context,
+        CallerInfo info,
+        @Nullable CallerInfo defaultDirectoryInfo,
+        OnQueryCompleteListener listener,
+        Object cookie,
+        @Nullable LatencyReport latencyReport) {
+      this.token = token;
       this.context = context;
+      this.info = info;
+      this.defaultDirectoryInfo = defaultDirectoryInfo;
+      this.listener = listener;
+      this.cookie = cookie;
+      this.latencyReport = latencyReport;
+      this.span =
+          latencyReport == null
+              ? null
+              : latencyReport
+                  .getCallSetupTrace()
+                  .getRoot()
+                  .startChild("CallerInfoAsyncQuery.directories");
+      this.backgroundExecutor = DialerExecutorComponent.get(context).backgroundExecutor();
+      this.timeoutMillis =
+          ConfigProviderComponent.get(context)
+              .getConfigProvider()
+              .getLong(
+                  CONFIG_DIRECTORY_QUERY_TIMEOUT_MILLIS, DEFAULT_DIRECTORY_QUERY_TIMEOUT_MILLIS);
+    }
+
+    void start() {
+      backgroundExecutor.execute(this::queryDirectories);
+    }
+
+    @WorkerThread
+    private void queryDirectories() {
+      long[] directoryIds = getDirectoryIds(context);
+      if (directoryIds.length == 0) {
+        finish(null, Directory.DEFAULT);
+        return;
+      }
+      synchronized (this) {
+        for (long directoryId : directoryIds) {
+          pendingQueries.put(directoryId, new CancellationSignal());
+        }
+      }
+      mainHandler.post(
+          () -> {
+            if (latencyReport != null) {
+              latencyReport.onDirectoryQueriesStarted(directoryIds.length);
+            }
+          });
+      long deadline = SystemClock.uptimeMillis() + timeoutMillis;
+      for (long directoryId : directoryIds) {
+        mainHandler.postAtTime(() -> onDirectoryQueryTimedOut(directoryId), this, deadline);
+        backgroundExecutor.execute(() -> queryDirectory(directoryId));
+      }
     }
 
-    private void onDirectoryQueryComplete(
-        int token, Object cookie, CallerInfo ci, long directoryId) {
-      boolean shouldCallListener = false;
+    @WorkerThread
+    private void queryDirectory(long directoryId) {
+      CancellationSignal cancellationSignal;
+      synchronized (this) {
+        cancellationSignal = pendingQueries.get(directoryId);
+      }
+      if (cancellationSignal == null) {
+        // Timed out or beaten by another directory before the query could start.
+        return;
+      }
+
+      long queryStartTimeMillis = SystemClock.elapsedRealtime();
+      Uri uri = ContactInfoHelper.getContactInfoLookupUri(info.phoneNumber, directoryId);
+      CallerInfo ci = null;
+      try (Cursor cursor =
+          context
+              .getContentResolver()
+              .query(
+                  uri,
+                  CallerInfo.getDefaultPhoneLookupProjection(),
+                  null,
+                  null,
+                  null,
+                  cancellationSignal)) {
+        ci = buildCallerInfo(context, uri, cursor, info.phoneNumber, info.countryIso);
+      } catch (OperationCanceledException e) {
+        Log.d(LOG_TAG, "directory query cancelled, directoryId: " + directoryId);
+        return;
+      } catch (Exception e) {
+        Log.e(LOG_TAG, "directory query failed, directoryId: " + directoryId, e);
+      }
+      Log.d(
+          LOG_TAG,
+          "directory query took "
+              + (SystemClock.elapsedRealtime() - queryStartTimeMillis)
+              + " ms, directoryId: "
+              + directoryId);
+
+      boolean isMatch = ci != null && ci.contactExists;
+      List<CancellationSignal> losingQueries;
       synchronized (this) {
-        count = count - 1;
-        if (!isListenerCalled && (ci.contactExists || count == 0)) {
-          isListenerCalled = true;
-          shouldCallListener = true;
+        if (pendingQueries.remove(directoryId) == null
+            || (!isMatch && !pendingQueries.isEmpty())) {
+          return;
         }
+        losingQueries = new ArrayList<>(pendingQueries.values());
+        pendingQueries.clear();
       }
+      for (CancellationSignal losingQuery : losingQueries) {
+        losingQuery.cancel();
+      }
+      finish(isMatch ? ci : null, directoryId);
+    }
 
-      // Don't call callback in synchronized block because mListener.onQueryComplete may
-      // take long time to complete
-      if (shouldCallListener && listener != null) {
-        addCallerInfoIntoCache(ci, directoryId);
-        listener.onQueryComplete(token, cookie, ci);
+    @MainThread
+    private void onDirectoryQueryTimedOut(long directoryId) {
+      CancellationSignal cancellationSignal;
+      boolean isLast;
+      synchronized (this) {
+        cancellationSignal = pendingQueries.remove(directoryId);
+        isLast = pendingQueries.isEmpty();
+      }
+      if (cancellationSignal == null) {
+        return;
+      }
+      Log.i(LOG_TAG, "directory query timed out, directoryId: " + directoryId);
+      cancellationSignal.cancel();
+      if (latencyReport != null) {
+        latencyReport.onDirectoryQueryTimedOut();
+      }
+      if (isLast) {
+        finish(null, directoryId);
       }
     }
 
+    /**
+     * Notifies the listener of the match found in {@code directoryId}, or of the default
+     * directory's result if {@code match} is null. A match must be passed on a worker thread.
+     */
+    private void finish(@Nullable CallerInfo match, long directoryId) {
+      mainHandler.removeCallbacksAndMessages(this);
+      if (span != null) {
+        span.end();
+      }
+      if (match != null) {
+        Assert.isWorkerThread();
+        addCallerInfoIntoCache(match, directoryId);
+        if (listener != null) {
+          listener.onDataLoaded(token, cookie, match);
+        }
+      }
+      CallerInfo result = match != null ? match : defaultDirectoryInfo;
+      mainHandler.post(
+          () -> {
+            Log.d(
+                LOG_TAG,
+                "directory lookup took "
+                    + (SystemClock.elapsedRealtime() - startTimeMillis)
+                    + " ms, match: "
+                    + (match != null));
+            notifyQueryComplete(token, cookie, result, listener, latencyReport);
+          });
+    }
+
+    @WorkerThread
     private void addCallerInfoIntoCache(CallerInfo ci, long directoryId) {
       CachedNumberLookupService cachedNumberLookupService =
           PhoneNumberCache.get(context).getCachedNumberLookupService();
@@ -336,31 +559,6 @@ public class CallerInfoAsyncQuery {
         }
       }
     }
-
-    OnQueryCompleteListener newListener(long directoryId) {
-      return new DirectoryQueryCompleteListener(directoryId);
-    }
-
-    private class DirectoryQueryCompleteListener implements OnQueryCompleteListener {
-
-      private final long directoryId;
-
-      DirectoryQueryCompleteListener(long directoryId) {
-        this.directoryId = directoryId;
-      }
-
-      @Override
-      public void onDataLoaded(int token, Object cookie, CallerInfo ci) {
-        Log.d(LOG_TAG, "DirectoryQueryCompleteListener.onDataLoaded");
-        listener.onDataLoaded(token, cookie, ci);
-      }
-
-      @Override
-      public void onQueryComplete(int token, Object cookie, CallerInfo ci) {
-        Log.d(LOG_TAG, "DirectoryQueryCompleteListener.onQueryComplete");
-        onDirectoryQueryComplete(token, cookie, ci, directoryId);
-      }
-    }
   }
 
   /** Our own implementation of the AsyncQueryHandler. */
@@ -482,43 +680,8 @@ public class CallerInfoAsyncQuery {
           } else if (cw.event == EVENT_VOICEMAIL_NUMBER) {
             callerInfo = new CallerInfo().markAsVoiceMail(queryContext);
           } else {
-            callerInfo = CallerInfo.getCallerInfo(queryContext, queryUri, cursor);
-            Log.d(this, "==> Got mCallerInfo: " + callerInfo);
-
-            CallerInfo newCallerInfo =
-                CallerInfo.doSecondaryLookupIfNecessary(queryContext, cw.number, callerInfo);
-            if (newCallerInfo != callerInfo) {
-              callerInfo = newCallerInfo;
-              Log.d(this, "#####async contact look up with numeric username" + callerInfo);
-            }
-            callerInfo.countryIso = cw.countryIso;
-
-            // Final step: look up the geocoded description.
-            if (ENABLE_UNKNOWN_NUMBER_GEO_DESCRIPTION) {
-              // Note we do this only if we *don't* have a valid name (i.e. if
-              // no contacts matched the phone number of the incoming call),
-              // since that's the only case where the incoming-call UI cares
-              // about this field.
-              //
-              // (TODO: But if we ever want the UI to show the geoDescription
-              // even when we *do* match a contact, we'll need to either call
-              // updateGeoDescription() unconditionally here, or possibly add a
-              // new parameter to CallerInfoAsyncQuery.startQuery() to force
-              // the geoDescription field to be populated.)
-
-              if (TextUtils.isEmpty(callerInfo.name)) {
-                // Actually when no contacts match the incoming phone number,
-                // the CallerInfo object is totally blank here (i.e. no name
-                // *or* phoneNumber).  So we need to pass in cw.number as
-                // a fallback number.
-                callerInfo.updateGeoDescription(queryContext, cw.number);
-              }
-            }
-
-            // Use the number entered by the user for display.
-            if (!TextUtils.isEmpty(cw.number)) {
-              callerInfo.phoneNumber = cw.number;
-            }
+            callerInfo =
+                buildCallerInfo(queryContext, queryUri, cursor, cw.number, cw.countryIso);
           }
 
           Log.d(this, "constructing CallerInfo object for token: " + token);
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.os.Trace;
+import android.support.annotation.MainThread;
+import android.support.annotation.Nullable;
+import android.telecom.Call.Details;
+import android.view.Choreographer;
+import com.android.dialer.common.Assert;
+import com.android.dialer.common.LogUtil;
+import com.android.incallui.InCallPresenter.InCallDetailsListener;
+import com.android.incallui.InCallPresenter.InCallState;
+import com.android.incallui.InCallPresenter.InCallStateListener;
+import com.android.incallui.call.CallList;
+import com.android.incallui.call.DialerCall;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * Delivers the state and details changes of {@link InCallPresenter} to its listeners once per
+ * frame. A burst of telecom callbacks, as seen during call setup or a conference merge, reaches
+ * each listener as a single change from the state before the burst to the state after it, and as
+ * the latest details of each call.
+ */
+@MainThread
+final class CoalescingInCallDispatcher implements Choreographer.FrameCallback {
+
+  private final Set<InCallStateListener> stateListeners;
+  private final Set<InCallDetailsListener> detailsListeners;
+
+  /** The state before the first change which is yet to be delivered, or null if there is none. */
+  @Nullable private InCallState pendingOldState;
+
+  private InCallState pendingNewState;
+  private CallList pendingCallList;
+  private int pendingStateChangeCount;
+  private final Map<DialerCall, Details> pendingDetails = new LinkedHashMap<>();
+  private boolean isFrameScheduled;
+
+  CoalescingInCallDispatcher(
+      Set<InCallStateListener> stateListeners, Set<InCallDetailsListener> detailsListeners) {
+    this.stateListeners = stateListeners;
+    this.detailsListeners = detailsListeners;
+  }
+
+  /** Queues a state change, merging it with any change which hasn't been delivered yet. */
+  void onStateChange(InCallState oldState, InCallState newState, CallList callList) {
+    Assert.isMainThread();
+    if (pendingOldState == null) {
+      pendingOldState = oldState;
+    }
+    pendingNewState = newState;
+    pendingCallList = callList;
+    pendingStateChangeCount++;
+    scheduleFrame();
+  }
+
+  /** Queues a details change, replacing the details of the call which haven't been delivered. */
+  void onDetailsChanged(DialerCall call, Details details) {
+    Assert.isMainThread();
+    pendingDetails.put(call, details);
+    scheduleFrame();
+  }
+
+  /** Delivers the pending changes right away, for events which must not be reordered with them. */
+  void flush() {
+    Assert.isMainThread();
+    if (isFrameScheduled) {
+      Choreographer.getInstance().removeFrameCallback(this);
+      dispatch();
+    }
+  }
+
+  @Override
+  public void doFrame(long frameTimeNanos) {
+    dispatch();
+  }
+
+  private void scheduleFrame() {
+    if (!isFrameScheduled) {
+      isFrameScheduled = true;
+      Choreographer.getInstance().postFrameCallback(this);
+    }
+  }
+
+  private void dispatch() {
+    Trace.beginSection("CoalescingInCallDispatcher.dispatch");
+    isFrameScheduled = false;
+
+    if (pendingOldState != null) {
+      InCallState oldState = pendingOldState;
+      InCallState newState = pendingNewState;
+      CallList callList = pendingCallList;
+      LogUtil.d(
+          "CoalescingInCallDispatcher.dispatch",
+          "%s -> %s, coalesced from %d changes",
+          oldState,
+          newState,
+          pendingStateChangeCount);
+      pendingOldState = null;
+      pendingNewState = null;
+      pendingCallList = null;
+      pendingStateChangeCount = 0;
+      for (InCallStateListener listener : stateListeners) {
+        listener.onStateChange(oldState, newState, callList);
+      }
+    }
+
+    if (!pendingDetails.isEmpty()) {
+      Map<DialerCall, Details> details = new LinkedHashMap<>(pendingDetails);
+      pendingDetails.clear();
+      for (Entry<DialerCall, Details> entry : details.entrySet()) {
+        for (InCallDetailsListener listener : detailsListeners) {
+          listener.onDetailsChanged(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    Trace.endSection();
+  }
+}
@@ -40,6 +40,7 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import com.android.contacts.common.ContactsUtils;
+import com.android.dialer.calltrace.CallTrace.Span;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.concurrent.DialerExecutor;
 import com.android.dialer.common.concurrent.DialerExecutor.Worker;
@@ -85,6 +86,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
   private final Map<String, Set<ContactInfoCacheCallback>> callBacks = new ArrayMap<>();
   private int queryId;
   private final DialerExecutor<CnapInformationWrapper> cachedNumberLookupExecutor;
+  private final CallerIdentitySnapshot callerIdentitySnapshot;
 
   private static class CachedNumberLookupWorker implements Worker<CnapInformationWrapper, Void> {
     @Nullable
@@ -128,6 +130,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
             .dialerExecutorFactory()
             .createNonUiTaskBuilder(new CachedNumberLookupWorker())
             .build();
+    callerIdentitySnapshot = CallerIdentitySnapshot.get(context);
     Trace.endSection();
   }
 
@@ -401,12 +404,17 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
      */
     final CallerInfoQueryToken queryToken = new CallerInfoQueryToken(queryId, callId);
     queryId++;
+    Span lookupSpan =
+        call.getLatencyReport()
+            .getCallSetupTrace()
+            .getRoot()
+            .startChild("ContactInfoCache.findInfo");
     final CallerInfo callerInfo =
         CallerInfoUtils.getCallerInfoForCall(
             context,
             call,
             new DialerCallCookieWrapper(callId, call.getNumberPresentation(), call.getCnapName()),
-            new FindInfoCallback(isIncoming, queryToken));
+            new FindInfoCallback(isIncoming, queryToken, lookupSpan));
     Trace.endSection();
 
     if (cacheEntry != null) {
@@ -417,14 +425,44 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
       cacheEntry.queryId = queryToken.queryId;
       Log.d(TAG, "There is an existing cache. Do not override until new query is back");
     } else {
-      ContactCacheEntry initialCacheEntry =
-          updateCallerInfoInCacheOnAnyThread(
-              callId, call.getNumberPresentation(), callerInfo, false, queryToken);
+      ContactCacheEntry initialCacheEntry = putSnapshotEntryIfPresent(call, callerInfo, queryToken);
+      if (initialCacheEntry == null) {
+        initialCacheEntry =
+            updateCallerInfoInCacheOnAnyThread(
+                callId, call.getNumberPresentation(), callerInfo, false, queryToken);
+      }
       sendInfoNotifications(callId, initialCacheEntry);
     }
     Trace.endSection();
   }
 
+  /**
+   * Puts the caller identity from the snapshot into the cache, if it has one for the call, so it
+   * can be shown while the contact lookup refreshes it. Returns the entry cached for the call.
+   */
+  @MainThread
+  @Nullable
+  private ContactCacheEntry putSnapshotEntryIfPresent(
+      DialerCall call, CallerInfo callerInfo, CallerInfoQueryToken queryToken) {
+    if (call.isConferenceCall()
+        || call.getNumberPresentation() != TelecomManager.PRESENTATION_ALLOWED
+        || callerInfo.isEmergencyNumber()
+        || callerInfo.isVoiceMailNumber()) {
+      return null;
+    }
+    ContactCacheEntry snapshotEntry = callerIdentitySnapshot.getCacheEntry(callerInfo.phoneNumber);
+    if (snapshotEntry == null) {
+      return null;
+    }
+    Log.d(TAG, "Contact lookup. Snapshot hit; refreshing from provider");
+    snapshotEntry.queryId = queryToken.queryId;
+    snapshotEntry.originalPhoneNumber = callerInfo.phoneNumber;
+    snapshotEntry.isSipCall = PhoneNumberHelper.isUriNumber(callerInfo.phoneNumber);
+    // The lookup may have completed on its worker thread already.
+    ContactCacheEntry existingCacheEntry = infoMap.putIfAbsent(queryToken.callId, snapshotEntry);
+    return existingCacheEntry != null ? existingCacheEntry : snapshotEntry;
+  }
+
   @AnyThread
   private ContactCacheEntry updateCallerInfoInCacheOnAnyThread(
       String callId,
@@ -482,6 +520,14 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
           return cacheEntry;
         }
 
+        if (existingCacheEntry != null
+            && existingCacheEntry.isFromSnapshot
+            && existingCacheEntry.photo != null) {
+          // Keep showing the avatar from the snapshot until the photo is loaded.
+          cacheEntry.photo = existingCacheEntry.photo;
+          cacheEntry.photoType = existingCacheEntry.photoType;
+          cacheEntry.isPhotoFromSnapshot = true;
+        }
         Log.d(TAG, "Contact lookup. Local contact found, starting image load");
         // Load the image with a callback to update the image state.
         // When the load is finished, onImageLoadComplete() will be called.
@@ -576,6 +622,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     }
 
     Log.d(TAG, "setting photo for entry: ", entry);
+    entry.isPhotoFromSnapshot = false;
 
     // Conference call icons are being handled in CallCardPresenter.
     if (photo != null) {
@@ -607,7 +654,11 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     if (!isWaitingForThisQuery(callId, queryId)) {
       return;
     }
-    sendImageNotifications(callId, infoMap.get(callId));
+    ContactCacheEntry entry = infoMap.get(callId);
+    if (entry != null) {
+      callerIdentitySnapshot.updateIfPresent(entry);
+    }
+    sendImageNotifications(callId, entry);
 
     clearCallbacks(callId);
   }
@@ -725,6 +776,10 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     boolean isBusiness;
     boolean isEmergencyNumber;
     boolean isVoicemailNumber;
+    /** Whether the entry comes from {@link CallerIdentitySnapshot} and awaits the lookup. */
+    boolean isFromSnapshot;
+    /** Whether {@link #photo} is the avatar from the snapshot, shown until the photo loads. */
+    boolean isPhotoFromSnapshot;
 
     public boolean isLocalContact() {
       return contactLookupResult == ContactLookupResult.Type.LOCAL_CONTACT;
@@ -770,6 +825,10 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
           + isEmergencyNumber
           + ", isVoicemailNumber="
           + isVoicemailNumber
+          + ", isFromSnapshot="
+          + isFromSnapshot
+          + ", isPhotoFromSnapshot="
+          + isPhotoFromSnapshot
           + '}';
     }
   }
@@ -790,10 +849,12 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
 
     private final boolean isIncoming;
     private final CallerInfoQueryToken queryToken;
+    private final Span lookupSpan;
 
-    FindInfoCallback(boolean isIncoming, CallerInfoQueryToken queryToken) {
+    FindInfoCallback(boolean isIncoming, CallerInfoQueryToken queryToken, Span lookupSpan) {
       this.isIncoming = isIncoming;
       this.queryToken = queryToken;
+      this.lookupSpan = lookupSpan;
     }
 
     @Override
@@ -814,6 +875,7 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
     public void onQueryComplete(int token, Object cookie, CallerInfo callerInfo) {
       Trace.beginSection("ContactInfoCache.FindInfoCallback.onQueryComplete");
       Assert.isMainThread();
+      lookupSpan.end();
       DialerCallCookieWrapper cw = (DialerCallCookieWrapper) cookie;
       String callId = cw.callId;
       if (!isWaitingForThisQuery(cw.callId, queryToken.queryId)) {
@@ -828,6 +890,11 @@ public class ContactInfoCache implements OnImageLoadCompleteListener {
         Trace.endSection();
         return;
       }
+      if (callerInfo.contactExists && CallerIdentitySnapshot.canRecord(callerInfo)) {
+        callerIdentitySnapshot.record(cacheEntry);
+      } else {
+        callerIdentitySnapshot.remove(cacheEntry.originalPhoneNumber);
+      }
       // Before issuing a request for more data from other services, we only check that the
       // contact wasn't found in the local DB.  We don't check the if the cache entry already
       // has a name because we allow overriding cnap data with data from other services.
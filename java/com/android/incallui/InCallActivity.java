@@ -28,6 +28,7 @@ import android.content.res.Configuration;
 import android.graphics.drawable.GradientDrawable;
 import android.graphics.drawable.GradientDrawable.Orientation;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.support.annotation.ColorInt;
 import android.support.annotation.FloatRange;
@@ -49,6 +50,7 @@ import android.view.KeyEvent;
 import android.view.MenuItem;
 import android.view.MotionEvent;
 import android.view.View;
+import android.view.ViewTreeObserver.OnPreDrawListener;
 import android.view.WindowManager;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
@@ -160,6 +162,8 @@ public class InCallActivity extends TransactionSafeFragmentActivity
   @DialpadRequestType private int showDialpadRequest = DIALPAD_REQUEST_NONE;
   private SpeakEasyCallManager speakEasyCallManager;
   private DialogFragment rttRequestDialogFragment;
+  private long createdNanos;
+  private boolean isFrameListenerPending;
 
   public static Intent getIntent(
       Context context, boolean showDialpad, boolean newOutgoingCall, boolean isForFullScreen) {
@@ -185,6 +189,7 @@ public class InCallActivity extends TransactionSafeFragmentActivity
   @Override
   protected void onCreate(Bundle bundle) {
     Trace.beginSection("InCallActivity.onCreate");
+    createdNanos = SystemClock.elapsedRealtimeNanos();
     super.onCreate(bundle);
 
     preferredAccountWorkerResultListener =
@@ -266,6 +271,32 @@ public class InCallActivity extends TransactionSafeFragmentActivity
         .stopTimer(Metrics.ON_CALL_ADDED_TO_ON_INCALL_UI_SHOWN_OUTGOING);
   }
 
+  /**
+   * Lets the call list finish the setup traces of its calls once the next frame is drawn, which
+   * shows the calls added since the last one.
+   */
+  void notifyCallListOnNextFrame() {
+    if (isFrameListenerPending) {
+      return;
+    }
+    isFrameListenerPending = true;
+    View decorView = getWindow().getDecorView();
+    decorView
+        .getViewTreeObserver()
+        .addOnPreDrawListener(
+            new OnPreDrawListener() {
+              @Override
+              public boolean onPreDraw() {
+                decorView.getViewTreeObserver().removeOnPreDrawListener(this);
+                isFrameListenerPending = false;
+                // Pre-draw is before the frame is rendered, so post to land after it.
+                decorView.post(() -> CallList.getInstance().onInCallUiFirstFrame(createdNanos));
+                return true;
+              }
+            });
+    decorView.invalidate();
+  }
+
   private void setWindowFlags() {
     // Allow the activity to be shown when the screen is locked and filter out touch events that are
     // "too fat".
@@ -494,6 +525,7 @@ public class InCallActivity extends TransactionSafeFragmentActivity
 
     CallList.getInstance()
         .onInCallUiShown(getIntent().getBooleanExtra(IntentExtraNames.FOR_FULL_SCREEN, false));
+    notifyCallListOnNextFrame();
 
     PseudoScreenState pseudoScreenState = InCallPresenter.getInstance().getPseudoScreenState();
     pseudoScreenState.addListener(this);
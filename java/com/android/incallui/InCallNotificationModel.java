@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.incallui;
+
+import android.net.Uri;
+import android.support.annotation.Nullable;
+import android.telecom.CallAudioState;
+import com.google.auto.value.AutoValue;
+
+/**
+ * Everything visible in the in-call notification, compared field by field with the last one posted
+ * by {@link StatusBarNotifier} to skip posts which wouldn't change anything.
+ */
+@AutoValue
+abstract class InCallNotificationModel {
+
+  abstract int notificationType();
+
+  abstract int iconResId();
+
+  abstract String content();
+
+  @Nullable
+  abstract String contentTitle();
+
+  /**
+   * What the large icon is rendered from: a contact photo bitmap, a letter tile key or a drawable
+   * resource. Compared instead of the rendered bitmap, which would take a pixel by pixel check.
+   */
+  @Nullable
+  abstract Object largeIconSource();
+
+  abstract int callState();
+
+  abstract int videoState();
+
+  abstract boolean isVideoUpgradeRequest();
+
+  /** When an active call connected, shown as a chronometer; 0 for any other state. */
+  abstract long connectTimeMillis();
+
+  abstract int color();
+
+  @Nullable
+  abstract Uri ringtone();
+
+  @Nullable
+  abstract CallAudioState callAudioState();
+
+  static Builder builder() {
+    return new AutoValue_InCallNotificationModel.Builder();
+  }
+
+  /** Builder for {@link InCallNotificationModel}. */
+  @AutoValue.Builder
+  abstract static class Builder {
+
+    abstract Builder setNotificationType(int notificationType);
+
+    abstract Builder setIconResId(int iconResId);
+
+    abstract Builder setContent(String content);
+
+    abstract Builder setContentTitle(@Nullable String contentTitle);
+
+    abstract Builder setLargeIconSource(@Nullable Object largeIconSource);
+
+    abstract Builder setCallState(int callState);
+
+    abstract Builder setVideoState(int videoState);
+
+    abstract Builder setIsVideoUpgradeRequest(boolean isVideoUpgradeRequest);
+
+    abstract Builder setConnectTimeMillis(long connectTimeMillis);
+
+    abstract Builder setColor(int color);
+
+    abstract Builder setRingtone(@Nullable Uri ringtone);
+
+    abstract Builder setCallAudioState(@Nullable CallAudioState callAudioState);
+
+    abstract InCallNotificationModel build();
+  }
+}
@@ -47,6 +47,8 @@ import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
 import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler.OnCheckBlockedListener;
 import com.android.dialer.blocking.FilteredNumberCompat;
 import com.android.dialer.blocking.FilteredNumbersUtil;
+import com.android.dialer.calltrace.CallTrace.Span;
+import com.android.dialer.calltrace.CallTracesComponent;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
@@ -101,6 +103,9 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
 
   private static final long BLOCK_QUERY_TIMEOUT_MS = 1000;
 
+  private static final String CALL_SETUP_TRACE_INCOMING = "CallSetup.Incoming";
+  private static final String CALL_SETUP_TRACE_OUTGOING = "CallSetup.Outgoing";
+
   private static final Bundle EMPTY_EXTRAS = new Bundle();
 
   private static InCallPresenter inCallPresenter;
@@ -124,6 +129,9 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
           new ConcurrentHashMap<InCallOrientationListener, Boolean>(8, 0.9f, 1));
   private final Set<InCallEventListener> inCallEventListeners =
       Collections.newSetFromMap(new ConcurrentHashMap<InCallEventListener, Boolean>(8, 0.9f, 1));
+  // Delivers state and details changes to the listeners above once per frame.
+  private final CoalescingInCallDispatcher coalescingDispatcher =
+      new CoalescingInCallDispatcher(listeners, detailsListeners);
 
   private StatusBarNotifier statusBarNotifier;
   private ExternalCallNotifier externalCallNotifier;
@@ -180,9 +188,7 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
             return;
           }
 
-          for (InCallDetailsListener listener : detailsListeners) {
-            listener.onDetailsChanged(call, details);
-          }
+          coalescingDispatcher.onDetailsChanged(call, details);
         }
 
         @Override
@@ -621,10 +627,18 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
   public void onCallAdded(final android.telecom.Call call) {
     Trace.beginSection("InCallPresenter.onCallAdded");
     LatencyReport latencyReport = new LatencyReport(call);
+    latencyReport.setCallSetupTrace(
+        CallTracesComponent.get(context)
+            .callTraces()
+            .startTrace(
+                call.getState() == android.telecom.Call.STATE_RINGING
+                    ? CALL_SETUP_TRACE_INCOMING
+                    : CALL_SETUP_TRACE_OUTGOING));
     if (shouldAttemptBlocking(call)) {
       maybeBlockCall(call, latencyReport);
     } else {
       if (call.getDetails().hasProperty(CallCompat.Details.PROPERTY_IS_EXTERNAL_CALL)) {
+        latencyReport.getCallSetupTrace().abandon();
         externalCallList.onCallAdded(call);
       } else {
         latencyReport.onCallBlockingDone();
@@ -691,6 +705,8 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
     final AtomicBoolean hasTimedOut = new AtomicBoolean(false);
 
     final Handler handler = new Handler();
+    final Span blockCheckSpan =
+        latencyReport.getCallSetupTrace().getRoot().startChild("InCallPresenter.maybeBlockCall");
 
     // Proceed if the query is slow; the call may still be blocked after the query returns.
     final Runnable runnable =
@@ -698,6 +714,7 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
           @Override
           public void run() {
             hasTimedOut.set(true);
+            blockCheckSpan.end();
             latencyReport.onCallBlockingDone();
             callList.onCallAdded(context, call, latencyReport);
           }
@@ -715,6 +732,7 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
             if (!hasTimedOut.get()) {
               handler.removeCallbacks(runnable);
             }
+            blockCheckSpan.end();
             if (id == null) {
               if (!hasTimedOut.get()) {
                 latencyReport.onCallBlockingDone();
@@ -733,6 +751,7 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
               LogUtil.i(
                   "InCallPresenter.onCheckComplete", "Rejecting incoming call from blocked number");
               call.reject(false, null);
+              latencyReport.getCallSetupTrace().abandon();
               Logger.get(context).logInteraction(InteractionEvent.Type.CALL_BLOCKED);
 
               /*
@@ -881,18 +900,17 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
       onForegroundCallChanged(primary);
     }
 
-    // notify listeners of new state
-    for (InCallStateListener listener : listeners) {
-      LogUtil.d(
-          "InCallPresenter.onCallListChange",
-          "Notify " + listener + " of state " + inCallState.toString());
-      listener.onStateChange(oldState, inCallState, callList);
-    }
+    // notify listeners of new state, together with any other change made during this frame
+    coalescingDispatcher.onStateChange(oldState, inCallState, callList);
 
     if (isActivityStarted()) {
       final boolean hasCall =
           callList.getActiveOrBackgroundCall() != null || callList.getOutgoingCall() != null;
       inCallActivity.dismissKeyguard(hasCall);
+      if (inCallActivity.isVisible()) {
+        // Calls added while the UI is up are set up once it draws them.
+        inCallActivity.notifyCallListOnNextFrame();
+      }
     }
 
     Trace.endSection();
@@ -950,6 +968,8 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
   @Override
   public void onIncomingCall(DialerCall call) {
     Trace.beginSection("InCallPresenter.onIncomingCall");
+    // Incoming call listeners expect the other listeners to have seen the preceding changes.
+    coalescingDispatcher.flush();
     InCallState newState = startOrFinishUi(InCallState.INCOMING);
     InCallState oldState = inCallState;
 
@@ -1028,6 +1048,8 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
 
     // We need to do the run the same code as onCallListChange.
     onCallListChange(callList);
+    // Let the listeners show the disconnect right away, as cleanup may follow.
+    coalescingDispatcher.flush();
 
     if (isActivityStarted()) {
       inCallActivity.dismissKeyguard(false);
@@ -1624,6 +1646,9 @@ public class InCallPresenter implements CallList.Listener, AudioModeProvider.Aud
     if (isReadyForTearDown()) {
       LogUtil.i("InCallPresenter.attemptCleanup", "Cleaning up");
 
+      // Deliver the final state before the listeners are dropped.
+      coalescingDispatcher.flush();
+
       cleanupSurfaces();
 
       isChangingConfigurations = false;
@@ -96,6 +96,7 @@ public class InCallServiceImpl extends InCallService {
     Trace.beginSection("InCallServiceImpl.onBind");
     final Context context = getApplicationContext();
     final ContactInfoCache contactInfoCache = ContactInfoCache.getInstance(context);
+    CallerIdentitySnapshot.get(context).load();
     AudioModeProvider.getInstance().initializeAudioState(this);
     InCallPresenter.getInstance()
         .setUp(
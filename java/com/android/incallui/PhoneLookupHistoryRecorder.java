@@ -31,6 +31,7 @@ import com.google.common.base.Optional;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Fetches the current {@link PhoneLookupInfo} for the provided call and writes it to the
@@ -41,14 +42,25 @@ final class PhoneLookupHistoryRecorder {
   /**
    * If the call log framework is enabled, fetches the current {@link PhoneLookupInfo} for the
    * provided call and writes it to the PhoneLookupHistory. Otherwise does nothing.
+   *
+   * <p>Lookups which miss their deadline don't delay the write; the info is written again once they
+   * finish, after the first write is done so the complete info can't be overwritten.
    */
   static void recordPhoneLookupInfo(Context appContext, Call call) {
     if (!CallLogConfigComponent.get(appContext).callLogConfig().isCallLogFrameworkEnabled()) {
       return;
     }
 
+    SettableFuture<Void> firstWriteDone = SettableFuture.create();
     ListenableFuture<PhoneLookupInfo> infoFuture =
-        PhoneLookupComponent.get(appContext).compositePhoneLookup().lookup(call);
+        PhoneLookupComponent.get(appContext)
+            .compositePhoneLookup()
+            .lookup(
+                call,
+                updatedInfo ->
+                    firstWriteDone.addListener(
+                        () -> writePhoneLookupInfo(appContext, call, updatedInfo),
+                        DialerExecutorComponent.get(appContext).backgroundExecutor()));
 
     Futures.addCallback(
         infoFuture,
@@ -56,22 +68,11 @@ final class PhoneLookupHistoryRecorder {
           @Override
           public void onSuccess(@Nullable PhoneLookupInfo result) {
             Assert.checkArgument(result != null);
-            Optional<String> normalizedNumber =
-                TelecomCallUtil.getNormalizedNumber(appContext, call);
-            if (!normalizedNumber.isPresent()) {
-              LogUtil.w("PhoneLookupHistoryRecorder.onSuccess", "couldn't get a number");
-              return;
+            try {
+              writePhoneLookupInfo(appContext, call, result);
+            } finally {
+              firstWriteDone.set(null);
             }
-            ContentValues contentValues = new ContentValues();
-            contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, result.toByteArray());
-            contentValues.put(PhoneLookupHistory.LAST_MODIFIED, System.currentTimeMillis());
-            appContext
-                .getContentResolver()
-                .update(
-                    PhoneLookupHistory.contentUriForNumber(normalizedNumber.get()),
-                    contentValues,
-                    null,
-                    null);
           }
 
           @Override
@@ -79,8 +80,28 @@ final class PhoneLookupHistoryRecorder {
             // TODO(zachh): Consider how to best handle this; take measures to repair call log?
             LogUtil.w(
                 "PhoneLookupHistoryRecorder.onFailure", "could not write PhoneLookupHistory", t);
+            firstWriteDone.set(null);
           }
         },
         DialerExecutorComponent.get(appContext).backgroundExecutor());
   }
+
+  private static void writePhoneLookupInfo(
+      Context appContext, Call call, PhoneLookupInfo phoneLookupInfo) {
+    Optional<String> normalizedNumber = TelecomCallUtil.getNormalizedNumber(appContext, call);
+    if (!normalizedNumber.isPresent()) {
+      LogUtil.w("PhoneLookupHistoryRecorder.writePhoneLookupInfo", "couldn't get a number");
+      return;
+    }
+    ContentValues contentValues = new ContentValues();
+    contentValues.put(PhoneLookupHistory.PHONE_LOOKUP_INFO, phoneLookupInfo.toByteArray());
+    contentValues.put(PhoneLookupHistory.LAST_MODIFIED, System.currentTimeMillis());
+    appContext
+        .getContentResolver()
+        .update(
+            PhoneLookupHistory.contentUriForNumber(normalizedNumber.get()),
+            contentValues,
+            null,
+            null);
+  }
 }
@@ -32,6 +32,7 @@ import static com.android.incallui.NotificationBroadcastReceiver.ACTION_TURN_OFF
 import static com.android.incallui.NotificationBroadcastReceiver.ACTION_TURN_ON_SPEAKER;
 
 import android.Manifest;
+import android.app.KeyguardManager;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.admin.DevicePolicyManager;
@@ -46,6 +47,7 @@ import android.media.AudioAttributes;
 import android.net.Uri;
 import android.os.Build.VERSION;
 import android.os.Build.VERSION_CODES;
+import android.os.PowerManager;
 import android.os.Trace;
 import android.support.annotation.ColorRes;
 import android.support.annotation.NonNull;
@@ -58,7 +60,6 @@ import android.telecom.Call.Details;
 import android.telecom.CallAudioState;
 import android.telecom.PhoneAccount;
 import android.telecom.TelecomManager;
-import android.telecom.VideoProfile;
 import android.text.BidiFormatter;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -98,6 +99,7 @@ import com.android.incallui.ringtone.ToneGeneratorFactory;
 import com.android.incallui.speakeasy.SpeakEasyComponent;
 import com.android.incallui.videotech.utils.SessionModificationState;
 import com.google.common.base.Optional;
+import java.util.Arrays;
 import java.util.Objects;
 
 /** This class adds Notifications to the status bar for the in-call experience. */
@@ -125,14 +127,12 @@ public class StatusBarNotifier
   private final ContactInfoCache contactInfoCache;
   private final DialerRingtoneManager dialerRingtoneManager;
   private int currentNotification = NOTIFICATION_NONE;
-  private int callState = DialerCallState.INVALID;
-  private int videoState = VideoProfile.STATE_AUDIO_ONLY;
-  private int savedIcon = 0;
-  private String savedContent = null;
-  private Bitmap savedLargeIcon;
-  private String savedContentTitle;
-  private CallAudioState savedCallAudioState;
-  private Uri ringtone;
+  @Nullable private InCallNotificationModel postedModel;
+  // The rounded large icon and what it was rendered from, reused while the source is unchanged.
+  @Nullable private Object cachedLargeIconSource;
+  @Nullable private Bitmap cachedLargeIcon;
+  private int postedCount;
+  private int skippedCount;
   private StatusBarCallListener statusBarCallListener;
 
   public StatusBarNotifier(@NonNull Context context, @NonNull ContactInfoCache contactInfoCache) {
@@ -226,7 +226,15 @@ public class StatusBarNotifier
     if (currentNotification != NOTIFICATION_NONE) {
       TelecomAdapter.getInstance().stopForegroundNotification();
       currentNotification = NOTIFICATION_NONE;
+      LogUtil.i(
+          "StatusBarNotifier.cancelNotification",
+          "notifications posted: %d, skipped as unchanged: %d",
+          postedCount,
+          skippedCount);
     }
+    postedModel = null;
+    cachedLargeIconSource = null;
+    cachedLargeIcon = null;
   }
 
   /**
@@ -283,9 +291,8 @@ public class StatusBarNotifier
     final CallAudioState callAudioState = AudioModeProvider.getInstance().getAudioState();
 
     Trace.beginSection("read icon and strings");
-    // Check if data has changed; if nothing is different, don't issue another notification.
     final int iconResId = getIconToDisplay(call);
-    Bitmap largeIcon = getLargeIconToDisplay(context, contactInfo, call);
+    final Object largeIconSource = getLargeIconSource(contactInfo, call);
     final CharSequence content = getContentString(call, contactInfo.userType);
     final String contentTitle = getContentTitle(contactInfo, call);
     Trace.endSection();
@@ -314,25 +321,35 @@ public class StatusBarNotifier
     } else {
       notificationType = NOTIFICATION_IN_CALL;
     }
+    final int color = InCallPresenter.getInstance().getThemeColorManager().getPrimaryColor();
     Trace.endSection(); // prepare work
 
-    if (!checkForChangeAndSaveData(
-        iconResId,
-        content.toString(),
-        largeIcon,
-        contentTitle,
-        callState,
-        call.getVideoState(),
-        notificationType,
-        contactInfo.contactRingtoneUri,
-        callAudioState)) {
+    // Check if anything visible has changed; if not, don't issue another notification.
+    InCallNotificationModel model =
+        InCallNotificationModel.builder()
+            .setNotificationType(notificationType)
+            .setIconResId(iconResId)
+            .setContent(content.toString())
+            .setContentTitle(contentTitle)
+            .setLargeIconSource(largeIconSource)
+            .setCallState(callState)
+            .setVideoState(call.getVideoState())
+            .setIsVideoUpgradeRequest(isVideoUpgradeRequest)
+            .setConnectTimeMillis(
+                callState == DialerCallState.ACTIVE ? call.getConnectTimeMillis() : 0)
+            .setColor(color)
+            .setRingtone(contactInfo.contactRingtoneUri)
+            .setCallAudioState(callAudioState)
+            .build();
+    if (model.equals(postedModel)) {
+      skippedCount++;
+      LogUtil.d("StatusBarNotifier.buildAndSendNotification", "unchanged, not posting");
       Trace.endSection();
       return;
     }
+    postedModel = model;
 
-    if (largeIcon != null) {
-      largeIcon = getRoundedIcon(largeIcon);
-    }
+    final Bitmap largeIcon = getLargeIcon(largeIconSource, contactInfo, call);
 
     // This builder is used for the notification shown when the device is locked and the user
     // has set their notification settings to 'hide sensitive content'
@@ -395,7 +412,7 @@ public class StatusBarNotifier
     builder.setSmallIcon(iconResId);
     builder.setContentTitle(contentTitle);
     builder.setLargeIcon(largeIcon);
-    builder.setColor(InCallPresenter.getInstance().getThemeColorManager().getPrimaryColor());
+    builder.setColor(color);
 
     if (isVideoUpgradeRequest) {
       builder.setUsesChronometer(false);
@@ -433,9 +450,13 @@ public class StatusBarNotifier
 
     // If a notification exists, this will only update it.
     TelecomAdapter.getInstance().startForegroundNotification(NOTIFICATION_ID, notification);
+    postedCount++;
 
     Trace.endSection();
     call.getLatencyReport().onNotificationShown();
+    if (notificationType == NOTIFICATION_INCOMING_CALL && isShownAsHeadsUp()) {
+      call.getLatencyReport().onHeadsUpNotificationShown();
+    }
     currentNotification = notificationType;
     Trace.endSection();
   }
@@ -475,87 +496,6 @@ public class StatusBarNotifier
     }
   }
 
-  /**
-   * Checks the new notification data and compares it against any notification that we are already
-   * displaying. If the data is exactly the same, we return false so that we do not issue a new
-   * notification for the exact same data.
-   */
-  private boolean checkForChangeAndSaveData(
-      int icon,
-      String content,
-      Bitmap largeIcon,
-      String contentTitle,
-      int state,
-      int videoState,
-      int notificationType,
-      Uri ringtone,
-      CallAudioState callAudioState) {
-
-    // The two are different:
-    // if new title is not null, it should be different from saved version OR
-    // if new title is null, the saved version should not be null
-    final boolean contentTitleChanged =
-        (contentTitle != null && !contentTitle.equals(savedContentTitle))
-            || (contentTitle == null && savedContentTitle != null);
-
-    boolean largeIconChanged;
-    if (savedLargeIcon == null) {
-      largeIconChanged = largeIcon != null;
-    } else {
-      largeIconChanged = largeIcon == null || !savedLargeIcon.sameAs(largeIcon);
-    }
-
-    // any change means we are definitely updating
-    boolean retval =
-        (savedIcon != icon)
-            || !Objects.equals(savedContent, content)
-            || (callState != state)
-            || (this.videoState != videoState)
-            || largeIconChanged
-            || contentTitleChanged
-            || !Objects.equals(this.ringtone, ringtone)
-            || !Objects.equals(savedCallAudioState, callAudioState);
-
-    LogUtil.d(
-        "StatusBarNotifier.checkForChangeAndSaveData",
-        "data changed: icon: %b, content: %b, state: %b, videoState: %b, largeIcon: %b, title: %b,"
-            + "ringtone: %b, audioState: %b, type: %b",
-        (savedIcon != icon),
-        !Objects.equals(savedContent, content),
-        (callState != state),
-        (this.videoState != videoState),
-        largeIconChanged,
-        contentTitleChanged,
-        !Objects.equals(this.ringtone, ringtone),
-        !Objects.equals(savedCallAudioState, callAudioState),
-        currentNotification != notificationType);
-    // If we aren't showing a notification right now or the notification type is changing,
-    // definitely do an update.
-    if (currentNotification != notificationType) {
-      if (currentNotification == NOTIFICATION_NONE) {
-        LogUtil.d(
-            "StatusBarNotifier.checkForChangeAndSaveData", "showing notification for first time.");
-      }
-      retval = true;
-    }
-
-    savedIcon = icon;
-    savedContent = content;
-    callState = state;
-    this.videoState = videoState;
-    savedLargeIcon = largeIcon;
-    savedContentTitle = contentTitle;
-    this.ringtone = ringtone;
-    savedCallAudioState = callAudioState;
-
-    if (retval) {
-      LogUtil.d(
-          "StatusBarNotifier.checkForChangeAndSaveData", "data changed.  Showing notification");
-    }
-
-    return retval;
-  }
-
   /** Returns the main string to use in the notification. */
   @VisibleForTesting
   @Nullable
@@ -590,6 +530,49 @@ public class StatusBarNotifier
     }
   }
 
+  /**
+   * Returns what the large icon would be rendered from, without rendering it: the blocked contact
+   * drawable for spam, the contact photo bitmap, or the details of the letter tile drawn when there
+   * is no photo. Returns null if there is no large icon.
+   */
+  @Nullable
+  private static Object getLargeIconSource(ContactCacheEntry contactInfo, DialerCall call) {
+    if (call.isSpam()) {
+      return R.drawable.blocked_contact;
+    }
+    if (contactInfo.photo instanceof BitmapDrawable) {
+      return ((BitmapDrawable) contactInfo.photo).getBitmap();
+    }
+    if (contactInfo.photo == null) {
+      return Arrays.asList(
+          contactInfo.namePrimary == null ? contactInfo.number : contactInfo.namePrimary,
+          contactInfo.lookupKey,
+          getContactType(contactInfo, call));
+    }
+    return null;
+  }
+
+  /** Returns the rounded large icon, rendering it again only if its source changed. */
+  @Nullable
+  private Bitmap getLargeIcon(
+      @Nullable Object largeIconSource, ContactCacheEntry contactInfo, DialerCall call) {
+    if (!Objects.equals(largeIconSource, cachedLargeIconSource)) {
+      cachedLargeIconSource = largeIconSource;
+      cachedLargeIcon = getRoundedIcon(getLargeIconToDisplay(context, contactInfo, call));
+    }
+    return cachedLargeIcon;
+  }
+
+  @ContactType
+  private static int getContactType(ContactCacheEntry contactInfo, DialerCall call) {
+    return LetterTileDrawable.getContactTypeFromPrimitives(
+        call.isVoiceMailNumber(),
+        call.isSpam(),
+        contactInfo.isBusiness,
+        call.getNumberPresentation(),
+        call.isConferenceCall() && !call.hasProperty(Details.PROPERTY_GENERIC_CONFERENCE));
+  }
+
   /** Gets a large icon from the contact info object to display in the notification. */
   private static Bitmap getLargeIconToDisplay(
       Context context, ContactCacheEntry contactInfo, DialerCall call) {
@@ -602,14 +585,7 @@ public class StatusBarNotifier
     if (contactInfo.photo == null) {
       int width = (int) resources.getDimension(android.R.dimen.notification_large_icon_width);
       int height = (int) resources.getDimension(android.R.dimen.notification_large_icon_height);
-      @ContactType
-      int contactType =
-          LetterTileDrawable.getContactTypeFromPrimitives(
-              call.isVoiceMailNumber(),
-              call.isSpam(),
-              contactInfo.isBusiness,
-              call.getNumberPresentation(),
-              call.isConferenceCall() && !call.hasProperty(Details.PROPERTY_GENERIC_CONFERENCE));
+      @ContactType int contactType = getContactType(contactInfo, call);
       LetterTileDrawable lettertile = new LetterTileDrawable(resources);
 
       lettertile.setCanonicalDialerLetterTileDetails(
@@ -1057,6 +1033,15 @@ public class StatusBarNotifier
             .build());
   }
 
+  /**
+   * Returns whether an incoming call notification shows as a heads-up rather than launching its
+   * full screen intent, which is only sent while the screen is off or locked.
+   */
+  private boolean isShownAsHeadsUp() {
+    return context.getSystemService(PowerManager.class).isInteractive()
+        && !context.getSystemService(KeyguardManager.class).isKeyguardLocked();
+  }
+
   /** Adds fullscreen intent to the builder. */
   private void configureFullScreenIntent(Notification.Builder builder, PendingIntent intent) {
     // Ok, we actually want to launch the incoming call
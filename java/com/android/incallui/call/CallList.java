@@ -19,6 +19,7 @@ package com.android.incallui.call;
 import android.content.Context;
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
@@ -28,6 +29,8 @@ import android.telecom.DisconnectCause;
 import android.telecom.PhoneAccount;
 import android.util.ArrayMap;
 import com.android.dialer.blocking.FilteredNumberAsyncQueryHandler;
+import com.android.dialer.calltrace.CallTrace;
+import com.android.dialer.calltrace.CallTrace.Span;
 import com.android.dialer.common.Assert;
 import com.android.dialer.common.LogUtil;
 import com.android.dialer.common.concurrent.DialerExecutorComponent;
@@ -122,6 +125,8 @@ public class CallList implements DialerCallDelegate {
   public void onCallAdded(
       final Context context, final android.telecom.Call telecomCall, LatencyReport latencyReport) {
     Trace.beginSection("CallList.onCallAdded");
+    Span callAddedSpan =
+        latencyReport.getCallSetupTrace().getRoot().startChild("CallList.onCallAdded");
     if (telecomCall.getState() == Call.STATE_CONNECTING) {
       MetricsComponent.get(context)
           .metrics()
@@ -134,8 +139,10 @@ public class CallList implements DialerCallDelegate {
     if (uiListeners != null) {
       uiListeners.onCallAdded();
     }
+    Span dialerCallInitSpan = callAddedSpan.startChild("DialerCall.init");
     final DialerCall call =
         new DialerCall(context, this, telecomCall, latencyReport, true /* registerCallback */);
+    dialerCallInitSpan.end();
     if (getFirstCall() != null) {
       logSecondIncomingCall(context, getFirstCall(), call);
     }
@@ -149,6 +156,7 @@ public class CallList implements DialerCallDelegate {
     LogUtil.d("CallList.onCallAdded", "callState=" + call.getState());
     if (SpamComponent.get(context).spamSettings().isSpamEnabled()) {
       String number = TelecomCallUtil.getNumber(telecomCall);
+      Span spamCheckSpan = latencyReport.getCallSetupTrace().getRoot().startChild("SpamCheck");
       ListenableFuture<SpamStatus> futureSpamStatus =
           SpamComponent.get(context).spam().checkSpamStatus(number, call.getCountryIso());
 
@@ -157,6 +165,7 @@ public class CallList implements DialerCallDelegate {
           new FutureCallback<SpamStatus>() {
             @Override
             public void onSuccess(@Nullable SpamStatus result) {
+              spamCheckSpan.end();
               boolean isIncomingCall =
                   call.getState() == DialerCallState.INCOMING
                       || call.getState() == DialerCallState.CALL_WAITING;
@@ -178,6 +187,7 @@ public class CallList implements DialerCallDelegate {
 
             @Override
             public void onFailure(Throwable t) {
+              spamCheckSpan.end();
               LogUtil.e("CallList.onFailure", "unable to query spam status", t);
             }
           },
@@ -192,10 +202,13 @@ public class CallList implements DialerCallDelegate {
     FilteredNumberAsyncQueryHandler filteredNumberAsyncQueryHandler =
         new FilteredNumberAsyncQueryHandler(context);
 
+    Span blockedStatusSpan =
+        latencyReport.getCallSetupTrace().getRoot().startChild("BlockedStatusCheck");
     filteredNumberAsyncQueryHandler.isBlockedNumber(
         new FilteredNumberAsyncQueryHandler.OnCheckBlockedListener() {
           @Override
           public void onCheckComplete(Integer id) {
+            blockedStatusSpan.end();
             if (id != null && id != FilteredNumberAsyncQueryHandler.INVALID_ID) {
               call.setBlockedStatus(true);
               // No need to update UI since it's only used for logging.
@@ -236,6 +249,7 @@ public class CallList implements DialerCallDelegate {
       ShortcutUsageReporter.onOutgoingCallAdded(context, call.getNumber());
     }
 
+    callAddedSpan.end();
     Trace.endSection();
   }
 
@@ -287,6 +301,9 @@ public class CallList implements DialerCallDelegate {
             "CallList.onCallRemoved", "Removing call not previously disconnected " + call.getId());
       }
 
+      // The UI never showed the call, so its setup never finished.
+      call.getLatencyReport().getCallSetupTrace().abandon();
+
       call.onRemovedFromCallList();
     }
 
@@ -730,6 +747,26 @@ public class CallList implements DialerCallDelegate {
     }
   }
 
+  /**
+   * Finishes the setup traces of the current calls once the in-call UI drew a frame showing them.
+   *
+   * @param activityCreatedNanos when the activity was created, in {@link
+   *     SystemClock#elapsedRealtimeNanos}
+   */
+  public void onInCallUiFirstFrame(long activityCreatedNanos) {
+    long nowNanos = SystemClock.elapsedRealtimeNanos();
+    for (DialerCall call : callById.values()) {
+      CallTrace trace = call.getLatencyReport().getCallSetupTrace();
+      if (trace.isFinished()) {
+        continue;
+      }
+      // The activity may outlive a call and be reused by the next one.
+      long startNanos = Math.max(activityCreatedNanos, trace.getRoot().getStartNanos());
+      trace.getRoot().addChild("InCallActivity.firstFrame", startNanos, nowNanos);
+      trace.finish();
+    }
+  }
+
   /** Listener interface for any class that wants to be notified of changes to the call list. */
   public interface Listener {
 
@@ -18,6 +18,7 @@ package com.android.incallui.latencyreport;
 
 import android.os.Bundle;
 import android.os.SystemClock;
+import com.android.dialer.calltrace.CallTrace;
 
 /** Tracks latency information for a call. */
 public class LatencyReport {
@@ -58,6 +59,22 @@ public class LatencyReport {
   // UI.
   private boolean didDisplayHeadsUpNotification;
 
+  // Time elapsed since boot when the caller info lookup was started.
+  private long callerInfoQueryStartTimeMillis = INVALID_TIME;
+
+  // Time elapsed since boot when the caller info lookup delivered its result, from the default
+  // directory or the first remote directory with a match.
+  private long callerInfoQueryCompleteTimeMillis = INVALID_TIME;
+
+  // Number of remote directories the caller info lookup queried.
+  private int directoryQueryCount;
+
+  // Number of remote directories which didn't answer the caller info lookup in time.
+  private int directoryQueryTimeoutCount;
+
+  // Trace of the call setup stages, which isn't recorded unless replaced by a recorded one.
+  private CallTrace callSetupTrace = CallTrace.createUnrecorded("CallSetup");
+
   public LatencyReport() {
     wasIncoming = false;
     createdTimeMillis = INVALID_TIME;
@@ -120,6 +137,7 @@ public class LatencyReport {
   public void onNotificationShown() {
     if (callNotificationTimeMillis == INVALID_TIME) {
       callNotificationTimeMillis = SystemClock.elapsedRealtime();
+      callSetupTrace.getRoot().markChild("StatusBarNotifier.notificationShown");
     }
   }
 
@@ -131,10 +149,64 @@ public class LatencyReport {
     if (inCallUiShownTimeMillis == INVALID_TIME) {
       inCallUiShownTimeMillis = SystemClock.elapsedRealtime();
       didDisplayHeadsUpNotification = wasIncoming && !forFullScreenIntent;
+      callSetupTrace.getRoot().markChild("InCallActivity.shown");
     }
   }
 
   public boolean getDidDisplayHeadsUpNotification() {
     return didDisplayHeadsUpNotification;
   }
+
+  public long getCallerInfoQueryStartTimeMillis() {
+    return callerInfoQueryStartTimeMillis;
+  }
+
+  public void onCallerInfoQueryStarted() {
+    if (callerInfoQueryStartTimeMillis == INVALID_TIME) {
+      callerInfoQueryStartTimeMillis = SystemClock.elapsedRealtime();
+    }
+  }
+
+  public long getCallerInfoQueryCompleteTimeMillis() {
+    return callerInfoQueryCompleteTimeMillis;
+  }
+
+  public void onCallerInfoQueryComplete() {
+    if (callerInfoQueryCompleteTimeMillis == INVALID_TIME) {
+      callerInfoQueryCompleteTimeMillis = SystemClock.elapsedRealtime();
+    }
+  }
+
+  public int getDirectoryQueryCount() {
+    return directoryQueryCount;
+  }
+
+  public void onDirectoryQueriesStarted(int count) {
+    directoryQueryCount += count;
+  }
+
+  public int getDirectoryQueryTimeoutCount() {
+    return directoryQueryTimeoutCount;
+  }
+
+  public void onDirectoryQueryTimedOut() {
+    directoryQueryTimeoutCount++;
+  }
+
+  /**
+   * Finishes the call setup trace when an incoming call is shown as a heads-up notification, as the
+   * in-call UI won't show until the user acts on it.
+   */
+  public void onHeadsUpNotificationShown() {
+    callSetupTrace.getRoot().markChild("StatusBarNotifier.headsUpShown");
+    callSetupTrace.finishAs(callSetupTrace.getRoot().getName() + ".HeadsUp");
+  }
+
+  public CallTrace getCallSetupTrace() {
+    return callSetupTrace;
+  }
+
+  public void setCallSetupTrace(CallTrace callSetupTrace) {
+    this.callSetupTrace = callSetupTrace;
+  }
 }